@@ -23,6 +23,12 @@ javac -d $BIN_DIR/             \
 	$SRC_DIR/tests/*.java        \
 	$SRC_DIR/util/*.java
 
+# The Vector API parity kernel needs the jdk.incubator.vector module,
+# without it parity falls back to the long-word kernel
+javac -d $BIN_DIR/ --add-modules jdk.incubator.vector \
+	$SRC_DIR/chunker/simd/*.java 2> /dev/null ||    \
+	echo "Vector API unavailable, skipped the vector parity kernel"
+
 # Run Javadocs
 javadoc -private -d javadocs/  \
 	-doctitle "RAIDS - Team Monotonicity" \
@@ -48,6 +54,9 @@ echo
 echo " You can run the client with:"
 echo "   shell> java raids.Client 9000 localhost 9000 axel 10 localhost 9999"
 echo
+echo " You can compare the parity kernels with:"
+echo "   shell> java --add-modules jdk.incubator.vector examples.XorBenchmark"
+echo
 echo " You can run the JUnit tests with:"
 echo "   shell> source shell/tests.sh"
 echo
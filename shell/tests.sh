@@ -7,6 +7,17 @@
 java org.junit.runner.JUnitCore \
 	tests.TestBufferUtils         \
 	tests.TestChunker             \
+	tests.TestContainerPacker     \
+	tests.TestDeduplicator        \
 	tests.TestEve                 \
+	tests.TestHashCache           \
+	tests.TestDigest              \
+	tests.TestTransferFrame       \
+	tests.TestMerkleTree          \
+	tests.TestPartialDownload     \
 	tests.TestPartIndicator       \
-	tests.TestSHA1
+	tests.TestReedSolomon         \
+	tests.TestSHA1                \
+	tests.TestStripeDelta         \
+	tests.TestSwarmDownload       \
+	tests.TestStripedFileReader
@@ -0,0 +1,125 @@
+package chunker;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Every block stored so far, keyed by the SHA-1 of its contents, so a block
+ * seen again is referenced instead of stored again.
+ *
+ * @author Alex Maskovyak
+ */
+public class BlockIndex implements Serializable {
+
+	///
+	///
+	/// Constants.
+	///
+	///
+
+	/** Generated serial version */
+	private static final long serialVersionUID = -2484373497770286950L;
+
+	///
+	///
+	/// Hidden variables.
+	///
+	///
+
+	/** Where each block is stored, by the hex SHA-1 of its contents. */
+	private Map<String, BlockReference> m_blocks;
+
+	///
+	///
+	/// Constructors.
+	///
+	///
+
+	/**
+	 * Default constructor, for an empty index.
+	 */
+	public BlockIndex() {
+		m_blocks = new HashMap<String, BlockReference>();
+	}
+
+	/**
+	 * Read an index saved to a file.
+	 * @param file where the index was saved.
+	 * @return the saved index, or an empty one if the file does not exist or
+	 * 			cannot be read.
+	 */
+	public static BlockIndex load( File file ) {
+		if( !file.exists() ) {
+			return new BlockIndex();
+		}
+		ObjectInputStream in = null;
+		try {
+			in = new ObjectInputStream( new FileInputStream( file ) );
+			return (BlockIndex)in.readObject();
+		} catch( Exception e ) {
+			e.printStackTrace();
+			return new BlockIndex();
+		} finally {
+			try {
+				if( in != null ) {
+					in.close();
+				}
+			} catch( IOException e ) {}
+		}
+	}
+
+	///
+	///
+	/// Operations.
+	///
+	///
+
+	/**
+	 * Save the index to a file.
+	 * @param file where to save the index.
+	 * @throws IOException when the file cannot be written.
+	 */
+	public synchronized void save( File file ) throws IOException {
+		ObjectOutputStream out = new ObjectOutputStream( new FileOutputStream( file ) );
+		try {
+			out.writeObject( this );
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Find where a block is stored.
+	 * @param hash the hex SHA-1 of the block.
+	 * @return where the block is stored, null if it is not.
+	 */
+	public synchronized BlockReference get( String hash ) {
+		return m_blocks.get( hash );
+	}
+
+	/**
+	 * Record where a block is stored, unless it already is.
+	 * @param hash the hex SHA-1 of the block.
+	 * @param reference where the block is stored.
+	 */
+	public synchronized void put( String hash, BlockReference reference ) {
+		if( !m_blocks.containsKey( hash ) ) {
+			m_blocks.put( hash, reference );
+		}
+	}
+
+	/**
+	 * Obtain the number of blocks stored.
+	 * @return number of distinct blocks.
+	 */
+	public synchronized int size() {
+		return m_blocks.size();
+	}
+}
@@ -0,0 +1,220 @@
+package chunker;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import util.BufferUtils;
+import util.SHA1;
+
+/**
+ * A deduplicated file, as the blocks it is made of in order.  Each block is
+ * a reference into a pack together with the SHA-1 of its contents, which is
+ * checked when the file is rebuilt.
+ *
+ * Recipes travel inside master lists, so they are kept as flat arrays
+ * rather than as an object per block.
+ *
+ * @author Alex Maskovyak
+ */
+public class BlockRecipe implements Serializable {
+
+	///
+	///
+	/// Constants.
+	///
+	///
+
+	/** Generated serial version */
+	private static final long serialVersionUID = 2290562950411787711L;
+
+	/** Size of a SHA-1 digest. */
+	public static final int HASH_SIZE = 20;
+
+	///
+	///
+	/// Hidden variables.
+	///
+	///
+
+	/** Names of the packs blocks are referenced in. */
+	private List<String> m_packs;
+
+	/** Index into the pack names of each block's pack. */
+	private int[] m_pack;
+
+	/** Offset of each block within its pack. */
+	private long[] m_offset;
+
+	/** Size of each block. */
+	private int[] m_length;
+
+	/** SHA-1 of each block, end to end. */
+	private byte[] m_hashes;
+
+	/** Number of blocks. */
+	private int m_count;
+
+	/** Size of the file. */
+	private long m_fileLength;
+
+	///
+	///
+	/// Constructors.
+	///
+	///
+
+	/**
+	 * Default constructor, for an empty file.
+	 */
+	public BlockRecipe() {
+		m_packs = new ArrayList<String>();
+		m_pack = new int[ 16 ];
+		m_offset = new long[ 16 ];
+		m_length = new int[ 16 ];
+		m_hashes = new byte[ 16 * HASH_SIZE ];
+		m_count = 0;
+		m_fileLength = 0;
+	}
+
+	///
+	///
+	/// Operations.
+	///
+	///
+
+	/**
+	 * Append a block to the file.
+	 * @param reference where the block is stored.
+	 * @param hash the SHA-1 of the block.
+	 */
+	public void add( BlockReference reference, byte[] hash ) {
+		if( m_count == m_pack.length ) {
+			int capacity = m_count * 2;
+			m_pack = Arrays.copyOf( m_pack, capacity );
+			m_offset = Arrays.copyOf( m_offset, capacity );
+			m_length = Arrays.copyOf( m_length, capacity );
+			m_hashes = Arrays.copyOf( m_hashes, capacity * HASH_SIZE );
+		}
+		int pack = m_packs.indexOf( reference.getPack() );
+		if( pack < 0 ) {
+			pack = m_packs.size();
+			m_packs.add( reference.getPack() );
+		}
+		m_pack[ m_count ] = pack;
+		m_offset[ m_count ] = reference.getOffset();
+		m_length[ m_count ] = reference.getLength();
+		System.arraycopy( hash, 0, m_hashes, m_count * HASH_SIZE, HASH_SIZE );
+		m_count++;
+		m_fileLength += reference.getLength();
+	}
+
+	/**
+	 * Change the name of a pack, used once a pack being written is named.
+	 * @param from the pack's old name.
+	 * @param to the pack's new name.
+	 */
+	public void renamePack( String from, String to ) {
+		int pack = m_packs.indexOf( from );
+		if( pack >= 0 ) {
+			m_packs.set( pack, to );
+		}
+	}
+
+	/**
+	 * Rebuild the file from its packs, checking every block.
+	 * @param packs an open file for every pack the recipe references.
+	 * @param out where to write the file.
+	 * @throws IOException when a pack is missing or short, or a block does
+	 * 			not match its hash.
+	 */
+	public void restore( Map<String, FileChannel> packs, WritableByteChannel out ) throws IOException {
+		MessageDigest digest = SHA1.newDigest();
+		int max = 0;
+		for( int i = 0; i < m_count; i++ ) {
+			max = Math.max( max, m_length[ i ] );
+		}
+		ByteBuffer block = ByteBuffer.allocate( max );
+
+		for( int i = 0; i < m_count; i++ ) {
+			BlockReference reference = getReference( i );
+			FileChannel pack = packs.get( reference.getPack() );
+			if( pack == null ) {
+				throw new IOException( "Pack " + reference.getPack() + " is missing." );
+			}
+			block.clear().limit( reference.getLength() );
+			if( BufferUtils.readFully( pack, block, reference.getOffset() ) < reference.getLength() ) {
+				throw new IOException( "Pack ends before block " + reference + "." );
+			}
+			block.flip();
+			digest.update( block.duplicate() );
+			if( !Arrays.equals( digest.digest(), getHash( i ) ) ) {
+				throw new IOException( "Block " + reference + " does not match its hash." );
+			}
+			BufferUtils.writeFully( out, block );
+		}
+	}
+
+	/**
+	 * For Debug
+	 * @return a String representation of this recipe.
+	 */
+	public String toString() {
+		return String.format( "%d blocks, %d bytes, from %s", m_count, m_fileLength, m_packs );
+	}
+
+	///
+	///
+	/// Access methods.
+	///
+	///
+
+	/**
+	 * Obtain the names of the packs blocks are referenced in.
+	 * @return pack names, each once.
+	 */
+	public List<String> getPacks() {
+		return m_packs;
+	}
+
+	/**
+	 * Obtain the number of blocks.
+	 * @return number of blocks.
+	 */
+	public int getBlocks() {
+		return m_count;
+	}
+
+	/**
+	 * Obtain where a block is stored.
+	 * @param block index of the block within the file.
+	 * @return the block's reference.
+	 */
+	public BlockReference getReference( int block ) {
+		return new BlockReference( m_packs.get( m_pack[ block ] ), m_offset[ block ], m_length[ block ] );
+	}
+
+	/**
+	 * Obtain the SHA-1 of a block.
+	 * @param block index of the block within the file.
+	 * @return the block's hash.
+	 */
+	public byte[] getHash( int block ) {
+		return Arrays.copyOfRange( m_hashes, block * HASH_SIZE, ( block + 1 ) * HASH_SIZE );
+	}
+
+	/**
+	 * Obtain the size of the file.
+	 * @return size in bytes.
+	 */
+	public long getFileLength() {
+		return m_fileLength;
+	}
+}
@@ -0,0 +1,92 @@
+package chunker;
+
+import java.io.Serializable;
+
+/**
+ * Where a deduplicated block is stored: a run of bytes within a pack, the
+ * file of unique blocks uploaded alongside the file which introduced them.
+ *
+ * @author Alex Maskovyak
+ */
+public class BlockReference implements Serializable {
+
+	///
+	///
+	/// Constants.
+	///
+	///
+
+	/** Generated serial version */
+	private static final long serialVersionUID = 7181580712245137734L;
+
+	///
+	///
+	/// Hidden variables.
+	///
+	///
+
+	/** Name the pack is stored under. */
+	private String m_pack;
+
+	/** Offset of the block within the pack. */
+	private long m_offset;
+
+	/** Size of the block. */
+	private int m_length;
+
+	///
+	///
+	/// Constructors.
+	///
+	///
+
+	/**
+	 * Constructor.
+	 * @param pack name the pack is stored under.
+	 * @param offset offset of the block within the pack.
+	 * @param length size of the block.
+	 */
+	public BlockReference( String pack, long offset, int length ) {
+		m_pack = pack;
+		m_offset = offset;
+		m_length = length;
+	}
+
+	///
+	///
+	/// Access methods.
+	///
+	///
+
+	/**
+	 * Obtain the name the pack is stored under.
+	 * @return the pack's name.
+	 */
+	public String getPack() {
+		return m_pack;
+	}
+
+	/**
+	 * Obtain the offset of the block within the pack.
+	 * @return offset in bytes.
+	 */
+	public long getOffset() {
+		return m_offset;
+	}
+
+	/**
+	 * Obtain the size of the block.
+	 * @return size in bytes.
+	 */
+	public int getLength() {
+		return m_length;
+	}
+
+	/**
+	 * For Debug
+	 * @return a String representation of this reference.
+	 */
+	public String toString() {
+		return String.format( "%s[%d+%d]", m_pack, m_offset, m_length );
+	}
+}
@@ -0,0 +1,31 @@
+package chunker;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The simplest parity kernel, one byte at a time.  Kept as the baseline the
+ * other kernels are measured against.
+ *
+ * @author Alex Maskovyak
+ */
+public class ByteXorKernel implements XorKernel {
+
+	/**
+	 * XOR a byte at a time.
+	 * @see XorKernel#xor(ByteBuffer, ByteBuffer, int)
+	 */
+	public void xor( ByteBuffer dst, ByteBuffer src, int length ) {
+		int d = dst.position();
+		int s = src.position();
+		for( int i = 0; i < length; i++ ) {
+			dst.put( d + i, (byte)( dst.get( d + i ) ^ src.get( s + i ) ) );
+		}
+	}
+
+	/**
+	 * @return "byte"
+	 */
+	public String getName() {
+		return "byte";
+	}
+}
@@ -0,0 +1,268 @@
+package chunker;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import util.BufferUtils;
+
+/**
+ * Fixed size header written at the front of every block-striped chunk.  It
+ * records the stripe geometry so that a chunk is self describing and can be
+ * told apart from chunks written by the old byte-at-a-time format, which
+ * have no header at all.
+ *
+ * @author Alex Maskovyak
+ */
+public class ChunkHeader {
+
+	///
+	///
+	/// Constants.
+	///
+	///
+
+	/** Marks a block-striped chunk, "RAID" in ASCII. */
+	public static final int MAGIC = 0x52414944;
+
+	/** Current version of the header layout. */
+	public static final int VERSION = 1;
+
+	/**
+	 * Same layout as {@link #VERSION}, for chunks striping the frames of a
+	 * {@link StripeCompressor} rather than the file itself.  The length is
+	 * then the length of the frames.
+	 */
+	public static final int DEFLATED_VERSION = 2;
+
+	/** The Byte Size of a header. */
+	public static final int SIZE = 4+4+4+4+4+4+8; /* magic, version, unit, chunks, parity, part, length */
+
+	///
+	///
+	/// Hidden variables.
+	///
+	///
+
+	/** Version of the header. */
+	private int m_version;
+
+	/** Size, in bytes, of a stripe unit. */
+	private int m_stripeUnit;
+
+	/** Number of chunks the original file was split into. */
+	private int m_chunks;
+
+	/** Number of those chunks holding parity, more than one means erasure coded. */
+	private int m_parityChunks;
+
+	/** Which chunk this header belongs to. */
+	private int m_partNum;
+
+	/** Size, in bytes, of the original file. */
+	private long m_originalLength;
+
+	///
+	///
+	/// Constructors.
+	///
+	///
+
+	/**
+	 * Default constructor, for a single parity chunk.
+	 * @param stripeUnit size of a stripe unit in bytes.
+	 * @param chunks number of chunks the original file was split into.
+	 * @param partNum the chunk this header belongs to.
+	 * @param originalLength size of the original file in bytes.
+	 */
+	public ChunkHeader( int stripeUnit, int chunks, int partNum, long originalLength ) {
+		this( stripeUnit, chunks, 1, partNum, originalLength );
+	}
+
+	/**
+	 * Constructor.
+	 * @param stripeUnit size of a stripe unit in bytes.
+	 * @param chunks number of chunks the original file was split into.
+	 * @param parityChunks number of those chunks holding parity.
+	 * @param partNum the chunk this header belongs to.
+	 * @param originalLength size of the original file in bytes.
+	 */
+	public ChunkHeader( int stripeUnit, int chunks, int parityChunks, int partNum, long originalLength ) {
+		this( stripeUnit, chunks, parityChunks, partNum, originalLength, false );
+	}
+
+	/**
+	 * Constructor.
+	 * @param stripeUnit size of a stripe unit in bytes.
+	 * @param chunks number of chunks the original file was split into.
+	 * @param parityChunks number of those chunks holding parity.
+	 * @param partNum the chunk this header belongs to.
+	 * @param originalLength size of the striped bytes.
+	 * @param deflated whether the striped bytes are compressed frames.
+	 */
+	public ChunkHeader( int stripeUnit, int chunks, int parityChunks, int partNum, long originalLength, boolean deflated ) {
+		m_version = deflated ? DEFLATED_VERSION : VERSION;
+		m_stripeUnit = stripeUnit;
+		m_chunks = chunks;
+		m_parityChunks = parityChunks;
+		m_partNum = partNum;
+		m_originalLength = originalLength;
+	}
+
+	/**
+	 * Constructor from bytes.
+	 * @param bytes the header in binary.
+	 * @throws IllegalArgumentException when the bytes are not a header.
+	 */
+	public ChunkHeader( byte[] bytes ) throws IllegalArgumentException {
+		ByteBuffer buf = ByteBuffer.wrap( bytes );
+		if( bytes.length < SIZE || buf.getInt() != MAGIC ) {
+			throw new IllegalArgumentException( "Not a chunk header." );
+		}
+		m_version = buf.getInt();
+		if( m_version < VERSION || m_version > DEFLATED_VERSION ) {
+			throw new IllegalArgumentException( "Unsupported chunk header version: " + m_version );
+		}
+		m_stripeUnit = buf.getInt();
+		m_chunks = buf.getInt();
+		m_parityChunks = buf.getInt();
+		m_partNum = buf.getInt();
+		m_originalLength = buf.getLong();
+	}
+
+	///
+	///
+	/// Operations.
+	///
+	///
+
+	/**
+	 * Convert this structure to bytes.
+	 * @return an array of bytes representing this header.
+	 */
+	public byte[] toBytes() {
+		ByteBuffer buf = ByteBuffer.allocate( SIZE );
+		buf.putInt( MAGIC );
+		buf.putInt( m_version );
+		buf.putInt( m_stripeUnit );
+		buf.putInt( m_chunks );
+		buf.putInt( m_parityChunks );
+		buf.putInt( m_partNum );
+		buf.putLong( m_originalLength );
+		return buf.array();
+	}
+
+	/**
+	 * Read the header from the front of a chunk file.
+	 * @param p_chunk the chunk file.
+	 * @return the chunk's header, or null when the chunk has no header (it
+	 * 			was written by the byte-striped format).
+	 * @throws IOException when the chunk cannot be read.
+	 */
+	public static ChunkHeader read( File p_chunk ) throws IOException {
+		FileInputStream fi = new FileInputStream( p_chunk );
+		try {
+			return read( fi.getChannel() );
+		} finally {
+			fi.close();
+		}
+	}
+
+	/**
+	 * Read the header from the current position of a channel.  On return the
+	 * channel is positioned after the header.
+	 * @param p_channel channel positioned at the front of a chunk.
+	 * @return the chunk's header, or null when the chunk has no header.
+	 * @throws IOException when the chunk cannot be read.
+	 */
+	public static ChunkHeader read( FileChannel p_channel ) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate( SIZE );
+		BufferUtils.readFully( p_channel, buf );
+		if( buf.position() < SIZE || buf.getInt( 0 ) != MAGIC ) {
+			return null;
+		}
+		return new ChunkHeader( buf.array() );
+	}
+
+	/**
+	 * For Debug
+	 * @return a String representation of this header.
+	 */
+	public String toString() {
+		return String.format( "v%d part %d/%d parity=%d unit=%d length=%d",
+				m_version, m_partNum, m_chunks, m_parityChunks, m_stripeUnit, m_originalLength );
+	}
+
+	///
+	///
+	/// Access methods.
+	///
+	///
+
+	/**
+	 * Obtain the version of the header layout.
+	 * @return header version.
+	 */
+	public int getVersion() {
+		return m_version;
+	}
+
+	/**
+	 * Check whether the chunks stripe compressed frames.
+	 * @return true when the striped bytes must be inflated.
+	 */
+	public boolean isDeflated() {
+		return m_version == DEFLATED_VERSION;
+	}
+
+	/**
+	 * Obtain the stripe unit size.
+	 * @return Size of a stripe unit in bytes.
+	 */
+	public int getStripeUnit() {
+		return m_stripeUnit;
+	}
+
+	/**
+	 * Obtain the number of chunks the original file was split into.
+	 * @return number of chunks.
+	 */
+	public int getChunks() {
+		return m_chunks;
+	}
+
+	/**
+	 * Obtain the number of chunks holding parity, which is also the number
+	 * of chunks that may be lost.
+	 * @return number of parity chunks.
+	 */
+	public int getParityChunks() {
+		return m_parityChunks;
+	}
+
+	/**
+	 * Obtain the chunk this header belongs to.
+	 * @return the part number of the chunk.
+	 */
+	public int getPartNum() {
+		return m_partNum;
+	}
+
+	/**
+	 * Obtain the size of the original file.
+	 * @return Size of the original file in bytes.
+	 */
+	public long getOriginalLength() {
+		return m_originalLength;
+	}
+
+	/**
+	 * Build the stripe layout this header describes.
+	 * @return the layout of the chunks.
+	 */
+	public StripeLayout getLayout() {
+		return new StripeLayout( m_chunks, m_parityChunks, m_stripeUnit, m_originalLength );
+	}
+}
@@ -0,0 +1,159 @@
+package chunker;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import util.BufferUtils;
+
+/**
+ * Changes to bring one stored chunk up to date with a new version of its
+ * file: the byte ranges to overwrite, and the chunk's new size.  Patches are
+ * small enough to travel inside a message, and a large update is sent as
+ * several patches to the same chunk.
+ *
+ * @author Alex Maskovyak
+ */
+public class ChunkPatch implements Serializable {
+
+	///
+	///
+	/// Constants.
+	///
+	///
+
+	/** Generated serial version */
+	private static final long serialVersionUID = -3059141753240616128L;
+
+	///
+	///
+	/// Hidden variables.
+	///
+	///
+
+	/** The chunk being patched. */
+	private int m_chunk;
+
+	/** Size of the chunk file, header included, once patched. */
+	private long m_length;
+
+	/** Position within the chunk file of each range, header included. */
+	private List<Long> m_positions;
+
+	/** Bytes of each range. */
+	private List<byte[]> m_ranges;
+
+	/** Number of bytes across all ranges. */
+	private long m_size;
+
+	///
+	///
+	/// Constructors.
+	///
+	///
+
+	/**
+	 * Constructor for an empty patch.
+	 * @param chunk the chunk being patched.
+	 * @param length size of the chunk file, header included, once patched.
+	 */
+	public ChunkPatch( int chunk, long length ) {
+		m_chunk = chunk;
+		m_length = length;
+		m_positions = new ArrayList<Long>();
+		m_ranges = new ArrayList<byte[]>();
+		m_size = 0;
+	}
+
+	///
+	///
+	/// Operations.
+	///
+	///
+
+	/**
+	 * Add a range to overwrite.
+	 * @param position position within the chunk file, header included.
+	 * @param bytes the range's new contents, which are kept rather than
+	 * 			copied.
+	 * @throws IllegalArgumentException when the range ends past the chunk's
+	 * 			new size.
+	 */
+	public void add( long position, byte[] bytes ) throws IllegalArgumentException {
+		if( position < 0 || position + bytes.length > m_length ) {
+			throw new IllegalArgumentException( "Range " + position + "+" + bytes.length
+					+ " is outside a chunk of " + m_length + " bytes." );
+		}
+		m_positions.add( position );
+		m_ranges.add( bytes );
+		m_size += bytes.length;
+	}
+
+	/**
+	 * Write the ranges into a chunk file and set its size.
+	 * @param chunk the stored chunk, open for writing.
+	 * @throws IOException when the chunk cannot be written.
+	 */
+	public void applyTo( FileChannel chunk ) throws IOException {
+		if( chunk.size() > m_length ) {
+			chunk.truncate( m_length );
+		}
+		for( int i = 0; i < m_ranges.size(); i++ ) {
+			BufferUtils.writeFully( chunk, ByteBuffer.wrap( m_ranges.get( i ) ), m_positions.get( i ) );
+		}
+		if( chunk.size() < m_length ) {
+			// grown past the last range, the unit there was left as zeros
+			BufferUtils.writeFully( chunk, ByteBuffer.allocate( 1 ), m_length - 1 );
+		}
+	}
+
+	/**
+	 * For Debug
+	 * @return a String representation of this patch.
+	 */
+	public String toString() {
+		return String.format( "chunk %d: %d ranges, %d bytes, %d long",
+				m_chunk, m_ranges.size(), m_size, m_length );
+	}
+
+	///
+	///
+	/// Access methods.
+	///
+	///
+
+	/**
+	 * Obtain the chunk being patched.
+	 * @return index of the chunk.
+	 */
+	public int getChunk() {
+		return m_chunk;
+	}
+
+	/**
+	 * Obtain the size of the chunk file once patched.
+	 * @return size in bytes, header included.
+	 */
+	public long getLength() {
+		return m_length;
+	}
+
+	/**
+	 * Obtain the number of ranges to overwrite.
+	 * @return number of ranges.
+	 */
+	public int getRanges() {
+		return m_ranges.size();
+	}
+
+	/**
+	 * Obtain the number of bytes carried by the patch.
+	 * @return bytes across all ranges.
+	 */
+	public long getSize() {
+		return m_size;
+	}
+}
@@ -52,6 +52,22 @@ public class ChunkedFileInfo {
 		
 		m_maxChunkSize = 0l;
 	}
+
+	/**
+	 * Constructor for an original whose hash is already known, such as one
+	 * hashed while it was being chunked.
+	 * @param p_originalPath Path to the original
+	 * @param p_originalFileHash SHA-1 hash of the original's contents
+	 */
+	public ChunkedFileInfo( String p_originalPath, String p_originalFileHash ) {
+		m_originalPath = new File( p_originalPath ).getAbsoluteFile().getAbsolutePath();
+		m_originalFileHash = p_originalFileHash;
+		
+		m_chunkPaths = new ArrayList<String>();
+		m_chunkHashes = new HashMap<String,String>();
+		
+		m_maxChunkSize = 0l;
+	}
 	
 	///
 	///
@@ -66,6 +82,20 @@ public class ChunkedFileInfo {
 		}
 	}
 	
+	/**
+	 * Add a chunk whose hash and size are already known, such as one hashed
+	 * while it was being written.
+	 * @param p_chunkPath path to the chunk
+	 * @param p_hash SHA-1 hash of the chunk's contents
+	 * @param p_size size of the chunk in bytes
+	 */
+	public void addChunk( String p_chunkPath, String p_hash, long p_size ) {
+		String chunk = new File( p_chunkPath ).getAbsoluteFile().getAbsolutePath();
+		m_chunkPaths.add( chunk );
+		m_chunkHashes.put( chunk, p_hash );
+		m_maxChunkSize = Math.max( m_maxChunkSize, p_size );
+	}
+	
 	/**
 	 * Calculate the hashes and maximum chunk size.
 	 */
@@ -6,112 +6,622 @@
 package chunker;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import util.BufferUtils;
+import util.HashingReadableChannel;
+import util.HashingWritableChannel;
 
 /**
  * A file splitter based on raid 5 like XOR'ing
  *
+ * Files are striped a block (stripe unit) at a time, see {@link StripeLayout}
+ * for the placement of data and parity units.  Every chunk starts with a
+ * {@link ChunkHeader}.  Chunks written by the older byte-at-a-time format
+ * carry no header and are still reassembled by a compatibility path.
+ *
  * @author Kevin Cheek
  * @author Alex Maskovyak
  */
-public class Chunker {
-	
+public class Chunker implements Encoder, Decoder {
+
+	/** Default size of a stripe unit. */
+	public static final int DEFAULT_STRIPE_UNIT = 64*1024; /* 64 kilobytes */
+
+	/** Buffer size used when reading chunks of the byte-striped format. */
+	private static final int LEGACY_BUFFER_SIZE = 64*1024; /* 64 kilobytes */
+
+	/** Most file data mapped at once by memory-mapped reassembly. */
+	private static final long MAP_WINDOW = 64*1024*1024; /* 64 megabytes */
+
+	/** Number of chunks written per file. */
+	private int m_chunks;
+
+	/** Size, in bytes, of a stripe unit. */
+	private int m_stripeUnit;
+
+	/** Number of threads striping files, 1 for the sequential path. */
+	private int m_parallelism;
+
+	/** Whether decoding memory-maps the chunks and output file. */
+	private boolean m_memoryMapped;
+
+	/** Whether files are compressed before they are striped. */
+	private boolean m_compressed;
+
 	/**
-	 * This function will split the file into m chunks.
+	 * Default constructor, uses the default stripe unit.
+	 *
+	 * @param m		The number of chunks. (3-6 recommended size)
+	 */
+	public Chunker(int m) {
+		this( m, DEFAULT_STRIPE_UNIT );
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param m		The number of chunks. (3-6 recommended size)
+	 * @param stripeUnit	The size, in bytes, of a stripe unit
+	 */
+	public Chunker(int m, int stripeUnit) {
+		m_chunks = m;
+		m_stripeUnit = stripeUnit;
+		m_parallelism = 1;
+		m_memoryMapped = false;
+		m_compressed = false;
+	}
+
+	/**
+	 * Split the file into this chunker's number of chunks, stored beside it
+	 * as N_fName.
+	 *
+	 * @param path 	The directory for storage of the input and output
+	 * @param fName	The file name
+	 * @throws IllegalArgumentException when m or the stripe unit are invalid.
+	 */
+	public ChunkedFileInfo encode(String path, String fName) throws IllegalArgumentException {
+		return encodeToFiles( this, path, fName );
+	}
+
+	/**
+	 * Stripe length bytes of the input into m chunk streams.  Each output
+	 * receives its chunk's header followed by its stripe units in order.
+	 * When the parallelism is above 1 and the input and outputs are all files,
+	 * rows are striped concurrently with positional reads and writes; the
+	 * chunks are identical either way.  When compression is on, the frames
+	 * of a {@link StripeCompressor} are striped in place of the input, by
+	 * way of a temporary file.
+	 *
+	 * @param in	Source of the original file's bytes
+	 * @param length	Number of bytes to read from the source
+	 * @param out	One destination per chunk
+	 * @throws IOException when the source or a destination fails.
+	 * @throws IllegalArgumentException when m or the stripe unit are invalid.
+	 */
+	public void encode(ReadableByteChannel in, long length, WritableByteChannel[] out)
+			throws IOException, IllegalArgumentException {
+		if( !m_compressed ) {
+			stripe( in, length, out, false );
+			return;
+		}
+
+		// the frames' length goes in the headers, so they are written out first
+		File deflated = File.createTempFile( "raids-deflated", null );
+		RandomAccessFile frames = new RandomAccessFile( deflated, "rw" );
+		try {
+			long framesLength = StripeCompressor.compress( in, length, frames.getChannel() );
+			frames.getChannel().position( 0 );
+			stripe( frames.getChannel(), framesLength, out, true );
+		} finally {
+			frames.close();
+			deflated.delete();
+		}
+	}
+
+	/**
+	 * Stripe length bytes of the input into m chunk streams.
+	 * @see #encode(ReadableByteChannel, long, WritableByteChannel[])
+	 *
+	 * @param in	Source of the bytes to stripe
+	 * @param length	Number of bytes to read from the source
+	 * @param out	One destination per chunk
+	 * @param deflated	Whether the bytes are compressed frames
+	 * @throws IOException when the source or a destination fails.
+	 * @throws IllegalArgumentException when m or the stripe unit are invalid.
+	 */
+	private void stripe(ReadableByteChannel in, long length, WritableByteChannel[] out, boolean deflated)
+			throws IOException, IllegalArgumentException {
+		int m = m_chunks;
+		int stripeUnit = m_stripeUnit;
+		StripeLayout layout = new StripeLayout( m, stripeUnit, length );
+
+		for( int i = 0; i < m; i++ ) {
+			ChunkHeader header = new ChunkHeader( stripeUnit, m, 1, i, length, deflated );
+			BufferUtils.writeFully( out[ i ], ByteBuffer.wrap( header.toBytes() ) );
+		}
+
+		if( m_parallelism > 1 && allFiles( in, out ) ) {
+			FileChannel fi = (FileChannel)in;
+			FileChannel fos[] = new FileChannel[ m ];
+			System.arraycopy( out, 0, fos, 0, m );
+			RowRangeTask.run( layout, new EncodeRows( layout, fi, fi.position(), fos ), m_parallelism );
+			return;
+		}
+
+		// one row of data is read at a time, parity is built beside it
+		ByteBuffer row = ByteBuffer.allocate( (int)layout.getRowSize() ).order( ByteOrder.nativeOrder() );
+		ByteBuffer parity = ByteBuffer.allocate( stripeUnit ).order( ByteOrder.nativeOrder() );
+
+		for( long r = 0; r < layout.getRows(); r++ ) {
+			row.clear();
+			if( r == layout.getRows() - 1 ) {
+				row.limit( (int)( length - r * layout.getRowSize() ) );
+			}
+			BufferUtils.readFully( in, row );
+
+			computeParity( layout, r, row, parity );
+			for( int d = 0; d < layout.getDataChunks(); d++ ) {
+				int unitLength = layout.getDataUnitLength( r, d );
+				if( unitLength == 0 ) {
+					break;
+				}
+				BufferUtils.writeFully( out[ layout.getChunkForData( r, d ) ], unitOf( row, d * stripeUnit, unitLength ) );
+			}
+			BufferUtils.writeFully( out[ layout.getParityChunk( r ) ], parity );
+		}
+	}
+
+	/**
+	 * Size of the largest chunk, header included, for a file of the given
+	 * size.
+	 *
+	 * @param length	Size of the original file in bytes
+	 * @return size of the largest chunk in bytes
+	 */
+	public long getMaxChunkSize(long length) {
+		if( m_compressed ) {
+			length = StripeCompressor.getMaxLength( length );
+		}
+		return ChunkHeader.SIZE + new StripeLayout( m_chunks, m_stripeUnit, length ).getMaxChunkLength();
+	}
+
+	/**
+	 * Reassemble the file chunks into a single file.
+	 * @see #reassemble(String, String[], String, String)
+	 */
+	public void decode(String iPath, String[] fileChunks, String oPath,
+			String outputFile) throws IllegalArgumentException {
+		reassemble( iPath, fileChunks, oPath, outputFile, m_parallelism, m_memoryMapped );
+	}
+
+	/**
+	 * Set the number of threads used to encode and decode files.
+	 *
+	 * @param parallelism	Number of threads, 1 for the sequential path
+	 * @throws IllegalArgumentException when parallelism is not positive.
+	 */
+	public void setParallelism(int parallelism) throws IllegalArgumentException {
+		if( parallelism < 1 ) {
+			throw new IllegalArgumentException( "Parallelism must be positive." );
+		}
+		m_parallelism = parallelism;
+	}
+
+	/**
+	 * Obtain the number of threads used to encode and decode files.
+	 * @return number of threads.
+	 */
+	public int getParallelism() {
+		return m_parallelism;
+	}
+
+	/**
+	 * Choose whether decoding memory-maps the chunks and output file.
+	 * @see #reassembleMapped(String, String[], String, String, int)
+	 *
+	 * @param memoryMapped	true to decode through mapped files
+	 */
+	public void setMemoryMapped(boolean memoryMapped) {
+		m_memoryMapped = memoryMapped;
+	}
+
+	/**
+	 * Check whether decoding memory-maps the chunks and output file.
+	 * @return true when decoding through mapped files.
+	 */
+	public boolean isMemoryMapped() {
+		return m_memoryMapped;
+	}
+
+	/**
+	 * Choose whether files are compressed before they are striped.  Groups
+	 * of the file which do not compress are stored as they are, see
+	 * {@link StripeCompressor}.  Decoding needs no setting, the chunk
+	 * headers say whether to inflate.
+	 *
+	 * @param compressed	true to compress
+	 */
+	public void setCompressed(boolean compressed) {
+		m_compressed = compressed;
+	}
+
+	/**
+	 * Check whether files are compressed before they are striped.
+	 * @return true when compressing.
+	 */
+	public boolean isCompressed() {
+		return m_compressed;
+	}
+
+	/**
+	 * Obtain the number of chunks a file is split into.
+	 * @return number of chunks.
+	 */
+	public int getChunks() {
+		return m_chunks;
+	}
+
+	/**
+	 * A single chunk's worth of parity is written.
+	 * @return 1
+	 */
+	public int getParityChunks() {
+		return 1;
+	}
+
+	/**
+	 * Obtain the stripe unit size.
+	 * @return size of a stripe unit in bytes.
+	 */
+	public int getStripeUnit() {
+		return m_stripeUnit;
+	}
+
+	/**
+	 * This function will split the file into m chunks using the default
+	 * stripe unit.
 	 *
 	 * @param path 	The directory for storage of the input and output
 	 * @param fName	The file name
 	 * @param m		The number of chunks. (3-6 recommended size)
 	 */
 	public static ChunkedFileInfo chunk(String path, String fName, int m) {
+		return chunk( path, fName, m, DEFAULT_STRIPE_UNIT );
+	}
+
+	/**
+	 * This function will split the file into m chunks.
+	 *
+	 * @param path 	The directory for storage of the input and output
+	 * @param fName	The file name
+	 * @param m		The number of chunks. (3-6 recommended size)
+	 * @param stripeUnit	The size, in bytes, of a stripe unit (4KB-1MB recommended)
+	 * @throws IllegalArgumentException when m or the stripe unit are invalid.
+	 */
+	public static ChunkedFileInfo chunk(String path, String fName, int m, int stripeUnit)
+			throws IllegalArgumentException {
+		return chunk( path, fName, m, stripeUnit, 1 );
+	}
+
+	/**
+	 * This function will split the file into m chunks, striping regions of the
+	 * file on several threads.
+	 *
+	 * @param path 	The directory for storage of the input and output
+	 * @param fName	The file name
+	 * @param m		The number of chunks. (3-6 recommended size)
+	 * @param stripeUnit	The size, in bytes, of a stripe unit (4KB-1MB recommended)
+	 * @param parallelism	Number of threads, 1 for the sequential path
+	 * @throws IllegalArgumentException when m, the stripe unit or parallelism
+	 * 			are invalid.
+	 */
+	public static ChunkedFileInfo chunk(String path, String fName, int m, int stripeUnit,
+			int parallelism) throws IllegalArgumentException {
+		Chunker chunker = new Chunker( m, stripeUnit );
+		chunker.setParallelism( parallelism );
+		return chunker.encode( path, fName );
+	}
+
+	/**
+	 * Run an encoder over a file, writing its chunks beside it as N_fName.
+	 * The original file and every chunk are hashed while they stream through
+	 * the encoder, so the source is read exactly once and the chunks are
+	 * never read back.  Only a parallel Chunker, which writes its chunks out
+	 * of order, hashes them afterwards.
+	 *
+	 * @param encoder	The encoder to run
+	 * @param path 	The directory for storage of the input and output
+	 * @param fName	The file name
+	 * @return information on the chunks written, null if the file could not
+	 * 			be read or a chunk could not be written.
+	 */
+	static ChunkedFileInfo encodeToFiles(Encoder encoder, String path, String fName) {
+		int m = encoder.getChunks();
+		boolean inOrder = !( encoder instanceof Chunker ) || ( (Chunker)encoder ).getParallelism() == 1;
 		File file = null;
-		FileInputStream fi = null;
-		FileOutputStream fos[] = null;
+		FileChannel fi = null;
+		FileChannel fos[] = new FileChannel[m];
+		String chunkPaths[] = new String[m];
 		ChunkedFileInfo chunkInfo = null;
-		
+
 		try{
-			// setup original file inputstream and chunk output streams
+			// setup original file input and chunk output channels
 			file = new File( path + fName );
-			fi = new FileInputStream( file );
-			fos = new FileOutputStream[m];
-			
-			// create resultant chunk info container
-			chunkInfo = new ChunkedFileInfo( file.getAbsolutePath() );
-			
-			// process control information
-			int block;
-			int parity = m;
-			int pData = 0;
-
-			String chunkPath;
-			
+			fi = new FileInputStream( file ).getChannel();
 			for( int i = 0; i < m; i++ ) {
-				chunkPath = String.format( "%s%d_%s", path, i, fName );
-				chunkInfo.addChunkPaths( chunkPath );
-				fos[ i ] = new FileOutputStream( chunkPath );
+				chunkPaths[ i ] = String.format( "%s%d_%s", path, i, fName );
+				fos[ i ] = new FileOutputStream( chunkPaths[ i ] ).getChannel();
 			}
-			while( fi.available() > 0 ){
-				pData = 0;
-				parity = ++parity%m;
-				for( int i = 0; i < m; i++ ){
-					if( i != parity && fi.available() > 0 ){
-						block = fi.read();
-						fos[ i ].write(block);
-						pData = pData ^ block;
-		//				System.out.println("data: " + (char)block + " i: "+ i);
-					}
+
+			if( inOrder ) {
+				HashingReadableChannel in = new HashingReadableChannel( fi );
+				HashingWritableChannel out[] = new HashingWritableChannel[m];
+				for( int i = 0; i < m; i++ ) {
+					out[ i ] = new HashingWritableChannel( fos[ i ] );
 				}
-				fos[ parity ].write(pData);
+
+				encoder.encode( in, file.length(), out );
+
+				chunkInfo = new ChunkedFileInfo( file.getAbsolutePath(), in.getHash() );
+				for( int i = 0; i < m; i++ ) {
+					chunkInfo.addChunk( chunkPaths[ i ], out[ i ].getHash(), out[ i ].getCount() );
+				}
+			} else {
+				encoder.encode( fi, file.length(), fos );
+
+				chunkInfo = new ChunkedFileInfo( file.getAbsolutePath() );
+				chunkInfo.addChunkPaths( chunkPaths );
+				chunkInfo.calculateChunkInfo();
 			}
-			
-			chunkInfo.calculateChunkInfo();
 
 		} catch( FileNotFoundException e ) {
 			e.printStackTrace();
+			chunkInfo = null;
 		} catch( IOException e ) {
 			e.printStackTrace();
+			chunkInfo = null;
 		} finally {
 			try {
-				fi.close();
-				for( FileOutputStream fo : fos ) {
-					fo.close();
+				if( fi != null ) {
+					fi.close();
 				}
-				System.gc();
-			} catch ( Exception e ) {}
+			} catch( IOException e ) {}
+			closeAll( fos );
 		}
-		
+
 		return chunkInfo;
 	}
 
-	
+
 	/**
 	 * Reassemble the file chunks into a single file.
 	 * FileChunks must be in order from 0 -> M with null being given to missing
-	 * files.
+	 * files.  Chunks written by the {@link ReedSolomonCoder} are handed over
+	 * to it.  Parity units are only read in order to rebuild a missing chunk.
 	 *
 	 * @param iPath 		Input file path
 	 * @param fileChunks	Input file names
 	 * @param oPath			Output file path
 	 * @param outputFile	Output file name
-	 * @throws IllegalArgumentException when more than one of the specified filechunks cannot be found.
+	 * @throws IllegalArgumentException when more of the specified filechunks
+	 * 			cannot be found than the chunks have parity for.
 	 */
 	public static void reassemble(String iPath, String[] fileChunks, String oPath,
 			String outputFile) throws IllegalArgumentException {
+		reassemble( iPath, fileChunks, oPath, outputFile, 1 );
+	}
+
+
+	/**
+	 * Reassemble the file chunks into a single file, rebuilding regions of the
+	 * file on several threads with positional reads and writes.  The output
+	 * is identical to the sequential path.
+	 *
+	 * @param iPath 		Input file path
+	 * @param fileChunks	Input file names
+	 * @param oPath			Output file path
+	 * @param outputFile	Output file name
+	 * @param parallelism	Number of threads, 1 for the sequential path
+	 * @throws IllegalArgumentException when more of the specified filechunks
+	 * 			cannot be found than the chunks have parity for.
+	 */
+	public static void reassemble(String iPath, String[] fileChunks, String oPath,
+			String outputFile, int parallelism) throws IllegalArgumentException {
+		reassemble( iPath, fileChunks, oPath, outputFile, parallelism, false );
+	}
+
+
+	/**
+	 * Reassemble the file chunks into a single file through memory-mapped
+	 * windows of the chunks and the output file.  Data units are copied
+	 * between the mappings, a missing data unit is rebuilt by XOR'ing the
+	 * mapped units of its row straight into the mapped output, and parity is
+	 * only touched in rows whose data unit is missing.  Windows keep every
+	 * mapping small, so files of any size may be reassembled.
+	 *
+	 * @param iPath 		Input file path
+	 * @param fileChunks	Input file names
+	 * @param oPath			Output file path
+	 * @param outputFile	Output file name
+	 * @param parallelism	Number of threads, 1 for a single thread
+	 * @throws IllegalArgumentException when more of the specified filechunks
+	 * 			cannot be found than the chunks have parity for.
+	 */
+	public static void reassembleMapped(String iPath, String[] fileChunks, String oPath,
+			String outputFile, int parallelism) throws IllegalArgumentException {
+		reassemble( iPath, fileChunks, oPath, outputFile, parallelism, true );
+	}
+
+
+	/**
+	 * Reassemble the file chunks into a single file.
+	 *
+	 * @param iPath 		Input file path
+	 * @param fileChunks	Input file names
+	 * @param oPath			Output file path
+	 * @param outputFile	Output file name
+	 * @param parallelism	Number of threads, 1 for the sequential path
+	 * @param mapped	Whether to go through memory-mapped files
+	 * @throws IllegalArgumentException when more of the specified filechunks
+	 * 			cannot be found than the chunks have parity for.
+	 */
+	private static void reassemble(String iPath, String[] fileChunks, String oPath,
+			String outputFile, int parallelism, boolean mapped) throws IllegalArgumentException {
+
+		int m = fileChunks.length;
+		FileChannel fis[] = new FileChannel[m];
+		FileChannel fo = null;
+
+		try{
+			int filesNotFound = 0;
+			int regenerate = -1;
+
+			for( int i = 0; i < m; i++ ){
+				try{
+					fis[ i ] = new FileInputStream(iPath + fileChunks[ i ]).getChannel();
+				}catch( FileNotFoundException e ){
+					fis[i] = null;
+					regenerate = i;
+					filesNotFound++;
+				}
+			}
+
+			// Chunks without a header were written by the byte-striped format
+			ChunkHeader header = null;
+			for( int i = 0; i < m && header == null; i++ ) {
+				if( fis[ i ] != null ) {
+					header = ChunkHeader.read( fis[ i ] );
+					if( header == null ) {
+						closeAll( fis );
+						reassembleLegacy( iPath, fileChunks, oPath, outputFile );
+						return;
+					}
+				}
+			}
+			if( header != null && header.getParityChunks() > 1 ) {
+				closeAll( fis );
+				ReedSolomonCoder.reassemble( iPath, fileChunks, oPath, outputFile );
+				return;
+			}
+			if( filesNotFound > 1 ) {
+				throw new IllegalArgumentException("Must have all specified fileChunks for reassembly.");
+			}
+			if( header.getChunks() != m ) {
+				throw new IllegalArgumentException(
+						"Chunks were written for " + header.getChunks() + " parts, not " + m + "." );
+			}
+			StripeLayout layout = header.getLayout();
+			int stripeUnit = layout.getStripeUnit();
+			if( header.isDeflated() ) {
+				// frames are inflated in order as the rows stream out
+				mapped = false;
+				parallelism = 1;
+			}
+			if( mapped ) {
+				RandomAccessFile output = new RandomAccessFile( oPath + outputFile, "rw" );
+				output.setLength( layout.getLength() );
+				fo = output.getChannel();
+				RowRangeTask.run( layout, new MappedDecodeRows( layout, fis, regenerate, fo ), parallelism );
+				return;
+			}
+
+			fo = new FileOutputStream(oPath + outputFile).getChannel();
+
+			if( parallelism > 1 ) {
+				RowRangeTask.run( layout, new DecodeRows( layout, fis, regenerate, fo ), parallelism );
+				return;
+			}
+
+			StripeCompressor.InflatingChannel inflating = null;
+			WritableByteChannel sink = fo;
+			if( header.isDeflated() ) {
+				inflating = new StripeCompressor.InflatingChannel( fo );
+				sink = inflating;
+			}
+
+			ByteBuffer units[] = new ByteBuffer[m];
+			for( int i = 0; i < m; i++ ) {
+				units[ i ] = ByteBuffer.allocate( stripeUnit ).order( ByteOrder.nativeOrder() );
+			}
+
+			for( long r = 0; r < layout.getRows(); r++ ){
+
+				// read this row's data units, and its parity only to rebuild a unit
+				long chunkPosition = ChunkHeader.SIZE + layout.getChunkOffset( r );
+				for( int i = 0; i < m; i++ ){
+					if( fis[i] != null && ( regenerate >= 0 || !layout.isParity( r, i ) ) ){
+						units[ i ].clear().limit( layout.getUnitLength( r, i ) );
+						BufferUtils.readFully( fis[ i ], units[ i ], chunkPosition );
+						units[ i ].flip();
+					}
+				}
+
+				if( regenerate >= 0 ){
+					regenerateUnit( layout, r, units, regenerate );
+				}
+
+				for( int d = 0; d < layout.getDataChunks(); d++ ){
+					if( layout.getDataUnitLength( r, d ) == 0 ) {
+						break;
+					}
+					BufferUtils.writeFully( sink, units[ layout.getChunkForData( r, d ) ] );
+				}
+			}
+			if( inflating != null ) {
+				inflating.finish();
+				inflating.close();
+			}
+
+		} catch( IOException e ) {
+			e.printStackTrace();
+		} finally {
+			closeAll( fis );
+			try {
+				if( fo != null ) {
+					fo.close();
+				}
+			} catch( IOException e ) {}
+		}
+
+	}
+
+
+	/**
+	 * Reassemble chunks written by the byte-at-a-time format, which have no
+	 * header: one byte per chunk per row with parity rotating from chunk 1.
+	 *
+	 * @param iPath 		Input file path
+	 * @param fileChunks	Input file names
+	 * @param oPath			Output file path
+	 * @param outputFile	Output file name
+	 * @throws IllegalArgumentException when more than one of the specified filechunks cannot be found.
+	 */
+	private static void reassembleLegacy(String iPath, String[] fileChunks, String oPath,
+			String outputFile) throws IllegalArgumentException {
+
+		int m = fileChunks.length;
+		InputStream fis[] = new InputStream[m];
+		OutputStream fo = null;
 
 		try{
 			int filesNotFound = 0;
-			
-			int m = fileChunks.length;
+
 			int block[] = new int[m];
 			int pData = 0;
 			boolean done = false;
 			int regenerate = -1;
 			int parity = m;
-			FileOutputStream fo = new FileOutputStream(oPath + outputFile);
-			FileInputStream fis[] = new FileInputStream[m];
+			fo = new BufferedOutputStream(new FileOutputStream(oPath + outputFile), LEGACY_BUFFER_SIZE);
 
 			for( int i = 0; i < m; i++ ){
 				try{
-					fis[ i ] = new FileInputStream(iPath + fileChunks[ i ]);
+					fis[ i ] = new BufferedInputStream(new FileInputStream(iPath + fileChunks[ i ]), LEGACY_BUFFER_SIZE);
 				}catch( FileNotFoundException e ){
 					fis[i] = null;
 					regenerate = i;
@@ -130,7 +640,6 @@ public class Chunker {
 						block[i] = fis[i].read();
 						if( block[i] >= 0){
 							pData = block[i] ^ pData;
-		//					System.out.println("Reading: "+ block[i] + " i: "+ i + " pData: "+ pData);
 						}else{
 							done = true;
 						}
@@ -138,7 +647,6 @@ public class Chunker {
 				}
 
 				if( regenerate >= 0 ){
-	//				System.out.println("Regenerating: " + (char)pData);
 					block[regenerate] = pData;
 				}
 
@@ -151,7 +659,362 @@ public class Chunker {
 
 		} catch( IOException e ) {
 			e.printStackTrace();
+		} finally {
+			try {
+				for( InputStream fi : fis ) {
+					if( fi != null ) {
+						fi.close();
+					}
+				}
+				if( fo != null ) {
+					fo.close();
+				}
+			} catch( IOException e ) {}
 		}
 
 	}
-}
\ No newline at end of file
+
+
+	/**
+	 * Build a row's parity unit, the XOR of its data units.
+	 *
+	 * @param layout	Geometry of the file
+	 * @param r		The row
+	 * @param row	Buffer holding the row's data from position 0
+	 * @param parity	Buffer receiving the parity, left positioned at 0 and
+	 * 			limited to the parity unit's length
+	 */
+	static void computeParity(StripeLayout layout, long r, ByteBuffer row, ByteBuffer parity) {
+		int stripeUnit = layout.getStripeUnit();
+		for( int d = 0; d < layout.getDataChunks(); d++ ) {
+			int unitLength = layout.getDataUnitLength( r, d );
+			if( unitLength == 0 ) {
+				break;
+			}
+			ByteBuffer unit = unitOf( row, d * stripeUnit, unitLength );
+			if( d == 0 ) {
+				parity.clear();
+				parity.put( unit ).position( 0 );
+			} else {
+				xor( parity, unit, unitLength );
+			}
+		}
+		parity.position( 0 ).limit( layout.getDataUnitLength( r, 0 ) );
+	}
+
+
+	/**
+	 * Rebuild a row's missing unit, the XOR of all the others.
+	 *
+	 * @param layout	Geometry of the file
+	 * @param r		The row
+	 * @param units	The row's units, one per chunk, each flipped for reading
+	 * @param regenerate	The chunk whose unit is missing
+	 */
+	private static void regenerateUnit(StripeLayout layout, long r, ByteBuffer[] units, int regenerate) {
+		int length = layout.getUnitLength( r, regenerate );
+		ByteBuffer missing = units[ regenerate ];
+		missing.clear().limit( length );
+		for( int j = 0; j < length; j++ ) {
+			missing.put( j, (byte)0 );
+		}
+		for( int i = 0; i < units.length; i++ ) {
+			if( i != regenerate ) {
+				xor( missing, units[ i ], Math.min( length, units[ i ].remaining() ) );
+			}
+		}
+	}
+
+
+	/**
+	 * XOR the first length bytes of src into dst with the fastest kernel this
+	 * JVM offers, see {@link XorKernels}.  Both buffers are addressed from
+	 * their current positions, which are left unchanged.
+	 *
+	 * @param dst	Buffer accumulating the XOR
+	 * @param src	Buffer to fold in
+	 * @param length	Number of bytes to XOR
+	 */
+	static void xor(ByteBuffer dst, ByteBuffer src, int length) {
+		XorKernels.get().xor( dst, src, length );
+	}
+
+
+	/**
+	 * A view of one stripe unit within a row buffer.
+	 *
+	 * @param row	Buffer holding a whole row
+	 * @param offset	Offset of the unit within the row
+	 * @param length	Length of the unit
+	 * @return a buffer positioned at the unit's start and limited to its end
+	 */
+	private static ByteBuffer unitOf(ByteBuffer row, int offset, int length) {
+		ByteBuffer unit = row.duplicate().order( row.order() );
+		unit.limit( offset + length ).position( offset );
+		return unit;
+	}
+
+
+	/**
+	 * Check whether a source and its destinations are all files, which can be
+	 * read and written at any position.
+	 *
+	 * @param in	The source
+	 * @param out	The destinations
+	 * @return true when every channel is a FileChannel
+	 */
+	private static boolean allFiles(ReadableByteChannel in, WritableByteChannel[] out) {
+		if( !( in instanceof FileChannel ) ) {
+			return false;
+		}
+		for( WritableByteChannel channel : out ) {
+			if( !( channel instanceof FileChannel ) ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Quietly close a set of channels, skipping missing ones.
+	 *
+	 * @param channels	Channels to close
+	 */
+	private static void closeAll(Channel[] channels) {
+		for( Channel channel : channels ) {
+			try {
+				if( channel != null ) {
+					channel.close();
+				}
+			} catch( IOException e ) {}
+		}
+	}
+
+
+	/**
+	 * Stripes a range of rows from the original file straight to their places
+	 * in the chunk files, which already hold their headers.
+	 */
+	private static class EncodeRows implements RowRangeTask.RowWorker {
+
+		/** Geometry of the file. */
+		private StripeLayout m_layout;
+
+		/** The original file. */
+		private FileChannel m_in;
+
+		/** Position of the first byte of the original file's data in m_in. */
+		private long m_start;
+
+		/** The chunk files. */
+		private FileChannel m_out[];
+
+		/**
+		 * Constructor.
+		 * @param layout	Geometry of the file
+		 * @param in	The original file
+		 * @param start	Position of the data within the original file
+		 * @param out	The chunk files
+		 */
+		EncodeRows(StripeLayout layout, FileChannel in, long start, FileChannel[] out) {
+			m_layout = layout;
+			m_in = in;
+			m_start = start;
+			m_out = out;
+		}
+
+		public void process(long from, long to) throws IOException {
+			StripeLayout layout = m_layout;
+			int stripeUnit = layout.getStripeUnit();
+			ByteBuffer row = ByteBuffer.allocate( (int)layout.getRowSize() ).order( ByteOrder.nativeOrder() );
+			ByteBuffer parity = ByteBuffer.allocate( stripeUnit ).order( ByteOrder.nativeOrder() );
+
+			for( long r = from; r < to; r++ ) {
+				row.clear();
+				if( r == layout.getRows() - 1 ) {
+					row.limit( (int)( layout.getLength() - r * layout.getRowSize() ) );
+				}
+				BufferUtils.readFully( m_in, row, m_start + layout.getFileOffset( r, 0 ) );
+
+				long chunkPosition = ChunkHeader.SIZE + layout.getChunkOffset( r );
+				computeParity( layout, r, row, parity );
+				for( int d = 0; d < layout.getDataChunks(); d++ ) {
+					int unitLength = layout.getDataUnitLength( r, d );
+					if( unitLength == 0 ) {
+						break;
+					}
+					BufferUtils.writeFully( m_out[ layout.getChunkForData( r, d ) ],
+							unitOf( row, d * stripeUnit, unitLength ), chunkPosition );
+				}
+				BufferUtils.writeFully( m_out[ layout.getParityChunk( r ) ], parity, chunkPosition );
+			}
+		}
+	}
+
+
+	/**
+	 * Rebuilds a range of rows from the chunk files straight to their places
+	 * in the output file.
+	 */
+	private static class DecodeRows implements RowRangeTask.RowWorker {
+
+		/** Geometry of the file. */
+		private StripeLayout m_layout;
+
+		/** The chunk files, null for the missing one. */
+		private FileChannel m_in[];
+
+		/** The missing chunk, -1 if none is missing. */
+		private int m_regenerate;
+
+		/** The output file. */
+		private FileChannel m_out;
+
+		/**
+		 * Constructor.
+		 * @param layout	Geometry of the file
+		 * @param in	The chunk files, null for the missing one
+		 * @param regenerate	The missing chunk, -1 if none
+		 * @param out	The output file
+		 */
+		DecodeRows(StripeLayout layout, FileChannel[] in, int regenerate, FileChannel out) {
+			m_layout = layout;
+			m_in = in;
+			m_regenerate = regenerate;
+			m_out = out;
+		}
+
+		public void process(long from, long to) throws IOException {
+			StripeLayout layout = m_layout;
+			int m = m_in.length;
+			ByteBuffer units[] = new ByteBuffer[m];
+			for( int i = 0; i < m; i++ ) {
+				units[ i ] = ByteBuffer.allocate( layout.getStripeUnit() ).order( ByteOrder.nativeOrder() );
+			}
+
+			for( long r = from; r < to; r++ ) {
+				long chunkPosition = ChunkHeader.SIZE + layout.getChunkOffset( r );
+				for( int i = 0; i < m; i++ ) {
+					if( m_in[ i ] != null && ( m_regenerate >= 0 || !layout.isParity( r, i ) ) ) {
+						units[ i ].clear().limit( layout.getUnitLength( r, i ) );
+						BufferUtils.readFully( m_in[ i ], units[ i ], chunkPosition );
+						units[ i ].flip();
+					}
+				}
+
+				if( m_regenerate >= 0 ) {
+					regenerateUnit( layout, r, units, m_regenerate );
+				}
+
+				for( int d = 0; d < layout.getDataChunks(); d++ ) {
+					if( layout.getDataUnitLength( r, d ) == 0 ) {
+						break;
+					}
+					BufferUtils.writeFully( m_out, units[ layout.getChunkForData( r, d ) ].duplicate(),
+							layout.getFileOffset( r, d ) );
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Rebuilds a range of rows by mapping a window of rows at a time from
+	 * every surviving chunk and the output file.
+	 */
+	private static class MappedDecodeRows implements RowRangeTask.RowWorker {
+
+		/** Geometry of the file. */
+		private StripeLayout m_layout;
+
+		/** The chunk files, null for the missing one. */
+		private FileChannel m_in[];
+
+		/** The missing chunk, -1 if none is missing. */
+		private int m_regenerate;
+
+		/** The output file, readable and writable. */
+		private FileChannel m_out;
+
+		/**
+		 * Constructor.
+		 * @param layout	Geometry of the file
+		 * @param in	The chunk files, null for the missing one
+		 * @param regenerate	The missing chunk, -1 if none
+		 * @param out	The output file, already sized, open for reading and writing
+		 */
+		MappedDecodeRows(StripeLayout layout, FileChannel[] in, int regenerate, FileChannel out) {
+			m_layout = layout;
+			m_in = in;
+			m_regenerate = regenerate;
+			m_out = out;
+		}
+
+		public void process(long from, long to) throws IOException {
+			long windowRows = Math.max( 1, MAP_WINDOW / m_layout.getRowSize() );
+			for( long w = from; w < to; w += windowRows ) {
+				processWindow( w, Math.min( to, w + windowRows ) );
+			}
+		}
+
+		/**
+		 * Map rows [from, to) of every surviving chunk and the output and
+		 * rebuild them.
+		 * @param from	first row
+		 * @param to	one past the last row
+		 * @throws IOException when a file cannot be mapped.
+		 */
+		private void processWindow(long from, long to) throws IOException {
+			StripeLayout layout = m_layout;
+			int m = m_in.length;
+			int stripeUnit = layout.getStripeUnit();
+			long chunkStart = layout.getChunkOffset( from );
+
+			ByteBuffer chunks[] = new ByteBuffer[m];
+			for( int i = 0; i < m; i++ ) {
+				if( m_in[ i ] != null ) {
+					long chunkEnd = Math.min( layout.getChunkOffset( to ), layout.getChunkLength( i ) );
+					chunks[ i ] = m_in[ i ].map( FileChannel.MapMode.READ_ONLY,
+							ChunkHeader.SIZE + chunkStart, chunkEnd - chunkStart ).order( ByteOrder.nativeOrder() );
+				}
+			}
+			long fileStart = layout.getFileOffset( from, 0 );
+			long fileEnd = Math.min( layout.getFileOffset( to, 0 ), layout.getLength() );
+			ByteBuffer out = m_out.map( FileChannel.MapMode.READ_WRITE, fileStart, fileEnd - fileStart )
+					.order( ByteOrder.nativeOrder() );
+
+			for( long r = from; r < to; r++ ) {
+				int unitPosition = (int)( ( r - from ) * stripeUnit );
+				int rowPosition = (int)( layout.getFileOffset( r, 0 ) - fileStart );
+
+				for( int d = 0; d < layout.getDataChunks(); d++ ) {
+					int length = layout.getDataUnitLength( r, d );
+					if( length == 0 ) {
+						break;
+					}
+					int chunk = layout.getChunkForData( r, d );
+					out.position( rowPosition + d * stripeUnit );
+
+					// start from the parity when rebuilding, copy otherwise
+					ByteBuffer src = chunks[ ( chunk == m_regenerate ) ? layout.getParityChunk( r ) : chunk ];
+					src.limit( unitPosition + length ).position( unitPosition );
+					out.duplicate().put( src );
+					src.clear();
+
+					if( chunk == m_regenerate ) {
+						for( int other = 0; other < layout.getDataChunks(); other++ ) {
+							int otherLength = Math.min( length, layout.getDataUnitLength( r, other ) );
+							if( other != d && otherLength > 0 ) {
+								ByteBuffer unit = chunks[ layout.getChunkForData( r, other ) ];
+								unit.position( unitPosition );
+								xor( out, unit, otherLength );
+								unit.clear();
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,181 @@
+package chunker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import util.BufferUtils;
+import util.HashingReadableChannel;
+
+/**
+ * Concatenates many small files into one container, which is then striped
+ * and stored as a single file.  Each file is found again by its offset and
+ * length within the container, and its SHA-1 is kept so it can be checked
+ * once it is cut back out.
+ *
+ * @author Alex Maskovyak
+ */
+public class ContainerPacker {
+
+	///
+	///
+	/// Constants.
+	///
+	///
+
+	/** Size of the buffer files are copied through. */
+	private static final int BUFFER_SIZE = 64*1024; /* 64 kilobytes */
+
+	///
+	///
+	/// Hidden variables.
+	///
+	///
+
+	/** Where the files are written. */
+	private WritableByteChannel m_container;
+
+	/** Buffer files are copied through. */
+	private ByteBuffer m_buffer;
+
+	/** Name of each file, in container order. */
+	private List<String> m_names;
+
+	/** Offset of each file within the container. */
+	private List<Long> m_offsets;
+
+	/** Size of each file. */
+	private List<Long> m_lengths;
+
+	/** Hex SHA-1 of each file. */
+	private List<String> m_hashes;
+
+	/** Size of the container so far. */
+	private long m_length;
+
+	///
+	///
+	/// Constructors.
+	///
+	///
+
+	/**
+	 * Constructor.
+	 * @param container where the files are written, from its start.
+	 */
+	public ContainerPacker( WritableByteChannel container ) {
+		m_container = container;
+		m_buffer = ByteBuffer.allocate( BUFFER_SIZE );
+		m_names = new ArrayList<String>();
+		m_offsets = new ArrayList<Long>();
+		m_lengths = new ArrayList<Long>();
+		m_hashes = new ArrayList<String>();
+		m_length = 0;
+	}
+
+	///
+	///
+	/// Operations.
+	///
+	///
+
+	/**
+	 * Append a file to the container.
+	 * @param name name of the file.
+	 * @param in source of the file's bytes.
+	 * @param length size of the file.
+	 * @return index of the file within the container.
+	 * @throws IOException when the source ends early or either channel
+	 * 			fails.
+	 * @throws IllegalArgumentException when the length is negative.
+	 */
+	public int add( String name, ReadableByteChannel in, long length )
+			throws IOException, IllegalArgumentException {
+		if( length < 0 ) {
+			throw new IllegalArgumentException( "Length must not be negative." );
+		}
+		HashingReadableChannel hashing = new HashingReadableChannel( in );
+		long copied = 0;
+		while( copied < length ) {
+			m_buffer.clear();
+			if( length - copied < m_buffer.capacity() ) {
+				m_buffer.limit( (int)( length - copied ) );
+			}
+			int n = BufferUtils.readFully( hashing, m_buffer );
+			if( n < m_buffer.limit() ) {
+				throw new IOException( name + " ended before " + length + " bytes." );
+			}
+			m_buffer.flip();
+			BufferUtils.writeFully( m_container, m_buffer );
+			copied += n;
+		}
+
+		m_names.add( name );
+		m_offsets.add( m_length );
+		m_lengths.add( length );
+		m_hashes.add( hashing.getHash() );
+		m_length += length;
+		return m_names.size() - 1;
+	}
+
+	///
+	///
+	/// Access methods.
+	///
+	///
+
+	/**
+	 * Obtain the number of files in the container.
+	 * @return number of files added.
+	 */
+	public int getFiles() {
+		return m_names.size();
+	}
+
+	/**
+	 * Obtain the name of a file.
+	 * @param file index of the file within the container.
+	 * @return the file's name.
+	 */
+	public String getName( int file ) {
+		return m_names.get( file );
+	}
+
+	/**
+	 * Obtain where a file starts.
+	 * @param file index of the file within the container.
+	 * @return offset of the file's first byte in the container.
+	 */
+	public long getOffset( int file ) {
+		return m_offsets.get( file );
+	}
+
+	/**
+	 * Obtain the size of a file.
+	 * @param file index of the file within the container.
+	 * @return size of the file in bytes.
+	 */
+	public long getLength( int file ) {
+		return m_lengths.get( file );
+	}
+
+	/**
+	 * Obtain the SHA-1 of a file.
+	 * @param file index of the file within the container.
+	 * @return hex SHA-1 of the file's contents.
+	 */
+	public String getHash( int file ) {
+		return m_hashes.get( file );
+	}
+
+	/**
+	 * Obtain the size of the container.
+	 * @return bytes written so far.
+	 */
+	public long getLength() {
+		return m_length;
+	}
+}
@@ -0,0 +1,23 @@
+package chunker;
+
+/**
+ * Rebuilds a file from the chunks written by an {@link Encoder}.
+ *
+ * @author Alex Maskovyak
+ */
+public interface Decoder {
+
+	/**
+	 * Reassemble the file chunks into a single file.
+	 * FileChunks must be in order from 0 -> M, names of missing chunks may
+	 * refer to files which do not exist.
+	 *
+	 * @param iPath 		Input file path
+	 * @param fileChunks	Input file names
+	 * @param oPath			Output file path
+	 * @param outputFile	Output file name
+	 * @throws IllegalArgumentException when too many of the specified filechunks cannot be found.
+	 */
+	public void decode(String iPath, String[] fileChunks, String oPath,
+			String outputFile) throws IllegalArgumentException;
+}
@@ -0,0 +1,152 @@
+package chunker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import util.BufferUtils;
+import util.SHA1;
+
+/**
+ * The stage ahead of striping which stores each distinct block once.  A file
+ * is split into content-defined blocks by a {@link GearChunker}.  Blocks
+ * already in the {@link BlockIndex}, or seen earlier in the same file, are
+ * only referenced.  New blocks are appended to a pack, which is striped and
+ * stored like any other file, and the file itself becomes a
+ * {@link BlockRecipe}.
+ *
+ * New blocks are only added to the index once their pack is stored, see
+ * {@link #commit(String)}, so a failed upload leaves no references to it.
+ *
+ * @author Alex Maskovyak
+ */
+public class Deduplicator {
+
+	///
+	///
+	/// Constants.
+	///
+	///
+
+	/** Name new blocks are referenced under until their pack is named. */
+	public static final String NEW_PACK = "";
+
+	///
+	///
+	/// Hidden variables.
+	///
+	///
+
+	/** Blocks stored before. */
+	private BlockIndex m_index;
+
+	/** The file being deduplicated. */
+	private BlockRecipe m_recipe;
+
+	/** Blocks appended to the pack, by hex SHA-1. */
+	private Map<String, BlockReference> m_newBlocks;
+
+	/** Size of the pack. */
+	private long m_packLength;
+
+	/** Bytes only referenced. */
+	private long m_duplicateBytes;
+
+	///
+	///
+	/// Constructors.
+	///
+	///
+
+	/**
+	 * Constructor.
+	 * @param index blocks stored before.
+	 */
+	public Deduplicator( BlockIndex index ) {
+		m_index = index;
+		m_recipe = new BlockRecipe();
+		m_newBlocks = new HashMap<String, BlockReference>();
+		m_packLength = 0;
+		m_duplicateBytes = 0;
+	}
+
+	///
+	///
+	/// Operations.
+	///
+	///
+
+	/**
+	 * Split a file into blocks, writing those not stored before to a pack.
+	 * @param in the file.
+	 * @param pack where new blocks are written.
+	 * @return the file's recipe, referencing new blocks in {@link #NEW_PACK}.
+	 * @throws IOException when the file cannot be read or the pack written.
+	 */
+	public BlockRecipe split( ReadableByteChannel in, WritableByteChannel pack ) throws IOException {
+		MessageDigest digest = SHA1.newDigest();
+
+		GearChunker chunker = new GearChunker( in );
+		for( ByteBuffer block = chunker.next(); block != null; block = chunker.next() ) {
+			int length = block.remaining();
+			digest.update( block.duplicate() );
+			byte[] hash = digest.digest();
+			String key = SHA1.convertBytesToHexString( hash );
+
+			BlockReference reference = m_index.get( key );
+			if( reference == null ) {
+				reference = m_newBlocks.get( key );
+			}
+			if( reference != null ) {
+				m_duplicateBytes += length;
+			} else {
+				reference = new BlockReference( NEW_PACK, m_packLength, length );
+				m_newBlocks.put( key, reference );
+				BufferUtils.writeFully( pack, block );
+				m_packLength += length;
+			}
+			m_recipe.add( reference, hash );
+		}
+		return m_recipe;
+	}
+
+	/**
+	 * Name the pack once it is stored, adding its blocks to the index.
+	 * @param packName name the pack is stored under.
+	 */
+	public void commit( String packName ) {
+		for( Entry<String, BlockReference> entry : m_newBlocks.entrySet() ) {
+			BlockReference reference = entry.getValue();
+			m_index.put( entry.getKey(),
+					new BlockReference( packName, reference.getOffset(), reference.getLength() ) );
+		}
+		m_recipe.renamePack( NEW_PACK, packName );
+	}
+
+	///
+	///
+	/// Access methods.
+	///
+	///
+
+	/**
+	 * Obtain the size of the pack of new blocks.
+	 * @return bytes written to the pack.
+	 */
+	public long getPackLength() {
+		return m_packLength;
+	}
+
+	/**
+	 * Obtain the number of bytes only referenced.
+	 * @return bytes of the file found in the index or earlier in the file.
+	 */
+	public long getDuplicateBytes() {
+		return m_duplicateBytes;
+	}
+}
@@ -0,0 +1,65 @@
+package chunker;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Splits a file into chunks from which it can later be rebuilt, even when
+ * some of the chunks have been lost.
+ *
+ * @author Alex Maskovyak
+ */
+public interface Encoder {
+
+	/**
+	 * Split a file into chunks stored beside it as N_fName.
+	 *
+	 * @param path 	The directory for storage of the input and output
+	 * @param fName	The file name
+	 * @return information on the chunks written, null if the file could not
+	 * 			be chunked.
+	 */
+	public ChunkedFileInfo encode(String path, String fName);
+
+	/**
+	 * Split length bytes read from a channel into chunk streams, so chunks
+	 * can be produced without touching the disk.  Each output receives its
+	 * chunk's header followed by the chunk's contents in order.
+	 *
+	 * @param in	Source of the original file's bytes
+	 * @param length	Number of bytes to read from the source
+	 * @param out	One destination per chunk
+	 * @throws IOException when the source or a destination fails.
+	 */
+	public void encode(ReadableByteChannel in, long length, WritableByteChannel[] out)
+			throws IOException;
+
+	/**
+	 * Size of the largest chunk, header included, written for a file of the
+	 * given size.
+	 *
+	 * @param length	Size of the original file in bytes
+	 * @return size of the largest chunk in bytes
+	 */
+	public long getMaxChunkSize(long length);
+
+	/**
+	 * Obtain the number of chunks a file is split into.
+	 * @return number of chunks written per file.
+	 */
+	public int getChunks();
+
+	/**
+	 * Obtain the number of chunks which may be lost without losing the file.
+	 * @return number of chunks' worth of parity written per file.
+	 */
+	public int getParityChunks();
+
+	/**
+	 * Obtain the size of the stripe unit, the run of consecutive file bytes
+	 * stored together in one chunk.
+	 * @return size of a stripe unit in bytes.
+	 */
+	public int getStripeUnit();
+}
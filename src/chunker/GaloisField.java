@@ -0,0 +1,180 @@
+package chunker;
+
+/**
+ * Table driven arithmetic over GF(2^8), the field Reed-Solomon codes work in.
+ * Addition is XOR; multiplication goes through log/exp tables and, for bulk
+ * work over byte arrays, a full 256 x 256 product table.
+ *
+ * @author Alex Maskovyak
+ */
+public class GaloisField {
+
+	///
+	///
+	/// Constants.
+	///
+	///
+
+	/** Generator polynomial x^8 + x^4 + x^3 + x^2 + 1. */
+	private static final int POLYNOMIAL = 0x11d;
+
+	/** Number of elements in the field. */
+	public static final int SIZE = 256;
+
+	/** Powers of the generator, doubled up so products need no modulo. */
+	private static final int[] EXP = new int[ 2 * SIZE ];
+
+	/** Discrete logarithms of the non-zero elements. */
+	private static final int[] LOG = new int[ SIZE ];
+
+	/** Every product, MULTIPLY[ a ][ b ] == a * b. */
+	private static final byte[][] MULTIPLY = new byte[ SIZE ][ SIZE ];
+
+	static {
+		int x = 1;
+		for( int i = 0; i < SIZE - 1; i++ ) {
+			EXP[ i ] = x;
+			LOG[ x ] = i;
+			x <<= 1;
+			if( x >= SIZE ) {
+				x ^= POLYNOMIAL;
+			}
+		}
+		for( int i = SIZE - 1; i < EXP.length; i++ ) {
+			EXP[ i ] = EXP[ i - ( SIZE - 1 ) ];
+		}
+		for( int a = 0; a < SIZE; a++ ) {
+			for( int b = 0; b < SIZE; b++ ) {
+				MULTIPLY[ a ][ b ] = (byte)multiply( a, b );
+			}
+		}
+	}
+
+	/**
+	 * Hidden constructor, all operations are static.
+	 */
+	private GaloisField() {}
+
+	///
+	///
+	/// Operations.
+	///
+	///
+
+	/**
+	 * Multiply two field elements.
+	 * @param a first element.
+	 * @param b second element.
+	 * @return a * b.
+	 */
+	public static int multiply( int a, int b ) {
+		if( a == 0 || b == 0 ) {
+			return 0;
+		}
+		return EXP[ LOG[ a ] + LOG[ b ] ];
+	}
+
+	/**
+	 * Divide two field elements.
+	 * @param a dividend.
+	 * @param b divisor, must not be 0.
+	 * @return a / b.
+	 * @throws ArithmeticException when dividing by 0.
+	 */
+	public static int divide( int a, int b ) throws ArithmeticException {
+		if( b == 0 ) {
+			throw new ArithmeticException( "Division by zero in GF(256)." );
+		}
+		if( a == 0 ) {
+			return 0;
+		}
+		return EXP[ LOG[ a ] + ( SIZE - 1 ) - LOG[ b ] ];
+	}
+
+	/**
+	 * Multiplicative inverse of a field element.
+	 * @param a element, must not be 0.
+	 * @return 1 / a.
+	 */
+	public static int inverse( int a ) {
+		return divide( 1, a );
+	}
+
+	/**
+	 * dst[ i ] ^= coefficient * src[ i ] for the first length bytes.
+	 * @param coefficient field element to scale src by.
+	 * @param src bytes to scale.
+	 * @param srcOffset start within src.
+	 * @param dst bytes accumulating the sum.
+	 * @param dstOffset start within dst.
+	 * @param length number of bytes.
+	 */
+	public static void multiplyAdd( int coefficient, byte[] src, int srcOffset,
+			byte[] dst, int dstOffset, int length ) {
+		if( coefficient == 0 ) {
+			return;
+		}
+		if( coefficient == 1 ) {
+			for( int i = 0; i < length; i++ ) {
+				dst[ dstOffset + i ] ^= src[ srcOffset + i ];
+			}
+			return;
+		}
+		byte[] products = MULTIPLY[ coefficient ];
+		for( int i = 0; i < length; i++ ) {
+			dst[ dstOffset + i ] ^= products[ src[ srcOffset + i ] & 0xff ];
+		}
+	}
+
+	/**
+	 * Invert a square matrix of field elements by Gauss-Jordan elimination.
+	 * @param matrix the matrix, left unchanged.
+	 * @return the inverse.
+	 * @throws IllegalArgumentException when the matrix is singular.
+	 */
+	public static int[][] invert( int[][] matrix ) throws IllegalArgumentException {
+		int n = matrix.length;
+		int[][] work = new int[ n ][ 2 * n ];
+		for( int r = 0; r < n; r++ ) {
+			System.arraycopy( matrix[ r ], 0, work[ r ], 0, n );
+			work[ r ][ n + r ] = 1;
+		}
+
+		for( int c = 0; c < n; c++ ) {
+
+			// find a pivot and move it into place
+			int pivot = c;
+			while( pivot < n && work[ pivot ][ c ] == 0 ) {
+				pivot++;
+			}
+			if( pivot == n ) {
+				throw new IllegalArgumentException( "Matrix is singular." );
+			}
+			int[] swap = work[ c ];
+			work[ c ] = work[ pivot ];
+			work[ pivot ] = swap;
+
+			// scale the pivot row to 1
+			int scale = inverse( work[ c ][ c ] );
+			for( int j = 0; j < 2 * n; j++ ) {
+				work[ c ][ j ] = multiply( work[ c ][ j ], scale );
+			}
+
+			// eliminate the column from every other row
+			for( int r = 0; r < n; r++ ) {
+				int factor = work[ r ][ c ];
+				if( r != c && factor != 0 ) {
+					for( int j = 0; j < 2 * n; j++ ) {
+						work[ r ][ j ] ^= multiply( factor, work[ c ][ j ] );
+					}
+				}
+			}
+		}
+
+		int[][] inverse = new int[ n ][ n ];
+		for( int r = 0; r < n; r++ ) {
+			System.arraycopy( work[ r ], n, inverse[ r ], 0, n );
+		}
+		return inverse;
+	}
+}
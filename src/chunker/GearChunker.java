@@ -0,0 +1,165 @@
+package chunker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Random;
+
+import util.BufferUtils;
+
+/**
+ * Splits a stream into blocks at content-defined boundaries, so an insertion
+ * or deletion only changes the blocks around it rather than shifting every
+ * block after it.
+ *
+ * A Gear rolling hash is updated with each byte, shifting one bit and adding
+ * a random value for the byte, so its top bits depend on the last 64 bytes
+ * only.  A boundary is cut once those top bits are all zero, which happens
+ * on average once every average-block bytes past the minimum block size.
+ * Blocks are never longer than the maximum block size.
+ *
+ * @author Alex Maskovyak
+ */
+public class GearChunker {
+
+	///
+	///
+	/// Constants.
+	///
+	///
+
+	/** Default smallest block, only the last block may be shorter. */
+	public static final int MIN_BLOCK = 16*1024; /* 16 kilobytes */
+
+	/** Default average run past the minimum before a boundary. */
+	public static final int AVERAGE_BLOCK = 64*1024; /* 64 kilobytes */
+
+	/** Default largest block. */
+	public static final int MAX_BLOCK = 256*1024; /* 256 kilobytes */
+
+	/** Random value for each byte, fixed so that boundaries never move. */
+	private static final long[] GEAR = new long[ 256 ];
+
+	static {
+		Random random = new Random( 0x52414944L );
+		for( int i = 0; i < GEAR.length; i++ ) {
+			GEAR[ i ] = random.nextLong();
+		}
+	}
+
+	///
+	///
+	/// Hidden variables.
+	///
+	///
+
+	/** The stream being split. */
+	private ReadableByteChannel m_in;
+
+	/** Bytes read but not yet handed out, between position and limit. */
+	private ByteBuffer m_buffer;
+
+	/** Whether the stream has ended. */
+	private boolean m_eof;
+
+	/** Smallest block. */
+	private int m_min;
+
+	/** Largest block. */
+	private int m_max;
+
+	/** Bits of the hash which must be zero at a boundary. */
+	private long m_mask;
+
+	///
+	///
+	/// Constructors.
+	///
+	///
+
+	/**
+	 * Default constructor, uses the default block sizes.
+	 * @param in the stream to split.
+	 */
+	public GearChunker( ReadableByteChannel in ) {
+		this( in, MIN_BLOCK, AVERAGE_BLOCK, MAX_BLOCK );
+	}
+
+	/**
+	 * Constructor.
+	 * @param in the stream to split.
+	 * @param min smallest block.
+	 * @param average average run past the minimum before a boundary, a power
+	 * 			of 2.
+	 * @param max largest block.
+	 * @throws IllegalArgumentException when the sizes are invalid.
+	 */
+	public GearChunker( ReadableByteChannel in, int min, int average, int max )
+			throws IllegalArgumentException {
+		if( min < 1 || max < min ) {
+			throw new IllegalArgumentException( "Block sizes must be positive with min <= max." );
+		}
+		if( average < 2 || Integer.bitCount( average ) != 1 ) {
+			throw new IllegalArgumentException( "Average block size must be a power of 2." );
+		}
+		m_in = in;
+		m_min = min;
+		m_max = max;
+		m_mask = -1L << ( 64 - Integer.numberOfTrailingZeros( average ) );
+		m_buffer = ByteBuffer.allocate( 2 * max );
+		m_buffer.limit( 0 );
+		m_eof = false;
+	}
+
+	///
+	///
+	/// Operations.
+	///
+	///
+
+	/**
+	 * Obtain the next block of the stream.
+	 * @return the block's bytes between position and limit, valid until the
+	 * 			next call, or null at the end of the stream.
+	 * @throws IOException when the stream cannot be read.
+	 */
+	public ByteBuffer next() throws IOException {
+		if( m_buffer.remaining() < m_max && !m_eof ) {
+			m_buffer.compact();
+			BufferUtils.readFully( m_in, m_buffer );
+			m_eof = m_buffer.hasRemaining();
+			m_buffer.flip();
+		}
+		if( !m_buffer.hasRemaining() ) {
+			return null;
+		}
+		int start = m_buffer.position();
+		int length = boundary( m_buffer.array(), start, Math.min( m_buffer.remaining(), m_max ) );
+		ByteBuffer block = m_buffer.duplicate();
+		block.limit( start + length );
+		m_buffer.position( start + length );
+		return block;
+	}
+
+	/**
+	 * Find the first boundary in a run of bytes.
+	 * @param bytes the bytes.
+	 * @param start where the block starts.
+	 * @param available bytes available from the start, no more than a block.
+	 * @return length of the block.
+	 */
+	private int boundary( byte[] bytes, int start, int available ) {
+		if( available <= m_min ) {
+			return available;
+		}
+		long hash = 0;
+		// the hash only remembers 64 bytes, start it just before the minimum
+		for( int i = Math.max( 0, m_min - 64 ); i < available; i++ ) {
+			hash = ( hash << 1 ) + GEAR[ bytes[ start + i ] & 0xff ];
+			if( i >= m_min && ( hash & m_mask ) == 0 ) {
+				return i + 1;
+			}
+		}
+		return available;
+	}
+}
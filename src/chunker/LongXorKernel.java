@@ -0,0 +1,35 @@
+package chunker;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Parity kernel working a long word at a time, finishing the tail a byte at
+ * a time.  Available everywhere, and the fallback when the Vector API is not.
+ *
+ * @author Alex Maskovyak
+ */
+public class LongXorKernel implements XorKernel {
+
+	/**
+	 * XOR a long word at a time.
+	 * @see XorKernel#xor(ByteBuffer, ByteBuffer, int)
+	 */
+	public void xor( ByteBuffer dst, ByteBuffer src, int length ) {
+		int d = dst.position();
+		int s = src.position();
+		int i = 0;
+		for( ; i + 8 <= length; i += 8 ) {
+			dst.putLong( d + i, dst.getLong( d + i ) ^ src.getLong( s + i ) );
+		}
+		for( ; i < length; i++ ) {
+			dst.put( d + i, (byte)( dst.get( d + i ) ^ src.get( s + i ) ) );
+		}
+	}
+
+	/**
+	 * @return "long"
+	 */
+	public String getName() {
+		return "long";
+	}
+}
@@ -0,0 +1,458 @@
+package chunker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import util.BufferUtils;
+import util.SHA1;
+
+/**
+ * SHA-1 hash tree over the fixed size blocks of a file.  Blocks are hashed
+ * independently, so a file is hashed on as many threads as there are
+ * cores, and two trees of the same file show which blocks differ.
+ *
+ * Leaves are the hash of a 0 byte followed by the block, inner nodes the
+ * hash of a 1 byte followed by their two children, so a block can never be
+ * mistaken for a node.  A node without a sibling is carried up unchanged.
+ * An empty file has a single empty block.
+ *
+ * A tree is built either from a file, or with a {@link Builder} from the
+ * bytes of a file as they are read or written for something else.  A
+ * file's blocks can be checked against the leaves of its tree as they
+ * arrive, which pinpoints the blocks that are corrupt.
+ *
+ * @author Alex Maskovyak
+ */
+public class MerkleTree {
+
+	///
+	///
+	/// Constants.
+	///
+	///
+
+	/** Default size of a block. */
+	public static final int DEFAULT_BLOCK_SIZE = 1024*1024; /* 1 megabyte */
+
+	/** Prefix of a leaf's hash. */
+	private static final byte LEAF = 0;
+
+	/** Prefix of an inner node's hash. */
+	private static final byte NODE = 1;
+
+	///
+	///
+	/// Inner classes.
+	///
+	///
+
+	/**
+	 * Passes reads through to another channel, hashing the blocks of
+	 * everything read, so a tree comes out of a pass over a file made for
+	 * some other reason.  Bytes written to it are hashed the same way, and
+	 * otherwise dropped.
+	 */
+	public static class Builder implements ReadableByteChannel, WritableByteChannel {
+
+		/** The channel being read, null if the builder is only written to. */
+		private ReadableByteChannel m_channel;
+
+		/** Size of a block. */
+		private int m_blockSize;
+
+		/** Digest of the block being read. */
+		private MessageDigest m_digest;
+
+		/** Bytes of the block being read so far. */
+		private int m_inBlock;
+
+		/** Number of bytes hashed so far. */
+		private long m_count;
+
+		/** Hash of each block finished, end to end. */
+		private ByteArrayOutputStream m_leaves;
+
+		/**
+		 * Constructor.
+		 * @param channel the channel to read from, null to only be written to.
+		 * @param blockSize size of a block.
+		 * @throws IllegalArgumentException when the block size is not positive.
+		 */
+		public Builder( ReadableByteChannel channel, int blockSize ) throws IllegalArgumentException {
+			if( blockSize <= 0 ) {
+				throw new IllegalArgumentException( "Block size must be positive." );
+			}
+			m_channel = channel;
+			m_blockSize = blockSize;
+			m_digest = SHA1.newDigest();
+			m_inBlock = 0;
+			m_count = 0;
+			m_leaves = new ByteArrayOutputStream();
+		}
+
+		/**
+		 * Read from the underlying channel, hashing what was read.
+		 * @param dst buffer to read into.
+		 * @return number of bytes read, -1 at the end of the channel.
+		 * @throws IOException when the underlying channel fails.
+		 */
+		public int read( ByteBuffer dst ) throws IOException {
+			int start = dst.position();
+			int read = m_channel.read( dst );
+			if( read > 0 ) {
+				ByteBuffer view = dst.duplicate();
+				view.limit( start + read ).position( start );
+				hash( view );
+			}
+			return read;
+		}
+
+		/**
+		 * Hash the bytes written, which go nowhere else.
+		 * @param src buffer to write from.
+		 * @return number of bytes written, all that remained.
+		 */
+		public int write( ByteBuffer src ) {
+			int written = src.remaining();
+			hash( src );
+			return written;
+		}
+
+		/**
+		 * Hash bytes into the blocks, finishing a leaf at each boundary.
+		 * @param view the bytes, consumed.
+		 */
+		private void hash( ByteBuffer view ) {
+			m_count += view.remaining();
+			while( view.hasRemaining() ) {
+				if( m_inBlock == 0 ) {
+					m_digest.update( LEAF );
+				}
+				int run = Math.min( view.remaining(), m_blockSize - m_inBlock );
+				ByteBuffer piece = view.duplicate();
+				piece.limit( piece.position() + run );
+				m_digest.update( piece );
+				view.position( view.position() + run );
+				m_inBlock += run;
+				if( m_inBlock == m_blockSize ) {
+					m_leaves.write( m_digest.digest(), 0, SHA1.DIGEST_SIZE );
+					m_inBlock = 0;
+				}
+			}
+		}
+
+		/**
+		 * Check whether the underlying channel is open.
+		 * @return true if open, or there is none.
+		 */
+		public boolean isOpen() {
+			return m_channel == null || m_channel.isOpen();
+		}
+
+		/**
+		 * Close the underlying channel.
+		 * @throws IOException when the underlying channel fails to close.
+		 */
+		public void close() throws IOException {
+			if( m_channel != null ) {
+				m_channel.close();
+			}
+		}
+
+		/**
+		 * Finish the tree of everything read or written.  Call once, when
+		 * that is done.
+		 * @return the tree.
+		 */
+		public MerkleTree build() {
+			if( m_inBlock > 0 || m_count == 0 ) {
+				if( m_count == 0 ) {
+					m_digest.update( LEAF );
+				}
+				m_leaves.write( m_digest.digest(), 0, SHA1.DIGEST_SIZE );
+				m_inBlock = 0;
+			}
+			return new MerkleTree( m_blockSize, m_count, m_leaves.toByteArray() );
+		}
+	}
+
+	///
+	///
+	/// Hidden variables.
+	///
+	///
+
+	/** Size of a block, the last may be shorter. */
+	private int m_blockSize;
+
+	/** Size of the file. */
+	private long m_length;
+
+	/** Hash of each block, end to end. */
+	private byte[] m_leaves;
+
+	/** Hash of the whole tree. */
+	private byte[] m_root;
+
+	///
+	///
+	/// Constructors.
+	///
+	///
+
+	/**
+	 * Constructor from the hashes of a file's blocks.
+	 * @param blockSize size of a block.
+	 * @param length size of the file.
+	 * @param leaves hash of each block, end to end.
+	 * @throws IllegalArgumentException when the number of hashes does not
+	 * 			match the file.
+	 */
+	public MerkleTree( int blockSize, long length, byte[] leaves ) throws IllegalArgumentException {
+		if( blockSize <= 0 || length < 0 ) {
+			throw new IllegalArgumentException( "Block size must be positive and length not negative." );
+		}
+		if( leaves.length != getBlocks( blockSize, length ) * SHA1.DIGEST_SIZE ) {
+			throw new IllegalArgumentException( "Expected " + getBlocks( blockSize, length ) + " block hashes." );
+		}
+		m_blockSize = blockSize;
+		m_length = length;
+		m_leaves = leaves;
+		m_root = combine( leaves );
+	}
+
+	/**
+	 * Hash a file's blocks, regions of the file on several threads.
+	 * @param file the file, read with positional reads.
+	 * @param blockSize size of a block.
+	 * @param parallelism number of threads, 1 to hash on the calling thread.
+	 * @return the file's tree.
+	 * @throws IOException when the file cannot be read.
+	 * @throws IllegalArgumentException when the block size or parallelism
+	 * 			are not positive.
+	 */
+	public static MerkleTree build( final FileChannel file, final int blockSize, int parallelism )
+			throws IOException, IllegalArgumentException {
+		if( blockSize <= 0 || parallelism <= 0 ) {
+			throw new IllegalArgumentException( "Block size and parallelism must be positive." );
+		}
+		final long length = file.size();
+		final long blocks = getBlocks( blockSize, length );
+		final byte[] leaves = new byte[ (int)( blocks * SHA1.DIGEST_SIZE ) ];
+
+		RowRangeTask.run( blocks, blockSize, new RowRangeTask.RowWorker() {
+			public void process( long from, long to ) throws IOException {
+				MessageDigest digest = SHA1.newDigest();
+				ByteBuffer block = ByteBuffer.allocate( blockSize );
+				for( long b = from; b < to; b++ ) {
+					long position = b * blockSize;
+					block.clear().limit( (int)Math.min( blockSize, length - position ) );
+					if( block.hasRemaining()
+							&& BufferUtils.readFully( file, block, position ) < block.limit() ) {
+						throw new IOException( "File ended before block " + b + "." );
+					}
+					block.flip();
+					digest.update( LEAF );
+					digest.update( block );
+					System.arraycopy( digest.digest(), 0, leaves, (int)( b * SHA1.DIGEST_SIZE ), SHA1.DIGEST_SIZE );
+				}
+			}
+		}, parallelism );
+
+		return new MerkleTree( blockSize, length, leaves );
+	}
+
+	///
+	///
+	/// Operations.
+	///
+	///
+
+	/**
+	 * Check the blocks of a file lying between two offsets against the
+	 * leaves of the file's tree, in order, stopping at the first which
+	 * doesn't match.  A block ending after the later offset isn't checked,
+	 * unless it is the last block of the file.
+	 * @param file the file, read with positional reads.
+	 * @param blockSize size of a block.
+	 * @param leaves hash of each block of the file, end to end.
+	 * @param length size the file should be.
+	 * @param from where to start, taken back to the start of its block.
+	 * @param to where the data written so far ends.
+	 * @return where the blocks checked match up to, the start of the first
+	 * 			corrupt block if there is one.
+	 * @throws IOException when the file cannot be read.
+	 */
+	public static long verify( FileChannel file, int blockSize, byte[] leaves, long length, long from, long to )
+			throws IOException {
+		MessageDigest digest = SHA1.newDigest();
+		ByteBuffer block = ByteBuffer.allocate( blockSize );
+		long position = from - from % blockSize;
+		while( position < length ) {
+			long end = Math.min( position + blockSize, length );
+			if( end > to ) {
+				break;
+			}
+			long b = position / blockSize;
+			if( ( b + 1 ) * SHA1.DIGEST_SIZE > leaves.length ) {
+				return position;
+			}
+			block.clear().limit( (int)( end - position ) );
+			if( BufferUtils.readFully( file, block, position ) < block.limit() ) {
+				return position;
+			}
+			block.flip();
+			digest.update( LEAF );
+			digest.update( block );
+			byte[] leaf = digest.digest();
+			for( int i = 0; i < SHA1.DIGEST_SIZE; i++ ) {
+				if( leaf[ i ] != leaves[ (int)( b * SHA1.DIGEST_SIZE ) + i ] ) {
+					return position;
+				}
+			}
+			position = end;
+		}
+		return position;
+	}
+
+	/**
+	 * Find the blocks which differ from another tree of a file of the same
+	 * size.
+	 * @param other the other tree.
+	 * @return indices of the differing blocks, in order.
+	 * @throws IllegalArgumentException when the trees have different shapes.
+	 */
+	public List<Long> getDifferingBlocks( MerkleTree other ) throws IllegalArgumentException {
+		if( other.m_blockSize != m_blockSize || other.m_length != m_length ) {
+			throw new IllegalArgumentException( "Trees are of different shapes." );
+		}
+		List<Long> differing = new ArrayList<Long>();
+		if( Arrays.equals( m_root, other.m_root ) ) {
+			return differing;
+		}
+		for( long b = 0; b < getBlocks(); b++ ) {
+			if( !Arrays.equals( getLeaf( b ), other.getLeaf( b ) ) ) {
+				differing.add( b );
+			}
+		}
+		return differing;
+	}
+
+	/**
+	 * Number of blocks of a file.
+	 * @param blockSize size of a block.
+	 * @param length size of the file.
+	 * @return number of blocks, at least 1.
+	 */
+	public static long getBlocks( int blockSize, long length ) {
+		return Math.max( 1, ( length + blockSize - 1 ) / blockSize );
+	}
+
+	/**
+	 * Combine leaves level by level up to the root.
+	 * @param leaves hash of each block, end to end.
+	 * @return the root hash.
+	 */
+	private static byte[] combine( byte[] leaves ) {
+		MessageDigest digest = SHA1.newDigest();
+		byte[] level = leaves;
+		int nodes = level.length / SHA1.DIGEST_SIZE;
+		while( nodes > 1 ) {
+			int parents = ( nodes + 1 ) / 2;
+			byte[] next = new byte[ parents * SHA1.DIGEST_SIZE ];
+			for( int p = 0; p < parents; p++ ) {
+				int left = 2 * p * SHA1.DIGEST_SIZE;
+				if( 2 * p + 1 == nodes ) {
+					System.arraycopy( level, left, next, p * SHA1.DIGEST_SIZE, SHA1.DIGEST_SIZE );
+					continue;
+				}
+				digest.update( NODE );
+				digest.update( level, left, 2 * SHA1.DIGEST_SIZE );
+				System.arraycopy( digest.digest(), 0, next, p * SHA1.DIGEST_SIZE, SHA1.DIGEST_SIZE );
+			}
+			level = next;
+			nodes = parents;
+		}
+		return Arrays.copyOf( level, SHA1.DIGEST_SIZE );
+	}
+
+	/**
+	 * For Debug
+	 * @return a String representation of this tree.
+	 */
+	public String toString() {
+		return String.format( "%s over %d blocks of %d", getRootHex(), getBlocks(), m_blockSize );
+	}
+
+	///
+	///
+	/// Access methods.
+	///
+	///
+
+	/**
+	 * Obtain the hash of the whole tree.
+	 * @return the 20 byte root hash.
+	 */
+	public byte[] getRoot() {
+		return m_root.clone();
+	}
+
+	/**
+	 * Obtain the hash of the whole tree in hex.
+	 * @return the root hash as a hex String.
+	 */
+	public String getRootHex() {
+		return SHA1.convertBytesToHexString( m_root );
+	}
+
+	/**
+	 * Obtain the hash of a block.
+	 * @param block index of the block.
+	 * @return the block's 20 byte leaf hash.
+	 */
+	public byte[] getLeaf( long block ) {
+		int offset = (int)( block * SHA1.DIGEST_SIZE );
+		return Arrays.copyOfRange( m_leaves, offset, offset + SHA1.DIGEST_SIZE );
+	}
+
+	/**
+	 * Obtain the hash of every block.
+	 * @return the leaf hashes, end to end.
+	 */
+	public byte[] getLeaves() {
+		return m_leaves.clone();
+	}
+
+	/**
+	 * Obtain the number of blocks.
+	 * @return number of leaves.
+	 */
+	public long getBlocks() {
+		return m_leaves.length / SHA1.DIGEST_SIZE;
+	}
+
+	/**
+	 * Obtain the size of a block.
+	 * @return block size in bytes.
+	 */
+	public int getBlockSize() {
+		return m_blockSize;
+	}
+
+	/**
+	 * Obtain the size of the file.
+	 * @return size in bytes.
+	 */
+	public long getLength() {
+		return m_length;
+	}
+}
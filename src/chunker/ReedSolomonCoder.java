@@ -0,0 +1,375 @@
+package chunker;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+import util.BufferUtils;
+
+/**
+ * A k+m Reed-Solomon erasure coder.  Files are striped across k data chunks
+ * exactly as the {@link Chunker} would, and m dedicated parity chunks are
+ * computed over GF(2^8) with a Cauchy matrix, so that any k of the k+m chunks
+ * are enough to rebuild the file.
+ *
+ * @author Alex Maskovyak
+ */
+public class ReedSolomonCoder implements Encoder, Decoder {
+
+	///
+	///
+	/// Hidden variables.
+	///
+	///
+
+	/** Number of data chunks, k. */
+	private int m_dataChunks;
+
+	/** Number of parity chunks, m. */
+	private int m_parityChunks;
+
+	/** Size, in bytes, of a stripe unit. */
+	private int m_stripeUnit;
+
+	///
+	///
+	/// Constructors.
+	///
+	///
+
+	/**
+	 * Default constructor, uses the default stripe unit.
+	 * @param dataChunks number of data chunks, k.
+	 * @param parityChunks number of parity chunks, m.
+	 * @throws IllegalArgumentException when k or m are invalid.
+	 */
+	public ReedSolomonCoder( int dataChunks, int parityChunks ) throws IllegalArgumentException {
+		this( dataChunks, parityChunks, Chunker.DEFAULT_STRIPE_UNIT );
+	}
+
+	/**
+	 * Constructor.
+	 * @param dataChunks number of data chunks, k.
+	 * @param parityChunks number of parity chunks, m.  Use the {@link Chunker}
+	 * 			for a single parity chunk.
+	 * @param stripeUnit size of a stripe unit in bytes.
+	 * @throws IllegalArgumentException when k, m or the stripe unit are
+	 * 			invalid.
+	 */
+	public ReedSolomonCoder( int dataChunks, int parityChunks, int stripeUnit )
+			throws IllegalArgumentException {
+		if( dataChunks < 1 || parityChunks < 2 ) {
+			throw new IllegalArgumentException( "Need at least 1 data and 2 parity chunks." );
+		}
+		if( dataChunks + parityChunks > GaloisField.SIZE ) {
+			throw new IllegalArgumentException( "At most " + GaloisField.SIZE + " chunks are supported." );
+		}
+		if( stripeUnit <= 0 ) {
+			throw new IllegalArgumentException( "Stripe unit must be positive." );
+		}
+		m_dataChunks = dataChunks;
+		m_parityChunks = parityChunks;
+		m_stripeUnit = stripeUnit;
+	}
+
+	///
+	///
+	/// Operations.
+	///
+	///
+
+	/**
+	 * Split the file into k data chunks followed by m parity chunks, stored
+	 * beside it as N_fName.
+	 *
+	 * @param path 	The directory for storage of the input and output
+	 * @param fName	The file name
+	 */
+	public ChunkedFileInfo encode( String path, String fName ) {
+		return Chunker.encodeToFiles( this, path, fName );
+	}
+
+	/**
+	 * Split length bytes read from a channel into k data chunk streams
+	 * followed by m parity chunk streams.
+	 *
+	 * @param in	Source of the original file's bytes
+	 * @param length	Number of bytes to read from the source
+	 * @param out	One destination per chunk
+	 * @throws IOException when the source or a destination fails.
+	 */
+	public void encode( ReadableByteChannel in, long length, WritableByteChannel[] out )
+			throws IOException {
+		int k = m_dataChunks;
+		int m = m_parityChunks;
+		int[][] matrix = cauchy( k, m );
+		StripeLayout layout = new StripeLayout( k + m, m, m_stripeUnit, length );
+
+		for( int i = 0; i < k + m; i++ ) {
+			ChunkHeader header = new ChunkHeader( m_stripeUnit, k + m, m, i, length );
+			BufferUtils.writeFully( out[ i ], ByteBuffer.wrap( header.toBytes() ) );
+		}
+
+		byte[] row = new byte[ (int)layout.getRowSize() ];
+		byte[][] parity = new byte[ m ][ m_stripeUnit ];
+
+		for( long r = 0; r < layout.getRows(); r++ ) {
+			int rowLength = (int)Math.min( layout.getRowSize(), length - r * layout.getRowSize() );
+			BufferUtils.readFully( in, ByteBuffer.wrap( row, 0, rowLength ) );
+
+			computeParity( layout, matrix, r, row, parity );
+			for( int d = 0; d < k; d++ ) {
+				int unitLength = layout.getDataUnitLength( r, d );
+				if( unitLength == 0 ) {
+					break;
+				}
+				BufferUtils.writeFully( out[ d ], ByteBuffer.wrap( row, d * m_stripeUnit, unitLength ) );
+			}
+
+			int parityLength = layout.getDataUnitLength( r, 0 );
+			for( int j = 0; j < m; j++ ) {
+				BufferUtils.writeFully( out[ k + j ], ByteBuffer.wrap( parity[ j ], 0, parityLength ) );
+			}
+		}
+	}
+
+	/**
+	 * Size of the largest chunk, header included, for a file of the given
+	 * size.
+	 *
+	 * @param length	Size of the original file in bytes
+	 * @return size of the largest chunk in bytes
+	 */
+	public long getMaxChunkSize( long length ) {
+		StripeLayout layout = new StripeLayout( getChunks(), m_parityChunks, m_stripeUnit, length );
+		return ChunkHeader.SIZE + layout.getMaxChunkLength();
+	}
+
+	/**
+	 * Reassemble the file chunks into a single file.
+	 * @see #reassemble(String, String[], String, String)
+	 */
+	public void decode( String iPath, String[] fileChunks, String oPath,
+			String outputFile ) throws IllegalArgumentException {
+		reassemble( iPath, fileChunks, oPath, outputFile );
+	}
+
+	/**
+	 * Reassemble Reed-Solomon coded chunks into a single file.  The code
+	 * parameters are taken from the chunk headers.  Only k chunks are read,
+	 * data chunks in preference to parity chunks, so no parity is touched
+	 * when every data chunk is present.
+	 *
+	 * @param iPath 		Input file path
+	 * @param fileChunks	Input file names
+	 * @param oPath			Output file path
+	 * @param outputFile	Output file name
+	 * @throws IllegalArgumentException when more than m of the specified
+	 * 			filechunks cannot be found.
+	 */
+	public static void reassemble( String iPath, String[] fileChunks, String oPath,
+			String outputFile ) throws IllegalArgumentException {
+
+		int n = fileChunks.length;
+		FileChannel fis[] = new FileChannel[ n ];
+		FileChannel fo = null;
+
+		try {
+			int filesNotFound = 0;
+			for( int i = 0; i < n; i++ ) {
+				try {
+					fis[ i ] = new FileInputStream( iPath + fileChunks[ i ] ).getChannel();
+				} catch( FileNotFoundException e ) {
+					fis[ i ] = null;
+					filesNotFound++;
+				}
+			}
+
+			ChunkHeader header = null;
+			for( int i = 0; i < n && header == null; i++ ) {
+				if( fis[ i ] != null ) {
+					header = ChunkHeader.read( fis[ i ] );
+					if( header == null ) {
+						throw new IllegalArgumentException( "Chunks are not erasure coded." );
+					}
+				}
+			}
+			if( header == null || filesNotFound > header.getParityChunks() ) {
+				throw new IllegalArgumentException(
+						"Must have at least " + ( n - ( header == null ? 0 : header.getParityChunks() ) )
+						+ " of the specified fileChunks for reassembly." );
+			}
+			if( header.getChunks() != n ) {
+				throw new IllegalArgumentException(
+						"Chunks were written for " + header.getChunks() + " parts, not " + n + "." );
+			}
+
+			StripeLayout layout = header.getLayout();
+			int k = layout.getDataChunks();
+			int stripeUnit = layout.getStripeUnit();
+
+			// Pick k chunks, data first, and the rows of the coding matrix that made them
+			int[][] matrix = cauchy( k, layout.getParityChunks() );
+			int[] chosen = new int[ k ];
+			int[] slotForData = new int[ k ];
+			int[][] decode = new int[ k ][];
+			int found = 0;
+			for( int c = 0; c < n && found < k; c++ ) {
+				if( fis[ c ] != null ) {
+					chosen[ found ] = c;
+					decode[ found ] = new int[ k ];
+					if( c < k ) {
+						decode[ found ][ c ] = 1;
+					} else {
+						System.arraycopy( matrix[ c - k ], 0, decode[ found ], 0, k );
+					}
+					found++;
+				}
+			}
+			Arrays.fill( slotForData, -1 );
+			for( int i = 0; i < k; i++ ) {
+				if( chosen[ i ] < k ) {
+					slotForData[ chosen[ i ] ] = i;
+				}
+			}
+			int[][] inverse = GaloisField.invert( decode );
+
+			for( int i = 0; i < k; i++ ) {
+				fis[ chosen[ i ] ].position( ChunkHeader.SIZE );
+			}
+			fo = new FileOutputStream( oPath + outputFile ).getChannel();
+
+			byte[][] units = new byte[ k ][ stripeUnit ];
+			byte[] rebuilt = new byte[ stripeUnit ];
+
+			for( long r = 0; r < layout.getRows(); r++ ) {
+				int rowLength = layout.getDataUnitLength( r, 0 );
+				for( int i = 0; i < k; i++ ) {
+					int length = layout.getUnitLength( r, chosen[ i ] );
+					BufferUtils.readFully( fis[ chosen[ i ] ], ByteBuffer.wrap( units[ i ], 0, length ) );
+					Arrays.fill( units[ i ], length, rowLength, (byte)0 );
+				}
+
+				for( int d = 0; d < k; d++ ) {
+					int length = layout.getDataUnitLength( r, d );
+					if( length == 0 ) {
+						break;
+					}
+					if( slotForData[ d ] >= 0 ) {
+						BufferUtils.writeFully( fo, ByteBuffer.wrap( units[ slotForData[ d ] ], 0, length ) );
+					} else {
+						Arrays.fill( rebuilt, 0, length, (byte)0 );
+						for( int i = 0; i < k; i++ ) {
+							GaloisField.multiplyAdd( inverse[ d ][ i ], units[ i ], 0, rebuilt, 0, length );
+						}
+						BufferUtils.writeFully( fo, ByteBuffer.wrap( rebuilt, 0, length ) );
+					}
+				}
+			}
+
+		} catch( IOException e ) {
+			e.printStackTrace();
+		} finally {
+			for( FileChannel fi : fis ) {
+				try {
+					if( fi != null ) {
+						fi.close();
+					}
+				} catch( IOException e ) {}
+			}
+			try {
+				if( fo != null ) {
+					fo.close();
+				}
+			} catch( IOException e ) {}
+		}
+	}
+
+	/**
+	 * Build a row's m parity units from its data units.
+	 * @param layout geometry of the file.
+	 * @param matrix the coding matrix, see {@link #cauchy(int, int)}.
+	 * @param r the row.
+	 * @param row the row's data from index 0.
+	 * @param parity receives the parity units, each filled as far as the
+	 * 			row's first data unit.
+	 */
+	static void computeParity( StripeLayout layout, int[][] matrix, long r, byte[] row, byte[][] parity ) {
+		int stripeUnit = layout.getStripeUnit();
+		int parityLength = layout.getDataUnitLength( r, 0 );
+		for( int j = 0; j < parity.length; j++ ) {
+			Arrays.fill( parity[ j ], 0, parityLength, (byte)0 );
+		}
+		for( int d = 0; d < layout.getDataChunks(); d++ ) {
+			int unitLength = layout.getDataUnitLength( r, d );
+			if( unitLength == 0 ) {
+				break;
+			}
+			for( int j = 0; j < parity.length; j++ ) {
+				GaloisField.multiplyAdd( matrix[ j ][ d ], row, d * stripeUnit, parity[ j ], 0, unitLength );
+			}
+		}
+	}
+
+	/**
+	 * Build the m x k Cauchy matrix used to compute parity.  Row j, column d
+	 * holds 1 / ( j + (m + d) ), and every square sub-matrix of it (together
+	 * with the identity rows of the data chunks) is invertible.
+	 * @param k number of data chunks.
+	 * @param m number of parity chunks.
+	 * @return the coding matrix.
+	 */
+	static int[][] cauchy( int k, int m ) {
+		int[][] matrix = new int[ m ][ k ];
+		for( int j = 0; j < m; j++ ) {
+			for( int d = 0; d < k; d++ ) {
+				matrix[ j ][ d ] = GaloisField.inverse( j ^ ( m + d ) );
+			}
+		}
+		return matrix;
+	}
+
+	///
+	///
+	/// Access methods.
+	///
+	///
+
+	/**
+	 * Obtain the number of chunks a file is split into, k+m.
+	 * @return number of chunks.
+	 */
+	public int getChunks() {
+		return m_dataChunks + m_parityChunks;
+	}
+
+	/**
+	 * Obtain the number of parity chunks, m.
+	 * @return number of parity chunks.
+	 */
+	public int getParityChunks() {
+		return m_parityChunks;
+	}
+
+	/**
+	 * Obtain the number of data chunks, k.
+	 * @return number of data chunks.
+	 */
+	public int getDataChunks() {
+		return m_dataChunks;
+	}
+
+	/**
+	 * Obtain the stripe unit size.
+	 * @return size of a stripe unit in bytes.
+	 */
+	public int getStripeUnit() {
+		return m_stripeUnit;
+	}
+}
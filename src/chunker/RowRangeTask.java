@@ -0,0 +1,182 @@
+package chunker;
+
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fork-join task over a range of stripe rows.  Rows are independent of one
+ * another, so the range is halved until it is small enough and each piece is
+ * handed to a {@link RowWorker}, which does its own positional I/O.
+ *
+ * @author Alex Maskovyak
+ */
+class RowRangeTask extends RecursiveAction {
+
+	///
+	///
+	/// Inner interfaces.
+	///
+	///
+
+	/**
+	 * Processes a contiguous range of rows.  Called concurrently for disjoint
+	 * ranges, so implementations must keep their buffers local to the call.
+	 */
+	interface RowWorker {
+
+		/**
+		 * Process rows [from, to).
+		 * @param from first row.
+		 * @param to one past the last row.
+		 * @throws IOException when reading or writing fails.
+		 */
+		void process( long from, long to ) throws IOException;
+	}
+
+	///
+	///
+	/// Constants.
+	///
+	///
+
+	/** Generated serial version. */
+	private static final long serialVersionUID = 2206340557162385531L;
+
+	/** Pieces handed to each worker thread, for load balancing. */
+	private static final int PIECES_PER_THREAD = 4;
+
+	/** Smallest amount of file data worth a task of its own. */
+	private static final long MIN_TASK_BYTES = 1024*1024; /* 1 megabyte */
+
+	///
+	///
+	/// Hidden variables.
+	///
+	///
+
+	/** The worker doing the real work. */
+	private RowWorker m_worker;
+
+	/** First row of this task. */
+	private long m_from;
+
+	/** One past the last row of this task. */
+	private long m_to;
+
+	/** Most rows processed without splitting. */
+	private long m_grain;
+
+	///
+	///
+	/// Constructors.
+	///
+	///
+
+	/**
+	 * Constructor.
+	 * @param worker the worker to hand rows to.
+	 * @param from first row.
+	 * @param to one past the last row.
+	 * @param grain most rows processed without splitting.
+	 */
+	private RowRangeTask( RowWorker worker, long from, long to, long grain ) {
+		m_worker = worker;
+		m_from = from;
+		m_to = to;
+		m_grain = grain;
+	}
+
+	///
+	///
+	/// Operations.
+	///
+	///
+
+	/**
+	 * Split the range in two until it is no more than the grain.
+	 */
+	protected void compute() {
+		if( m_to - m_from <= m_grain ) {
+			try {
+				m_worker.process( m_from, m_to );
+			} catch( IOException e ) {
+				throw new RowFailure( e );
+			}
+			return;
+		}
+		long middle = m_from + ( m_to - m_from ) / 2;
+		invokeAll( new RowRangeTask( m_worker, m_from, middle, m_grain ),
+				new RowRangeTask( m_worker, middle, m_to, m_grain ) );
+	}
+
+	/**
+	 * Process every row of a layout on a pool of the given size.
+	 * @param layout the layout whose rows are processed.
+	 * @param worker the worker to hand rows to.
+	 * @param parallelism number of threads to use, 1 to process every row on
+	 * 			the calling thread.
+	 * @throws IOException the first failure of any worker.
+	 */
+	static void run( StripeLayout layout, RowWorker worker, int parallelism ) throws IOException {
+		run( layout.getRows(), layout.getRowSize(), worker, parallelism );
+	}
+
+	/**
+	 * Process rows of equal size on a pool of the given size.
+	 * @param rows number of rows.
+	 * @param rowSize bytes of file data in a row.
+	 * @param worker the worker to hand rows to.
+	 * @param parallelism number of threads to use, 1 to process every row on
+	 * 			the calling thread.
+	 * @throws IOException the first failure of any worker.
+	 */
+	static void run( long rows, long rowSize, RowWorker worker, int parallelism ) throws IOException {
+		if( rows == 0 ) {
+			return;
+		}
+		if( parallelism == 1 ) {
+			worker.process( 0, rows );
+			return;
+		}
+		long grain = Math.max( rows / ( (long)parallelism * PIECES_PER_THREAD ),
+				( MIN_TASK_BYTES + rowSize - 1 ) / rowSize );
+
+		ForkJoinPool pool = new ForkJoinPool( parallelism );
+		try {
+			pool.invoke( new RowRangeTask( worker, 0, rows, Math.max( 1, grain ) ) );
+		} catch( RowFailure e ) {
+			// the pool may rethrow a copy, the worker's failure is in the causes
+			Throwable cause = e;
+			while( !( cause instanceof IOException ) ) {
+				cause = cause.getCause();
+			}
+			throw (IOException)cause;
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	///
+	///
+	/// Inner classes.
+	///
+	///
+
+	/**
+	 * Carries a worker's IOException out of the pool.
+	 */
+	private static class RowFailure extends RuntimeException {
+
+		/** Generated serial version. */
+		private static final long serialVersionUID = -2587127063310370196L;
+
+		/**
+		 * Constructor.
+		 * @param cause the worker's failure.
+		 */
+		RowFailure( IOException cause ) {
+			super( cause );
+		}
+	}
+}
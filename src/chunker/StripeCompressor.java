@@ -0,0 +1,323 @@
+package chunker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import util.BufferUtils;
+
+/**
+ * Optional compression ahead of striping.  The file is cut into groups of
+ * {@link #GROUP_SIZE} bytes and each group is written as a frame: a kind,
+ * the group's length and the length stored, then the stored bytes.  A
+ * group is deflated only when a sample of it shrinks well, so JPEGs and
+ * archives are stored as they are without spending time compressing them.
+ *
+ * The frames are striped in place of the file, and chunks holding them
+ * carry the {@link ChunkHeader#DEFLATED_VERSION} header.  Every frame
+ * records its own lengths, so reassembly inflates the frames as the rows
+ * stream out, through an {@link InflatingChannel}.
+ *
+ * @author Alex Maskovyak
+ */
+public class StripeCompressor {
+
+	///
+	///
+	/// Constants.
+	///
+	///
+
+	/** Size of a group of the file compressed on its own. */
+	public static final int GROUP_SIZE = 1024*1024; /* 1 megabyte */
+
+	/** Bytes of a group deflated to decide whether to deflate all of it. */
+	public static final int SAMPLE_SIZE = 32*1024; /* 32 kilobytes */
+
+	/** Kind, group length and stored length in front of every frame. */
+	public static final int FRAME_HEADER = 1+4+4;
+
+	/** A frame storing its group as it is. */
+	private static final byte RAW = 0;
+
+	/** A frame storing its group deflated. */
+	private static final byte DEFLATED = 1;
+
+	/** A sample must shrink to this fraction of its size to deflate. */
+	private static final double WORTHWHILE = 0.9;
+
+	///
+	///
+	/// Inner classes.
+	///
+	///
+
+	/**
+	 * Receives frames and writes the groups they hold to another channel.
+	 * Frames may be split across writes in any way.
+	 */
+	public static class InflatingChannel implements WritableByteChannel {
+
+		/** Where the groups are written. */
+		private WritableByteChannel m_out;
+
+		/** The frame header being read. */
+		private ByteBuffer m_header;
+
+		/** The stored bytes of the frame being read, null between frames. */
+		private ByteBuffer m_stored;
+
+		/** Kind of the frame being read. */
+		private byte m_kind;
+
+		/** Group length of the frame being read. */
+		private int m_length;
+
+		/** Inflates deflated frames. */
+		private Inflater m_inflater;
+
+		/** A group inflated. */
+		private byte[] m_group;
+
+		/** Whether the channel is open. */
+		private boolean m_open;
+
+		/**
+		 * Constructor.
+		 * @param out where the groups are written.
+		 */
+		public InflatingChannel( WritableByteChannel out ) {
+			m_out = out;
+			m_header = ByteBuffer.allocate( FRAME_HEADER );
+			m_stored = null;
+			m_inflater = new Inflater();
+			m_group = new byte[ GROUP_SIZE ];
+			m_open = true;
+		}
+
+		/**
+		 * Consume frame bytes, writing each group once its frame is complete.
+		 * @param src frame bytes.
+		 * @return number of bytes consumed, all of them.
+		 * @throws IOException when a frame is malformed or the output fails.
+		 */
+		public int write( ByteBuffer src ) throws IOException {
+			int consumed = src.remaining();
+			while( src.hasRemaining() ) {
+				if( m_stored == null ) {
+					transfer( src, m_header );
+					if( !m_header.hasRemaining() ) {
+						m_header.flip();
+						m_kind = m_header.get();
+						m_length = m_header.getInt();
+						int stored = m_header.getInt();
+						m_header.clear();
+						if( m_length < 0 || m_length > GROUP_SIZE || stored < 0
+								|| ( m_kind == RAW && stored != m_length ) || ( m_kind != RAW && m_kind != DEFLATED ) ) {
+							throw new IOException( "Malformed compression frame." );
+						}
+						m_stored = ByteBuffer.allocate( stored );
+					}
+				} else {
+					transfer( src, m_stored );
+				}
+				if( m_stored != null && !m_stored.hasRemaining() ) {
+					m_stored.flip();
+					writeGroup();
+					m_stored = null;
+				}
+			}
+			return consumed;
+		}
+
+		/**
+		 * Write the group held by the frame just read.
+		 * @throws IOException when the frame does not inflate to its group.
+		 */
+		private void writeGroup() throws IOException {
+			if( m_kind == RAW ) {
+				BufferUtils.writeFully( m_out, m_stored );
+				return;
+			}
+			m_inflater.reset();
+			m_inflater.setInput( m_stored.array(), 0, m_stored.limit() );
+			int inflated = 0;
+			try {
+				while( inflated < m_length && !m_inflater.finished() ) {
+					int n = m_inflater.inflate( m_group, inflated, m_length - inflated );
+					if( n == 0 && ( m_inflater.needsInput() || m_inflater.needsDictionary() ) ) {
+						break;
+					}
+					inflated += n;
+				}
+			} catch( DataFormatException e ) {
+				throw new IOException( "Corrupt compression frame: " + e.getMessage() );
+			}
+			if( inflated != m_length ) {
+				throw new IOException( "Compression frame inflated to " + inflated + " bytes, not " + m_length + "." );
+			}
+			BufferUtils.writeFully( m_out, ByteBuffer.wrap( m_group, 0, m_length ) );
+		}
+
+		/**
+		 * Move as many bytes as fit from one buffer to another.
+		 * @param src bytes to move.
+		 * @param dst where to move them.
+		 */
+		private static void transfer( ByteBuffer src, ByteBuffer dst ) {
+			int n = Math.min( src.remaining(), dst.remaining() );
+			ByteBuffer slice = src.duplicate();
+			slice.limit( slice.position() + n );
+			dst.put( slice );
+			src.position( src.position() + n );
+		}
+
+		/**
+		 * Check that the last frame was complete.  The output is left open.
+		 * @throws IOException when the frames stopped part way through one.
+		 */
+		public void finish() throws IOException {
+			if( m_stored != null || m_header.position() > 0 ) {
+				throw new IOException( "Compressed stream ends part way through a frame." );
+			}
+		}
+
+		/**
+		 * Check whether the channel is open.
+		 * @return true until it is closed.
+		 */
+		public boolean isOpen() {
+			return m_open;
+		}
+
+		/**
+		 * Release the inflater, the output is left open.
+		 */
+		public void close() {
+			m_open = false;
+			m_inflater.end();
+		}
+	}
+
+	///
+	///
+	/// Constructors.
+	///
+	///
+
+	/**
+	 * Hidden constructor, all operations are static.
+	 */
+	private StripeCompressor() {}
+
+	///
+	///
+	/// Operations.
+	///
+	///
+
+	/**
+	 * Write a file as frames, deflating the groups which compress.
+	 * @param in source of the file's bytes.
+	 * @param length number of bytes to read from the source.
+	 * @param out where the frames are written.
+	 * @return number of bytes written.
+	 * @throws IOException when the source ends early or either channel
+	 * 			fails.
+	 */
+	public static long compress( ReadableByteChannel in, long length, WritableByteChannel out )
+			throws IOException {
+		byte[] group = new byte[ GROUP_SIZE ];
+		byte[] deflated = new byte[ GROUP_SIZE ];
+		ByteBuffer header = ByteBuffer.allocate( FRAME_HEADER );
+		Deflater sampler = new Deflater( Deflater.BEST_SPEED );
+		Deflater deflater = new Deflater();
+		long written = 0;
+
+		try {
+			for( long offset = 0; offset < length; offset += GROUP_SIZE ) {
+				int groupLength = (int)Math.min( GROUP_SIZE, length - offset );
+				if( BufferUtils.readFully( in, ByteBuffer.wrap( group, 0, groupLength ) ) < groupLength ) {
+					throw new IOException( "Source ended before " + length + " bytes." );
+				}
+
+				int stored = -1;
+				if( worthDeflating( sampler, group, groupLength, deflated ) ) {
+					stored = deflate( deflater, group, groupLength, deflated );
+				}
+
+				header.clear();
+				if( stored < 0 ) {
+					header.put( RAW ).putInt( groupLength ).putInt( groupLength ).flip();
+					BufferUtils.writeFully( out, header );
+					BufferUtils.writeFully( out, ByteBuffer.wrap( group, 0, groupLength ) );
+					written += FRAME_HEADER + groupLength;
+				} else {
+					header.put( DEFLATED ).putInt( groupLength ).putInt( stored ).flip();
+					BufferUtils.writeFully( out, header );
+					BufferUtils.writeFully( out, ByteBuffer.wrap( deflated, 0, stored ) );
+					written += FRAME_HEADER + stored;
+				}
+			}
+		} finally {
+			sampler.end();
+			deflater.end();
+		}
+		return written;
+	}
+
+	/**
+	 * Size of the frames written for a file which does not compress at all,
+	 * the most {@link #compress} can write.
+	 * @param length size of the file.
+	 * @return largest number of bytes written.
+	 */
+	public static long getMaxLength( long length ) {
+		long groups = ( length + GROUP_SIZE - 1 ) / GROUP_SIZE;
+		return length + groups * FRAME_HEADER;
+	}
+
+	/**
+	 * Deflate the front of a group quickly to see whether the group
+	 * compresses.
+	 * @param sampler deflater to use.
+	 * @param group the group.
+	 * @param length length of the group.
+	 * @param scratch space for the deflated sample.
+	 * @return true when the sample shrinks enough.
+	 */
+	private static boolean worthDeflating( Deflater sampler, byte[] group, int length, byte[] scratch ) {
+		int sample = Math.min( SAMPLE_SIZE, length );
+		sampler.reset();
+		sampler.setInput( group, 0, sample );
+		sampler.finish();
+		int deflated = 0;
+		while( !sampler.finished() && deflated < sample ) {
+			deflated += sampler.deflate( scratch, deflated, scratch.length - deflated );
+		}
+		return sampler.finished() && deflated < sample * WORTHWHILE;
+	}
+
+	/**
+	 * Deflate a whole group.
+	 * @param deflater deflater to use.
+	 * @param group the group.
+	 * @param length length of the group.
+	 * @param deflated receives the deflated group.
+	 * @return length of the deflated group, -1 when it is no smaller.
+	 */
+	private static int deflate( Deflater deflater, byte[] group, int length, byte[] deflated ) {
+		deflater.reset();
+		deflater.setInput( group, 0, length );
+		deflater.finish();
+		int stored = 0;
+		while( !deflater.finished() && stored < length ) {
+			stored += deflater.deflate( deflated, stored, Math.min( deflated.length, length ) - stored );
+		}
+		return ( deflater.finished() && stored < length ) ? stored : -1;
+	}
+}
@@ -0,0 +1,246 @@
+package chunker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import util.BufferUtils;
+
+/**
+ * The stripe units that differ between two versions of a file, and the
+ * patches that bring the old version's chunks up to date.
+ *
+ * Data units are consecutive stripe unit sized blocks of the file, so the
+ * versions are compared by the SHA-1 of each block, recorded when the old
+ * version was stored.  Every row holding a changed, added or removed block
+ * is dirty.  Its changed data units and its parity units are rewritten,
+ * everything else stays where it is.
+ *
+ * The parity of a dirty row is computed again from the whole row of the new
+ * version, which is on local disk.  Read-modify-write would fold the old
+ * data and parity into it instead, but those only exist on remote nodes and
+ * would have to be fetched first.
+ *
+ * @author Alex Maskovyak
+ */
+public class StripeDelta {
+
+	///
+	///
+	/// Constants.
+	///
+	///
+
+	/** Size of a SHA-1 digest. */
+	public static final int HASH_SIZE = 20;
+
+	///
+	///
+	/// Hidden variables.
+	///
+	///
+
+	/** Geometry of the new version. */
+	private StripeLayout m_layout;
+
+	/** Whether the header, which holds the file's length, changed. */
+	private boolean m_resized;
+
+	/** Data blocks which changed, by index into the file. */
+	private boolean[] m_changed;
+
+	/** Rows holding a changed block, in order. */
+	private List<Long> m_dirtyRows;
+
+	/** Size of each chunk file, header included, of the new version. */
+	private long[] m_chunkLengths;
+
+	///
+	///
+	/// Constructors.
+	///
+	///
+
+	/**
+	 * Compare two versions of a file stored with the same chunks and stripe
+	 * unit.
+	 * @param oldLayout geometry of the old version.
+	 * @param oldHashes the SHA-1 of each of the old version's blocks, end to
+	 * 			end.
+	 * @param layout geometry of the new version.
+	 * @param hashes the SHA-1 of each of the new version's blocks, end to end.
+	 * @throws IllegalArgumentException when the geometries differ in more
+	 * 			than length, or the hashes do not match them.
+	 */
+	public StripeDelta( StripeLayout oldLayout, byte[] oldHashes, StripeLayout layout, byte[] hashes )
+			throws IllegalArgumentException {
+		if( oldLayout.getChunks() != layout.getChunks()
+				|| oldLayout.getParityChunks() != layout.getParityChunks()
+				|| oldLayout.getStripeUnit() != layout.getStripeUnit() ) {
+			throw new IllegalArgumentException( "Only the length of a file may change." );
+		}
+		long oldBlocks = getBlocks( oldLayout );
+		long blocks = getBlocks( layout );
+		if( oldHashes.length != oldBlocks * HASH_SIZE || hashes.length != blocks * HASH_SIZE ) {
+			throw new IllegalArgumentException( "Expected a hash for each stripe unit." );
+		}
+
+		m_layout = layout;
+		m_resized = oldLayout.getLength() != layout.getLength();
+		m_changed = new boolean[ (int)blocks ];
+		m_dirtyRows = new ArrayList<Long>();
+
+		// removed blocks dirty their row as much as changed ones
+		int k = layout.getDataChunks();
+		long last = -1;
+		for( long b = 0; b < Math.max( oldBlocks, blocks ); b++ ) {
+			boolean changed = b >= oldBlocks || b >= blocks
+					|| !sameHash( oldHashes, hashes, (int)b );
+			if( changed && b < blocks ) {
+				m_changed[ (int)b ] = true;
+			}
+			if( changed && b / k != last && b / k < layout.getRows() ) {
+				last = b / k;
+				m_dirtyRows.add( last );
+			}
+		}
+
+		m_chunkLengths = new long[ layout.getChunks() ];
+		for( int c = 0; c < m_chunkLengths.length; c++ ) {
+			m_chunkLengths[ c ] = ChunkHeader.SIZE + layout.getChunkLength( c );
+		}
+	}
+
+	///
+	///
+	/// Operations.
+	///
+	///
+
+	/**
+	 * Obtain the number of stripe unit sized blocks a file is hashed as.
+	 * @param layout geometry of the file.
+	 * @return number of blocks, the last may be short.
+	 */
+	public static long getBlocks( StripeLayout layout ) {
+		return ( layout.getLength() + layout.getStripeUnit() - 1 ) / layout.getStripeUnit();
+	}
+
+	/**
+	 * Start a patch for every chunk of the new version, holding its header
+	 * when the file's length changed.
+	 * @return one empty (or header only) patch per chunk.
+	 */
+	public ChunkPatch[] createPatches() {
+		ChunkPatch[] patches = new ChunkPatch[ m_chunkLengths.length ];
+		for( int c = 0; c < patches.length; c++ ) {
+			patches[ c ] = new ChunkPatch( c, m_chunkLengths[ c ] );
+			if( m_resized ) {
+				ChunkHeader header = new ChunkHeader( m_layout.getStripeUnit(), m_layout.getChunks(),
+						m_layout.getParityChunks(), c, m_layout.getLength() );
+				patches[ c ].add( 0, header.toBytes() );
+			}
+		}
+		return patches;
+	}
+
+	/**
+	 * Add a dirty row's changed data units and its parity units to the
+	 * patches.
+	 * @param file the new version.
+	 * @param row a dirty row.
+	 * @param patches one patch per chunk, see {@link #createPatches()}.
+	 * @throws IOException when the file cannot be read or is shorter than
+	 * 			expected.
+	 */
+	public void addRow( FileChannel file, long row, ChunkPatch[] patches ) throws IOException {
+		StripeLayout layout = m_layout;
+		int stripeUnit = layout.getStripeUnit();
+		int k = layout.getDataChunks();
+		int rowLength = (int)Math.min( layout.getRowSize(), layout.getLength() - row * layout.getRowSize() );
+		ByteBuffer data = ByteBuffer.allocate( (int)layout.getRowSize() ).order( ByteOrder.nativeOrder() );
+		data.limit( rowLength );
+		if( BufferUtils.readFully( file, data, layout.getFileOffset( row, 0 ) ) < rowLength ) {
+			throw new IOException( "File changed while it was being patched." );
+		}
+
+		long position = ChunkHeader.SIZE + layout.getChunkOffset( row );
+		for( int d = 0; d < k; d++ ) {
+			int unitLength = layout.getDataUnitLength( row, d );
+			if( unitLength == 0 ) {
+				break;
+			}
+			if( m_changed[ (int)( row * k + d ) ] ) {
+				byte[] unit = Arrays.copyOfRange( data.array(), d * stripeUnit, d * stripeUnit + unitLength );
+				patches[ layout.getChunkForData( row, d ) ].add( position, unit );
+			}
+		}
+
+		int parityLength = layout.getDataUnitLength( row, 0 );
+		if( layout.isRotating() ) {
+			ByteBuffer parity = ByteBuffer.allocate( stripeUnit ).order( ByteOrder.nativeOrder() );
+			data.position( 0 );
+			Chunker.computeParity( layout, row, data, parity );
+			patches[ layout.getParityChunk( row ) ].add( position,
+					Arrays.copyOf( parity.array(), parityLength ) );
+		} else {
+			byte[][] parity = new byte[ layout.getParityChunks() ][ stripeUnit ];
+			ReedSolomonCoder.computeParity( layout, ReedSolomonCoder.cauchy( k, parity.length ),
+					row, data.array(), parity );
+			for( int j = 0; j < parity.length; j++ ) {
+				patches[ k + j ].add( position, Arrays.copyOf( parity[ j ], parityLength ) );
+			}
+		}
+	}
+
+	/**
+	 * Compare the hashes of one block in two versions.
+	 * @param oldHashes hashes of the old version.
+	 * @param hashes hashes of the new version.
+	 * @param block index of the block, present in both.
+	 * @return true when the block's hashes are equal.
+	 */
+	private static boolean sameHash( byte[] oldHashes, byte[] hashes, int block ) {
+		int offset = block * HASH_SIZE;
+		for( int i = offset; i < offset + HASH_SIZE; i++ ) {
+			if( oldHashes[ i ] != hashes[ i ] ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	///
+	///
+	/// Access methods.
+	///
+	///
+
+	/**
+	 * Obtain the rows which have to be patched.
+	 * @return dirty rows in order.
+	 */
+	public List<Long> getDirtyRows() {
+		return m_dirtyRows;
+	}
+
+	/**
+	 * Check whether anything changed.
+	 * @return true when the versions are the same.
+	 */
+	public boolean isEmpty() {
+		return m_dirtyRows.isEmpty() && !m_resized;
+	}
+
+	/**
+	 * Obtain the geometry of the new version.
+	 * @return the stripe layout.
+	 */
+	public StripeLayout getLayout() {
+		return m_layout;
+	}
+}
@@ -0,0 +1,285 @@
+package chunker;
+
+/**
+ * Geometry of a file striped across m chunks.
+ *
+ * The original file is cut into stripe units of a fixed size.  With a single
+ * parity chunk (RAID 5 style) every row (stripe) holds m-1 data units and one
+ * parity unit, and the parity unit rotates across the chunks from row to row.
+ * Data units are assigned to the non-parity chunks in increasing chunk order.
+ * With several parity chunks (erasure coding) the parity does not rotate: the
+ * first chunks always hold data and the last chunks always hold parity.
+ *
+ * Only the final row may be short; every other unit is exactly one stripe
+ * unit long, so row r of any chunk always starts at offset r * stripeUnit of
+ * that chunk's payload.
+ *
+ * @author Alex Maskovyak
+ */
+public class StripeLayout {
+
+	///
+	///
+	/// Hidden variables.
+	///
+	///
+
+	/** Number of chunks (data and parity). */
+	private int m_chunks;
+
+	/** Number of chunks' worth of parity in every row. */
+	private int m_parityChunks;
+
+	/** Size, in bytes, of a stripe unit. */
+	private int m_stripeUnit;
+
+	/** Size, in bytes, of the original file. */
+	private long m_length;
+
+	///
+	///
+	/// Constructors.
+	///
+	///
+
+	/**
+	 * Default constructor, a single rotating parity chunk.
+	 * @param chunks number of chunks, must be at least 2.
+	 * @param stripeUnit size of a stripe unit in bytes, must be positive.
+	 * @param length size of the original file in bytes.
+	 * @throws IllegalArgumentException when the geometry is invalid.
+	 */
+	public StripeLayout( int chunks, int stripeUnit, long length ) throws IllegalArgumentException {
+		this( chunks, 1, stripeUnit, length );
+	}
+
+	/**
+	 * Constructor.
+	 * @param chunks number of chunks (data and parity).
+	 * @param parityChunks number of parity chunks, must leave at least one
+	 * 			data chunk.  A single parity chunk rotates, several do not.
+	 * @param stripeUnit size of a stripe unit in bytes, must be positive.
+	 * @param length size of the original file in bytes.
+	 * @throws IllegalArgumentException when the geometry is invalid.
+	 */
+	public StripeLayout( int chunks, int parityChunks, int stripeUnit, long length )
+			throws IllegalArgumentException {
+		if( chunks < 2 ) {
+			throw new IllegalArgumentException( "Must have at least 2 chunks." );
+		}
+		if( parityChunks < 1 || parityChunks >= chunks ) {
+			throw new IllegalArgumentException( "Must have at least 1 parity and 1 data chunk." );
+		}
+		if( stripeUnit <= 0 ) {
+			throw new IllegalArgumentException( "Stripe unit must be positive." );
+		}
+		if( length < 0 ) {
+			throw new IllegalArgumentException( "Length must not be negative." );
+		}
+		m_chunks = chunks;
+		m_parityChunks = parityChunks;
+		m_stripeUnit = stripeUnit;
+		m_length = length;
+	}
+
+	///
+	///
+	/// Operations.
+	///
+	///
+
+	/**
+	 * Obtain the number of rows (stripes) in the file.
+	 * @return number of rows.
+	 */
+	public long getRows() {
+		long rowSize = getRowSize();
+		return ( m_length + rowSize - 1 ) / rowSize;
+	}
+
+	/**
+	 * Check whether the parity rotates from row to row.
+	 * @return true for a single (RAID 5 style) parity chunk.
+	 */
+	public boolean isRotating() {
+		return m_parityChunks == 1;
+	}
+
+	/**
+	 * Obtain the chunk holding the first parity unit of a row.
+	 * @param row the row.
+	 * @return index of the parity chunk.
+	 */
+	public int getParityChunk( long row ) {
+		if( !isRotating() ) {
+			return getDataChunks();
+		}
+		return (int)( ( row + 1 ) % m_chunks );
+	}
+
+	/**
+	 * Check whether a chunk holds parity within a row.
+	 * @param row the row.
+	 * @param chunk the chunk.
+	 * @return true when the chunk holds a parity unit in that row.
+	 */
+	public boolean isParity( long row, int chunk ) {
+		return getDataForChunk( row, chunk ) < 0;
+	}
+
+	/**
+	 * Obtain the chunk holding a data unit of a row.
+	 * @param row the row.
+	 * @param data index of the data unit within the row.
+	 * @return index of the chunk holding that data unit.
+	 */
+	public int getChunkForData( long row, int data ) {
+		if( !isRotating() ) {
+			return data;
+		}
+		return ( data < getParityChunk( row ) ) ? data : data + 1;
+	}
+
+	/**
+	 * Obtain the data unit index a chunk holds within a row.
+	 * @param row the row.
+	 * @param chunk the chunk.
+	 * @return data unit index, or -1 when the chunk holds parity in that row.
+	 */
+	public int getDataForChunk( long row, int chunk ) {
+		if( !isRotating() ) {
+			return ( chunk < getDataChunks() ) ? chunk : -1;
+		}
+		int parity = getParityChunk( row );
+		if( chunk == parity ) {
+			return -1;
+		}
+		return ( chunk < parity ) ? chunk : chunk - 1;
+	}
+
+	/**
+	 * Obtain the length of a data unit, which is shorter than a stripe unit
+	 * (possibly empty) only in the final row.
+	 * @param row the row.
+	 * @param data index of the data unit within the row.
+	 * @return length of the data unit in bytes.
+	 */
+	public int getDataUnitLength( long row, int data ) {
+		long remaining = m_length - getFileOffset( row, data );
+		if( remaining <= 0 ) {
+			return 0;
+		}
+		return (int)Math.min( remaining, m_stripeUnit );
+	}
+
+	/**
+	 * Obtain the length of the unit a chunk holds in a row.  A parity unit is
+	 * as long as the longest data unit of its row.
+	 * @param row the row.
+	 * @param chunk the chunk.
+	 * @return length of the unit in bytes.
+	 */
+	public int getUnitLength( long row, int chunk ) {
+		int data = getDataForChunk( row, chunk );
+		return getDataUnitLength( row, ( data < 0 ) ? 0 : data );
+	}
+
+	/**
+	 * Obtain the offset into the original file of a data unit.
+	 * @param row the row.
+	 * @param data index of the data unit within the row.
+	 * @return offset into the original file.
+	 */
+	public long getFileOffset( long row, int data ) {
+		return row * getRowSize() + (long)data * m_stripeUnit;
+	}
+
+	/**
+	 * Obtain the offset of a row into a chunk's payload (not counting any
+	 * header).
+	 * @param row the row.
+	 * @return offset into every chunk's payload.
+	 */
+	public long getChunkOffset( long row ) {
+		return row * m_stripeUnit;
+	}
+
+	/**
+	 * Obtain the size of a chunk's payload (not counting any header).
+	 * @param chunk the chunk.
+	 * @return payload size in bytes.
+	 */
+	public long getChunkLength( int chunk ) {
+		long rows = getRows();
+		if( rows == 0 ) {
+			return 0;
+		}
+		return getChunkOffset( rows - 1 ) + getUnitLength( rows - 1, chunk );
+	}
+
+	/**
+	 * Obtain the size of the largest chunk's payload.
+	 * @return largest payload size in bytes.
+	 */
+	public long getMaxChunkLength() {
+		long max = 0;
+		for( int c = 0; c < m_chunks; c++ ) {
+			max = Math.max( max, getChunkLength( c ) );
+		}
+		return max;
+	}
+
+	///
+	///
+	/// Access methods.
+	///
+	///
+
+	/**
+	 * Obtain the number of chunks.
+	 * @return number of chunks.
+	 */
+	public int getChunks() {
+		return m_chunks;
+	}
+
+	/**
+	 * Obtain the number of parity units per row.
+	 * @return number of parity units per row.
+	 */
+	public int getParityChunks() {
+		return m_parityChunks;
+	}
+
+	/**
+	 * Obtain the number of data units per row.
+	 * @return number of data units per row.
+	 */
+	public int getDataChunks() {
+		return m_chunks - m_parityChunks;
+	}
+
+	/**
+	 * Obtain the stripe unit size.
+	 * @return size of a stripe unit in bytes.
+	 */
+	public int getStripeUnit() {
+		return m_stripeUnit;
+	}
+
+	/**
+	 * Obtain the number of bytes of the original file held by one row.
+	 * @return size of a row's data in bytes.
+	 */
+	public long getRowSize() {
+		return (long)getDataChunks() * m_stripeUnit;
+	}
+
+	/**
+	 * Obtain the size of the original file.
+	 * @return size of the original file in bytes.
+	 */
+	public long getLength() {
+		return m_length;
+	}
+}
@@ -0,0 +1,380 @@
+package chunker;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import util.BufferUtils;
+
+/**
+ * Random access to a range of a striped file straight from its chunks.  A
+ * byte range of the original file is mapped to the (chunk, offset) extents
+ * that hold it, and only those stripe units are read, so the cost of a read
+ * follows the size of the range rather than the size of the file.  With a
+ * stripe unit at least as large as the range a read usually touches a single
+ * chunk.
+ *
+ * When a chunk holding part of the range is missing, and the file has a
+ * single parity chunk, the same range of the row's other units is read and
+ * XOR'ed to rebuild it.
+ *
+ * @author Alex Maskovyak
+ */
+public class StripedFileReader {
+
+	///
+	///
+	/// Inner classes.
+	///
+	///
+
+	/**
+	 * A run of bytes of the original file stored contiguously in one chunk.
+	 */
+	public static class Extent {
+
+		/** The chunk holding the bytes. */
+		private int m_chunk;
+
+		/** Position of the bytes within the chunk file, header included. */
+		private long m_chunkPosition;
+
+		/** Offset of the bytes within the original file. */
+		private long m_fileOffset;
+
+		/** Number of bytes. */
+		private int m_length;
+
+		/** The row the bytes belong to. */
+		private long m_row;
+
+		/**
+		 * Constructor.
+		 * @param row the row the bytes belong to.
+		 * @param chunk the chunk holding the bytes.
+		 * @param chunkPosition position within the chunk file.
+		 * @param fileOffset offset within the original file.
+		 * @param length number of bytes.
+		 */
+		Extent( long row, int chunk, long chunkPosition, long fileOffset, int length ) {
+			m_row = row;
+			m_chunk = chunk;
+			m_chunkPosition = chunkPosition;
+			m_fileOffset = fileOffset;
+			m_length = length;
+		}
+
+		/**
+		 * Obtain the row the bytes belong to.
+		 * @return the row.
+		 */
+		public long getRow() {
+			return m_row;
+		}
+
+		/**
+		 * Obtain the chunk holding the bytes.
+		 * @return index of the chunk.
+		 */
+		public int getChunk() {
+			return m_chunk;
+		}
+
+		/**
+		 * Obtain the position of the bytes within the chunk file.
+		 * @return position, header included.
+		 */
+		public long getChunkPosition() {
+			return m_chunkPosition;
+		}
+
+		/**
+		 * Obtain the offset of the bytes within the original file.
+		 * @return offset into the original file.
+		 */
+		public long getFileOffset() {
+			return m_fileOffset;
+		}
+
+		/**
+		 * Obtain the number of bytes.
+		 * @return length in bytes.
+		 */
+		public int getLength() {
+			return m_length;
+		}
+
+		/**
+		 * For Debug
+		 * @return a String representation of this extent.
+		 */
+		public String toString() {
+			return String.format( "file[%d+%d] -> chunk %d @ %d",
+					m_fileOffset, m_length, m_chunk, m_chunkPosition );
+		}
+	}
+
+	///
+	///
+	/// Hidden variables.
+	///
+	///
+
+	/** Geometry of the file. */
+	private StripeLayout m_layout;
+
+	/** The chunk files, null for missing ones. */
+	private FileChannel[] m_chunks;
+
+	///
+	///
+	/// Constructors.
+	///
+	///
+
+	/**
+	 * Constructor over open chunk files.  The geometry is taken from the
+	 * header of the first chunk present.
+	 * @param chunks the chunk files in part order, null for missing ones.
+	 * @throws IOException when a header cannot be read.
+	 * @throws IllegalArgumentException when no chunk is present or the chunks
+	 * 			have no header.
+	 */
+	public StripedFileReader( FileChannel[] chunks ) throws IOException, IllegalArgumentException {
+		ChunkHeader header = null;
+		for( int i = 0; i < chunks.length && header == null; i++ ) {
+			if( chunks[ i ] != null ) {
+				ByteBuffer buf = ByteBuffer.allocate( ChunkHeader.SIZE );
+				BufferUtils.readFully( chunks[ i ], buf, 0 );
+				if( buf.position() < ChunkHeader.SIZE || buf.getInt( 0 ) != ChunkHeader.MAGIC ) {
+					throw new IllegalArgumentException( "Chunks are not block striped." );
+				}
+				header = new ChunkHeader( buf.array() );
+			}
+		}
+		if( header == null ) {
+			throw new IllegalArgumentException( "No chunks to read from." );
+		}
+		if( header.getChunks() != chunks.length ) {
+			throw new IllegalArgumentException(
+					"Chunks were written for " + header.getChunks() + " parts, not " + chunks.length + "." );
+		}
+		if( header.isDeflated() ) {
+			throw new IllegalArgumentException( "Chunks hold compressed frames, which cannot be read by range." );
+		}
+		m_layout = header.getLayout();
+		m_chunks = chunks;
+	}
+
+	/**
+	 * Open a reader over chunk files, missing files are allowed.
+	 * @param iPath 		Input file path
+	 * @param fileChunks	Input file names in part order
+	 * @return a reader over the chunks.
+	 * @throws IOException when a header cannot be read.
+	 * @throws IllegalArgumentException when no chunk is present or the chunks
+	 * 			have no header.
+	 */
+	public static StripedFileReader open( String iPath, String[] fileChunks )
+			throws IOException, IllegalArgumentException {
+		FileChannel[] chunks = new FileChannel[ fileChunks.length ];
+		for( int i = 0; i < fileChunks.length; i++ ) {
+			try {
+				chunks[ i ] = new FileInputStream( iPath + fileChunks[ i ] ).getChannel();
+			} catch( FileNotFoundException e ) {
+				chunks[ i ] = null;
+			}
+		}
+		try {
+			return new StripedFileReader( chunks );
+		} catch( IllegalArgumentException e ) {
+			closeAll( chunks );
+			throw e;
+		} catch( IOException e ) {
+			closeAll( chunks );
+			throw e;
+		}
+	}
+
+	///
+	///
+	/// Operations.
+	///
+	///
+
+	/**
+	 * Map a range of the original file to the extents of the chunks holding
+	 * it, in file order.  The range is clipped to the end of the file.
+	 * @param layout geometry of the file.
+	 * @param offset start of the range within the original file.
+	 * @param length number of bytes in the range.
+	 * @return the extents covering the range.
+	 * @throws IllegalArgumentException when the range is negative.
+	 */
+	public static List<Extent> locate( StripeLayout layout, long offset, long length )
+			throws IllegalArgumentException {
+		if( offset < 0 || length < 0 ) {
+			throw new IllegalArgumentException( "Range must not be negative." );
+		}
+		List<Extent> extents = new ArrayList<Extent>();
+		long end = Math.min( offset + length, layout.getLength() );
+		int stripeUnit = layout.getStripeUnit();
+
+		for( long position = offset; position < end; ) {
+			long row = position / layout.getRowSize();
+			long inRow = position - row * layout.getRowSize();
+			int data = (int)( inRow / stripeUnit );
+			int inUnit = (int)( inRow - (long)data * stripeUnit );
+			int run = (int)Math.min( end - position, layout.getDataUnitLength( row, data ) - inUnit );
+
+			int chunk = layout.getChunkForData( row, data );
+			long chunkPosition = ChunkHeader.SIZE + layout.getChunkOffset( row ) + inUnit;
+			extents.add( new Extent( row, chunk, chunkPosition, position, run ) );
+			position += run;
+		}
+		return extents;
+	}
+
+	/**
+	 * Find the chunks a range of the original file lives in, which are the
+	 * only parts that have to be fetched to read it.
+	 * @param layout geometry of the file.
+	 * @param offset start of the range within the original file.
+	 * @param length number of bytes in the range.
+	 * @return for each chunk, whether it holds part of the range.
+	 */
+	public static boolean[] getChunksFor( StripeLayout layout, long offset, long length ) {
+		boolean[] needed = new boolean[ layout.getChunks() ];
+		for( Extent extent : locate( layout, offset, length ) ) {
+			needed[ extent.getChunk() ] = true;
+		}
+		return needed;
+	}
+
+	/**
+	 * Read a range of the original file into a buffer, touching only the
+	 * stripe units covering it, unless one of them has to be rebuilt.
+	 * @param offset start of the range within the original file.
+	 * @param dst buffer filled from its position, as far as its limit or the
+	 * 			end of the file.
+	 * @return number of bytes read, -1 when offset is at or past the end of
+	 * 			the file.
+	 * @throws IOException when a chunk cannot be read, or a missing unit
+	 * 			cannot be rebuilt.
+	 */
+	public int read( long offset, ByteBuffer dst ) throws IOException {
+		if( offset >= m_layout.getLength() ) {
+			return -1;
+		}
+		int total = 0;
+		for( Extent extent : locate( m_layout, offset, dst.remaining() ) ) {
+			ByteBuffer part = dst.duplicate();
+			part.limit( part.position() + extent.getLength() );
+			if( m_chunks[ extent.getChunk() ] != null ) {
+				readExtent( m_chunks[ extent.getChunk() ], part, extent.getChunkPosition() );
+			} else {
+				rebuild( extent, part );
+			}
+			dst.position( dst.position() + extent.getLength() );
+			total += extent.getLength();
+		}
+		return total;
+	}
+
+	/**
+	 * Rebuild an extent of a missing chunk from the same bytes of the other
+	 * units of its row.
+	 * @param extent the missing extent.
+	 * @param dst buffer receiving exactly the extent's bytes.
+	 * @throws IOException when another chunk is missing or cannot be read.
+	 */
+	private void rebuild( Extent extent, ByteBuffer dst ) throws IOException {
+		if( m_layout.getParityChunks() > 1 ) {
+			throw new IOException( "Erasure coded chunk " + extent.getChunk()
+					+ " is missing, reassemble the file instead." );
+		}
+		long row = extent.getRow();
+		long inUnit = extent.getChunkPosition() - ChunkHeader.SIZE - m_layout.getChunkOffset( row );
+		int length = extent.getLength();
+
+		ByteBuffer rebuilt = ByteBuffer.allocate( length ).order( ByteOrder.nativeOrder() );
+		ByteBuffer unit = ByteBuffer.allocate( length ).order( ByteOrder.nativeOrder() );
+		for( int c = 0; c < m_chunks.length; c++ ) {
+			if( c == extent.getChunk() ) {
+				continue;
+			}
+			if( m_chunks[ c ] == null ) {
+				throw new IOException( "Chunks " + extent.getChunk() + " and " + c + " are both missing." );
+			}
+			// shorter units of the final row are zero past their end
+			int available = (int)Math.max( 0, Math.min( length, m_layout.getUnitLength( row, c ) - inUnit ) );
+			unit.clear().limit( available );
+			readExtent( m_chunks[ c ], unit, extent.getChunkPosition() );
+			unit.position( 0 );
+			Chunker.xor( rebuilt, unit, available );
+		}
+		dst.put( rebuilt );
+	}
+
+	/**
+	 * Fill a buffer from a chunk, failing if the chunk is short.
+	 * @param chunk the chunk file.
+	 * @param dst buffer to fill.
+	 * @param position position within the chunk file.
+	 * @throws IOException when the chunk is short or cannot be read.
+	 */
+	private static void readExtent( FileChannel chunk, ByteBuffer dst, long position ) throws IOException {
+		int expected = dst.remaining();
+		if( expected > 0 && BufferUtils.readFully( chunk, dst, position ) < expected ) {
+			throw new IOException( "Chunk ends before position " + ( position + expected ) + "." );
+		}
+	}
+
+	/**
+	 * Close every chunk file.
+	 */
+	public void close() {
+		closeAll( m_chunks );
+	}
+
+	/**
+	 * Quietly close a set of channels, skipping missing ones.
+	 * @param channels channels to close.
+	 */
+	private static void closeAll( FileChannel[] channels ) {
+		for( FileChannel channel : channels ) {
+			try {
+				if( channel != null ) {
+					channel.close();
+				}
+			} catch( IOException e ) {}
+		}
+	}
+
+	///
+	///
+	/// Access methods.
+	///
+	///
+
+	/**
+	 * Obtain the geometry of the file.
+	 * @return the stripe layout.
+	 */
+	public StripeLayout getLayout() {
+		return m_layout;
+	}
+
+	/**
+	 * Obtain the size of the original file.
+	 * @return size in bytes.
+	 */
+	public long getLength() {
+		return m_layout.getLength();
+	}
+}
@@ -0,0 +1,30 @@
+package chunker;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A parity kernel, folding one buffer into another with XOR.  Parity is a
+ * pure XOR reduction over the data units of a row, so this is the innermost
+ * loop of both striping and rebuilding.  {@link XorKernels} picks the fastest
+ * implementation available at startup.
+ *
+ * @author Alex Maskovyak
+ */
+public interface XorKernel {
+
+	/**
+	 * XOR the first length bytes of src into dst.  Both buffers are addressed
+	 * from their current positions, which are left unchanged.
+	 *
+	 * @param dst	Buffer accumulating the XOR
+	 * @param src	Buffer to fold in
+	 * @param length	Number of bytes to XOR
+	 */
+	public void xor( ByteBuffer dst, ByteBuffer src, int length );
+
+	/**
+	 * Obtain a short name for the kernel, for reports and selection.
+	 * @return the kernel's name.
+	 */
+	public String getName();
+}
@@ -0,0 +1,184 @@
+package chunker;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds the parity kernels this JVM can run and picks the fastest of them
+ * once, when the class is first used.  The Vector API kernel is only tried
+ * when it was compiled and the jdk.incubator.vector module is present;
+ * otherwise the long-word kernel is the one to beat.
+ *
+ * A fair contest needs every kernel compiled by the JIT, which takes about a
+ * second, so it runs on a background thread and the long-word kernel is used
+ * until it finishes.  Setting the raids.xor.kernel system property to a
+ * kernel's name skips the contest.
+ *
+ * @author Alex Maskovyak
+ */
+public class XorKernels {
+
+	///
+	///
+	/// Constants.
+	///
+	///
+
+	/** System property naming the kernel to use. */
+	public static final String KERNEL_PROPERTY = "raids.xor.kernel";
+
+	/** Class of the Vector API kernel, loaded reflectively. */
+	private static final String VECTOR_KERNEL = "chunker.simd.VectorXorKernel";
+
+	/** Size of the buffers kernels race over. */
+	private static final int TRIAL_SIZE = 4*1024; /* 4 kilobytes */
+
+	/** How long each kernel is timed for in a round. */
+	private static final long TRIAL_NANOS = 20L*1000*1000; /* 20 milliseconds */
+
+	/** Rounds of timing, the kernels take turns and keep their best round. */
+	private static final int ROUNDS = 5;
+
+	/** How long each kernel runs before timing, for the JIT to compile it. */
+	private static final long WARMUP_NANOS = 200L*1000*1000; /* 200 milliseconds */
+
+	/** The kernel chosen at startup, the long-word one until then. */
+	private static volatile XorKernel m_fastest = new LongXorKernel();
+
+	static {
+		final List<XorKernel> kernels = available();
+		XorKernel named = named( kernels, System.getProperty( KERNEL_PROPERTY ) );
+		if( named != null ) {
+			m_fastest = named;
+		} else {
+			Thread contest = new Thread( "RAIDS-xor-kernel-selection" ) {
+				public void run() {
+					m_fastest = select( kernels );
+				}
+			};
+			contest.setDaemon( true );
+			contest.setPriority( Thread.MIN_PRIORITY );
+			contest.start();
+		}
+	}
+
+	/**
+	 * Hidden constructor, all operations are static.
+	 */
+	private XorKernels() {}
+
+	///
+	///
+	/// Operations.
+	///
+	///
+
+	/**
+	 * Obtain the kernel chosen at startup.
+	 * @return the fastest kernel available, or the long-word kernel while the
+	 * 			contest is still running.
+	 */
+	public static XorKernel get() {
+		return m_fastest;
+	}
+
+	/**
+	 * Obtain every kernel this JVM can run, slowest first.
+	 * @return the byte and long kernels, and the vector kernel if it loads.
+	 */
+	public static List<XorKernel> available() {
+		List<XorKernel> kernels = new ArrayList<XorKernel>();
+		kernels.add( new ByteXorKernel() );
+		kernels.add( new LongXorKernel() );
+		try {
+			XorKernel vector = (XorKernel)Class.forName( VECTOR_KERNEL ).getDeclaredConstructor().newInstance();
+			vector.xor( ByteBuffer.allocate( 64 ), ByteBuffer.allocate( 64 ), 64 );
+			kernels.add( vector );
+		} catch( Exception e ) {
+			// not compiled
+		} catch( LinkageError e ) {
+			// compiled, but jdk.incubator.vector is not in this JVM
+		}
+		return kernels;
+	}
+
+	/**
+	 * Find a kernel by name.
+	 * @param kernels the candidates.
+	 * @param name the kernel's name, may be null.
+	 * @return the kernel, null if none has that name.
+	 */
+	private static XorKernel named( List<XorKernel> kernels, String name ) {
+		for( XorKernel kernel : kernels ) {
+			if( kernel.getName().equals( name ) ) {
+				return kernel;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Pick the fastest kernel by timing each, once it is compiled, over a
+	 * few alternating rounds.
+	 * @param kernels the candidates.
+	 * @return the chosen kernel.
+	 */
+	public static XorKernel select( List<XorKernel> kernels ) {
+		ByteBuffer dst = ByteBuffer.allocate( TRIAL_SIZE ).order( ByteOrder.nativeOrder() );
+		ByteBuffer src = ByteBuffer.allocate( TRIAL_SIZE ).order( ByteOrder.nativeOrder() );
+		for( XorKernel kernel : kernels ) {
+			warm( kernel, dst, src );
+		}
+
+		double rates[] = new double[ kernels.size() ];
+		for( int round = 0; round < ROUNDS; round++ ) {
+			for( int k = 0; k < kernels.size(); k++ ) {
+				rates[ k ] = Math.max( rates[ k ], measure( kernels.get( k ), dst, src ) );
+			}
+		}
+
+		int best = 0;
+		for( int k = 1; k < rates.length; k++ ) {
+			if( rates[ k ] > rates[ best ] ) {
+				best = k;
+			}
+		}
+		return kernels.get( best );
+	}
+
+	/**
+	 * Call a kernel over pieces of two buffers, short ones first, for long
+	 * enough that the JIT has compiled it.
+	 * @param kernel the kernel to warm up.
+	 * @param dst buffer accumulating the XOR.
+	 * @param src buffer folded in.
+	 */
+	private static void warm( XorKernel kernel, ByteBuffer dst, ByteBuffer src ) {
+		long end = System.nanoTime() + WARMUP_NANOS;
+		for( int length = 8; System.nanoTime() < end; length = ( length * 2 ) % dst.capacity() + 8 ) {
+			kernel.xor( dst, src, length );
+		}
+	}
+
+	/**
+	 * Time a kernel over two buffers.
+	 * @param kernel the kernel to time.
+	 * @param dst buffer accumulating the XOR.
+	 * @param src buffer folded in.
+	 * @return bytes XOR'ed per nanosecond.
+	 */
+	private static double measure( XorKernel kernel, ByteBuffer dst, ByteBuffer src ) {
+		int length = Math.min( dst.remaining(), src.remaining() );
+		long bytes = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			kernel.xor( dst, src, length );
+			bytes += length;
+			elapsed = System.nanoTime() - start;
+		} while( elapsed < TRIAL_NANOS );
+		return (double)bytes / elapsed;
+	}
+}
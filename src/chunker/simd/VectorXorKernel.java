@@ -0,0 +1,51 @@
+package chunker.simd;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import chunker.XorKernel;
+
+/**
+ * Parity kernel on the Vector API, XOR'ing as many bytes per instruction as
+ * the hardware's preferred vector width allows.  Needs the
+ * jdk.incubator.vector module at compile and run time, so it is compiled on
+ * its own and only ever loaded reflectively by {@link chunker.XorKernels}.
+ *
+ * @author Alex Maskovyak
+ */
+public class VectorXorKernel implements XorKernel {
+
+	/** The widest vector the hardware handles well. */
+	private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+
+	/**
+	 * XOR a vector at a time, the tail a byte at a time.
+	 * @see XorKernel#xor(ByteBuffer, ByteBuffer, int)
+	 */
+	public void xor( ByteBuffer dst, ByteBuffer src, int length ) {
+		int d = dst.position();
+		int s = src.position();
+		int step = SPECIES.length();
+		int i = 0;
+		for( ; i + step <= length; i += step ) {
+			ByteVector a = ByteVector.fromByteBuffer( SPECIES, dst, d + i, ByteOrder.nativeOrder() );
+			ByteVector b = ByteVector.fromByteBuffer( SPECIES, src, s + i, ByteOrder.nativeOrder() );
+			a.lanewise( VectorOperators.XOR, b )
+					.intoByteBuffer( dst, d + i, ByteOrder.nativeOrder() );
+		}
+		for( ; i < length; i++ ) {
+			dst.put( d + i, (byte)( dst.get( d + i ) ^ src.get( s + i ) ) );
+		}
+	}
+
+	/**
+	 * @return "vector"
+	 */
+	public String getName() {
+		return "vector";
+	}
+}
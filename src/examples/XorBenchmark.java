@@ -0,0 +1,101 @@
+package examples;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.Random;
+
+import chunker.XorKernel;
+import chunker.XorKernels;
+
+/**
+ * Benchmark of the parity kernels, in the manner of a JMH run: for every
+ * stripe unit size each kernel builds the parity of a row of data units
+ * through a number of warmup iterations, then a number of measured
+ * iterations, and the mean and spread of the measured throughput are
+ * reported.  Run with --add-modules jdk.incubator.vector to include the
+ * Vector API kernel.
+ *
+ * usage: java examples.XorBenchmark [<data units per row>]
+ *
+ * @author Alex Maskovyak
+ */
+public class XorBenchmark {
+
+	/** Stripe unit sizes to measure. */
+	private static final int[] STRIPE_UNITS = { 512, 4*1024, 64*1024, 1024*1024 };
+
+	/** Untimed iterations per kernel and size. */
+	private static final int WARMUP_ITERATIONS = 5;
+
+	/** Timed iterations per kernel and size. */
+	private static final int MEASURED_ITERATIONS = 10;
+
+	/** Length of an iteration. */
+	private static final long ITERATION_NANOS = 100L*1000*1000; /* 100 milliseconds */
+
+	/**
+	 * Run the benchmark.
+	 * @param args optionally the number of data units XOR'ed into a parity unit.
+	 */
+	public static void main(String[] args) {
+		int units = ( args.length > 0 ) ? Integer.parseInt( args[0] ) : 4;
+		List<XorKernel> kernels = XorKernels.available();
+		Random random = new Random(1);
+
+		System.out.printf("%-8s %10s %14s %10s%n", "kernel", "unit", "MB/s", "+-");
+		for (int stripeUnit : STRIPE_UNITS) {
+			ByteBuffer parity = ByteBuffer.allocate(stripeUnit).order(ByteOrder.nativeOrder());
+			ByteBuffer[] data = new ByteBuffer[units];
+			for (int i = 0; i < units; i++) {
+				byte[] bytes = new byte[stripeUnit];
+				random.nextBytes(bytes);
+				data[i] = ByteBuffer.wrap(bytes).order(ByteOrder.nativeOrder());
+			}
+
+			for (XorKernel kernel : kernels) {
+				for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+					iteration(kernel, parity, data);
+				}
+				double[] rates = new double[MEASURED_ITERATIONS];
+				double sum = 0;
+				for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+					rates[i] = iteration(kernel, parity, data);
+					sum += rates[i];
+				}
+				double mean = sum / rates.length;
+				double variance = 0;
+				for (double rate : rates) {
+					variance += (rate - mean) * (rate - mean);
+				}
+				double error = Math.sqrt(variance / (rates.length - 1));
+				System.out.printf("%-8s %10d %14.1f %10.1f%n", kernel.getName(), stripeUnit, mean, error);
+			}
+		}
+		System.out.println();
+		System.out.println("Chosen at startup: " + XorKernels.select(kernels).getName());
+	}
+
+	/**
+	 * Build parity repeatedly for one iteration.
+	 * @param kernel the kernel being measured
+	 * @param parity the parity unit
+	 * @param data the data units
+	 * @return megabytes of data folded into parity per second
+	 */
+	private static double iteration(XorKernel kernel, ByteBuffer parity, ByteBuffer[] data) {
+		int length = parity.capacity();
+		long bytes = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			for (ByteBuffer unit : data) {
+				kernel.xor(parity, unit, length);
+			}
+			bytes += (long) length * data.length;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < ITERATION_NANOS);
+		return bytes * 1000.0 / elapsed;
+	}
+
+}
@@ -1,18 +1,38 @@
 package raids;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
 import java.util.Vector;
 
+import rice.Continuation;
 import rice.environment.Environment;
 import rice.p2p.commonapi.NodeHandle;
 import util.BufferUtils;
+import util.HashCache;
+import util.HashingReadableChannel;
+import util.HashingWritableChannel;
 import util.SHA1;
-import chunker.ChunkedFileInfo;
+import chunker.BlockIndex;
+import chunker.BlockRecipe;
+import chunker.ChunkPatch;
+import chunker.Chunker;
+import chunker.ContainerPacker;
+import chunker.Deduplicator;
+import chunker.Encoder;
+import chunker.MerkleTree;
+import chunker.ReedSolomonCoder;
+import chunker.StripeDelta;
+import chunker.StripeLayout;
 
 /**
  * Reads Commands from Standard Input, parses the input as
@@ -46,6 +66,15 @@ public class ClientTerminal extends Thread {
 	/** Upload Command */
 	private static final String UPLOAD = "upload";
 
+	/** Update Command */
+	private static final String UPDATE = "update";
+
+	/** Deduplicating Upload Command */
+	private static final String DEDUP = "dedup";
+
+	/** Packing Directory Upload Command */
+	private static final String PACK = "pack";
+
 	/** Download Command */
 	private static final String DOWNLOAD = "download";
 
@@ -62,6 +91,39 @@ public class ClientTerminal extends Thread {
 	private static final String LIST = "list";
 
 
+// Upload Constants
+
+	/** Copies kept of each part protected by a single parity part */
+	private static final int REPLICAS = 3;
+
+	/** Copies kept of each part when erasure coding protects the file */
+	private static final int ERASURE_CODED_REPLICAS = 1;
+
+	/** Upload flag asking for the file to be compressed before striping */
+	private static final String COMPRESS_FLAG = "-z";
+
+	/** Download flag asking for each part from all of its owners at once */
+	private static final String SWARM_FLAG = "-s";
+
+	/** Stored name of a pack of deduplicated blocks, followed by its hash */
+	private static final String PACK_PREFIX = ".pack-";
+
+	/** Stored name of a container of small files, followed by its hash */
+	private static final String CONTAINER_PREFIX = ".container-";
+
+	/** Largest file packed into a container, larger ones are uploaded on their own */
+	private static final long PACKED_FILE_LIMIT = 1024*1024; /* 1 megabyte */
+
+	/** Name of the local cache of file hashes in the user's home directory */
+	private static final String HASH_CACHE_NAME = ".raids-hashes";
+
+	/** Name of the local block index, followed by the username */
+	private static final String BLOCK_INDEX_PREFIX = ".raids-blocks-";
+
+	/** Bytes of changes gathered before they are sent on an update */
+	private static final int PATCH_BATCH = 1024*1024; /* 1 megabyte */
+
+
 // Fields and Class
 
 	/** List of Applications (if multiple on this JVM) */
@@ -82,6 +144,7 @@ public class ClientTerminal extends Thread {
 		m_env = env;
 		m_apps = apps;
 		m_app = m_apps.get( env.getRandomSource().nextInt(apps.size()) );
+		SHA1.getInstance().setCache( HashCache.load( new File( System.getProperty("user.home"), HASH_CACHE_NAME ) ) );
 	}
 
 
@@ -133,6 +196,24 @@ public class ClientTerminal extends Thread {
 					uploadCommand(line, 4);
 				}
 
+				// Dedup Command
+				else if ( line.startsWith(DEDUP)) {
+					line = line.replaceFirst(DEDUP, "").trim();
+					dedupCommand(line);
+				}
+
+				// Pack Command
+				else if ( line.startsWith(PACK)) {
+					line = line.replaceFirst(PACK, "").trim();
+					packCommand(line);
+				}
+
+				// Update Command
+				else if ( line.startsWith(UPDATE)) {
+					line = line.replaceFirst(UPDATE, "").trim();
+					updateCommand(line);
+				}
+
 				// Download Command
 				else if ( line.startsWith(DOWNLOAD) ) {
 					line = line.replaceFirst(DOWNLOAD, "").trim();
@@ -183,6 +264,7 @@ public class ClientTerminal extends Thread {
 		} catch ( NoSuchElementException e ) {}
 
 		// Total Cleanup
+		saveHashCache();
 		m_env.destroy();
 
 	}
@@ -226,18 +308,24 @@ public class ClientTerminal extends Thread {
 
 	/**
 	 * Process a file Download Command
-	 * usage: download <filename>
+	 * usage: download <filename> [-s]
 	 */
 	private void downloadCommand(String line) {
 		try {
 
+			// Download each part from all its owners at once
+			boolean swarm = line.endsWith( " " + SWARM_FLAG );
+			if ( swarm ) {
+				line = line.substring( 0, line.length() - SWARM_FLAG.length() ).trim();
+			}
+
 			// Handle bad input (filename with spaces, or empty filename)
 			String[] args = line.split("\\s");
 			if ( args.length != 1 ) {
-				System.err.println("Bad download command. Filename contains a space. Usage: download <filename>");
+				System.err.println("Bad download command. Filename contains a space. Usage: download <filename> [-s]");
 				return;
 			} else if ( args[0].length() == 0 ) {
-				System.err.println("Bad download command.  Usage: download <filename>");
+				System.err.println("Bad download command.  Usage: download <filename> [-s]");
 			}
 
 			if( !m_app.isReadyForNewDownloadRequests() ) {
@@ -250,153 +338,899 @@ public class ClientTerminal extends Thread {
 
 			// Check personal file list to ensure the file has been uploaded before
 			List<PersonalFileInfo> fileList = m_app.getPersonalFileList();
-			if ( !fileList.contains(
-					new PersonalFileInfo(
-							filename,
-							null ) ) ) {
+			int index = fileList.indexOf( new PersonalFileInfo( filename, null ) );
+			if ( index < 0 ) {
 				System.err.printf("This User has never stored a file named '%s'\n", filename );
 				return;
 			}
+			PersonalFileInfo info = fileList.get(index);
+
+			// A packed file is cut out of its container
+			if ( info.getContainer() != null ) {
+				downloadPacked(filename, info);
+				return;
+			}
 
 			// Grab the most current Master List for who holds the parts from the DHT
 			MasterListMessage mlm = m_app.lookupMasterList(filename);
 
-			// Debug
-			List<NodeHandle>[] parts = mlm.getParts();
-			System.out.println();
-			for (int i = 0; i < parts.length; i++) {
-				System.out.println("Ask the following nodes for part (" + i + "):");
-				for (NodeHandle nh : parts[i]) { System.out.println(nh); }
-				System.out.println();
+			// A deduplicated file is rebuilt from the packs holding its blocks
+			if ( mlm.getRecipe() != null ) {
+				downloadDeduplicated(filename, info, mlm.getRecipe());
+				return;
 			}
 
-			// Tell the App we are expecting these files
-			String lookupIdString = mlm.getLookupId().toStringFull();
-			m_app.setExpectedReassembledFileName( filename );
-			m_app.setExpectedParts(lookupIdString, mlm.getParts().length, parts );
-
-			// Send a Download message to the first node in the list containing a file
-			for (int i = 0; i < parts.length; i++) {
-				NodeHandle nh = parts[i].get(0);
-				PartIndicator pi = new PartIndicator(lookupIdString, i);
-				m_app.attemptDownloadPartFrom(i, nh);
-				m_app.sendDownloadMessage(new DownloadMessage(pi, m_app.getNode().getLocalNodeHandle()), nh);
-			}
+			startDownload(filename, info, mlm, swarm, null);
 
 		} catch (Exception e) {
 			e.printStackTrace();
-			System.err.println("Bad download command.  Usage: download <filename>");
+			System.err.println("Bad download command.  Usage: download <filename> [-s]");
+		}
+	}
+
+	/**
+	 * Request the parts of a stored file, which the App reassembles into
+	 * the user's home directory once they arrive.
+	 * @param filename the name the file was stored under
+	 * @param info the file's entry in the personal file list
+	 * @param mlm the file's Master List
+	 * @param swarm download each part in ranges from all of its owners at once
+	 * @param done told when the file is reassembled, may be null
+	 */
+	private void startDownload(String filename, PersonalFileInfo info, MasterListMessage mlm,
+			boolean swarm, Continuation<File, Exception> done) {
+
+		// Debug
+		List<NodeHandle>[] parts = mlm.getParts();
+		System.out.println();
+		for (int i = 0; i < parts.length; i++) {
+			System.out.println("Ask the following nodes for part (" + i + "):");
+			for (NodeHandle nh : parts[i]) { System.out.println(nh); }
+			System.out.println();
+		}
+
+		// Tell the App we are expecting these files, parity only if something goes wrong
+		String lookupIdString = mlm.getLookupId().toStringFull();
+		int dataParts = parts.length - info.getParityParts();
+		m_app.setExpectedReassembledFileName( filename, done );
+		m_app.setExpectedParts(lookupIdString, parts.length, parts, info.getParityParts(), info.getPartHashes(),
+				info.getTreeBlockSize(), info.getPartLeaves() );
+
+		// Send a Download message to the first node in the list containing a data part
+		for (int i = 0; i < dataParts; i++) {
+			NodeHandle nh = parts[i].get(0);
+			PartIndicator pi = new PartIndicator(lookupIdString, i);
+			if ( swarm && parts[i].size() > 1 ) {
+				m_app.downloadPartFromAll(pi);
+				continue;
+			}
+			m_app.requestPart(pi, nh);
 		}
 	}
 
+	/**
+	 * Download the packs a deduplicated file's blocks are in, one after the
+	 * other in the background, and rebuild the file from them.
+	 * @param filename the name the file was stored under
+	 * @param info the file's entry in the personal file list
+	 * @param recipe the blocks the file is made of
+	 */
+	private void downloadDeduplicated(final String filename, final PersonalFileInfo info, final BlockRecipe recipe) {
+		System.out.println("Downloading " + filename + " from " + recipe.getPacks().size() + " packs in the background.");
+		new Thread() {
+			public void run() {
+				String outPath = System.getProperty("user.home") + File.separatorChar;
+				Map<String, FileChannel> packs = new HashMap<String, FileChannel>();
+				List<File> packFiles = new ArrayList<File>();
+				FileOutputStream out = null;
+				try {
+
+					// Fetch every pack
+					for (String pack : recipe.getPacks()) {
+						File packFile = downloadAndWait(pack);
+						packFiles.add(packFile);
+						packs.put(pack, new FileInputStream(packFile).getChannel());
+					}
+
+					// Rebuild the file, every block is checked against its hash
+					File file = new File(outPath + filename);
+					out = new FileOutputStream(file);
+					recipe.restore(packs, out.getChannel());
+					out.close();
+					out = null;
+
+					if ( !info.getHash().equals( SHA1.getInstance().hash(file) ) ) {
+						System.err.println("Rebuilt " + filename + " but its hash is incorrect.");
+					} else {
+						System.out.println("Finished downloading " + filename + " to " + file.getAbsolutePath());
+					}
+
+				} catch (Exception e) {
+					e.printStackTrace();
+					System.err.println("Download of " + filename + " failed.");
+				} finally {
+					try {
+						if ( out != null ) {
+							out.close();
+						}
+						for (FileChannel pack : packs.values()) {
+							pack.close();
+						}
+					} catch (IOException e) {}
+					for (File packFile : packFiles) {
+						packFile.delete();
+					}
+				}
+			}
+		}.start();
+	}
+
+	/**
+	 * Download the container a packed file is in, in the background, and
+	 * cut the file out of it.
+	 * @param filename the name the file was stored under
+	 * @param info the file's entry in the personal file list
+	 */
+	private void downloadPacked(final String filename, final PersonalFileInfo info) {
+		System.out.println("Downloading " + filename + " from " + info.getContainer() + " in the background.");
+		new Thread() {
+			public void run() {
+				String outPath = System.getProperty("user.home") + File.separatorChar;
+				File container = null;
+				FileInputStream in = null;
+				FileOutputStream out = null;
+				try {
+					container = downloadAndWait(info.getContainer());
+					in = new FileInputStream(container);
+					File file = new File(outPath + filename);
+					out = new FileOutputStream(file);
+					long copied = BufferUtils.copy(in.getChannel(), info.getOffset(), info.getLength(),
+							out.getChannel(), ByteBuffer.allocate(64*1024));
+					out.close();
+					out = null;
+
+					if ( copied != info.getLength() || !info.getHash().equals( SHA1.getInstance().hash(file) ) ) {
+						System.err.println("Cut " + filename + " out of its container but its hash is incorrect.");
+					} else {
+						System.out.println("Finished downloading " + filename + " to " + file.getAbsolutePath());
+					}
+
+				} catch (Exception e) {
+					e.printStackTrace();
+					System.err.println("Download of " + filename + " failed.");
+				} finally {
+					try {
+						if ( in != null ) {
+							in.close();
+						}
+						if ( out != null ) {
+							out.close();
+						}
+					} catch (IOException e) {}
+					if ( container != null ) {
+						container.delete();
+					}
+				}
+			}
+		}.start();
+	}
+
+	/**
+	 * Download a stored file and wait until it is reassembled.
+	 * @param filename the name the file was stored under
+	 * @return the reassembled file
+	 * @throws Exception when the file is unknown or cannot be downloaded
+	 */
+	private File downloadAndWait(String filename) throws Exception {
+		List<PersonalFileInfo> fileList = m_app.getPersonalFileList();
+		int index = fileList.indexOf( new PersonalFileInfo( filename, null ) );
+		if ( index < 0 ) {
+			throw new IOException("This User has never stored a file named '" + filename + "'");
+		}
+		PersonalFileInfo info = fileList.get(index);
+		MasterListMessage mlm = m_app.lookupMasterList(filename);
+
+		// One download at a time
+		final Object lock = new Object();
+		final Object[] result = new Object[1];
+		synchronized (lock) {
+			while ( !m_app.isReadyForNewDownloadRequests() ) {
+				lock.wait(500);
+			}
+			startDownload(filename, info, mlm, false, new Continuation<File, Exception>() {
+				public void receiveResult(File file) {
+					synchronized (lock) { result[0] = file; lock.notifyAll(); }
+				}
+				public void receiveException(Exception e) {
+					synchronized (lock) { result[0] = e; lock.notifyAll(); }
+				}
+			});
+			while ( result[0] == null ) {
+				lock.wait(500);
+			}
+		}
+		if ( result[0] instanceof Exception ) {
+			throw (Exception) result[0];
+		}
+		return (File) result[0];
+	}
+
 
 	/**
 	 * Process a file Upload Command.
-	 * usage: upload <filepath> <chunks>
+	 * usage: upload <filepath> <chunks> [<parity chunks>] [-z]
 	 * Obtains the provided file from the file system, chunks it, and uploads
-	 * it to the network.
+	 * it to the network.  With more than one parity chunk the file is
+	 * Reed-Solomon coded and each chunk is stored once instead of being
+	 * replicated.  With -z the parts of the file which compress are deflated
+	 * before they are striped.
 	 * @param line Line stripped of command hook.
 	 */
 	private void uploadCommand(String line, int attempts) {
+		try {
+
+			// obtain arguments
+			boolean compress = line.endsWith( " " + COMPRESS_FLAG );
+			if ( compress ) {
+				line = line.substring( 0, line.length() - COMPRESS_FLAG.length() ).trim();
+			}
+			String[] args = line.split( " " );
+			String path = args[ 0 ];
+			int chunks = Integer.parseInt( args[ 1 ] );
+			int parity = ( args.length > 2 ) ? Integer.parseInt( args[ 2 ] ) : 1;
+
+			upload( path, new File( path ).getName(), chunks, parity, compress, attempts, null );
+
+		} catch ( Exception e ) {
+			e.printStackTrace();
+			System.err.println( "Bad upload command.  Usage: upload <path> <# chunks> [<# parity>] [-z]" );
+		}
+
+	}
+
+	/**
+	 * Chunk a file and upload it to the network under a name.  The parts are
+	 * streamed in the background, and the personal file list is updated
+	 * once they are all sent.
+	 * @param path the file on the file system
+	 * @param fileName the name to store the file under
+	 * @param chunks number of parts
+	 * @param parity number of those parts holding parity
+	 * @param compress whether to deflate the file before striping it
+	 * @param attempts storage requests to make before giving up
+	 * @param done told once the file is sent, may be null
+	 */
+	private void upload(final String path, final String fileName, int chunks, int parity, boolean compress,
+			int attempts, final Continuation<PersonalFileInfo, Exception> done) {
 
 		// Stop trying to upload
 		if (attempts <= 0) {
 			System.err.println("Upload Command failed after too many attempts.");
+			if ( done != null ) {
+				done.receiveException(new IOException("No storage for " + fileName));
+			}
+			return;
+		}
+
+		// pick the code, wider codes take the place of replication
+		Encoder encoder;
+		int replicas;
+		if ( parity > 1 ) {
+			encoder = new ReedSolomonCoder( chunks - parity, parity );
+			replicas = ERASURE_CODED_REPLICAS;
+			if ( compress ) {
+				System.out.println("Compression is not available with erasure coding, uploading as is.");
+				compress = false;
+			}
+		} else {
+			Chunker chunker = new Chunker( chunks );
+			chunker.setCompressed( compress );
+			encoder = chunker;
+			replicas = REPLICAS;
+		}
+		final long length = new File( path ).length();
+
+		// find nodes with storage
+		NodeHandle[] storageNodes = m_app.requestSpace( chunks*(replicas), encoder.getMaxChunkSize(length), null );
+
+		// Handle a Failed Multicast
+		if ( storageNodes == null ) {
+			System.err.println("Storage Request Failed.  Trying again... " + (attempts-1) + " tries left.");
+			upload(path, fileName, chunks, parity, compress, attempts-1, done);
 			return;
 		}
 
+		// Debug
+		System.out.println("Replication Factor: " + replicas);
+		System.out.println();
+		System.out.println("Nodes that Responded with Storage Space: (" + storageNodes.length + ")");
+		for (NodeHandle nh : storageNodes) { System.out.println(nh); }
+		System.out.println();
+
+		// Split the chunks appropriately among the nodes
+		List<NodeHandle>[] masters = new ArrayList[ chunks ];
+		for (int i=0,k=0; k<(chunks*replicas); i++,k+=replicas) {
+			masters[ i ] = new ArrayList<NodeHandle>();
+			for (int j = 0; j < replicas; ++j) {
+				masters[ i ].add( storageNodes[ k+j ] );
+			}
+		}
+
+		// Debug the lists
+		for (int i = 0; i < masters.length; i++) {
+			List<NodeHandle> list = masters[i];
+			System.out.println("Division Group (" + i + "):");
+			for (NodeHandle nh : list) { System.out.println(nh); }
+			System.out.println();
+		}
+
+		// Upload the master list into the DHT
+		MasterListMessage mlm = m_app.updateMasterList(fileName, masters );
+
+		// Send the MasterListMessage to Everyone
+		for (NodeHandle nh : storageNodes) {
+			m_app.routeMessageDirect(mlm, nh);
+		}
+
+		// Open a stream to the First Node in the list for each part
+		final PartStream[] streams = new PartStream[ masters.length ];
+		for (int i = 0; i < masters.length; i++) {
+			NodeHandle nh = masters[i].get(0);
+			PartIndicator pi = new PartIndicator(mlm.getLookupId().toStringFull(), i);
+			System.out.println("Sending " + pi.toString() + " to " + nh.getId().toStringFull() );
+			streams[i] = new PartStream(pi);
+			m_app.sendStreamToNode(streams[i], nh);
+		}
+
+		// Encode straight into the streams, reading the file only once
+		final Encoder streamEncoder = encoder;
+		final boolean compressed = compress;
+		final int parityParts = ( encoder.getParityChunks() > 1 ) ? encoder.getParityChunks() : 0;
+		new Thread() {
+			public void run() {
+				FileInputStream source = null;
+				try {
+					HashCache.Identity identity = HashCache.identify( new File( path ).toPath() );
+					source = new FileInputStream( path );
+					MerkleTree.Builder tree = new MerkleTree.Builder( source.getChannel(), MerkleTree.DEFAULT_BLOCK_SIZE );
+					HashingReadableChannel in =
+						new HashingReadableChannel( tree, streamEncoder.getStripeUnit() );
+					streamEncoder.encode(in, length, streams);
+					for (PartStream stream : streams) {
+						stream.close();
+					}
+
+					// Update the PersonalFileList in the DHT
+					String hash = in.getHash();
+					String[] partHashes = new String[ streams.length ];
+					byte[][] partLeaves = new byte[ streams.length ][];
+					for (int i = 0; i < streams.length; i++) {
+						partHashes[i] = streams[i].getHash();
+						partLeaves[i] = streams[i].getTree().getLeaves();
+					}
+					PersonalFileInfo info = new PersonalFileInfo(fileName, hash, partHashes, parityParts);
+					// compressed stripes do not line up with the file, so it cannot be updated
+					if ( !compressed ) {
+						info.setUnits( streamEncoder.getStripeUnit(), length, in.getBlockHashes() );
+					}
+					info.setTree( MerkleTree.DEFAULT_BLOCK_SIZE, treeRoot( path, identity, tree ), partLeaves );
+
+					// Remember the hash, it was read while encoding
+					HashCache cache = SHA1.getInstance().getCache();
+					if ( cache != null ) {
+						cache.put( new File( path ).toPath(), identity, SHA1.CACHE_KIND, hash );
+					}
+					saveHashCache();
+					List<PersonalFileInfo> list = m_app.getPersonalFileList();
+					list.remove( info );
+					list.add( info );
+					m_app.updatePersonalFileList(list);
+					System.out.println("Finished sending " + fileName + " (" + hash + ")");
+					if ( done != null ) {
+						done.receiveResult(info);
+					}
+
+				} catch (Exception e) {
+					e.printStackTrace();
+					System.err.println("Upload of " + fileName + " failed.");
+					for (PartStream stream : streams) {
+						stream.abort();
+					}
+					if ( done != null ) {
+						done.receiveException(e);
+					}
+				} finally {
+					try {
+						if ( source != null ) {
+							source.close();
+						}
+					} catch (IOException e) {}
+				}
+			}
+		}.start();
+
+		// Print Out Message to the User
+		System.out.println("Successfully Submitted the File, it will be uploading in the background.");
+	}
+
+	/**
+	 * Process a file Dedup Command.
+	 * usage: dedup <filepath> <chunks> [<parity chunks>]
+	 * Uploads a file storing only the blocks this user has not stored
+	 * before.  The file is split into content-defined blocks, blocks found
+	 * in the local block index are referenced, and the new ones are packed
+	 * into a single file which is chunked and uploaded like any other.  The
+	 * file's Master List then lists the blocks it is made of.
+	 * @param line Line stripped of command hook.
+	 */
+	private void dedupCommand(String line) {
 		try {
 
 			// obtain arguments
 			String[] args = line.split( " " );
-			String path = args[ 0 ];
-			int chunks = Integer.parseInt( args[ 1 ] );
+			final String path = args[ 0 ];
+			final int chunks = Integer.parseInt( args[ 1 ] );
+			final int parity = ( args.length > 2 ) ? Integer.parseInt( args[ 2 ] ) : 1;
+			final String fileName = new File( path ).getName();
+
+			new Thread() {
+				public void run() {
+					FileInputStream source = null;
+					FileOutputStream packOut = null;
+					File packFile = null;
+					try {
+
+						// Split the file, writing new blocks to a pack
+						final File indexFile = getBlockIndexFile();
+						final BlockIndex index = BlockIndex.load( indexFile );
+						final Deduplicator dedup = new Deduplicator( index );
+						packFile = File.createTempFile( "raids-pack", null );
+						source = new FileInputStream( path );
+						packOut = new FileOutputStream( packFile );
+						HashingReadableChannel in = new HashingReadableChannel( source.getChannel() );
+						HashingWritableChannel pack = new HashingWritableChannel( packOut.getChannel() );
+						final BlockRecipe recipe = dedup.split( in, pack );
+						packOut.close();
+						packOut = null;
+						final String hash = in.getHash();
+						System.out.println( fileName + ": " + recipe + ", " + dedup.getDuplicateBytes()
+								+ " bytes already stored, " + dedup.getPackLength() + " new." );
+
+						// Nothing new, only the block references are stored
+						if ( dedup.getPackLength() == 0 ) {
+							storeRecipe( fileName, hash, recipe, index, indexFile );
+							return;
+						}
+
+						// Upload the pack, named after its contents
+						final String packName = PACK_PREFIX + pack.getHash();
+						final File uploaded = packFile;
+						packFile = null;
+						upload( uploaded.getPath(), packName, chunks, parity, false, 4,
+								new Continuation<PersonalFileInfo, Exception>() {
+							public void receiveResult(PersonalFileInfo result) {
+								uploaded.delete();
+								dedup.commit( packName );
+								storeRecipe( fileName, hash, recipe, index, indexFile );
+							}
+							public void receiveException(Exception e) {
+								uploaded.delete();
+								System.err.println("Dedup of " + fileName + " failed.");
+							}
+						});
+
+					} catch (Exception e) {
+						e.printStackTrace();
+						System.err.println("Dedup of " + fileName + " failed.");
+					} finally {
+						try {
+							if ( source != null ) {
+								source.close();
+							}
+							if ( packOut != null ) {
+								packOut.close();
+							}
+						} catch (IOException e) {}
+						if ( packFile != null ) {
+							packFile.delete();
+						}
+					}
+				}
+			}.start();
 
-			// split into path and filename
-			File f = new File( path );
-			String filePath = f.getParentFile().getAbsolutePath() + "/";
-			String fileName = f.getName();
+			// Print Out Message to the User
+			System.out.println("Deduplicating " + fileName + " in the background.");
 
-			// chunk the file
-			final ChunkedFileInfo cfi = chunker.Chunker.chunk( filePath, fileName, chunks);
+		} catch ( Exception e ) {
+			e.printStackTrace();
+			System.err.println( "Bad dedup command.  Usage: dedup <path> <# chunks> [<# parity>]" );
+		}
+	}
 
-			// find nodes with storage
-			int replicas = 3; // TODO: Make this an optional parameter for upload?
-			NodeHandle[] storageNodes = m_app.requestSpace( chunks*(replicas), cfi.getMaxChunkSize(), null );
+	/**
+	 * Process a Pack Command.
+	 * usage: pack <dirpath> <chunks> [<parity chunks>]
+	 * Uploads every file in a directory.  The small files are concatenated
+	 * into a single container which is chunked and stored like any other
+	 * file, so they share one storage request, one Master List and one set
+	 * of transfers.  Each is listed in the personal file list by its place
+	 * in the container.  Larger files are uploaded on their own.
+	 * @param line Line stripped of command hook.
+	 */
+	private void packCommand(String line) {
+		try {
 
-			// Handle a Failed Multicast
-			if ( storageNodes == null ) {
-				System.err.println("Storage Request Failed.  Trying again... " + (attempts-1) + " tries left.");
-				uploadCommand(line, attempts-1);
+			// obtain arguments
+			String[] args = line.split( " " );
+			final File dir = new File( args[ 0 ] );
+			final int chunks = Integer.parseInt( args[ 1 ] );
+			final int parity = ( args.length > 2 ) ? Integer.parseInt( args[ 2 ] ) : 1;
+			final File[] files = dir.listFiles();
+			if ( files == null ) {
+				System.err.printf("'%s' is not a directory\n", dir.getPath() );
 				return;
 			}
 
-			// Debug
-			System.out.println("Replication Factor: " + replicas);
-			System.out.println();
-			System.out.println("Nodes that Responded with Storage Space: (" + storageNodes.length + ")");
-			for (NodeHandle nh : storageNodes) { System.out.println(nh); }
-			System.out.println();
-
-			// Split the chunks appropriately among the nodes
-			List<NodeHandle>[] masters = new ArrayList[ chunks ];
-			for (int i=0,k=0; k<(chunks*replicas); i++,k+=replicas) {
-				masters[ i ] = new ArrayList<NodeHandle>();
-				for (int j = 0; j < replicas; ++j) {
-					masters[ i ].add( storageNodes[ k+j ] );
+			new Thread() {
+				public void run() {
+					File containerFile = null;
+					FileOutputStream containerOut = null;
+					try {
+
+						// Concatenate the small files, upload the rest on their own
+						containerFile = File.createTempFile( "raids-container", null );
+						containerOut = new FileOutputStream( containerFile );
+						HashingWritableChannel container = new HashingWritableChannel( containerOut.getChannel() );
+						final ContainerPacker packer = new ContainerPacker( container );
+						for (File file : files) {
+							if ( !file.isFile() ) {
+								continue;
+							}
+							if ( file.length() > PACKED_FILE_LIMIT ) {
+								upload( file.getPath(), file.getName(), chunks, parity, false, 4, null );
+								continue;
+							}
+							FileInputStream source = new FileInputStream( file );
+							try {
+								packer.add( file.getName(), source.getChannel(), file.length() );
+							} finally {
+								source.close();
+							}
+						}
+						containerOut.close();
+						containerOut = null;
+						if ( packer.getFiles() == 0 ) {
+							return;
+						}
+
+						// Upload the container, named after its contents
+						final String containerName = CONTAINER_PREFIX + container.getHash();
+						final File uploaded = containerFile;
+						containerFile = null;
+						System.out.println("Packed " + packer.getFiles() + " files, " + packer.getLength()
+								+ " bytes, into " + containerName);
+						upload( uploaded.getPath(), containerName, chunks, parity, false, 4,
+								new Continuation<PersonalFileInfo, Exception>() {
+							public void receiveResult(PersonalFileInfo result) {
+								uploaded.delete();
+								listPackedFiles( containerName, packer );
+							}
+							public void receiveException(Exception e) {
+								uploaded.delete();
+								System.err.println("Pack of " + dir.getPath() + " failed.");
+							}
+						});
+
+					} catch (Exception e) {
+						e.printStackTrace();
+						System.err.println("Pack of " + dir.getPath() + " failed.");
+					} finally {
+						try {
+							if ( containerOut != null ) {
+								containerOut.close();
+							}
+						} catch (IOException e) {}
+						if ( containerFile != null ) {
+							containerFile.delete();
+						}
+					}
 				}
-			}
+			}.start();
+
+			// Print Out Message to the User
+			System.out.println("Packing " + dir.getPath() + " in the background.");
+
+		} catch ( Exception e ) {
+			e.printStackTrace();
+			System.err.println( "Bad pack command.  Usage: pack <directory> <# chunks> [<# parity>]" );
+		}
+	}
+
+	/**
+	 * List every file packed in a stored container as uploaded, with a
+	 * single update of the personal file list.
+	 * @param containerName the name the container is stored under
+	 * @param packer the files in the container
+	 */
+	private void listPackedFiles(String containerName, ContainerPacker packer) {
+		List<PersonalFileInfo> list = m_app.getPersonalFileList();
+		for (int i = 0; i < packer.getFiles(); i++) {
+			PersonalFileInfo info = new PersonalFileInfo( packer.getName(i), packer.getHash(i) );
+			info.setContainer( containerName, packer.getOffset(i), packer.getLength(i) );
+			list.remove( info );
+			list.add( info );
+		}
+		m_app.updatePersonalFileList( list );
+		System.out.println("Finished storing " + packer.getFiles() + " files in " + containerName);
+	}
 
-			// Debug the lists
-			for (int i = 0; i < masters.length; i++) {
-				List<NodeHandle> list = masters[i];
-				System.out.println("Division Group (" + i + "):");
-				for (NodeHandle nh : list) { System.out.println(nh); }
-				System.out.println();
+	/**
+	 * An empty Master List, for a file stored as blocks rather than parts.
+	 * @return a list of no parts
+	 */
+	@SuppressWarnings("unchecked")
+	private static List<NodeHandle>[] noParts() {
+		return (List<NodeHandle>[]) new List<?>[ 0 ];
+	}
+
+	/**
+	 * Store a deduplicated file's block references as its Master List and
+	 * list it as uploaded.
+	 * @param fileName the name to store the file under
+	 * @param hash hash of the file's contents
+	 * @param recipe the blocks the file is made of
+	 * @param index the block index, saved once the file is stored
+	 * @param indexFile where the block index is saved
+	 */
+	private void storeRecipe(String fileName, String hash, BlockRecipe recipe, BlockIndex index, File indexFile) {
+		m_app.updateMasterList( fileName, noParts(), recipe );
+
+		PersonalFileInfo info = new PersonalFileInfo( fileName, hash );
+		List<PersonalFileInfo> list = m_app.getPersonalFileList();
+		list.remove( info );
+		list.add( info );
+		m_app.updatePersonalFileList( list );
+
+		try {
+			index.save( indexFile );
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		System.out.println("Finished storing " + fileName + " (" + hash + ") as " + recipe.getBlocks() + " blocks.");
+	}
+
+	/**
+	 * Root of a file's hash tree, built from the bytes read while encoding,
+	 * and remembered in the hash cache.
+	 * @param path the file on the file system
+	 * @param identity the file before it was read
+	 * @param tree hashed the blocks of the file as it was read
+	 * @return the hex root hash
+	 */
+	private String treeRoot(String path, HashCache.Identity identity, MerkleTree.Builder tree) {
+		String kind = "merkle-" + MerkleTree.DEFAULT_BLOCK_SIZE;
+		String root = tree.build().getRootHex();
+		HashCache cache = SHA1.getInstance().getCache();
+		if ( cache != null ) {
+			cache.put( new File( path ).toPath(), identity, kind, root );
+		}
+		return root;
+	}
+
+	/**
+	 * Hash a version of a file as it would be stored, without sending it:
+	 * the file's hash and hash tree, its stripe unit hashes, and the hash
+	 * and hash tree leaves of every part the encoder splits it into.
+	 * @param fileName the name the file is stored under
+	 * @param file the file, read from its start
+	 * @param encoder the code the file is stored with
+	 * @param parityParts number of parity parts the file is stored with
+	 * @return an entry for the personal file list describing the version
+	 * @throws IOException when the file cannot be read
+	 */
+	public static PersonalFileInfo hashVersion(String fileName, FileChannel file, Encoder encoder, int parityParts) throws IOException {
+		long length = file.size();
+		int chunks = encoder.getChunks();
+		MerkleTree.Builder tree = new MerkleTree.Builder( file, MerkleTree.DEFAULT_BLOCK_SIZE );
+		HashingReadableChannel in = new HashingReadableChannel( tree, encoder.getStripeUnit() );
+		MerkleTree.Builder[] partTrees = new MerkleTree.Builder[ chunks ];
+		HashingWritableChannel[] sinks = new HashingWritableChannel[ chunks ];
+		for (int i = 0; i < chunks; i++) {
+			partTrees[i] = new MerkleTree.Builder( null, MerkleTree.DEFAULT_BLOCK_SIZE );
+			sinks[i] = new HashingWritableChannel( partTrees[i] );
+		}
+		encoder.encode(in, length, sinks);
+
+		String[] partHashes = new String[ chunks ];
+		byte[][] partLeaves = new byte[ chunks ][];
+		for (int i = 0; i < chunks; i++) {
+			partHashes[i] = sinks[i].getHash();
+			partLeaves[i] = partTrees[i].build().getLeaves();
+		}
+		PersonalFileInfo version = new PersonalFileInfo( fileName, in.getHash(), partHashes, parityParts );
+		version.setUnits( encoder.getStripeUnit(), length, in.getBlockHashes() );
+		version.setTree( MerkleTree.DEFAULT_BLOCK_SIZE, tree.build().getRootHex(), partLeaves );
+		return version;
+	}
+
+	/**
+	 * Save the cache of file hashes, if it changed.
+	 */
+	private void saveHashCache() {
+		HashCache cache = SHA1.getInstance().getCache();
+		try {
+			if ( cache != null ) {
+				cache.save();
 			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
 
-			// Upload the master list into the DHT
-			MasterListMessage mlm = m_app.updateMasterList(fileName, masters );
+	/**
+	 * The local file holding the index of blocks this user has stored.
+	 * @return the block index file in the user's home directory
+	 */
+	private File getBlockIndexFile() {
+		return new File( System.getProperty("user.home"), BLOCK_INDEX_PREFIX + m_app.getUsername() );
+	}
 
-			// Update the PersonalFileList in the DHT
-			List<PersonalFileInfo> list = m_app.getPersonalFileList();
-			list.add( new PersonalFileInfo(fileName, cfi.getOriginalFileHash() ) );
+	/**
+	 * Process a file Update Command.
+	 * usage: update <filepath>
+	 * Brings a file uploaded before up to date without uploading it again.
+	 * The file is compared with the stripe unit hashes stored with it, and
+	 * only the changed units and the parity of their rows are sent, to the
+	 * division groups already holding the file.
+	 * @param line Line stripped of command hook.
+	 */
+	private void updateCommand(String line) {
+		try {
 
-			System.out.println( "SHA HASH: " + SHA1.getInstance().hash( new File( path ) ) ) ;
-			m_app.updatePersonalFileList(list);
+			// Handle bad input
+			final String path = line;
+			if ( path.length() == 0 ) {
+				System.err.println("Bad update command.  Usage: update <path>");
+				return;
+			}
+			final File f = new File( path );
+			final String fileName = f.getName();
 
-			// Send the MasterListMessage to Everyone
-			for (NodeHandle nh : storageNodes) {
-				m_app.routeMessageDirect(mlm, nh);
+			// Check personal file list to ensure the file has been uploaded before
+			final List<PersonalFileInfo> fileList = m_app.getPersonalFileList();
+			int index = fileList.indexOf( new PersonalFileInfo( fileName, null ) );
+			if ( index < 0 ) {
+				System.err.printf("This User has never stored a file named '%s'\n", fileName );
+				return;
+			}
+			final PersonalFileInfo info = fileList.get(index);
+			if ( info.getUnitHashes() == null || info.getPartHashes() == null ) {
+				System.err.printf("'%s' was stored without stripe hashes, upload it again instead.\n", fileName );
+				return;
 			}
 
-			// Send the raw file bytes to the First Node in the list for each part
-			final int maxSize = (int) cfi.getMaxChunkSize();
-			for (int i = 0; i < masters.length; i++) {
-				List<NodeHandle> partList = masters[i];
-				final NodeHandle nh = partList.get(0);
-				final String filename = cfi.getChunkPaths()[i];
-				final PartIndicator pi = new PartIndicator(mlm.getLookupId().toStringFull(), i);
-				System.out.println("Sending " + pi.toString() + " to " + nh.getId().toStringFull() );
-				new Thread() {
-					public void run() {
-						ByteBuffer buf = BufferUtils.getBufferForFile(filename, maxSize + PartIndicator.SIZE, pi);
-						buf.flip();
-						m_app.sendBufferToNode(buf, nh);
-						// cleanup pieces
-						(new File( filename ) ).delete();
-					}
-				}.start();
+			// Nothing to do for a file known not to have changed since
+			HashCache cache = SHA1.getInstance().getCache();
+			if ( cache != null && info.getHash().equals( cache.get( f.toPath(), SHA1.CACHE_KIND ) ) ) {
+				System.out.printf("'%s' has not changed since it was stored.\n", fileName );
+				return;
 			}
 
+			// The division groups already holding the parts
+			MasterListMessage mlm = m_app.lookupMasterList(fileName);
+			final List<NodeHandle>[] parts = mlm.getParts();
+			final String lookupIdString = mlm.getLookupId().toStringFull();
+
+			// The same code the file was stored with
+			final int chunks = parts.length;
+			final int parity = ( info.getParityParts() > 1 ) ? info.getParityParts() : 1;
+			final int stripeUnit = info.getStripeUnit();
+			final Encoder encoder;
+			if ( parity > 1 ) {
+				encoder = new ReedSolomonCoder( chunks - parity, parity, stripeUnit );
+			} else {
+				encoder = new Chunker( chunks, stripeUnit );
+			}
+			final StripeLayout oldLayout = new StripeLayout( chunks, parity, stripeUnit, info.getLength() );
+
+			new Thread() {
+				public void run() {
+					FileInputStream source = null;
+					try {
+
+						// Hash the new version's units, parts and tree, nothing is sent yet
+						source = new FileInputStream( f );
+						FileChannel file = source.getChannel();
+						PersonalFileInfo version = hashVersion( fileName, file, encoder, info.getParityParts() );
+						long length = version.getLength();
+
+						// Find the rows that changed
+						StripeLayout layout = new StripeLayout( chunks, parity, stripeUnit, length );
+						StripeDelta delta = new StripeDelta( oldLayout, info.getUnitHashes(), layout, version.getUnitHashes() );
+						if ( delta.isEmpty() ) {
+							System.out.println(fileName + " has not changed.");
+							return;
+						}
+
+						// Send the changed units and parity, a batch at a time
+						long sent = 0;
+						ChunkPatch[] patches = delta.createPatches();
+						List<Long> rows = delta.getDirtyRows();
+						for (int i = 0; i < rows.size(); i++) {
+							delta.addRow(file, rows.get(i), patches);
+							if ( i == rows.size()-1 || batchSize(patches) >= PATCH_BATCH ) {
+								sent += batchSize(patches);
+								sendPatches(lookupIdString, parts, patches);
+								patches = delta.createPatches();
+							}
+						}
+						if ( rows.isEmpty() ) {
+							sent += batchSize(patches);
+							sendPatches(lookupIdString, parts, patches);
+						}
+
+						// Update the PersonalFileList in the DHT
+						info.setHash( version.getHash() );
+						info.setPartHashes( version.getPartHashes() );
+						info.setUnits( stripeUnit, length, version.getUnitHashes() );
+						info.setTree( version.getTreeBlockSize(), version.getTreeRoot(), version.getPartLeaves() );
+						m_app.updatePersonalFileList(fileList);
+						System.out.println("Finished updating " + fileName + " (" + version.getHash() + "), "
+								+ rows.size() + " of " + layout.getRows() + " stripes changed, "
+								+ sent + " bytes sent.");
+
+					} catch (Exception e) {
+						e.printStackTrace();
+						System.err.println("Update of " + fileName + " failed.");
+					} finally {
+						try {
+							if ( source != null ) {
+								source.close();
+							}
+						} catch (IOException e) {}
+					}
+				}
+			}.start();
+
 			// Print Out Message to the User
-			System.out.println("Successfully Submitted the File, it will be uploading in the background.");
+			System.out.println("Comparing " + fileName + " with the stored version in the background.");
 
 		} catch ( Exception e ) {
 			e.printStackTrace();
-			System.err.println( "Bad upload command.  Usage: upload <path> <# chunks>" );
+			System.err.println( "Bad update command.  Usage: update <path>" );
 		}
+	}
 
+	/**
+	 * Send a batch of patches to every node holding the parts they change.
+	 * @param lookupIdString the file's lookup id
+	 * @param parts the division group of each part
+	 * @param patches one patch per part
+	 */
+	private void sendPatches(String lookupIdString, List<NodeHandle>[] parts, ChunkPatch[] patches) {
+		for (ChunkPatch patch : patches) {
+			if ( patch.getRanges() == 0 ) {
+				continue;
+			}
+			PartIndicator pi = new PartIndicator(lookupIdString, patch.getChunk());
+			for (NodeHandle nh : parts[patch.getChunk()]) {
+				System.out.println("Patching " + pi.toString() + " on " + nh.getId().toStringFull() + ": " + patch);
+				m_app.routeMessageDirect(new PatchMessage(pi, patch), nh);
+			}
+		}
+	}
+
+	/**
+	 * Bytes carried by a batch of patches.
+	 * @param patches one patch per part
+	 * @return bytes across every patch
+	 */
+	private static long batchSize(ChunkPatch[] patches) {
+		long size = 0;
+		for (ChunkPatch patch : patches) {
+			size += patch.getSize();
+		}
+		return size;
 	}
 
 	/**
@@ -413,7 +1247,13 @@ public class ClientTerminal extends Thread {
 		System.out.println("  status             Prints status information on the current node");
 		System.out.println("  switch #           Switches to the given node");
 		System.out.println("  upload path #      Chunks and uploads a file to 3*# nodes in the network");
+		System.out.println("  upload path # p    Erasure codes a file into # parts, p of them parity, on # nodes");
+		System.out.println("  upload path # -z   Deflates the parts of a file that compress, then uploads it");
+		System.out.println("  update path        Sends only the changed stripes of a file uploaded before");
+		System.out.println("  dedup path # [p]   Uploads only the blocks of a file not stored before");
+		System.out.println("  pack dir # [p]     Uploads a directory, packing its small files into one container");
 		System.out.println("  download filename  Downloads the file uploaded by this user with that name");
+		System.out.println("  download name -s   Downloads each part in ranges from all of its owners at once");
 		System.out.println("  quit               Exits the client program");
 		System.out.println();
 	}
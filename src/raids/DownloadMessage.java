@@ -4,7 +4,7 @@ import rice.p2p.commonapi.Message;
 import rice.p2p.commonapi.NodeHandle;
 
 /**
- * Request made to download a file part.
+ * Request made to download a file part, or a range of it.
  *
  * @author Kevin Cheek
  * @author Alex Maskovyak
@@ -15,20 +15,43 @@ public class DownloadMessage implements Message {
     /** Generated serial version */
 	private static final long serialVersionUID = 4648589701795931152L;
 
+	/** Length of a range running to the end of the part */
+	public static final long TO_END = -1;
+
 	/** The PartIndicator of the file wanted */
     private PartIndicator m_partIndicator;
 
     /** Requester - the person to send the data back to */
     private NodeHandle m_requester;
 
+    /** Where the wanted range starts */
+    private long m_offset;
+
+    /** Length of the wanted range, TO_END for the rest of the part */
+    private long m_length;
+
 
     /**
      * Basic Constructor
      * @param partIndicator indicate which part is wanted
      */
     public DownloadMessage(PartIndicator partIndicator, NodeHandle requester) {
+        this(partIndicator, requester, 0, TO_END);
+    }
+
+
+    /**
+     * Range Constructor
+     * @param partIndicator indicate which part is wanted
+     * @param requester the node to send the range to
+     * @param offset where the range starts
+     * @param length length of the range, TO_END for the rest of the part
+     */
+    public DownloadMessage(PartIndicator partIndicator, NodeHandle requester, long offset, long length) {
         m_partIndicator = partIndicator;
         m_requester = requester;
+        m_offset = offset;
+        m_length = length;
     }
 
 
@@ -66,6 +89,30 @@ public class DownloadMessage implements Message {
 		return m_requester;
 	}
 
+	/**
+	 * Obtains where the wanted range starts.
+	 * @return offset in the part.
+	 */
+	public long getOffset() {
+		return m_offset;
+	}
+
+	/**
+	 * Obtains the length of the wanted range.
+	 * @return length, TO_END for the rest of the part.
+	 */
+	public long getLength() {
+		return m_length;
+	}
+
+	/**
+	 * Is only part of the part wanted.
+	 * @return true unless the whole part is wanted.
+	 */
+	public boolean isRange() {
+		return m_offset != 0 || m_length != TO_END;
+	}
+
 	/**
 	 * Specifies the handle of the node initiating this download request.
 	 * @param requester node requesting this download.
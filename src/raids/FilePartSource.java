@@ -0,0 +1,191 @@
+package raids;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.zip.CRC32C;
+
+import util.BufferUtils;
+import util.Digest;
+import util.SHA1;
+
+/**
+ * A stored part sent from its file.  The frame is built in one small window,
+ * refilled with blocks from the file each time it has been taken, so the
+ * memory used per transfer is the window whatever the part's size.  The
+ * file is opened when the first bytes are wanted.  A range of the part may
+ * be sent instead of all of it.
+ *
+ * @author Joseph Pecoraro
+ */
+public class FilePartSource implements PartSource {
+
+//	Constants
+
+	/** Window Size */
+	private static final int WINDOW_SIZE = 256*1024; /* 256 kilobytes */
+
+//	Fields
+
+	/** The part being sent */
+	private PartIndicator m_partIndicator;
+
+	/** The part's local file */
+	private File m_file;
+
+	/** The open file, null until the first bytes are wanted */
+	private FileChannel m_channel;
+
+	/** Where the range starts, 0 for the whole part */
+	private long m_offset;
+
+	/** Length of the range, DownloadMessage.TO_END for the rest of the part */
+	private long m_length;
+
+	/** Where the next read from the file starts */
+	private long m_position;
+
+	/** Where the reads from the file end */
+	private long m_end;
+
+	/** Size of the file when it was opened */
+	private long m_size;
+
+	/** The window of the frame being taken */
+	private ByteBuffer m_window;
+
+	/** A block read from the file */
+	private ByteBuffer m_block;
+
+	/** Checksum of the blocks */
+	private CRC32C m_crc;
+
+	/** Digest of the whole file */
+	private MessageDigest m_digest;
+
+	/** Set once the end of the frame is in the window */
+	private boolean m_ended;
+
+
+	/**
+	 * Basic constructor
+	 * @param partIndicator the part
+	 * @param file the part's local file
+	 */
+	public FilePartSource(PartIndicator partIndicator, File file) {
+		this(partIndicator, file, 0, DownloadMessage.TO_END);
+	}
+
+
+	/**
+	 * Range constructor, a range reaching past the end of the part is cut
+	 * short, one starting past it sends no data.  Either way the range
+	 * sent starts where it was asked for, so the receiver can match it up.
+	 * @param partIndicator the part
+	 * @param file the part's local file
+	 * @param offset where the range starts
+	 * @param length length of the range, DownloadMessage.TO_END for the rest of the part
+	 */
+	public FilePartSource(PartIndicator partIndicator, File file, long offset, long length) {
+		m_partIndicator = partIndicator;
+		m_file = file;
+		m_offset = offset;
+		m_length = length;
+		m_channel = null;
+	}
+
+
+	/**
+	 * Take the next bytes of the frame, refilling the window once it has all
+	 * been taken.
+	 * @param wakeup never run, the file is always ready
+	 * @return at most a chunk of the frame, empty once it has all been taken
+	 * @throws IOException when the file cannot be read or has shrunk
+	 */
+	public ByteBuffer next(Runnable wakeup) throws IOException {
+		if ( m_channel == null ) {
+			m_channel = FileChannel.open(m_file.toPath(), StandardOpenOption.READ);
+			m_size = m_channel.size();
+			m_position = Math.min(m_offset, m_size);
+			m_end = ( m_length == DownloadMessage.TO_END ) ? m_size : Math.min(m_size, m_position + m_length);
+			m_window = ByteBuffer.allocate(WINDOW_SIZE);
+			m_block = ByteBuffer.allocate(TransferFrame.BLOCK_SIZE);
+			m_crc = new CRC32C();
+			m_digest = SHA1.newDigest();
+			m_ended = false;
+			if ( m_offset == 0 && m_length == DownloadMessage.TO_END ) {
+				TransferFrame.putHeader(m_window, m_partIndicator, m_size);
+			} else {
+				TransferFrame.putRangeHeader(m_window, m_partIndicator, m_offset, m_end - m_position, m_size);
+			}
+			fill();
+		}
+
+		// Window taken, refill it or finish
+		if ( !m_window.hasRemaining() ) {
+			if ( m_ended ) {
+				m_channel.close();
+				return m_window;
+			}
+			m_window.clear();
+			fill();
+		}
+
+		// Hand over the next chunk of the window
+		ByteBuffer chunk = m_window.duplicate();
+		chunk.limit( chunk.position() + Math.min(chunk.remaining(), TransferFrame.CHUNK_SIZE) );
+		m_window.position( chunk.limit() );
+		return chunk;
+	}
+
+
+	/**
+	 * Read blocks from the file into the rest of the window, followed by the
+	 * end of the frame once the file is read, then flip it
+	 * @throws IOException when the file cannot be read or has shrunk
+	 */
+	private void fill() throws IOException {
+		while ( m_position < m_end && m_window.remaining() > TransferFrame.BLOCK_OVERHEAD ) {
+			int n = (int) Math.min( m_end - m_position,
+					Math.min(m_block.capacity(), m_window.remaining() - TransferFrame.BLOCK_OVERHEAD) );
+			m_block.clear().limit(n);
+			if ( BufferUtils.readFully(m_channel, m_block, m_position) < n ) {
+				throw new IOException(m_file + " ended before " + m_end + " bytes.");
+			}
+			m_block.flip();
+			m_digest.update( m_block.duplicate() );
+			TransferFrame.putBlock(m_window, m_block, m_crc);
+			m_position += n;
+		}
+		if ( m_position >= m_end && m_window.remaining() >= TransferFrame.END_SIZE ) {
+			TransferFrame.putEnd(m_window, Digest.fromBytes( m_digest.digest() ));
+			m_ended = true;
+		}
+		m_window.flip();
+	}
+
+
+	/**
+	 * Close the file
+	 */
+	public void abort() {
+		try {
+			if ( m_channel != null ) {
+				m_channel.close();
+			}
+		} catch (IOException e) {}
+	}
+
+
+	/**
+	 * Obtains the part being sent.
+	 * @return the part.
+	 */
+	public PartIndicator getPartIndicator() {
+		return m_partIndicator;
+	}
+
+}
@@ -2,6 +2,7 @@ package raids;
 
 import java.util.List;
 
+import chunker.BlockRecipe;
 import rice.p2p.commonapi.Id;
 import rice.p2p.commonapi.Message;
 import rice.p2p.commonapi.NodeHandle;
@@ -28,6 +29,9 @@ public class MasterListMessage extends ContentHashPastContent implements Message
     /** Lookup Id */
     private Id m_lookupId;
 
+    /** Blocks the file is made of when it was deduplicated, null otherwise */
+    private BlockRecipe m_recipe;
+
 
     /**
      * Basic Constructor
@@ -59,6 +63,7 @@ public class MasterListMessage extends ContentHashPastContent implements Message
         StringBuffer buf = new StringBuffer();
         buf.append( m_lookupId.toStringFull() );
         for (List<NodeHandle> l : m_parts) { buf.append( l.toString() + "\n" ); }
+        if ( m_recipe != null ) { buf.append( m_recipe.toString() + "\n" ); }
         return buf.toString();
     }
 
@@ -118,4 +123,21 @@ public class MasterListMessage extends ContentHashPastContent implements Message
     public void setLookupId(Id lookupId) {
         m_lookupId = lookupId;
     }
+
+    /**
+     * Obtains the blocks a deduplicated file is made of.  The parts of such
+     * a file, if any, hold a pack of blocks rather than the file itself.
+     * @return the file's block references, null if it was not deduplicated.
+     */
+    public BlockRecipe getRecipe() {
+        return m_recipe;
+    }
+
+    /**
+     * Specifies the blocks a deduplicated file is made of.
+     * @param recipe the file's block references.
+     */
+    public void setRecipe(BlockRecipe recipe) {
+        m_recipe = recipe;
+    }
 }
@@ -2,7 +2,15 @@ package raids;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 
 import rice.p2p.commonapi.Application;
 import rice.p2p.commonapi.Endpoint;
@@ -13,12 +21,17 @@ import rice.p2p.commonapi.NodeHandle;
 import rice.p2p.commonapi.RouteMessage;
 import rice.p2p.commonapi.appsocket.AppSocket;
 import rice.p2p.commonapi.appsocket.AppSocketReceiver;
-import util.BufferUtils;
+import rice.selector.TimerTask;
 
 /**
  * Hack around FreePastry issues associated with sending files and messages to 
  * NodeHandles in RaidsApp proper.  
  * 
+ * Parts are sent over one long lived connection per peer, interleaved in
+ * chunks, rather than a new connection per part.  Connections nothing has
+ * been sent over for IDLE_MILLIS are closed, and nothing else closes an
+ * idle connection: reads waiting between parts never time out.
+ * 
  * @author Kevin Cheek
  * @author Alex Maskovyak
  * @author Joe Pecoraro
@@ -31,6 +44,15 @@ public class MyApp implements Application {
 	/** Generic Timeout for AppSocket Connections */
 	private static int TIMEOUT = 30000; /* 30 seconds */
 
+	/** Timeout of a read waiting for the next part or the peer closing, idle eviction closes the connection */
+	private static final int NO_TIMEOUT = Integer.MAX_VALUE;
+
+	/** How long a connection to a peer stays open with nothing to send */
+	private static final long IDLE_MILLIS = 60000; /* 1 minute */
+
+	/** Connections kept open before idle ones are closed early */
+	private static final int MAX_CONNECTIONS = 64;
+
 
 // 	Inner Classes
 
@@ -46,7 +68,7 @@ public class MyApp implements Application {
          * to handle reading from the socket.
          */
         public void receiveSocket(AppSocket socket) {
-            socket.register(true, false, TIMEOUT, new AppSocketReader());
+            socket.register(true, false, NO_TIMEOUT, new AppSocketReader());
             m_endpoint.accept(this);
         }
 
@@ -58,12 +80,15 @@ public class MyApp implements Application {
 
 
     /**
-     * AppSocket Reading Class
-     * Reads from a Socket into an internal ByteBuffer
-     * and dumps the output to a unique TempFile.
+     * One part arriving over a connection, dumped to a unique TempFile and
+     * checked and hashed by its TransferFrame as it arrives.  The TempFile
+     * stays open for the whole transfer.  A part, or range of one, being
+     * downloaded is written straight into the download's file instead, and
+     * the download told how far it has got now and then, so a transfer
+     * which dies can be picked up again.
      * @author Joseph Pecoraro
      */
-    class AppSocketReader implements AppSocketReceiver {
+    class IncomingPart {
 
     //	Inner Constants
 
@@ -73,31 +98,248 @@ public class MyApp implements Application {
         /** Tempfile Suffix */
         private static final String TEMP_SUFFIX = ".tmp";
 
-        /** Buffer Size */
-        private static final int BUFFER_SIZE = 4*1024; /* 4 kilobytes */
+        /** Checked bytes of a download between reports of its progress */
+        private static final long PROGRESS_INTERVAL = 8*1024*1024; /* 8 megabytes */
+
+    //	Fields
+
+        /** The file we will be dumping to, null until the header has arrived */
+        private File m_file;
+
+        /** The file, open for the whole transfer */
+        private FileChannel m_channel;
+
+        /** Set when the file belongs to a download */
+        private boolean m_download;
+
+        /** Checked bytes last reported to the download */
+        private long m_reported;
+
+        /** Size the temporary file was extended to ahead of the data, 0 if none */
+        private long m_preallocated;
+
+        /** Reads the frame, writing the part to the file */
+        private TransferFrame.Decoder m_decoder;
+
+        /**
+         * Basic Constructor
+         */
+        public IncomingPart() {
+            m_preallocated = 0;
+            m_file = null;
+            m_channel = null;
+            m_download = false;
+            m_reported = 0;
+            m_decoder = new TransferFrame.Decoder(null);
+        }
+
+        /**
+         * Hand the next bytes of the frame to the decoder, which checks them
+         * on their way to the file.  Once the whole part has arrived it is
+         * passed to the delegate.
+         * @param data bytes of this part's frame
+         * @return true once the whole part has arrived
+         * @throws IOException when the frame is damaged or the file cannot be written
+         */
+        public boolean consume(ByteBuffer data) throws IOException {
+
+            // The header says where the data goes
+            if ( !m_decoder.hasHeader() ) {
+                if ( !m_decoder.consumeHeader(data) ) {
+                    return false;
+                }
+                open();
+            }
+
+            boolean complete = m_decoder.consume(data);
+            if ( data.hasRemaining() ) {
+                throw new IOException("Data after the end of " + m_decoder.getPartIndicator());
+            }
+
+            // Once the size is declared reserve room for it
+            if ( !m_download && m_preallocated == 0 && m_decoder.getLength() > 0 ) {
+                preallocate(m_decoder.getLength());
+            }
+
+            // Done Reading, the whole part arrived and checked out
+            if ( complete ) {
+                finishFile();
+                if ( m_download ) {
+                    m_delegate.receivedRange(m_decoder.getPartIndicator(), m_decoder.getOffset(),
+                            m_decoder.getReceived(), m_decoder.getPartLength(), m_decoder.getDigest());
+                } else {
+                    m_delegate.receivedFile(m_decoder.getPartIndicator(), m_file, m_decoder.getDigest());
+                }
+            }
+
+            // Now and then tell the download how far it has got
+            else if ( m_download && m_decoder.getChecked() - m_reported >= PROGRESS_INTERVAL ) {
+                reportProgress();
+            }
+            return complete;
+        }
+
+        /**
+         * Open the file the data goes to, the download's file at the range's
+         * offset for a part being downloaded, cut to the part's length if
+         * it is longer, otherwise a TempFile
+         * @throws IOException when the file cannot be created, or no download wants the range
+         */
+        private void open() throws IOException {
+            File download = m_delegate.getDownloadFile(m_decoder.getPartIndicator());
+            if ( download != null ) {
+                m_channel = FileChannel.open(download.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+
+                // A stale longer file must not leave a tail past the part
+                if ( m_decoder.getPartLength() != TransferFrame.UNKNOWN_LENGTH ) {
+                    m_channel.truncate(m_decoder.getPartLength());
+                }
+                m_channel.position(m_decoder.getOffset());
+                m_file = download;
+                m_download = true;
+            } else if ( m_decoder.isRange() ) {
+                throw new IOException("No download wants a range of " + m_decoder.getPartIndicator());
+            } else {
+                m_file = File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX);
+                m_channel = FileChannel.open(m_file.toPath(), StandardOpenOption.WRITE);
+            }
+            m_decoder.setOutput(m_channel);
+        }
+
+        /**
+         * Force the checked data to disk and tell the download how far it
+         * has got
+         * @throws IOException when the file cannot be forced
+         */
+        private void reportProgress() throws IOException {
+            m_channel.force(false);
+            m_reported = m_decoder.getChecked();
+            m_delegate.downloadProgress(m_decoder.getPartIndicator(),
+                    m_decoder.getOffset() + m_reported, m_decoder.getPartLength());
+        }
+
+        /**
+         * Reserve space for a part of a declared size, so the file
+         * system can lay it out in one piece.  The file is cut back to
+         * the bytes actually received when the transfer ends.
+         * @param length the part's declared size
+         * @throws IOException when the space cannot be reserved
+         */
+        public void preallocate(long length) throws IOException {
+            if ( length > m_decoder.getReceived() ) {
+                RandomAccessFile raf = new RandomAccessFile(m_file, "rw");
+                try {
+                    raf.setLength(length);
+                } finally {
+                    raf.close();
+                }
+                m_preallocated = length;
+            }
+        }
+
+        /**
+         * Close the file, cutting off any space reserved beyond the data
+         * received, or a download's stale tail past a part whose length
+         * was only known at its end
+         * @throws IOException when the file cannot be truncated or closed
+         */
+        private void finishFile() throws IOException {
+            try {
+                if ( m_preallocated > m_decoder.getReceived() ) {
+                    m_channel.truncate(m_decoder.getReceived());
+                } else if ( m_download && m_decoder.getPartLength() == TransferFrame.UNKNOWN_LENGTH ) {
+                    m_channel.truncate(m_decoder.getReceived());
+                }
+            } finally {
+                m_channel.close();
+            }
+        }
+
+        /**
+         * Give up on the transfer.  A download is told how far it got so it
+         * can ask again from there, otherwise the temporary file is removed
+         * and the part reported as not received.
+         */
+        public void abort() {
+            PartIndicator pi = m_decoder.getPartIndicator();
+            if ( m_download ) {
+                try {
+                    reportProgress();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            try {
+                if ( m_channel != null ) {
+                    m_channel.close();
+                }
+            } catch (IOException e) {}
+
+            // The download asks again
+            if ( m_download ) {
+                m_delegate.rangeFailed(pi, m_decoder.getOffset());
+                return;
+            }
+
+            // A range no-one wanted, or a part no-one will see
+            if ( m_decoder.isRange() ) {
+                return;
+            }
+            if ( m_file != null ) {
+                m_file.delete();
+            }
+            if ( pi != null ) {
+                m_delegate.receivedFile(pi, null, null);
+            }
+        }
+
+    }
+
+
+    /**
+     * AppSocket Reading Class
+     * Reads the chunks of every part a peer sends over one connection into
+     * an internal ByteBuffer and hands each to the IncomingPart it belongs
+     * to.  The buffer doubles whenever a read fills it, so a fast sender
+     * is read in large pieces.  Parts still arriving when the connection
+     * closes are failures.
+     * @author Joseph Pecoraro
+     */
+    class AppSocketReader implements AppSocketReceiver {
+
+    //	Inner Constants
+
+        /** Initial Buffer Size */
+        private static final int BUFFER_SIZE = 16*1024; /* 16 kilobytes */
+
+        /** Largest the Buffer Grows */
+        private static final int MAX_BUFFER_SIZE = 256*1024; /* 256 kilobytes */
 
     //	Fields
 
         /** The buffer of data being read from the socket */
         private ByteBuffer m_inputBuffer;
 
-        /** The temporary file we will be dumping to */
-        private File m_tempFile;
+        /** Parts arriving, by transfer id */
+        private Map<Integer, IncomingPart> m_parts;
 
-        /** The hash of file part */
-        private PartIndicator m_partIndicator;
+        /** Id the next part to start will have, chunks of lower ids not arriving are the rest of a failed part */
+        private int m_nextTransfer;
+
+        /** Transfer the chunk being read belongs to */
+        private int m_transfer;
+
+        /** Bytes of the chunk being read still to come, 0 between chunks */
+        private int m_chunkRemaining;
 
         /**
          * Basic Constructor
          */
         public AppSocketReader() {
-            try {
-            	m_partIndicator = null;
-                m_inputBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-                m_tempFile = File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            m_inputBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+            m_parts = new HashMap<Integer, IncomingPart>();
+            m_nextTransfer = 0;
+            m_chunkRemaining = 0;
         }
 
         /**
@@ -107,46 +349,116 @@ public class MyApp implements Application {
          * @param canWrite can this socket be written to
          */
         public void receiveSelectResult(AppSocket socket, boolean canRead, boolean canWrite) {
-            m_inputBuffer.clear();
             try {
 
-                // Read
+                // Read, after anything left over from the last read
                 long ret = socket.read(m_inputBuffer);
+                boolean filled = !m_inputBuffer.hasRemaining();
                 m_inputBuffer.flip();
 
-                // Done Reading
-                // Special Case for an Empty File - Delete the temp file and send null to the delegate
+                // The peer closed the connection
                 if ( ret == -1 ) {
-                    socket.close();
-                    if ( m_tempFile.length() == 0 ) {
-                    	m_tempFile.delete();
-                    	m_tempFile = null;
+                    close(socket);
+                    return;
+                }
+
+                // Split the data into chunks, waiting for the rest of a split chunk header
+                while ( m_inputBuffer.hasRemaining() ) {
+                    if ( m_chunkRemaining == 0 ) {
+                        if ( m_inputBuffer.remaining() < TransferFrame.CHUNK_HEADER_SIZE ) {
+                            break;
+                        }
+                        m_transfer = m_inputBuffer.getInt();
+                        int length = m_inputBuffer.getInt();
+                        if ( length == TransferFrame.CANCELLED ) {
+                            fail(m_transfer);
+                        } else if ( length <= 0 || length > TransferFrame.CHUNK_SIZE ) {
+                            throw new IOException("Malformed chunk of " + length + " bytes.");
+                        } else {
+                            m_chunkRemaining = length;
+                        }
+                        continue;
                     }
-                    m_delegate.receivedFile(m_partIndicator, m_tempFile);
+                    int n = Math.min(m_inputBuffer.remaining(), m_chunkRemaining);
+                    ByteBuffer data = m_inputBuffer.duplicate();
+                    data.limit( data.position() + n );
+                    m_inputBuffer.position( data.limit() );
+                    m_chunkRemaining -= n;
+                    consume(m_transfer, data);
                 }
 
-                // Still Reading - Filled the Buffer up with some data dump it to the temp file
-                else if (ret != 0) {
+                // A full buffer means the sender is ahead of us, read more at a time
+                if ( filled && m_inputBuffer.capacity() < MAX_BUFFER_SIZE ) {
+                    ByteBuffer larger = ByteBuffer.allocate( m_inputBuffer.capacity() * 2 );
+                    larger.put(m_inputBuffer);
+                    m_inputBuffer = larger;
+                } else {
+                    m_inputBuffer.compact();
+                }
+                socket.register(true, false, isIdle() ? NO_TIMEOUT : TIMEOUT, this);
 
-                    // If this is the first read, then there is a SHA1 in it!
-                    if ( m_partIndicator == null ) {
-                        byte[] bytes = new byte[PartIndicator.SIZE];
-                        m_inputBuffer.get(bytes, 0, bytes.length);
-                        m_partIndicator = new PartIndicator( bytes );
-                        ret -= m_inputBuffer.position();
-                    }
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+                close(socket);
+            }
 
-                    // Raw data is in the buffer
-                    BufferUtils.writeBufferToFile(m_inputBuffer, m_tempFile.getAbsolutePath(), true);
-                    System.out.println("Dumped the " + ret + " bytes from the buffer into the temp file >> " + m_tempFile.getAbsolutePath() );
-                    socket.register(true, false, 3000, this);
+        }
 
+        /**
+         * Hand a chunk to its part, starting the part with its first chunk
+         * @param transfer the part's transfer id
+         * @param data the chunk
+         */
+        private void consume(int transfer, ByteBuffer data) {
+            IncomingPart part = m_parts.get(transfer);
+            if ( part == null ) {
+                if ( transfer < m_nextTransfer ) {
+                    return;
+                }
+                part = new IncomingPart();
+                m_parts.put(transfer, part);
+                m_nextTransfer = transfer + 1;
+            }
+            try {
+                if ( part.consume(data) ) {
+                    m_parts.remove(transfer);
                 }
-
             } catch (IOException ioe) {
                 ioe.printStackTrace();
+                fail(transfer);
+            }
+        }
+
+        /**
+         * Give up on one part, skipping the rest of it
+         * @param transfer the part's transfer id
+         */
+        private void fail(int transfer) {
+            IncomingPart part = m_parts.remove(transfer);
+            if ( part != null ) {
+                part.abort();
             }
+        }
+
+        /**
+         * Check whether no part is arriving, so the sender may keep the
+         * connection open for as long as it likes
+         * @return true between parts
+         */
+        private boolean isIdle() {
+            return m_parts.isEmpty() && m_chunkRemaining == 0 && m_inputBuffer.position() == 0;
+        }
 
+        /**
+         * Close the socket, failing every part still arriving
+         * @param socket the socket we are reading from
+         */
+        private void close(AppSocket socket) {
+            socket.close();
+            for (IncomingPart part : m_parts.values()) {
+                part.abort();
+            }
+            m_parts.clear();
         }
 
         /**
@@ -156,6 +468,7 @@ public class MyApp implements Application {
          */
         public void receiveException(AppSocket socket, Exception e) {
             e.printStackTrace();
+            close(socket);
         }
 
         // Should not happen, this class only receives results, it does not accept sockets
@@ -165,29 +478,116 @@ public class MyApp implements Application {
 
 
     /**
-     * AppSocket Writing Class
-     * Writes to a Socket until the Internal Buffer is empty
+     * A long lived connection to a peer, shared by every part sent to it.
+     * Parts take turns sending a chunk of their TransferFrame, so a large
+     * part doesn't hold up a small one, and a part whose producer hasn't
+     * caught up steps aside until it has.  A part gets its id with its first
+     * chunk, so parts start on the wire in the order of their ids.  Runs on the selector thread.
      * @author Joseph Pecoraro
      */
-    class AppSocketWriter implements AppSocketReceiver {
+    class PeerConnection implements AppSocketReceiver {
+
+        /**
+         * A part being sent over the connection
+         */
+        class Transfer {
 
-        /** The buffer of data this will be writing out the socket */
-        private ByteBuffer m_outputBuffer;
+            /** Id of a part which hasn't sent a chunk */
+            private static final int NO_ID = -1;
+
+            /** The part's id on this connection, NO_ID until its first chunk */
+            private int m_id;
+
+            /** Where the part's frame comes from */
+            private PartSource m_source;
+
+            /** Set while the source has nothing ready */
+            private boolean m_waiting;
+
+            /**
+             * Basic Constructor
+             * @param source where the part's frame comes from
+             */
+            public Transfer(PartSource source) {
+                m_id = NO_ID;
+                m_source = source;
+                m_waiting = false;
+            }
+
+        }
+
+    //	Fields
+
+        /** The peer */
+        private NodeHandle m_handle;
+
+        /** The socket, null until connected */
+        private AppSocket m_socket;
+
+        /** Parts being sent, taking turns from the front */
+        private LinkedList<Transfer> m_transfers;
+
+        /** Chunk header and data being written in turn, null between chunks */
+        private ByteBuffer[] m_chunk;
+
+        /** Set while registered for writing */
+        private boolean m_writing;
+
+        /** Set once the connection is closed */
+        private boolean m_closed;
+
+        /** When the last part finished */
+        private long m_idleSince;
+
+        /** Id of the next part */
+        private int m_nextId;
+
+        /** Reads the peer closing the connection, it never sends anything */
+        private ByteBuffer m_readBuffer;
 
         /**
-         * Basic constructor
-         * @param buf the buffer to send out over the socket
+         * Basic Constructor, connects to the peer
+         * @param nh the peer
          */
-        public AppSocketWriter(ByteBuffer buf) {
-            m_outputBuffer = buf;
+        public PeerConnection(NodeHandle nh) {
+            m_handle = nh;
+            m_socket = null;
+            m_transfers = new LinkedList<Transfer>();
+            m_chunk = null;
+            m_writing = false;
+            m_closed = false;
+            m_idleSince = now();
+            m_nextId = 0;
+            m_readBuffer = ByteBuffer.allocate(1);
+            m_endpoint.connect(nh, this, TIMEOUT);
         }
 
         /**
-         * On Receiving a Socket, register it for writing
+         * Start sending a part
+         * @param source the part
+         */
+        public void add(PartSource source) {
+            m_transfers.addLast(new Transfer(source));
+            wantToWrite();
+        }
+
+        /**
+         * Check whether the connection has had nothing to send for a while
+         * @param idleMillis how long
+         * @return true if nothing has been sent for at least that long
+         */
+        public boolean isIdle(long idleMillis) {
+            return m_transfers.isEmpty() && m_chunk == null && now() - m_idleSince >= idleMillis;
+        }
+
+        /**
+         * On Receiving a Socket, watch for it closing and start writing
          * @param socket the socket being received
          */
         public void receiveSocket(AppSocket socket) {
-            socket.register(false, true, TIMEOUT, this);
+            m_socket = socket;
+            socket.register(true, false, NO_TIMEOUT, this);
+            wantToWrite();
         }
 
         /**
@@ -198,26 +598,150 @@ public class MyApp implements Application {
          */
         public void receiveSelectResult(AppSocket socket, boolean canRead, boolean canWrite) {
             try {
-
-                // Write, Close if done, otherwise keep writing
-                socket.write(m_outputBuffer);
-                if (!m_outputBuffer.hasRemaining()) {
-                    socket.close();
-                    m_outputBuffer.clear();
-                } else {
-                    socket.register(false, true, TIMEOUT, this);
+                if ( canRead ) {
+                    m_readBuffer.clear();
+                    if ( socket.read(m_readBuffer) == -1 ) {
+                        close();
+                        return;
+                    }
+                    socket.register(true, false, NO_TIMEOUT, this);
+                }
+                if ( canWrite ) {
+                    m_writing = false;
+                    write();
                 }
-
             } catch (IOException ioe) {
                 ioe.printStackTrace();
+                close();
+            }
+        }
+
+        /**
+         * Write chunks until the socket is full or nothing is ready
+         * @throws IOException when the socket fails
+         */
+        private void write() throws IOException {
+            while ( !m_closed ) {
+                if ( m_chunk != null ) {
+                    for (ByteBuffer buffer : m_chunk) {
+                        if ( buffer.hasRemaining() ) {
+                            m_socket.write(buffer);
+                        }
+                        if ( buffer.hasRemaining() ) {
+                            wantToWrite();
+                            return;
+                        }
+                    }
+                    m_chunk = null;
+                }
+                m_chunk = nextChunk();
+                if ( m_chunk == null ) {
+                    if ( m_transfers.isEmpty() ) {
+                        m_idleSince = now();
+                    }
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Take a chunk from the next part with something ready.  A part
+         * that has sent all of its frame is done, a part that fails is
+         * cancelled.
+         * @return the chunk header and data, null if no part has anything ready
+         */
+        private ByteBuffer[] nextChunk() {
+            for (int i = m_transfers.size(); i > 0; i--) {
+                Transfer t = m_transfers.removeFirst();
+                if ( t.m_waiting ) {
+                    m_transfers.addLast(t);
+                    continue;
+                }
+
+                ByteBuffer data;
+                try {
+                    data = t.m_source.next(wakeup(t));
+                } catch (IOException ioe) {
+                    ioe.printStackTrace();
+                    t.m_source.abort();
+
+                    // The peer never heard of a part which sent nothing
+                    if ( t.m_id == Transfer.NO_ID ) {
+                        continue;
+                    }
+                    return new ByteBuffer[] { TransferFrame.chunkHeader(t.m_id, TransferFrame.CANCELLED) };
+                }
+
+                // Nothing ready yet, Done, or a chunk
+                if ( data == null ) {
+                    t.m_waiting = true;
+                    m_transfers.addLast(t);
+                } else if ( data.hasRemaining() ) {
+                    if ( t.m_id == Transfer.NO_ID ) {
+                        t.m_id = m_nextId++;
+                    }
+                    m_transfers.addLast(t);
+                    return new ByteBuffer[] { TransferFrame.chunkHeader(t.m_id, data.remaining()), data };
+                }
             }
+            return null;
         }
 
         /**
-         * Handle Exceptions
+         * Build the wakeup a waiting part runs, from its producer's thread,
+         * once it has something ready
+         * @param t the part
+         * @return the wakeup
+         */
+        private Runnable wakeup(final Transfer t) {
+            return new Runnable() {
+                public void run() {
+                    m_endpoint.getEnvironment().getSelectorManager().invoke(new Runnable() {
+                        public void run() {
+                            t.m_waiting = false;
+                            wantToWrite();
+                        }
+                    });
+                }
+            };
+        }
+
+        /**
+         * Register for writing, if connected and not already registered
+         */
+        private void wantToWrite() {
+            if ( m_socket != null && !m_writing && !m_closed ) {
+                m_writing = true;
+                m_socket.register(false, true, TIMEOUT, this);
+            }
+        }
+
+        /**
+         * Close the connection, failing every part still being sent
+         */
+        public void close() {
+            if ( m_closed ) {
+                return;
+            }
+            m_closed = true;
+            for (Transfer t : m_transfers) {
+                t.m_source.abort();
+            }
+            m_transfers.clear();
+            if ( m_connections.get(m_handle) == this ) {
+                m_connections.remove(m_handle);
+            }
+            if ( m_socket != null ) {
+                m_socket.close();
+            }
+        }
+
+        /**
+         * Handle Exceptions, including failing to connect
          */
         public void receiveException(AppSocket socket, Exception e) {
             e.printStackTrace();
+            close();
         }
 
     }
@@ -231,6 +755,9 @@ public class MyApp implements Application {
     /** The application that is really supposed to do the work */
     private RaidsApp m_delegate;
 
+    /** Open connections by peer, only used on the selector thread */
+    private Map<NodeHandle, PeerConnection> m_connections;
+
     /**
      * Basic Constructor
      * @param node the node to build an endpoint from
@@ -238,21 +765,105 @@ public class MyApp implements Application {
      */
     public MyApp(final Node node, RaidsApp delegate) {
         m_delegate = delegate;
+        m_connections = new HashMap<NodeHandle, PeerConnection>();
         m_endpoint = node.buildEndpoint(this, "RaidsAppEndpoint");
         m_endpoint.accept(new AppSocketAccepter());
         m_endpoint.register();
+
+        // Close connections nothing has been sent over for a while
+        m_endpoint.getEnvironment().getSelectorManager().schedule(new TimerTask() {
+            public void run() {
+                evictIdle(IDLE_MILLIS);
+            }
+        }, IDLE_MILLIS, IDLE_MILLIS);
     }
 
 
 // Public Methods
 
     /**
-     * Opening the AppSocket to another node and sending the given Buffer
-     * @param buf the buffer to send
-     * @param nh the node to send the buffer to
+     * Send a part to another node as it is being produced
+     * @param stream the part to send, written to by another thread
+     * @param nh the node to send the part to
+     */
+    public void sendStreamToNode(PartStream stream, NodeHandle nh) {
+        send(new StreamPartSource(stream), nh);
+    }
+
+
+    /**
+     * Send a stored part to another node, read from the file a window at a
+     * time as the connection drains
+     * @param partIndicator the part
+     * @param file the part's local file
+     * @param nh the node to send the part to
+     */
+    public void sendFileToNode(PartIndicator partIndicator, File file, NodeHandle nh) {
+        send(new FilePartSource(partIndicator, file), nh);
+    }
+
+
+    /**
+     * Send a range of a stored part to another node
+     * @param partIndicator the part
+     * @param file the part's local file
+     * @param offset where the range starts
+     * @param length length of the range, DownloadMessage.TO_END for the rest of the part
+     * @param nh the node to send the range to
+     */
+    public void sendFileToNode(PartIndicator partIndicator, File file, long offset, long length, NodeHandle nh) {
+        send(new FilePartSource(partIndicator, file, offset, length), nh);
+    }
+
+
+// Connections
+
+    /**
+     * Send a part over the connection to a node, opening one if there
+     * isn't one already.  Safe from any thread.
+     * @param source the part
+     * @param nh the node to send the part to
+     */
+    private void send(final PartSource source, final NodeHandle nh) {
+        m_endpoint.getEnvironment().getSelectorManager().invoke(new Runnable() {
+            public void run() {
+                PeerConnection connection = m_connections.get(nh);
+                if ( connection == null ) {
+                    if ( m_connections.size() >= MAX_CONNECTIONS ) {
+                        evictIdle(0);
+                    }
+                    connection = new PeerConnection(nh);
+                    m_connections.put(nh, connection);
+                }
+                connection.add(source);
+            }
+        });
+    }
+
+
+    /**
+     * Close the connections which have been idle for a while
+     * @param idleMillis how long a connection must have been idle
+     */
+    private void evictIdle(long idleMillis) {
+        List<PeerConnection> idle = new ArrayList<PeerConnection>();
+        for (PeerConnection connection : m_connections.values()) {
+            if ( connection.isIdle(idleMillis) ) {
+                idle.add(connection);
+            }
+        }
+        for (PeerConnection connection : idle) {
+            connection.close();
+        }
+    }
+
+
+    /**
+     * The current time
+     * @return milliseconds from the node's clock
      */
-    public void sendBufferToNode(ByteBuffer buf, NodeHandle nh) {
-        m_endpoint.connect(nh, new AppSocketWriter(buf), TIMEOUT);
+    private long now() {
+        return m_endpoint.getEnvironment().getTimeSource().currentTimeMillis();
     }
 
 
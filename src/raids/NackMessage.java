@@ -0,0 +1,61 @@
+package raids;
+
+import rice.p2p.commonapi.Message;
+import rice.p2p.commonapi.NodeHandle;
+
+/**
+ * Answer to a DownloadMessage for a part the node does not have, so the
+ * requester can ask someone else straight away.
+ *
+ * @author Joseph Pecoraro
+ */
+public class NackMessage implements Message {
+
+    /** Generated serial version */
+	private static final long serialVersionUID = -2803319625172745904L;
+
+	/** The PartIndicator of the part that is missing */
+    private PartIndicator m_partIndicator;
+
+    /** The node that doesn't have it */
+    private NodeHandle m_sender;
+
+
+    /**
+     * Basic Constructor
+     * @param partIndicator the part that was asked for
+     * @param sender the node that doesn't have it
+     */
+    public NackMessage(PartIndicator partIndicator, NodeHandle sender) {
+        m_partIndicator = partIndicator;
+        m_sender = sender;
+    }
+
+
+    /**
+     * Default Priority
+     */
+    public int getPriority() {
+        return DEFAULT_PRIORITY;
+    }
+
+
+//	Getters
+
+    /**
+     * Obtains the part the node does not have.
+     * @return the missing part.
+     */
+    public PartIndicator getPartIndicator() {
+        return m_partIndicator;
+    }
+
+    /**
+     * Obtains the node that doesn't have the part.
+     * @return the sender.
+     */
+    public NodeHandle getSender() {
+        return m_sender;
+    }
+
+}
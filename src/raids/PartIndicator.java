@@ -3,11 +3,18 @@ package raids;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
 
+import util.Digest;
+
 /**
  * Both the original File lookup Hash and the
  * part number.  This doesn't give away the
  * individual chunk's hash.
  *
+ * The lookup id is held as a binary {@link Digest}, so a PartIndicator is
+ * 24 bytes on the wire and compares and hashes without touching Strings.
+ * PartIndicators are keys of the inventory and expected parts, and so are
+ * immutable.
+ *
  * @author Kevin Cheek
  * @author Alex Maskovyak
  * @author Joseph Pecoraro
@@ -20,15 +27,15 @@ public class PartIndicator implements Serializable {
 	private static final long serialVersionUID = -6173861654592856961L;
 
 	/** The Byte Size of this object */
-	public static int SIZE = 40+4; /* SHA1 String + int */
+	public static final int SIZE = Digest.SIZE+4; /* SHA1 + int */
 
 //	Fields
 
 	/** Original File Hash */
-	private String m_lookupId;
+	private final Digest m_lookupId;
 
 	/** The Part Number */
-	private int m_partNum;
+	private final int m_partNum;
 
 
 	/**
@@ -36,23 +43,50 @@ public class PartIndicator implements Serializable {
 	 * @param lookupId the original file's lookup id
 	 * @param partNum just a part of that file
 	 */
-	public PartIndicator(String lookupId, int partNum) {
+	public PartIndicator(Digest lookupId, int partNum) {
 		m_lookupId = lookupId;
 		m_partNum = partNum;
 	}
 
 
+	/**
+	 * Constructor from a hex lookup id
+	 * @param lookupId the original file's lookup id, 40 hex digits
+	 * @param partNum just a part of that file
+	 * @throws IllegalArgumentException when the lookup id is not hex
+	 */
+	public PartIndicator(String lookupId, int partNum) {
+		this( Digest.fromHex(lookupId), partNum );
+	}
+
+
 	/**
 	 * Constructor from bytes
 	 * @param bytes the hash and partNum in binary
 	 */
 	public PartIndicator(byte[] bytes) {
-		ByteBuffer buf = ByteBuffer.wrap(bytes);
-		buf.position(0);
-		byte[] sha1_hash = new byte[40];
-		buf.get(sha1_hash);
-		m_lookupId = new String( sha1_hash );
-		m_partNum = buf.getInt();
+		this( Digest.read(ByteBuffer.wrap(bytes)), ByteBuffer.wrap(bytes).getInt(Digest.SIZE) );
+	}
+
+
+	/**
+	 * Read a PartIndicator from a buffer, advancing its position
+	 * @param buf holds at least SIZE bytes
+	 * @return the PartIndicator
+	 */
+	public static PartIndicator read(ByteBuffer buf) {
+		Digest lookupId = Digest.read(buf);
+		return new PartIndicator( lookupId, buf.getInt() );
+	}
+
+
+	/**
+	 * Write this structure into a buffer, advancing its position
+	 * @param buf has room for SIZE bytes
+	 */
+	public void write(ByteBuffer buf) {
+		m_lookupId.write(buf);
+		buf.putInt(m_partNum);
 	}
 
 
@@ -62,8 +96,7 @@ public class PartIndicator implements Serializable {
 	 */
 	public byte[] toBytes() {
 		ByteBuffer buf = ByteBuffer.allocate(SIZE);
-		buf.put( m_lookupId.getBytes() );
-		buf.putInt(m_partNum);
+		write(buf);
 		return buf.array();
 	}
 
@@ -75,7 +108,7 @@ public class PartIndicator implements Serializable {
 	public boolean equals(Object other) {
 		if ( other instanceof PartIndicator ) {
 			PartIndicator pi = (PartIndicator) other;
-			return ( m_partNum == pi.getPartNum() ) && ( m_lookupId.equals(pi.getLookupId()) );
+			return ( m_partNum == pi.getPartNum() ) && ( m_lookupId.equals(pi.getDigest()) );
 		}
 		return false;
 	}
@@ -88,7 +121,7 @@ public class PartIndicator implements Serializable {
 	public int hashCode() {
 		final int prime = 31;
 		int result = 1;
-		result = prime * result + ((m_lookupId == null) ? 0 : m_lookupId.hashCode());
+		result = prime * result + m_lookupId.hashCode();
 		result = prime * result + m_partNum;
 		return result;
 	}
@@ -107,18 +140,18 @@ public class PartIndicator implements Serializable {
 
 	/**
 	 * Obtains the lookup id for the original file: the hash of its contents.
-	 * @return the lookup id for the original file. 
+	 * @return the lookup id for the original file, in hex.
 	 */
 	public String getLookupId() {
-		return m_lookupId;
+		return m_lookupId.toString();
 	}
 
 	/**
-	 * Specifies the lookup id for the original file: the hash of its contents.
-	 * @param origHash the lookup id for the original file.
+	 * Obtains the lookup id for the original file in binary.
+	 * @return the lookup id for the original file.
 	 */
-	public void setLookupId(String origHash) {
-		m_lookupId = origHash;
+	public Digest getDigest() {
+		return m_lookupId;
 	}
 
 	/**
@@ -129,12 +162,4 @@ public class PartIndicator implements Serializable {
 		return m_partNum;
 	}
 
-	/**
-	 * Specifies the part number of the file chunk.
-	 * @param partNum the part number of the file chunk.
-	 */
-	public void setPartNum(int partNum) {
-		m_partNum = partNum;
-	}
-
 }
@@ -0,0 +1,36 @@
+package raids;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A part being sent to a peer, handing over its TransferFrame a chunk at a
+ * time.  Sources are drained on the selector thread, so they never block:
+ * a source with nothing ready says so and runs a wakeup once it has.
+ *
+ * @author Joseph Pecoraro
+ */
+public interface PartSource {
+
+	/**
+	 * Take the next bytes of the frame.  The bytes may be overwritten by the
+	 * next call, so they must be sent before asking for more.
+	 * @param wakeup run when bytes are ready after this returned null
+	 * @return at most TransferFrame.CHUNK_SIZE bytes, an empty buffer once
+	 * 			the whole frame has been taken, or null if nothing is ready
+	 * @throws IOException when the part cannot be read
+	 */
+	public ByteBuffer next(Runnable wakeup) throws IOException;
+
+	/**
+	 * The transfer failed, release whatever the source holds.
+	 */
+	public void abort();
+
+	/**
+	 * Obtains the part being sent.
+	 * @return the part.
+	 */
+	public PartIndicator getPartIndicator();
+
+}
@@ -0,0 +1,240 @@
+package raids;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import util.SHA1;
+import chunker.MerkleTree;
+
+/**
+ * A bounded queue of buffers between a producer (the encoder, writing a part
+ * as it is produced) and an AppSocket draining it to another node.  The
+ * producer blocks once the queue is full, so at most a fixed number of
+ * buffers per part are ever held in memory.
+ *
+ * The consumer runs on the selector thread and must never block, so when
+ * the queue is empty it leaves a wakeup that the producer runs as soon as it
+ * adds the next buffer.
+ *
+ * The SHA-1 and hash tree of everything written are kept so the part, and
+ * each of its blocks, can be verified when it is downloaded again.
+ *
+ * @author Joseph Pecoraro
+ */
+public class PartStream implements WritableByteChannel {
+
+//	Constants
+
+	/** Default number of buffers that may be waiting to be sent */
+	public static final int DEFAULT_CAPACITY = 16;
+
+	/** Marks the end of the stream in the queue */
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+	/** How long the producer waits between checks for an aborted transfer */
+	private static final long POLL_MILLIS = 500;
+
+//	Fields
+
+	/** Buffers waiting to be sent */
+	private BlockingQueue<ByteBuffer> m_queue;
+
+	/** Run when data arrives for a consumer that found the queue empty */
+	private Runnable m_wakeup;
+
+	/** Set when the producer has finished */
+	private boolean m_closed;
+
+	/** Set when the consumer gave up, the producer must stop */
+	private boolean m_aborted;
+
+	/** The part being streamed */
+	private PartIndicator m_partIndicator;
+
+	/** Digest of everything written */
+	private MessageDigest m_digest;
+
+	/** Hex SHA-1 of the part, known once closed */
+	private String m_hash;
+
+	/** Hashes the part's blocks into its hash tree */
+	private MerkleTree.Builder m_treeBuilder;
+
+	/** The part's hash tree, known once closed */
+	private MerkleTree m_tree;
+
+
+	/**
+	 * Basic Constructor
+	 * @param partIndicator the part being streamed
+	 */
+	public PartStream(PartIndicator partIndicator) {
+		this(partIndicator, DEFAULT_CAPACITY);
+	}
+
+
+	/**
+	 * Constructor
+	 * @param partIndicator the part being streamed
+	 * @param capacity the number of buffers that may be waiting to be sent
+	 */
+	public PartStream(PartIndicator partIndicator, int capacity) {
+		m_partIndicator = partIndicator;
+		m_queue = new ArrayBlockingQueue<ByteBuffer>(capacity);
+		m_wakeup = null;
+		m_closed = false;
+		m_aborted = false;
+		m_hash = null;
+		m_digest = SHA1.newDigest();
+		m_treeBuilder = new MerkleTree.Builder(null, MerkleTree.DEFAULT_BLOCK_SIZE);
+		m_tree = null;
+	}
+
+
+// Producer Side
+
+	/**
+	 * Queue a copy of the buffer's remaining bytes, blocking while the queue
+	 * is full.
+	 * @param src the data to send
+	 * @return the number of bytes queued
+	 * @throws IOException when the stream is closed or the transfer aborted
+	 */
+	public int write(ByteBuffer src) throws IOException {
+		if ( m_closed ) {
+			throw new ClosedChannelException();
+		}
+		int length = src.remaining();
+		ByteBuffer copy = ByteBuffer.allocate(length);
+		copy.put(src);
+		copy.flip();
+		m_digest.update(copy.duplicate());
+		m_treeBuilder.write(copy.duplicate());
+		enqueue(copy);
+		return length;
+	}
+
+
+	/**
+	 * Mark the end of the data, the consumer closes its socket once the
+	 * queue drains.
+	 * @throws IOException when the transfer aborted
+	 */
+	public void close() throws IOException {
+		if ( !m_closed ) {
+			m_closed = true;
+			m_hash = SHA1.convertBytesToHexString( m_digest.digest() );
+			m_tree = m_treeBuilder.build();
+			enqueue(END);
+		}
+	}
+
+
+	/**
+	 * Has the producer finished
+	 * @return true once closed
+	 */
+	public boolean isOpen() {
+		return !m_closed;
+	}
+
+
+	/**
+	 * Blocking put that gives up if the consumer aborts, then wake the
+	 * consumer if it is waiting.
+	 * @param buf the buffer to queue
+	 * @throws IOException when the transfer aborted
+	 */
+	private void enqueue(ByteBuffer buf) throws IOException {
+		try {
+			while ( !m_queue.offer(buf, POLL_MILLIS, TimeUnit.MILLISECONDS) ) {
+				if ( m_aborted ) {
+					throw new IOException("Transfer of " + m_partIndicator + " was aborted.");
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while streaming " + m_partIndicator);
+		}
+
+		Runnable wakeup;
+		synchronized (this) {
+			wakeup = m_wakeup;
+			m_wakeup = null;
+		}
+		if ( wakeup != null ) {
+			wakeup.run();
+		}
+	}
+
+
+// Consumer Side
+
+	/**
+	 * Take the next buffer without blocking.  If there is none the wakeup is
+	 * remembered and run when the next buffer is queued.
+	 * @param wakeup run when data arrives after this returned null
+	 * @return the next buffer, an empty buffer at the end of the stream, or
+	 * 			null if nothing is queued yet
+	 */
+	public synchronized ByteBuffer poll(Runnable wakeup) {
+		ByteBuffer buf = m_queue.poll();
+		if ( buf == null ) {
+			m_wakeup = wakeup;
+		}
+		return buf;
+	}
+
+
+	/**
+	 * The consumer gave up (the socket failed), unblock the producer.
+	 */
+	public void abort() {
+		m_aborted = true;
+		m_queue.clear();
+	}
+
+
+	/**
+	 * Has the consumer given up
+	 * @return true if the transfer was aborted
+	 */
+	public boolean isAborted() {
+		return m_aborted;
+	}
+
+
+// Getters
+
+	/**
+	 * Obtains the part being streamed.
+	 * @return the part being streamed.
+	 */
+	public PartIndicator getPartIndicator() {
+		return m_partIndicator;
+	}
+
+
+	/**
+	 * Obtains the SHA-1 of the part.
+	 * @return the hex SHA-1 of everything written, null until closed.
+	 */
+	public String getHash() {
+		return m_hash;
+	}
+
+
+	/**
+	 * Obtains the hash tree of the part.
+	 * @return the tree of everything written, null until closed.
+	 */
+	public MerkleTree getTree() {
+		return m_tree;
+	}
+
+}
@@ -0,0 +1,232 @@
+package raids;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import rice.p2p.commonapi.NodeHandle;
+
+/**
+ * A part being downloaded into a file which outlives the transfer, and the
+ * process, with a record of how much of it has arrived and been checked.
+ * A transfer which dies part way is asked for again from where it stopped.
+ *
+ * The record is only moved on once the data it counts has been forced to
+ * disk, and is replaced in one rename, so it never claims more than the
+ * file holds.
+ *
+ * @author Joseph Pecoraro
+ */
+public class PartialDownload {
+
+//	Constants
+
+	/** Directory in the user's home the partial parts are kept in */
+	public static final String PARTIAL_DIR = ".raids-partial";
+
+	/** Suffix of a partial part's data */
+	private static final String DATA_SUFFIX = ".part";
+
+	/** Suffix of a partial part's record */
+	private static final String RECORD_SUFFIX = ".progress";
+
+	/** Suffix of a record being written */
+	private static final String TEMP_SUFFIX = ".tmp";
+
+
+//	Fields
+
+	/** The part */
+	private PartIndicator m_partIndicator;
+
+	/** Where the part is written */
+	private File m_file;
+
+	/** How much of it has arrived */
+	private File m_record;
+
+	/** Bytes from the start of the part which have arrived and been checked */
+	private long m_received;
+
+	/** Length of the part, TransferFrame.UNKNOWN_LENGTH until it is declared */
+	private long m_partLength;
+
+	/** Bytes received when the part was last asked for */
+	private long m_requestedAt;
+
+	/** The node last asked for the part */
+	private NodeHandle m_source;
+
+
+	/**
+	 * Basic Constructor, picking up where an earlier download of the part
+	 * stopped
+	 * @param partIndicator the part
+	 * @param dir where partial parts are kept
+	 */
+	public PartialDownload(PartIndicator partIndicator, File dir) {
+		String name = partIndicator.getLookupId() + "-" + partIndicator.getPartNum();
+		m_partIndicator = partIndicator;
+		m_file = new File(dir, name + DATA_SUFFIX);
+		m_record = new File(dir, name + RECORD_SUFFIX);
+		m_received = 0;
+		m_partLength = TransferFrame.UNKNOWN_LENGTH;
+		m_requestedAt = 0;
+		m_source = null;
+		dir.mkdirs();
+		load();
+	}
+
+
+// Public Methods
+
+	/**
+	 * Note the part is being asked for from a node
+	 * @param source the node
+	 * @return where the part should be sent from
+	 */
+	public synchronized long request(NodeHandle source) {
+		m_source = source;
+		m_requestedAt = m_received;
+		return m_received;
+	}
+
+
+	/**
+	 * Record more of the part as arrived.  The data must already be on disk.
+	 * @param received bytes from the start of the part which have arrived and been checked
+	 * @param partLength length of the part
+	 * @throws IOException when the record cannot be written
+	 */
+	public synchronized void progress(long received, long partLength) throws IOException {
+		if ( received <= m_received ) {
+			return;
+		}
+		m_received = received;
+		m_partLength = partLength;
+		save();
+	}
+
+
+	/**
+	 * Has more of the part arrived since it was last asked for
+	 * @return true if the last transfer got anywhere
+	 */
+	public synchronized boolean advanced() {
+		return m_received > m_requestedAt;
+	}
+
+
+	/**
+	 * The part is complete, forget the record, leaving the file
+	 */
+	public synchronized void finish() {
+		m_record.delete();
+	}
+
+
+	/**
+	 * The part isn't wanted any more, remove the file and the record
+	 */
+	public synchronized void discard() {
+		m_record.delete();
+		m_file.delete();
+	}
+
+
+// Persistence
+
+	/**
+	 * Read the record of an earlier download, trusting it only as far as
+	 * the file goes
+	 */
+	private void load() {
+		if ( !m_record.exists() || !m_file.exists() ) {
+			return;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new FileInputStream(m_record));
+			long received = in.readLong();
+			long partLength = in.readLong();
+			if ( received <= m_file.length() ) {
+				m_received = received;
+				m_partLength = partLength;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				if ( in != null ) {
+					in.close();
+				}
+			} catch (IOException e) {}
+		}
+	}
+
+
+	/**
+	 * Write the record beside the old one and rename it into place
+	 * @throws IOException when the record cannot be written
+	 */
+	private void save() throws IOException {
+		File temp = new File(m_record.getPath() + TEMP_SUFFIX);
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+		try {
+			out.writeLong(m_received);
+			out.writeLong(m_partLength);
+		} finally {
+			out.close();
+		}
+		Files.move(temp.toPath(), m_record.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+
+// Getters
+
+	/**
+	 * Obtains the bytes of the part which have arrived.
+	 * @return bytes from the start of the part.
+	 */
+	public synchronized long getReceived() {
+		return m_received;
+	}
+
+	/**
+	 * Obtains the length of the part.
+	 * @return the length, TransferFrame.UNKNOWN_LENGTH until it is declared.
+	 */
+	public synchronized long getPartLength() {
+		return m_partLength;
+	}
+
+	/**
+	 * Obtains the node last asked for the part.
+	 * @return the node, null if it hasn't been asked for.
+	 */
+	public synchronized NodeHandle getSource() {
+		return m_source;
+	}
+
+	/**
+	 * Obtains the file the part is written to.
+	 * @return the file.
+	 */
+	public File getFile() {
+		return m_file;
+	}
+
+	/**
+	 * Obtains the part being downloaded.
+	 * @return the part.
+	 */
+	public PartIndicator getPartIndicator() {
+		return m_partIndicator;
+	}
+
+}
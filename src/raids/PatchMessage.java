@@ -0,0 +1,61 @@
+package raids;
+
+import chunker.ChunkPatch;
+import rice.p2p.commonapi.Message;
+
+/**
+ * Changed ranges of a stored file part, sent to every node of the part's
+ * division group when a file is updated in place.
+ *
+ * @author Alex Maskovyak
+ */
+public class PatchMessage implements Message {
+
+	/** Generated serial version */
+	private static final long serialVersionUID = -6950432387161254405L;
+
+	/** The PartIndicator of the part being patched */
+	private PartIndicator m_partIndicator;
+
+	/** Ranges to overwrite and the part's new size */
+	private ChunkPatch m_patch;
+
+
+	/**
+	 * Basic Constructor
+	 * @param partIndicator indicate which part is patched
+	 * @param patch the changes to the part
+	 */
+	public PatchMessage(PartIndicator partIndicator, ChunkPatch patch) {
+		m_partIndicator = partIndicator;
+		m_patch = patch;
+	}
+
+
+	/**
+	 * Default Priority
+	 */
+	public int getPriority() {
+		return DEFAULT_PRIORITY;
+	}
+
+
+//	Getters and Setters
+
+	/**
+	 * Obtains the part indicator of the part being patched.
+	 * @return part indicator being patched.
+	 */
+	public PartIndicator getPartIndicator() {
+		return m_partIndicator;
+	}
+
+	/**
+	 * Obtains the changes to the part.
+	 * @return ranges to overwrite and the part's new size.
+	 */
+	public ChunkPatch getPatch() {
+		return m_patch;
+	}
+
+}
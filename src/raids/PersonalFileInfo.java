@@ -17,14 +17,47 @@ public class PersonalFileInfo implements Serializable {
 	private String m_name;
 	/** File Hash */
 	private String m_hash;
+	/** Hash of each part, null if unknown */
+	private String[] m_partHashes;
+	/** Number of trailing parts holding only parity, 0 if parity rotates through every part */
+	private int m_parityParts;
+	/** Stripe unit the file was split with, 0 if unknown */
+	private int m_stripeUnit;
+	/** File Size */
+	private long m_length;
+	/** SHA-1 of each stripe unit sized block of the file, end to end, null if unknown */
+	private byte[] m_unitHashes;
+	/** Block size of the file's hash tree, 0 if it has none */
+	private int m_treeBlockSize;
+	/** Root of the file's hash tree, null if it has none */
+	private String m_treeRoot;
+	/** Leaves of each part's hash tree, end to end, with the same block size, null if unknown */
+	private byte[][] m_partLeaves;
+	/** Name of the container the file is packed in, null if it is stored on its own */
+	private String m_container;
+	/** Offset of the file within its container */
+	private long m_offset;
 	
 	/**
 	 * Create a Personal File with a given name
 	 * @param name the file name
 	 */
 	public PersonalFileInfo(String name, String hash) {
+		this(name, hash, null, 0);
+	}
+
+	/**
+	 * Create a Personal File with a given name and part details
+	 * @param name the file name
+	 * @param hash hash of the file's contents
+	 * @param partHashes hash of each part, null if unknown
+	 * @param parityParts number of trailing parts holding only parity
+	 */
+	public PersonalFileInfo(String name, String hash, String[] partHashes, int parityParts) {
 		m_name = name;
 		m_hash = hash;
+		m_partHashes = partHashes;
+		m_parityParts = parityParts;
 	}
 
 	/**
@@ -58,6 +91,135 @@ public class PersonalFileInfo implements Serializable {
 	public void setHash( String hash ) {
 		m_hash = hash;
 	}
+
+	/**
+	 * Access the hashes of the file's parts
+	 * @return Hash of each part, null if they were not recorded.
+	 */
+	public String[] getPartHashes() {
+		return m_partHashes;
+	}
+
+	/**
+	 * Modify the hashes of the file's parts
+	 * @param partHashes Hash of each part.
+	 */
+	public void setPartHashes( String[] partHashes ) {
+		m_partHashes = partHashes;
+	}
+
+	/**
+	 * Record how the file was striped, which lets a changed version be
+	 * compared with it block by block.
+	 * @param stripeUnit the stripe unit the file was split with
+	 * @param length size of the file
+	 * @param unitHashes SHA-1 of each stripe unit sized block, end to end
+	 */
+	public void setUnits( int stripeUnit, long length, byte[] unitHashes ) {
+		m_stripeUnit = stripeUnit;
+		m_length = length;
+		m_unitHashes = unitHashes;
+	}
+
+	/**
+	 * Access the stripe unit the file was split with
+	 * @return size of a stripe unit, 0 if it was not recorded.
+	 */
+	public int getStripeUnit() {
+		return m_stripeUnit;
+	}
+
+	/**
+	 * Record the root of the file's hash tree, which can be computed on
+	 * every core when the file is checked, and the leaves of each part's
+	 * tree, which check the blocks of a part as they arrive.
+	 * @param blockSize size of the blocks the trees were built over
+	 * @param root the file's root hash
+	 * @param partLeaves leaf hashes of each part, null if unknown
+	 */
+	public void setTree( int blockSize, String root, byte[][] partLeaves ) {
+		m_treeBlockSize = blockSize;
+		m_treeRoot = root;
+		m_partLeaves = partLeaves;
+	}
+
+	/**
+	 * Access the block size of the file's hash tree
+	 * @return size of a block, 0 if the tree was not recorded.
+	 */
+	public int getTreeBlockSize() {
+		return m_treeBlockSize;
+	}
+
+	/**
+	 * Access the root of the file's hash tree
+	 * @return the hex root hash, null if the tree was not recorded.
+	 */
+	public String getTreeRoot() {
+		return m_treeRoot;
+	}
+
+	/**
+	 * Access the leaves of each part's hash tree
+	 * @return hash of each block of each part, end to end, null if they were not recorded.
+	 */
+	public byte[][] getPartLeaves() {
+		return m_partLeaves;
+	}
+
+	/**
+	 * Record that the file is packed in a container with other files rather
+	 * than stored on its own.
+	 * @param container the name the container is stored under
+	 * @param offset where the file starts within the container
+	 * @param length size of the file
+	 */
+	public void setContainer( String container, long offset, long length ) {
+		m_container = container;
+		m_offset = offset;
+		m_length = length;
+	}
+
+	/**
+	 * Access the container the file is packed in
+	 * @return the container's stored name, null if the file is stored on its own.
+	 */
+	public String getContainer() {
+		return m_container;
+	}
+
+	/**
+	 * Access where the file starts within its container
+	 * @return offset of the file in its container.
+	 */
+	public long getOffset() {
+		return m_offset;
+	}
+
+	/**
+	 * Access the file's size
+	 * @return size of the file when its units or container were recorded.
+	 */
+	public long getLength() {
+		return m_length;
+	}
+
+	/**
+	 * Access the hashes of the file's stripe units
+	 * @return SHA-1 of each block end to end, null if they were not recorded.
+	 */
+	public byte[] getUnitHashes() {
+		return m_unitHashes;
+	}
+
+	/**
+	 * Access the number of parts holding only parity.  These are the last
+	 * parts and are only needed when another part is lost.
+	 * @return Number of parity parts, 0 when parity is spread over every part.
+	 */
+	public int getParityParts() {
+		return m_parityParts;
+	}
 	
 	/**
 	 * For Debugging
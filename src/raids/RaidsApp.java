@@ -1,7 +1,11 @@
 package raids;
 
 import java.io.File;
-import java.nio.ByteBuffer;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -9,7 +13,9 @@ import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
 
+import chunker.BlockRecipe;
 import chunker.Chunker;
+import chunker.MerkleTree;
 
 import rice.Continuation;
 import rice.p2p.commonapi.Application;
@@ -26,6 +32,7 @@ import rice.p2p.past.PastImpl;
 import rice.pastry.PastryNode;
 import rice.persistence.StorageManager;
 import util.BufferUtils;
+import util.Digest;
 import util.SHA1;
 import eve.EveReporter;
 import eve.EveType;
@@ -160,6 +167,9 @@ public class RaidsApp implements Application {
 	/** Indicate a Missing File - Special Case where no-one had the file */
 	private final File MISSING_FILE = new File("/"); // random dir, root is easy
 
+	/** Name given to a part no-one had when reassembling, it never exists */
+	private static final String MISSING_PART_PREFIX = "RAIDS-missing-part-";
+
 // 	Fields
 
     /** PAST */
@@ -210,6 +220,30 @@ public class RaidsApp implements Application {
     /** Expected parts should come from */
     private List<NodeHandle>[] m_expectedPartOwners;
 
+    /** Parity parts to request only if a data part is lost */
+    private List<PartIndicator> m_standbyParity;
+
+    /** Hash of every expected part, null if unknown */
+    private String[] m_expectedPartHashes;
+
+    /** Size of the blocks of each expected part's hash tree */
+    private int m_expectedTreeBlockSize;
+
+    /** Leaves of every expected part's hash tree, null if unknown */
+    private byte[][] m_expectedPartLeaves;
+
+    /** Told when the current download finishes, null if no-one is waiting */
+    private Continuation<File, Exception> m_downloadContinuation;
+
+    /** Parts being downloaded in ranges from all their owners at once */
+    private Map<PartIndicator, SwarmDownload> m_swarms;
+
+    /** Parts being downloaded from one owner at a time, resumed after a failure */
+    private Map<PartIndicator, PartialDownload> m_partials;
+
+    /** Where partial parts are kept between runs */
+    private File m_partialDir;
+
 
     /**
      * Basic Constructor that rides on top of the PastImpl Constructor
@@ -244,6 +278,13 @@ public class RaidsApp implements Application {
         m_expectedParts = new HashMap<PartIndicator, File>();
         m_expectedReassembledFileName = null;
         m_expectedPartOwners = null;
+        m_standbyParity = new ArrayList<PartIndicator>();
+        m_expectedPartHashes = null;
+        m_expectedTreeBlockSize = 0;
+        m_expectedPartLeaves = null;
+        m_swarms = new HashMap<PartIndicator, SwarmDownload>();
+        m_partials = new HashMap<PartIndicator, PartialDownload>();
+        m_partialDir = new File(System.getProperty("user.home"), PartialDownload.PARTIAL_DIR);
 
         // Setup an EveReporter
         if ( eveHost == null ) {
@@ -415,13 +456,27 @@ public class RaidsApp implements Application {
     public MasterListMessage updateMasterList(
     		String filename, 
     		List<NodeHandle>[] list) {
+    	return updateMasterList(filename, list, null);
+    }
+
+
+    /**
+     * Submit a new Master List for a deduplicated File (asynchronous)
+     * @param filename the filename the Master List is for
+     * @param list the new Master List
+     * @param recipe the blocks the file is made of, null if it was not deduplicated
+     */
+    public MasterListMessage updateMasterList(
+    		String filename, 
+    		List<NodeHandle>[] list,
+    		BlockRecipe recipe) {
     	
     	Id fileId = 
     		GeneralIdHelper.masterListIdForFilename(
     				filename, 
     				m_username, 
     				m_node.getEnvironment());
-    	return updateMasterList(fileId, list);
+    	return updateMasterList(fileId, list, recipe);
     }
 
 
@@ -433,8 +488,23 @@ public class RaidsApp implements Application {
     public MasterListMessage updateMasterList(
     		final Id fileId, 
     		List<NodeHandle>[] list) {
+    	return updateMasterList(fileId, list, null);
+    }
+
+
+    /**
+     * Submit a new Master List for the Given Id (asynchronous)
+     * @param fileId id of the Pastry Filename
+     * @param list the new Master List
+     * @param recipe the blocks the file is made of, null if it was not deduplicated
+     */
+    public MasterListMessage updateMasterList(
+    		final Id fileId, 
+    		List<NodeHandle>[] list,
+    		BlockRecipe recipe) {
     	
     	MasterListMessage mlm = new MasterListMessage( fileId, list );
+    	mlm.setRecipe( recipe );
     	m_past.insert(mlm, new Continuation<Boolean[], Exception>() {
             public void receiveException(Exception e) { e.printStackTrace(); }
             public void receiveResult(Boolean[] res) {
@@ -462,18 +532,21 @@ public class RaidsApp implements Application {
     /**
      * When an AppSocket successfully pulls a file over the wire it
      * calls this callback saying it has completed the file download.
+     * The data was hashed as it arrived, so checking it needs no second
+     * read of the file.
      * @param partIndicator details on the file and the part of the file received
      * @param tempFile File where the data is now stored
+     * @param digest SHA1 of the data received, null if there was none
      */
-    public void receivedFile(final PartIndicator partIndicator, File tempFile) {
-    	debug("Received part: " + partIndicator);
+    public void receivedFile(final PartIndicator partIndicator, File tempFile, Digest digest) {
+    	debug("Received part: " + partIndicator + " hashing to " + digest);
 
     	// Was this an expected file for a download? Null or otherwise report it!
     	synchronized (m_expectedParts) {
 
     		if ( m_expectedParts.containsKey(partIndicator) ) {
     			debug("Received Expected part: " + partIndicator);
-        		expectedPartDownloaded(partIndicator, tempFile);
+        		expectedPartDownloaded(partIndicator, tempFile, digest);
         		return;
         	}
 		}
@@ -510,20 +583,7 @@ public class RaidsApp implements Application {
     	// this is called "cascading" the file around the ring
     	// in the background
     	if ( !mlfpi.isLast() ) {
-    		final NodeHandle next = mlfpi.getNextNode();
-    		final String filename = tempFile.getAbsolutePath();
-    		final int maxSize = (int) tempFile.length();
-			new Thread() {
-				public void run() {
-					ByteBuffer buf = 
-						BufferUtils.getBufferForFile(
-								filename, 
-								maxSize + PartIndicator.SIZE, 
-								partIndicator);
-					buf.flip();
-					sendBufferToNode(buf, next);
-				}
-			}.start();
+    		sendFileToNode(partIndicator, tempFile, mlfpi.getNextNode());
     	}
 
     }
@@ -596,6 +656,7 @@ public class RaidsApp implements Application {
 
         	// For Each Part List
         	NodeHandle prev, next;
+        	Digest lookupId = Digest.fromHex( mlm.getLookupId().toStringFull() );
         	List[] allParts = mlm.getParts();
         	for (int i = 0; i < allParts.length; i++) {
         		List<NodeHandle> parts = allParts[i];
@@ -619,7 +680,7 @@ public class RaidsApp implements Application {
 					}
 
 					// The Hash Key
-					PartIndicator pi = new PartIndicator( mlm.getLookupId().toStringFull(), i);
+					PartIndicator pi = new PartIndicator(lookupId, i);
 
 					// Setup MasterListFilePieceInfo for this File Part
 					synchronized (m_inventory) {
@@ -655,18 +716,15 @@ public class RaidsApp implements Application {
         	NodeHandle requester = dlmsg.getRequester();
         	MasterListFilePieceInfo mlfpi = m_inventory.get(dlmsg.getPartIndicator());
 
-        	// We Don't Have the File - Send back an empty file (special indicator that we have it!)
-        	if ( mlfpi == null ) {
-        		debug( requester.getId().toStringFull() + " asked me for something I don't have yet. Sending them an empty file");
-        		ByteBuffer buf = ByteBuffer.wrap( dlmsg.getPartIndicator().toBytes() );
-        		sendBufferToNode(buf, requester);
+        	// We Don't Have the File - Say so, the requester will try someone else
+        	if ( mlfpi == null || mlfpi.getLocalPath() == null ) {
+        		debug( requester.getId().toStringFull() + " asked me for something I don't have yet. Sending them a NACK");
+        		routeMessageDirect(new NackMessage(dlmsg.getPartIndicator(), m_node.getLocalNodeHandle()), requester);
         		return;
         	}
 
         	// Send the file to the requester
         	File file = new File(mlfpi.getLocalPath());
-        	String filename = file.getAbsolutePath();
-        	int maxSize = (int) file.length();
 
         	// Special Case, the requester is me!
         	if ( dlmsg.getRequester().equals(m_node.getLocalNodeHandle()) ) {
@@ -674,13 +732,50 @@ public class RaidsApp implements Application {
 				expectedPartDownloaded( dlmsg.getPartIndicator(), file );
         	}
 
+        	// Only a range of the part is wanted
+        	else if ( dlmsg.isRange() ) {
+	        	debug("Sending: " + dlmsg.getPartIndicator() + " from " + dlmsg.getOffset() + " to " + requester.getId().toStringFull());
+	        	sendFileToNode(dlmsg.getPartIndicator(), file, dlmsg.getOffset(), dlmsg.getLength(), requester);
+        	}
+
         	// Normal case, send the file
         	else {
-	        	ByteBuffer buf = BufferUtils.getBufferForFile(filename, maxSize + PartIndicator.SIZE, dlmsg.getPartIndicator());
-	        	buf.flip();
 	        	debug("Sending: " + dlmsg.getPartIndicator() + " to " + requester.getId().toStringFull());
+	        	sendFileToNode(dlmsg.getPartIndicator(), file, requester);
+        	}
+        }
+
+        // NackMessage - A node we asked for a part doesn't have it
+        else if ( msg instanceof NackMessage ) {
+        	NackMessage nack = (NackMessage) msg;
+        	PartIndicator pi = nack.getPartIndicator();
+        	debug("Received NACK for " + pi);
+        	if ( !swarmPeerFailed(pi, nack.getSender()) ) {
+        		receivedFile(pi, null, null);
+        	}
+        }
 
-	        	sendBufferToNode(buf, requester);
+        // PatchMessage - Bring a stored part up to date with an updated file
+        else if ( msg instanceof PatchMessage ) {
+        	PatchMessage patchmsg = (PatchMessage) msg;
+        	File file = lookupInInventory(patchmsg.getPartIndicator());
+        	if ( file == null ) {
+        		debug("Asked to patch " + patchmsg.getPartIndicator() + " which I don't have. Ignoring it");
+        		return;
+        	}
+        	debug("Patching " + patchmsg.getPartIndicator() + ": " + patchmsg.getPatch());
+        	RandomAccessFile raf = null;
+        	try {
+        		raf = new RandomAccessFile(file, "rw");
+        		patchmsg.getPatch().applyTo(raf.getChannel());
+        	} catch (IOException e) {
+        		e.printStackTrace();
+        	} finally {
+        		try {
+        			if ( raf != null ) {
+        				raf.close();
+        			}
+        		} catch (IOException e) {}
         	}
         }
 
@@ -757,7 +852,7 @@ public class RaidsApp implements Application {
      * @param msg the message to send
      * @param nh the NodeHandle to send this message directly to
      */
-    public void sendDownloadMessage(DownloadMessage msg, NodeHandle nh) {
+    public void sendDownloadMessage(DownloadMessage msg, final NodeHandle nh) {
     	final PartIndicator pi = msg.getPartIndicator();
     	m_myapp.getEndpoint().route(null, msg, nh, new DeliveryNotification() {
 
@@ -769,7 +864,9 @@ public class RaidsApp implements Application {
 			 * @param e an exception from the message
 			 */
 			public void sendFailed(MessageReceipt receipt, Exception e) {
-				receivedFile(pi, null);
+				if ( !swarmPeerFailed(pi, nh) ) {
+					receivedFile(pi, null, null);
+				}
 			}
 
 			/** Ignored */
@@ -782,16 +879,50 @@ public class RaidsApp implements Application {
 //	Send Files
 
     /**
-     * Send a Buffer through MyApp, uses AppSockets
-     * @param buf the buffer of data
+     * Send a part through MyApp while it is still being produced, uses AppSockets
+     * @param stream the part, written to by the producer
      * @param nh the node to send the data to
      */
-    public void sendBufferToNode(ByteBuffer buf, NodeHandle nh) {
+    public void sendStreamToNode(PartStream stream, NodeHandle nh) {
     	m_reporter.log(
-    			m_node.getId().toStringFull(), 
-    			nh.getId().toStringFull(), 
+    			m_node.getId().toStringFull(),
+    			nh.getId().toStringFull(),
     			EveType.UPLOAD, "");
-    	m_myapp.sendBufferToNode(buf, nh);
+    	m_myapp.sendStreamToNode(stream, nh);
+    }
+
+
+    /**
+     * Send a stored part through MyApp, uses AppSockets.  The part is read
+     * from disk a window at a time as the socket drains, so parts of any
+     * size are sent in constant memory and without a thread of their own
+     * @param partIndicator the part
+     * @param file the part's local file
+     * @param nh the node to send the part to
+     */
+    public void sendFileToNode(PartIndicator partIndicator, File file, NodeHandle nh) {
+    	m_reporter.log(
+    			m_node.getId().toStringFull(),
+    			nh.getId().toStringFull(),
+    			EveType.UPLOAD, "");
+    	m_myapp.sendFileToNode(partIndicator, file, nh);
+    }
+
+
+    /**
+     * Send a range of a stored part through MyApp, uses AppSockets
+     * @param partIndicator the part
+     * @param file the part's local file
+     * @param offset where the range starts
+     * @param length length of the range, DownloadMessage.TO_END for the rest of the part
+     * @param nh the node to send the range to
+     */
+    public void sendFileToNode(PartIndicator partIndicator, File file, long offset, long length, NodeHandle nh) {
+    	m_reporter.log(
+    			m_node.getId().toStringFull(),
+    			nh.getId().toStringFull(),
+    			EveType.UPLOAD, "");
+    	m_myapp.sendFileToNode(partIndicator, file, offset, length, nh);
     }
 
 
@@ -806,17 +937,51 @@ public class RaidsApp implements Application {
     		String fileId, 
     		int parts, 
     		List<NodeHandle>[] owners ) {
-    	
+    	setExpectedParts(fileId, parts, owners, 0, null, 0, null);
+    }
+
+    /**
+     * Expecting incoming data parts, holding the trailing parity parts in
+     * reserve.  A parity part is only requested when a data part cannot be
+     * downloaded or fails verification.
+     * @param fileId the file id
+     * @param parts the total number of parts, data and parity
+     * @param owners the nodes holding each part
+     * @param parityParts the number of trailing parts holding only parity
+     * @param partHashes the hash of every part, null to skip verification
+     * @param treeBlockSize size of the blocks of each part's hash tree
+     * @param partLeaves leaves of every part's hash tree, null to only
+     * 			verify whole parts
+     */
+    public void setExpectedParts(
+    		String fileId,
+    		int parts,
+    		List<NodeHandle>[] owners,
+    		int parityParts,
+    		String[] partHashes,
+    		int treeBlockSize,
+    		byte[][] partLeaves ) {
+
     	// copy of owners so that we can remove without incident
     	m_expectedPartOwners = new ArrayList[ owners.length ];
     	for( int i = 0; i < owners.length; ++i ) {
     		m_expectedPartOwners[ i ] = new ArrayList( owners[ i ] );
     	}
+    	m_expectedPartHashes = partHashes;
+    	m_expectedTreeBlockSize = treeBlockSize;
+    	m_expectedPartLeaves = partLeaves;
 
+    	m_standbyParity.clear();
+    	Digest lookupId = Digest.fromHex(fileId);
     	for (int i = 0; i < parts; i++) {
-    		PartIndicator pi = new PartIndicator(fileId, i);
-    		debug("Expecting: " + pi);
-			m_expectedParts.put(pi, null);
+    		PartIndicator pi = new PartIndicator(lookupId, i);
+    		if ( i >= parts - parityParts ) {
+    			debug("Holding in reserve: " + pi);
+    			m_standbyParity.add(pi);
+    		} else {
+    			debug("Expecting: " + pi);
+    			m_expectedParts.put(pi, null);
+    		}
 		}
     }
 
@@ -828,6 +993,20 @@ public class RaidsApp implements Application {
     	m_expectedReassembledFileName = reassembledFileName;
     }
 
+    /**
+     * Expecting the parts to be reassembled into a file with this name, and
+     * someone waiting to use it.
+     * @param reassembledFileName the reassembled file's name.
+     * @param done receives the verified file, or an exception if the
+     * 			download failed.
+     */
+    public void setExpectedReassembledFileName(
+    		String reassembledFileName,
+    		Continuation<File, Exception> done ) {
+    	m_expectedReassembledFileName = reassembledFileName;
+    	m_downloadContinuation = done;
+    }
+
     /**
      * When attempting to download a part from a Node, remove that
      * node from the list so we don't retry that node.
@@ -839,15 +1018,292 @@ public class RaidsApp implements Application {
     }
 
 
+    /**
+     * Ask a node for an expected part, from wherever an earlier attempt,
+     * in this run or an earlier one, got to.  A part this node holds is
+     * simply taken from here.
+     * @param partIndicator the part
+     * @param nh the node
+     */
+    public void requestPart(PartIndicator partIndicator, NodeHandle nh) {
+    	attemptDownloadPartFrom(partIndicator.getPartNum(), nh);
+    	NodeHandle local = m_node.getLocalNodeHandle();
+    	if ( nh.equals(local) ) {
+    		sendDownloadMessage(new DownloadMessage(partIndicator, local), nh);
+    		return;
+    	}
+
+    	PartialDownload partial;
+    	synchronized (m_partials) {
+    		partial = m_partials.get(partIndicator);
+    		if ( partial == null ) {
+    			partial = new PartialDownload(partIndicator, m_partialDir);
+    			m_partials.put(partIndicator, partial);
+    		}
+    	}
+    	long offset = partial.request(nh);
+    	if ( offset > 0 ) {
+    		debug("Resuming " + partIndicator + " from " + offset);
+    	}
+    	sendDownloadMessage(new DownloadMessage(partIndicator, local, offset, DownloadMessage.TO_END), nh);
+    }
+
+
+    /**
+     * Download an expected part in ranges from every node holding it at
+     * once.  A part this node holds itself is simply taken from here.
+     * @param partIndicator the part
+     */
+    public void downloadPartFromAll(final PartIndicator partIndicator) {
+    	int part = partIndicator.getPartNum();
+    	List<NodeHandle> owners = m_expectedPartOwners[part];
+    	final NodeHandle local = m_node.getLocalNodeHandle();
+    	if ( owners.contains(local) ) {
+    		requestPart(partIndicator, local);
+    		return;
+    	}
+
+    	SwarmDownload swarm;
+    	try {
+    		swarm = new SwarmDownload(partIndicator, owners, new SwarmDownload.Requester() {
+    			public void request(NodeHandle peer, long offset, long length) {
+    				sendDownloadMessage(new DownloadMessage(partIndicator, local, offset, length), peer);
+    			}
+    		});
+    	} catch (IOException e) {
+    		e.printStackTrace();
+    		expectedPartDownloaded(partIndicator, null);
+    		return;
+    	}
+    	debug("Downloading " + partIndicator + " from " + owners.size() + " nodes at once");
+    	owners.clear();
+    	synchronized (m_swarms) {
+    		m_swarms.put(partIndicator, swarm);
+    	}
+    	if ( swarm.start() ) {
+    		swarmFinished(swarm);
+    	}
+    }
+
+
+    /**
+     * Find the file a part being downloaded, or a range of it, is written to.
+     * @param partIndicator the part
+     * @return the part's file, null if the part isn't being downloaded
+     */
+    public File getDownloadFile(PartIndicator partIndicator) {
+    	synchronized (m_swarms) {
+    		SwarmDownload swarm = m_swarms.get(partIndicator);
+    		if ( swarm != null ) {
+    			return swarm.getFile();
+    		}
+    	}
+    	synchronized (m_partials) {
+    		PartialDownload partial = m_partials.get(partIndicator);
+    		return ( partial == null ) ? null : partial.getFile();
+    	}
+    }
+
+
+    /**
+     * When an AppSocket has written more of a part being downloaded, and
+     * forced it to disk.  Only whole blocks matching the part's hash tree
+     * are recorded, so a resumed download never skips a corrupt one.
+     * @param partIndicator the part
+     * @param received bytes from the start of the part which have arrived and been checked
+     * @param partLength length of the part
+     */
+    public void downloadProgress(PartIndicator partIndicator, long received, long partLength) {
+    	PartialDownload partial;
+    	synchronized (m_partials) {
+    		partial = m_partials.get(partIndicator);
+    	}
+    	if ( partial == null ) {
+    		return;
+    	}
+    	try {
+    		long verified = verifyBlocks(partIndicator, partial.getFile(), partLength, partial.getReceived(), received);
+    		partial.progress(verified, partLength);
+    	} catch (IOException e) {
+    		e.printStackTrace();
+    	}
+    }
+
+
+    /**
+     * When an AppSocket has written a range of a part, or the rest of it,
+     * into the part's file.  A range with a block not matching the part's
+     * hash tree is asked for again.
+     * @param partIndicator the part
+     * @param offset where the range starts
+     * @param length the range's length
+     * @param partLength the length of the whole part
+     * @param digest SHA1 of the range
+     */
+    public void receivedRange(PartIndicator partIndicator, long offset, long length, long partLength, Digest digest) {
+    	SwarmDownload swarm;
+    	synchronized (m_swarms) {
+    		swarm = m_swarms.get(partIndicator);
+    	}
+    	if ( swarm == null ) {
+    		receivedRest(partIndicator, offset, partLength, digest);
+    		return;
+    	}
+    	long end = offset + length;
+    	if ( isCorrupt(verifyBlocks(partIndicator, swarm.getFile(), partLength, offset, end), end, partLength) ) {
+    		rangeFailed(partIndicator, offset);
+    		return;
+    	}
+    	try {
+    		if ( swarm.rangeReceived(offset, length, partLength) ) {
+    			swarmFinished(swarm);
+    		}
+    	} catch (IOException e) {
+    		e.printStackTrace();
+    		rangeFailed(partIndicator, offset);
+    	}
+    }
+
+
+    /**
+     * When the rest of a part being downloaded from one owner has arrived,
+     * the part is complete.  Only a part sent whole from the start was
+     * hashed on its way.  If a block since the last check doesn't match
+     * the part's hash tree, the part is asked for again from that block.
+     * @param partIndicator the part
+     * @param offset where the transfer started
+     * @param partLength the length of the whole part
+     * @param digest SHA1 of what was transferred
+     */
+    private void receivedRest(PartIndicator partIndicator, long offset, long partLength, Digest digest) {
+    	PartialDownload partial;
+    	synchronized (m_partials) {
+    		partial = m_partials.get(partIndicator);
+    	}
+    	if ( partial == null ) {
+    		return;
+    	}
+    	long verified = verifyBlocks(partIndicator, partial.getFile(), partLength, partial.getReceived(), partLength);
+    	if ( verified < partLength ) {
+    		try {
+    			partial.progress(verified, partLength);
+    		} catch (IOException e) {
+    			e.printStackTrace();
+    		}
+    		expectedPartDownloaded(partIndicator, null);
+    		return;
+    	}
+    	synchronized (m_partials) {
+    		m_partials.remove(partIndicator);
+    	}
+    	partial.finish();
+    	expectedPartDownloaded(partIndicator, partial.getFile(), ( offset == 0 ) ? digest : null);
+    }
+
+
+    /**
+     * When a range of a part failed on its way here.  A part from one owner
+     * is asked for again from where it got to; an owner which got anywhere
+     * may be asked again.
+     * @param partIndicator the part
+     * @param offset where the range starts
+     */
+    public void rangeFailed(PartIndicator partIndicator, long offset) {
+    	SwarmDownload swarm;
+    	synchronized (m_swarms) {
+    		swarm = m_swarms.get(partIndicator);
+    	}
+    	if ( swarm != null ) {
+    		if ( swarm.rangeFailed(offset) ) {
+    			swarmFinished(swarm);
+    		}
+    		return;
+    	}
+
+    	PartialDownload partial;
+    	synchronized (m_partials) {
+    		partial = m_partials.get(partIndicator);
+    	}
+    	if ( partial == null ) {
+    		return;
+    	}
+    	synchronized (m_expectedParts) {
+    		List<NodeHandle> owners = m_expectedPartOwners[ partIndicator.getPartNum() ];
+    		if ( partial.advanced() && !owners.contains(partial.getSource()) ) {
+    			owners.add(partial.getSource());
+    		}
+    	}
+    	receivedFile(partIndicator, null, null);
+    }
+
+
+    /**
+     * A node asked for ranges of a part doesn't have it or can't be reached.
+     * @param partIndicator the part
+     * @param nh the node
+     * @return true if the part is being downloaded from everyone, false if
+     * 			the node was asked for the whole part
+     */
+    private boolean swarmPeerFailed(PartIndicator partIndicator, NodeHandle nh) {
+    	SwarmDownload swarm;
+    	synchronized (m_swarms) {
+    		swarm = m_swarms.get(partIndicator);
+    	}
+    	if ( swarm == null ) {
+    		return false;
+    	}
+    	if ( swarm.peerFailed(nh) ) {
+    		swarmFinished(swarm);
+    	}
+    	return true;
+    }
+
+
+    /**
+     * A part being downloaded from everyone is complete, or no-one is left
+     * to send the rest of it.
+     * @param swarm the part's download
+     */
+    private void swarmFinished(SwarmDownload swarm) {
+    	synchronized (m_swarms) {
+    		m_swarms.remove(swarm.getPartIndicator());
+    	}
+    	if ( swarm.isComplete() ) {
+    		expectedPartDownloaded(swarm.getPartIndicator(), swarm.getFile());
+    	} else {
+    		swarm.getFile().delete();
+    		expectedPartDownloaded(swarm.getPartIndicator(), null);
+    	}
+    }
+
+
     /**
      * When an expected part has been downloaded.
      * @param partIndicator the part that was downloaded
      * @param file file where the date is stored
      */
     public void expectedPartDownloaded(PartIndicator partIndicator, File file) {
+    	expectedPartDownloaded(partIndicator, file, null);
+    }
+
+
+    /**
+     * When an expected part has been downloaded.
+     * @param partIndicator the part that was downloaded
+     * @param file file where the date is stored
+     * @param digest SHA1 of the file, null to hash it if it needs checking
+     */
+    public void expectedPartDownloaded(PartIndicator partIndicator, File file, Digest digest) {
     	File f = file;
     	synchronized (m_expectedParts) {
 
+    		// A corrupt part is no better than none
+    		if ( f != null && !verifyPart(partIndicator, f, digest) ) {
+    			debug("Part " + partIndicator + " failed verification, discarding it.");
+    			f.delete();
+    			f = null;
+    		}
+
     		// If the file was null, then we have to try downloading from someone else
     		if ( f == null ) {
 
@@ -860,8 +1316,7 @@ public class RaidsApp implements Application {
 	    			debug("Expected part was null, sending another download message out!");
 	    			int rand = m_node.getEnvironment().getRandomSource().nextInt(size);
 	    			NodeHandle nh = m_expectedPartOwners[part].get(rand);
-	    			attemptDownloadPartFrom(part, nh);
-	    			sendDownloadMessage(new DownloadMessage(partIndicator, m_node.getLocalNodeHandle()), nh);
+	    			requestPart(partIndicator, nh);
 
 	    			// Break the algorithm, keeping the value in the m_expectedParts
 	    			// null, so we don't think we downloaded the part yet.
@@ -875,6 +1330,20 @@ public class RaidsApp implements Application {
     			debug("AHHHH!  NO-ONE HAS: " + partIndicator + ". Marked as MISSING_FILE!");
 				f = MISSING_FILE;
 
+				// Now the parity is needed, fetch a reserved part in its place
+				while ( !m_standbyParity.isEmpty() ) {
+					PartIndicator parity = m_standbyParity.remove(0);
+					List<NodeHandle> owners = m_expectedPartOwners[parity.getPartNum()];
+					if ( owners.isEmpty() ) {
+						m_expectedParts.put(parity, MISSING_FILE);
+						continue;
+					}
+					debug("Requesting parity part " + parity + " in place of " + partIndicator);
+					m_expectedParts.put(parity, null);
+					requestPart(parity, owners.get(0));
+					break;
+				}
+
     		}
 
     		// Fill in the entry in the expected data structure
@@ -898,6 +1367,81 @@ public class RaidsApp implements Application {
     }
 
 
+    /**
+     * Check a downloaded part against the hash recorded when it was uploaded.
+     * @param partIndicator the part
+     * @param file the downloaded data
+     * @param digest SHA1 of the data, null to hash the file
+     * @return true if the part matches, or there is nothing to check against
+     */
+    private boolean verifyPart(PartIndicator partIndicator, File file, Digest digest) {
+    	if ( m_expectedPartHashes == null || file.equals(MISSING_FILE) ) {
+    		return true;
+    	}
+    	String expected = m_expectedPartHashes[ partIndicator.getPartNum() ];
+    	if ( expected == null ) {
+    		return true;
+    	}
+    	if ( digest == null ) {
+    		return expected.equals( SHA1.getInstance().hash(file) );
+    	}
+    	return Digest.fromHex(expected).equals(digest);
+    }
+
+
+    /**
+     * Check the blocks of a part being downloaded, lying between two
+     * offsets, against the leaves of the part's hash tree.  The first
+     * corrupt block is reported.
+     * @param partIndicator the part
+     * @param file the part's file
+     * @param partLength the length of the whole part
+     * @param from where the data not yet checked starts
+     * @param to where the data written so far ends
+     * @return where the part matches its tree up to, to if there is no
+     * 			tree to check against
+     */
+    private long verifyBlocks(PartIndicator partIndicator, File file, long partLength, long from, long to) {
+    	byte[][] partLeaves = m_expectedPartLeaves;
+    	if ( partLeaves == null || partLeaves[ partIndicator.getPartNum() ] == null
+    			|| partLength == TransferFrame.UNKNOWN_LENGTH ) {
+    		return to;
+    	}
+    	FileChannel channel = null;
+    	try {
+    		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    		long verified = MerkleTree.verify(channel, m_expectedTreeBlockSize,
+    				partLeaves[ partIndicator.getPartNum() ], partLength, from, to);
+    		if ( isCorrupt(verified, to, partLength) ) {
+    			debug("Block at " + verified + " of " + partIndicator + " is corrupt.");
+    		}
+    		return verified;
+    	} catch (IOException e) {
+    		e.printStackTrace();
+    		return from - from % m_expectedTreeBlockSize;
+    	} finally {
+    		try {
+    			if ( channel != null ) {
+    				channel.close();
+    			}
+    		} catch (IOException e) {}
+    	}
+    }
+
+
+    /**
+     * Did the checking of a part's blocks stop at a block which had
+     * arrived whole, rather than at one still arriving.
+     * @param verified where the part matches its tree up to
+     * @param to where the data written so far ends
+     * @param partLength the length of the whole part
+     * @return true if the block at verified is corrupt
+     */
+    private boolean isCorrupt(long verified, long to, long partLength) {
+    	return verified < to && Math.min(verified + m_expectedTreeBlockSize, partLength) <= to;
+    }
+
+
     /**
      * Called when all of the expected parts are potentially downloaded,
      * meaning we should have everything we need!  First, check to make
@@ -914,44 +1458,57 @@ public class RaidsApp implements Application {
 			}
 		}
 
-    	// Too many missing files to reassemble
-    	if (missingFiles > 1) {
-    		debug("TOO MANY MISSING FILES. YOU'RE DOOMED.");
-    		m_expectedReassembledFileName = null;
-        	m_expectedParts.clear();
-        	removeTempFileParts();
-    		return;
-    	}
-
-    	// All Good
-    	debug("ENOUGH PARTS SUCCESSFULLY DOWNLOADED!!!!");
+    	debug( missingFiles + " PARTS COULD NOT BE DOWNLOADED." );
 
-    	// Reassemble file
-    	int numberOfChunks = m_expectedParts.size();
+    	// Reassemble file, parity parts that were never needed stay missing.
+    	// Parts are wherever they were downloaded or held, resumable downloads,
+    	// swarms and our own parts each in their own directory, so every
+    	// chunk is named by its whole path
+    	int numberOfChunks = m_expectedPartOwners.length;
     	String[] fileChunks = new String[ numberOfChunks ];
-    	String iPath = null;
+    	String iPath = "";
     	String outPath = System.getProperty("user.home") + File.separatorChar;
 
+    	File partDir = null;
     	Set<Entry<PartIndicator, File>> partsAndFiles = m_expectedParts.entrySet();
     	for( Entry<PartIndicator, File> entry : partsAndFiles ) {
     		PartIndicator pi = entry.getKey();
     		File file = entry.getValue();
-    		fileChunks[ pi.getPartNum() ] = file.getName();
-    		if( iPath == null ) {
-    			iPath = file.getParentFile().getAbsolutePath() + File.separatorChar;
+    		if( file == null ) {
+    			continue;
+    		}
+    		fileChunks[ pi.getPartNum() ] = file.getAbsolutePath();
+    		if( partDir == null ) {
+    			partDir = file.getAbsoluteFile().getParentFile();
+    		}
+    	}
+    	for (int i = 0; i < numberOfChunks; i++) {
+    		if ( fileChunks[i] == null ) {
+    			fileChunks[i] = new File(partDir, MISSING_PART_PREFIX + i).getAbsolutePath();
     		}
     	}
 
-    	debug( "Path to chunks: " + iPath );
     	for( String s : fileChunks ) {
     		debug( "Chunks to assemble: " + s );
     	}
 
-    	Chunker.reassemble(
-    			iPath,
-    			fileChunks,
-    			outPath,
-    			m_expectedReassembledFileName );
+    	// The chunks know how many missing parts they can survive,
+    	// rebuilding missing parts goes through mapped files
+    	try {
+    		int threads = Runtime.getRuntime().availableProcessors();
+    		if ( missingFiles > 0 ) {
+    			Chunker.reassembleMapped(iPath, fileChunks, outPath, m_expectedReassembledFileName, threads);
+    		} else {
+    			Chunker.reassemble(iPath, fileChunks, outPath, m_expectedReassembledFileName, threads);
+    		}
+    	} catch( IllegalArgumentException e ) {
+    		debug("TOO MANY MISSING FILES. YOU'RE DOOMED.");
+    		downloadFinished( null, "Too many parts are missing." );
+    		return;
+    	}
+
+    	// All Good
+    	debug("ENOUGH PARTS SUCCESSFULLY DOWNLOADED!!!!");
 
     	debug( String.format(
     			"FINISHED ASSEMBLING FILE TO '%s'.",
@@ -961,29 +1518,31 @@ public class RaidsApp implements Application {
     	File reassembledFile = new File( outPath + m_expectedReassembledFileName );
     	if( !reassembledFile.exists() ) {
     		debug( "REASSEMBLED FILE DOESN'T EXIST!  ERROR OCCURRED SOMEWHERE!");
-    	   	m_expectedReassembledFileName = null;
-        	m_expectedParts.clear();
-        	removeTempFileParts();
+    		downloadFinished( null, "The file could not be reassembled." );
     		return;
     	}
 
-    	// Verify hash after assembly
-    	String originalHash = m_personalFileList.get(
+    	// Verify hash after assembly, by its hash tree on every core if it has one
+    	PersonalFileInfo info = m_personalFileList.get(
     			m_personalFileList.indexOf(
     					new PersonalFileInfo(
     							m_expectedReassembledFileName,
-    							null ) ) ).getHash();
-
-    	String reassembledHash = SHA1.getInstance().hash( reassembledFile );
+    							null ) ) );
+    	String originalHash = info.getHash();
+    	String reassembledHash;
+    	if ( info.getTreeRoot() != null ) {
+    		originalHash = info.getTreeRoot();
+    		reassembledHash = hashTree( reassembledFile, info.getTreeBlockSize() );
+    	} else {
+    		reassembledHash = SHA1.getInstance().hash( reassembledFile );
+    	}
 
     	debug( String.format(
     			"Original hash: '%s' new hash: '%s'\n", originalHash, reassembledHash ) );
 
-    	if( !reassembledHash.equals( originalHash ) ) {
+    	if( reassembledHash == null || !reassembledHash.equals( originalHash ) ) {
     		debug( "REASSEMBLED FILE'S HASH IS INCORRECT!  RECOMMENDATION: ATTEMPT REDOWNLOAD" );
-    	   	m_expectedReassembledFileName = null;
-        	m_expectedParts.clear();
-        	removeTempFileParts();
+    		downloadFinished( null, "The reassembled file's hash is incorrect." );
     		return;
     	}
 
@@ -991,9 +1550,68 @@ public class RaidsApp implements Application {
     			"DOWNLOAD, REASSEMBLY AND VERIFICATION COMPLETE FOR: '%s'",
     			reassembledFile.getAbsolutePath() ) );
 
+    	downloadFinished( reassembledFile, null );
+    }
+
+    /**
+     * Root of a file's hash tree, built on every core.
+     * @param file the file
+     * @param blockSize size of the tree's blocks
+     * @return the hex root hash, null if the file cannot be read
+     */
+    public static String hashTree(File file, int blockSize) {
+    	FileInputStream in = null;
+    	try {
+    		in = new FileInputStream(file);
+    		return MerkleTree.build(in.getChannel(), blockSize, Runtime.getRuntime().availableProcessors()).getRootHex();
+    	} catch (IOException e) {
+    		e.printStackTrace();
+    		return null;
+    	} finally {
+    		try {
+    			if ( in != null ) {
+    				in.close();
+    			}
+    		} catch (IOException e) {}
+    	}
+    }
+
+    /**
+     * Clear the state of a finished download and tell whoever is waiting.
+     * @param file the reassembled file, null if the download failed
+     * @param failure why the download failed, null if it succeeded
+     */
+    private void downloadFinished(File file, String failure) {
     	m_expectedReassembledFileName = null;
     	m_expectedParts.clear();
     	removeTempFileParts();
+    	synchronized (m_swarms) {
+    		for (SwarmDownload swarm : m_swarms.values()) {
+    			swarm.getFile().delete();
+    		}
+    		m_swarms.clear();
+    	}
+
+    	// Parts of a failed download are kept, to be picked up by the next try
+    	synchronized (m_partials) {
+    		for (PartialDownload partial : m_partials.values()) {
+    			if ( failure == null ) {
+    				partial.discard();
+    			}
+    		}
+    		m_partials.clear();
+    	}
+
+    	Continuation<File, Exception> done = m_downloadContinuation;
+    	m_downloadContinuation = null;
+    	if ( done == null ) {
+    		return;
+    	}
+    	if ( failure == null ) {
+    		done.receiveResult(file);
+    	} else {
+    		done.receiveException(new IOException(failure));
+    	}
     }
 
     /**
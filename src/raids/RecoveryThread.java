@@ -1,13 +1,11 @@
 package raids;
 
 import java.io.File;
-import java.nio.ByteBuffer;
 import java.util.List;
 
 import rice.environment.Environment;
 import rice.p2p.commonapi.Id;
 import rice.p2p.commonapi.NodeHandle;
-import util.BufferUtils;
 
 /**
  * Recovers from the loss of a node holding a particular chunk of a file.  This
@@ -73,7 +71,7 @@ public class RecoveryThread extends Thread {
 		// Fortunately, our algorithm right now assumes you always have
 		// enough space... But in the real world, this wouldn't be available.
 		// TODO: Somehow know how big the file needs to be? Store in MasterListMessage and then Inventory?
-		int size = (file == null) ? 0 : (int)file.length();
+		long size = (file == null) ? 0 : file.length();
 
 
 		// Multicast for Available Space, get 1 node back
@@ -110,9 +108,7 @@ public class RecoveryThread extends Thread {
 		if ( file == null ) {
 			System.out.println(">>> We don't even have the file... HANDLE THIS LATER.");
 		} else {
-			ByteBuffer buf = BufferUtils.getBufferForFile(file.getAbsolutePath(), size+PartIndicator.SIZE, m_part);
-			buf.flip();
-			m_delegate.sendBufferToNode(buf, choosen);
+			m_delegate.sendFileToNode(m_part, file, choosen);
 			System.out.println(">>> Sent the File Data to " + choosen.getId().toStringFull());
 		}
 
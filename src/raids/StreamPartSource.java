@@ -0,0 +1,98 @@
+package raids;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+import util.Digest;
+
+/**
+ * A part sent while it is being produced, framing every buffer of a
+ * PartStream as blocks as the producer hands them over.  The part's length
+ * is not known until the stream ends, so none is declared.
+ *
+ * @author Joseph Pecoraro
+ */
+public class StreamPartSource implements PartSource {
+
+//	Fields
+
+	/** The stream of data being sent */
+	private PartStream m_stream;
+
+	/** Framed bytes not yet taken */
+	private ByteBuffer m_pending;
+
+	/** Checksum of the blocks */
+	private CRC32C m_crc;
+
+	/** Set once the end of the frame is pending */
+	private boolean m_ended;
+
+
+	/**
+	 * Basic constructor
+	 * @param stream the part to send
+	 */
+	public StreamPartSource(PartStream stream) {
+		m_stream = stream;
+		m_crc = new CRC32C();
+		m_ended = false;
+		m_pending = ByteBuffer.allocate(TransferFrame.HEADER_SIZE);
+		TransferFrame.putHeader(m_pending, stream.getPartIndicator(), TransferFrame.UNKNOWN_LENGTH);
+		m_pending.flip();
+	}
+
+
+	/**
+	 * Take the next bytes of the frame, framing the next buffer from the
+	 * producer once the last has all been taken.
+	 * @param wakeup run when the producer hands over a buffer after this
+	 * 			returned null
+	 * @return at most a chunk of the frame, empty once it has all been
+	 * 			taken, or null when the producer hasn't caught up
+	 */
+	public ByteBuffer next(Runnable wakeup) {
+		if ( !m_pending.hasRemaining() ) {
+			if ( m_ended ) {
+				return m_pending;
+			}
+
+			// Nothing yet, End of the Stream, or more data
+			ByteBuffer buf = m_stream.poll(wakeup);
+			if ( buf == null ) {
+				return null;
+			} else if ( !buf.hasRemaining() ) {
+				m_pending = ByteBuffer.allocate(TransferFrame.END_SIZE);
+				TransferFrame.putEnd(m_pending, Digest.fromHex( m_stream.getHash() ));
+				m_pending.flip();
+				m_ended = true;
+			} else {
+				m_pending = TransferFrame.blocks(buf, m_crc);
+			}
+		}
+
+		// Hand over the next chunk
+		ByteBuffer chunk = m_pending.duplicate();
+		chunk.limit( chunk.position() + Math.min(chunk.remaining(), TransferFrame.CHUNK_SIZE) );
+		m_pending.position( chunk.limit() );
+		return chunk;
+	}
+
+
+	/**
+	 * The transfer failed, stop the producer
+	 */
+	public void abort() {
+		m_stream.abort();
+	}
+
+
+	/**
+	 * Obtains the part being sent.
+	 * @return the part.
+	 */
+	public PartIndicator getPartIndicator() {
+		return m_stream.getPartIndicator();
+	}
+
+}
@@ -0,0 +1,460 @@
+package raids;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import rice.p2p.commonapi.NodeHandle;
+
+/**
+ * Downloads one part from every node holding it at once.  The part is split
+ * into ranges and each peer is kept asked for a couple of them; a peer gets
+ * its next range only when one it was asked for arrives, so the fastest
+ * peers end up sending the most of the part.  Once every range has been
+ * asked for, idle peers are asked for ranges still in flight elsewhere, and
+ * whichever copy arrives first is kept, so a slow peer can't hold up the
+ * end of the part.
+ *
+ * Ranges are written straight into one file by the connections they arrive
+ * on.  The part's length is learned from the first range to arrive, until
+ * then ranges are asked for one after another.  A peer which doesn't have
+ * the part or fails a range is dropped, its ranges going to the others.
+ *
+ * @author Joseph Pecoraro
+ */
+public class SwarmDownload {
+
+//	Constants
+
+	/** Size of the ranges a part is split into */
+	public static final int RANGE_SIZE = 1024*1024; /* 1 megabyte */
+
+	/** Ranges each peer is asked for at once, so none waits between ranges */
+	private static final int REQUESTS_PER_PEER = 2;
+
+	/** Tempfile Prefix */
+	private static final String TEMP_PREFIX = "RAIDS-swarm-";
+
+	/** Tempfile Suffix */
+	private static final String TEMP_SUFFIX = ".tmp";
+
+
+//	Inner Classes
+
+	/**
+	 * A range to ask a peer for
+	 */
+	private static class Request {
+
+		/** The peer */
+		private NodeHandle m_peer;
+
+		/** Where the range starts */
+		private long m_offset;
+
+		/**
+		 * Basic Constructor
+		 * @param peer the peer
+		 * @param offset where the range starts
+		 */
+		public Request(NodeHandle peer, long offset) {
+			m_peer = peer;
+			m_offset = offset;
+		}
+
+	}
+
+
+	/**
+	 * Asks a peer for a range of the part
+	 */
+	public interface Requester {
+
+		/**
+		 * Ask a peer for a range
+		 * @param peer the peer
+		 * @param offset where the range starts
+		 * @param length the range's length
+		 */
+		public void request(NodeHandle peer, long offset, long length);
+
+	}
+
+
+//	Fields
+
+	/** The part */
+	private PartIndicator m_partIndicator;
+
+	/** Where the part is written */
+	private File m_file;
+
+	/** Sends the requests */
+	private Requester m_requester;
+
+	/** Length of the part, TransferFrame.UNKNOWN_LENGTH until a range arrives */
+	private long m_partLength;
+
+	/** Peers still taking part */
+	private List<NodeHandle> m_peers;
+
+	/** Ranges each peer has been asked for and not yet sent */
+	private Map<NodeHandle, Integer> m_outstanding;
+
+	/** Peers asked for each range in flight, by offset */
+	private TreeMap<Long, List<NodeHandle>> m_inFlight;
+
+	/** Ranges to ask for, by offset */
+	private TreeSet<Long> m_pending;
+
+	/** Ranges written, by offset */
+	private Set<Long> m_done;
+
+	/** Next range to ask for while the length is unknown */
+	private long m_nextOffset;
+
+	/** Set once the part is complete, or no peer is left */
+	private boolean m_finished;
+
+
+	/**
+	 * Basic Constructor
+	 * @param partIndicator the part
+	 * @param peers the nodes holding the part
+	 * @param requester sends the requests
+	 * @throws IOException when the part's file cannot be created
+	 */
+	public SwarmDownload(PartIndicator partIndicator, List<NodeHandle> peers, Requester requester) throws IOException {
+		m_partIndicator = partIndicator;
+		m_file = File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX);
+		m_requester = requester;
+		m_partLength = TransferFrame.UNKNOWN_LENGTH;
+		m_peers = new ArrayList<NodeHandle>(peers);
+		m_outstanding = new HashMap<NodeHandle, Integer>();
+		m_inFlight = new TreeMap<Long, List<NodeHandle>>();
+		m_pending = new TreeSet<Long>();
+		m_done = new HashSet<Long>();
+		m_nextOffset = 0;
+		m_finished = false;
+		for (NodeHandle peer : m_peers) {
+			m_outstanding.put(peer, 0);
+		}
+	}
+
+
+// Events
+
+	/**
+	 * Ask every peer for its first ranges
+	 * @return true if there was no-one to ask
+	 */
+	public boolean start() {
+		List<Request> requests = new ArrayList<Request>();
+		boolean finished;
+		synchronized (this) {
+			for (NodeHandle peer : m_peers) {
+				askMore(peer, requests);
+			}
+			finished = checkFinished();
+		}
+		send(requests);
+		return finished;
+	}
+
+
+	/**
+	 * A range has been written to the file
+	 * @param offset where the range starts
+	 * @param length the range's length
+	 * @param partLength the length of the whole part
+	 * @return true once the part is complete, or no peer is left
+	 * @throws IOException when the file cannot be extended to the part's length
+	 */
+	public boolean rangeReceived(long offset, long length, long partLength) throws IOException {
+		List<Request> requests = new ArrayList<Request>();
+		boolean finished;
+		synchronized (this) {
+			if ( m_finished ) {
+				return false;
+			}
+			boolean learned = false;
+			if ( m_partLength == TransferFrame.UNKNOWN_LENGTH ) {
+				learnLength(partLength);
+				learned = true;
+			}
+
+			// A late copy of a range already written changes nothing,
+			// unless the length it brought freed the peers asked past the end
+			List<NodeHandle> peers = m_inFlight.remove(offset);
+			if ( peers == null && !learned ) {
+				return false;
+			}
+			if ( peers != null ) {
+				if ( length == Math.max(0, Math.min(RANGE_SIZE, m_partLength - offset)) ) {
+					if ( offset < m_partLength ) {
+						m_done.add(offset);
+					}
+				} else {
+					retry(offset);
+				}
+
+				// Everyone asked for it may ask for more
+				for (NodeHandle peer : peers) {
+					release(peer);
+				}
+			}
+			for (NodeHandle peer : m_peers) {
+				askMore(peer, requests);
+			}
+			finished = checkFinished();
+		}
+		send(requests);
+		return finished;
+	}
+
+
+	/**
+	 * A range failed part way.  A range asked of one peer is that peer's
+	 * fault, which is dropped.
+	 * @param offset where the range starts
+	 * @return true once no peer is left
+	 */
+	public boolean rangeFailed(long offset) {
+		List<Request> requests = new ArrayList<Request>();
+		boolean finished;
+		synchronized (this) {
+			List<NodeHandle> peers = m_inFlight.remove(offset);
+			if ( m_finished || peers == null ) {
+				return false;
+			}
+			retry(offset);
+			for (NodeHandle peer : peers) {
+				release(peer);
+			}
+			if ( peers.size() == 1 ) {
+				drop(peers.get(0));
+			}
+			for (NodeHandle peer : m_peers) {
+				askMore(peer, requests);
+			}
+			finished = checkFinished();
+		}
+		send(requests);
+		return finished;
+	}
+
+
+	/**
+	 * A peer doesn't have the part, or can't be reached.  Its ranges go to
+	 * the others.
+	 * @param peer the peer
+	 * @return true once no peer is left
+	 */
+	public boolean peerFailed(NodeHandle peer) {
+		List<Request> requests = new ArrayList<Request>();
+		boolean finished;
+		synchronized (this) {
+			if ( m_finished || !m_peers.contains(peer) ) {
+				return false;
+			}
+			drop(peer);
+			for (NodeHandle other : m_peers) {
+				askMore(other, requests);
+			}
+			finished = checkFinished();
+		}
+		send(requests);
+		return finished;
+	}
+
+
+// Scheduling
+
+	/**
+	 * Ask a peer for ranges until it has been asked for as many as it may
+	 * @param peer the peer
+	 * @param requests gathers the requests to send
+	 */
+	private void askMore(NodeHandle peer, List<Request> requests) {
+		while ( m_outstanding.get(peer) < REQUESTS_PER_PEER ) {
+			Long offset = nextRange(peer);
+			if ( offset == null ) {
+				return;
+			}
+			List<NodeHandle> peers = m_inFlight.get(offset);
+			if ( peers == null ) {
+				peers = new ArrayList<NodeHandle>();
+				m_inFlight.put(offset, peers);
+			}
+			peers.add(peer);
+			m_outstanding.put(peer, m_outstanding.get(peer) + 1);
+			requests.add(new Request(peer, offset));
+		}
+	}
+
+
+	/**
+	 * Choose the range to ask a peer for next: the first not yet asked for,
+	 * otherwise the one in flight with the fewest peers asked
+	 * @param peer the peer
+	 * @return the range's offset, null if there is nothing to ask it for
+	 */
+	private Long nextRange(NodeHandle peer) {
+		if ( !m_pending.isEmpty() ) {
+			return m_pending.pollFirst();
+		}
+		if ( m_partLength == TransferFrame.UNKNOWN_LENGTH ) {
+			long offset = m_nextOffset;
+			m_nextOffset += RANGE_SIZE;
+			return offset;
+		}
+		Long best = null;
+		for (Map.Entry<Long, List<NodeHandle>> entry : m_inFlight.entrySet()) {
+			if ( entry.getValue().contains(peer) ) {
+				continue;
+			}
+			if ( best == null || entry.getValue().size() < m_inFlight.get(best).size() ) {
+				best = entry.getKey();
+			}
+		}
+		return best;
+	}
+
+
+	/**
+	 * Split the part into ranges once its length is known, and reserve its
+	 * space in the file.  Ranges asked for past the end are forgotten, and
+	 * the peers asked for them may ask for more.
+	 * @param partLength the length of the part
+	 * @throws IOException when the file cannot be extended
+	 */
+	private void learnLength(long partLength) throws IOException {
+		m_partLength = partLength;
+		for (long offset = 0; offset < partLength; offset += RANGE_SIZE) {
+			if ( !m_inFlight.containsKey(offset) && !m_done.contains(offset) ) {
+				m_pending.add(offset);
+			}
+		}
+		for (Long offset : new ArrayList<Long>(m_pending)) {
+			if ( offset >= partLength ) {
+				m_pending.remove(offset);
+			}
+		}
+		for (Long offset : new ArrayList<Long>(m_inFlight.tailMap(partLength).keySet())) {
+			for (NodeHandle peer : m_inFlight.remove(offset)) {
+				release(peer);
+			}
+		}
+		RandomAccessFile raf = new RandomAccessFile(m_file, "rw");
+		try {
+			raf.setLength(partLength);
+		} finally {
+			raf.close();
+		}
+	}
+
+
+	/**
+	 * Ask for a range again, unless it lies past the end of the part
+	 * @param offset where the range starts
+	 */
+	private void retry(long offset) {
+		if ( m_partLength == TransferFrame.UNKNOWN_LENGTH || offset < m_partLength ) {
+			m_pending.add(offset);
+		}
+	}
+
+
+	/**
+	 * A peer is no longer working on one of its ranges
+	 * @param peer the peer
+	 */
+	private void release(NodeHandle peer) {
+		Integer outstanding = m_outstanding.get(peer);
+		if ( outstanding != null && outstanding > 0 ) {
+			m_outstanding.put(peer, outstanding - 1);
+		}
+	}
+
+
+	/**
+	 * Stop asking a peer for anything, handing back the ranges only it
+	 * was asked for
+	 * @param peer the peer
+	 */
+	private void drop(NodeHandle peer) {
+		m_peers.remove(peer);
+		m_outstanding.remove(peer);
+		for (Long offset : new ArrayList<Long>(m_inFlight.keySet())) {
+			List<NodeHandle> peers = m_inFlight.get(offset);
+			if ( peers.remove(peer) && peers.isEmpty() ) {
+				m_inFlight.remove(offset);
+				retry(offset);
+			}
+		}
+	}
+
+
+	/**
+	 * Check whether the part is complete, or no peer is left to finish it
+	 * @return true the first time either is so
+	 */
+	private boolean checkFinished() {
+		if ( m_finished ) {
+			return false;
+		}
+		m_finished = isComplete() || m_peers.isEmpty();
+		return m_finished;
+	}
+
+
+	/**
+	 * Send the requests gathered, outside the lock as a failed send
+	 * reports straight back
+	 * @param requests the requests
+	 */
+	private void send(List<Request> requests) {
+		for (Request request : requests) {
+			m_requester.request(request.m_peer, request.m_offset, RANGE_SIZE);
+		}
+	}
+
+
+// Getters
+
+	/**
+	 * Has every range been written
+	 * @return true once the whole part is in the file
+	 */
+	public synchronized boolean isComplete() {
+		if ( m_partLength == TransferFrame.UNKNOWN_LENGTH ) {
+			return false;
+		}
+		return m_done.size() == (m_partLength + RANGE_SIZE - 1) / RANGE_SIZE;
+	}
+
+	/**
+	 * Obtains the file the part is written to.
+	 * @return the file.
+	 */
+	public File getFile() {
+		return m_file;
+	}
+
+	/**
+	 * Obtains the part being downloaded.
+	 * @return the part.
+	 */
+	public PartIndicator getPartIndicator() {
+		return m_partIndicator;
+	}
+
+}
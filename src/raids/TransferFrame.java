@@ -0,0 +1,573 @@
+package raids;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.zip.CRC32C;
+
+import util.BufferUtils;
+import util.Digest;
+import util.SHA1;
+
+/**
+ * The framing of a part sent over an AppSocket.
+ *
+ * A transfer starts with a header: the frame version, flags, the
+ * PartIndicator, the part's total length (UNKNOWN_LENGTH while it is still
+ * being produced) and the largest block.  The data follows as blocks, each
+ * its length, its bytes and, with FLAG_BLOCK_CHECKSUMS, a CRC32C of them.
+ * A zero length block ends the data, followed with FLAG_DIGEST by the
+ * SHA-1 of the whole part.
+ *
+ * With FLAG_RANGE the frame carries only part of the part: the header is
+ * followed by the range's offset and the whole part's length, the length
+ * in the header is the range's, and the SHA-1 at the end is of the range.
+ * An empty range may start anywhere, answering a request past the end.
+ *
+ * A receiver therefore knows a transfer is complete only when it sees the
+ * end, so a connection closed early is never mistaken for a shorter part,
+ * and a corrupt block is noticed as soon as it arrives.
+ *
+ * Several frames share one connection to a peer by being cut into chunks,
+ * each the id of its transfer on that connection and its length, so the
+ * chunks of different parts can be interleaved.  A chunk length of
+ * CANCELLED abandons a transfer part way.
+ *
+ * @author Joseph Pecoraro
+ */
+public class TransferFrame {
+
+//	Constants
+
+	/** Version of the framing written */
+	public static final byte VERSION = 1;
+
+	/** Blocks carry a CRC32C of their bytes */
+	public static final byte FLAG_BLOCK_CHECKSUMS = 0x01;
+
+	/** The end is followed by the SHA-1 of the part */
+	public static final byte FLAG_DIGEST = 0x02;
+
+	/** The frame carries a range of the part */
+	public static final byte FLAG_RANGE = 0x04;
+
+	/** Every flag this version understands */
+	private static final byte KNOWN_FLAGS = FLAG_BLOCK_CHECKSUMS | FLAG_DIGEST | FLAG_RANGE;
+
+	/** Length declared for a part still being produced */
+	public static final long UNKNOWN_LENGTH = -1;
+
+	/** Largest block written */
+	public static final int BLOCK_SIZE = 64*1024; /* 64 kilobytes */
+
+	/** Byte Size of the header */
+	public static final int HEADER_SIZE = 1+1+PartIndicator.SIZE+8+4; /* version, flags, part, length, block size */
+
+	/** Byte Size of the range following the header of a range */
+	public static final int RANGE_SIZE = 8+8; /* offset + part length */
+
+	/** Bytes a block adds to its data */
+	public static final int BLOCK_OVERHEAD = 4+4; /* length + CRC32C */
+
+	/** Byte Size of the end of the data */
+	public static final int END_SIZE = 4+Digest.SIZE; /* zero length + SHA1 */
+
+	/** Largest chunk of a frame sent before another transfer gets a turn */
+	public static final int CHUNK_SIZE = 64*1024; /* 64 kilobytes */
+
+	/** Byte Size of a chunk's header */
+	public static final int CHUNK_HEADER_SIZE = 4+4; /* transfer id + length */
+
+	/** Chunk length which abandons a transfer */
+	public static final int CANCELLED = -1;
+
+
+//	Inner Classes
+
+	/**
+	 * Reads a frame as it arrives in pieces of any size, writing the
+	 * part's data to a channel and checking it on the way.  A block with a
+	 * checksum is held until its checksum has arrived and matched, so
+	 * corrupt data is never written.
+	 */
+	public static class Decoder {
+
+		/** Reading the header */
+		private static final int HEADER = 0;
+
+		/** Reading the range */
+		private static final int RANGE = 1;
+
+		/** Reading a block's length */
+		private static final int LENGTH = 2;
+
+		/** Reading a block's data */
+		private static final int DATA = 3;
+
+		/** Reading a block's checksum */
+		private static final int CHECKSUM = 4;
+
+		/** Reading the part's SHA-1 */
+		private static final int DIGEST = 5;
+
+		/** The frame has ended */
+		private static final int DONE = 6;
+
+		/** Where the part's data is written */
+		private WritableByteChannel m_out;
+
+		/** What is being read */
+		private int m_state;
+
+		/** The header or field being read */
+		private ByteBuffer m_field;
+
+		/** Flags of the frame */
+		private byte m_flags;
+
+		/** The part, null until the header is read */
+		private PartIndicator m_partIndicator;
+
+		/** Declared length of the part, or of the range */
+		private long m_length;
+
+		/** Offset of the range in the part, 0 for a whole part */
+		private long m_offset;
+
+		/** Declared length of the whole part */
+		private long m_partLength;
+
+		/** Declared largest block */
+		private int m_blockSize;
+
+		/** Bytes of the block being read still to come */
+		private int m_blockRemaining;
+
+		/** Number of blocks read */
+		private long m_blocks;
+
+		/** Bytes of data received */
+		private long m_received;
+
+		/** Bytes of data received in blocks which passed their checksums */
+		private long m_checked;
+
+		/** Checksum of the block being read */
+		private CRC32C m_crc;
+
+		/** The block being read, held until its checksum matches, null without checksums */
+		private ByteBuffer m_block;
+
+		/** Digest of all the data */
+		private MessageDigest m_digest;
+
+		/** SHA-1 of the data, known once the frame ends */
+		private Digest m_result;
+
+		/**
+		 * Constructor
+		 * @param out where the part's data is written, null to set it
+		 * 			once the header has been read
+		 */
+		public Decoder(WritableByteChannel out) {
+			m_out = out;
+			m_state = HEADER;
+			m_field = ByteBuffer.allocate(HEADER_SIZE);
+			m_partIndicator = null;
+			m_length = UNKNOWN_LENGTH;
+			m_offset = 0;
+			m_partLength = UNKNOWN_LENGTH;
+			m_received = 0;
+			m_checked = 0;
+			m_blocks = 0;
+			m_crc = new CRC32C();
+			m_block = null;
+			m_digest = SHA1.newDigest();
+			m_result = null;
+		}
+
+		/**
+		 * Consume the next bytes of the frame.  Bytes after the end of the
+		 * frame are left in the buffer.
+		 * @param in bytes received
+		 * @return true once the frame has ended
+		 * @throws IOException when the frame is malformed, the data does not
+		 * 			match its checksums or the output fails
+		 */
+		public boolean consume(ByteBuffer in) throws IOException {
+			while ( in.hasRemaining() && m_state != DONE ) {
+				switch ( m_state ) {
+				case HEADER:
+				case RANGE:
+					consumeHeader(in);
+					break;
+				case LENGTH:
+					if ( fill(in) ) {
+						readLength( m_field.getInt() );
+					}
+					break;
+				case DATA:
+					readData(in);
+					break;
+				case CHECKSUM:
+					if ( fill(in) ) {
+						if ( m_field.getInt() != (int) m_crc.getValue() ) {
+							throw new IOException("Block " + m_blocks + " of " + m_partIndicator + " is corrupt.");
+						}
+						m_block.flip();
+						BufferUtils.writeFully(m_out, m_block);
+						m_block.clear();
+						m_blocks++;
+						m_checked = m_received;
+						expect(LENGTH, 4);
+					}
+					break;
+				case DIGEST:
+					if ( fill(in) ) {
+						if ( !Digest.read(m_field).equals(m_result) ) {
+							throw new IOException(m_partIndicator + " does not match the SHA1 it was sent with.");
+						}
+						m_state = DONE;
+					}
+					break;
+				}
+			}
+			return m_state == DONE;
+		}
+
+		/**
+		 * Consume only as far as the end of the header and range, so where
+		 * the data goes can depend on them
+		 * @param in bytes received
+		 * @return true once the header has been read
+		 * @throws IOException when the header is malformed
+		 */
+		public boolean consumeHeader(ByteBuffer in) throws IOException {
+			if ( m_state == HEADER && fill(in) ) {
+				readHeader();
+				if ( isRange() ) {
+					expect(RANGE, RANGE_SIZE);
+				} else {
+					expect(LENGTH, 4);
+				}
+			}
+			if ( m_state == RANGE && fill(in) ) {
+				m_offset = m_field.getLong();
+				m_partLength = m_field.getLong();
+				if ( m_length == UNKNOWN_LENGTH || m_offset < 0
+						|| (m_length > 0 && m_offset + m_length > m_partLength) ) {
+					throw new IOException("Malformed range of " + m_partIndicator + ".");
+				}
+				expect(LENGTH, 4);
+			}
+			return hasHeader();
+		}
+
+		/**
+		 * Parse the header just read
+		 * @throws IOException when the header is not one this understands
+		 */
+		private void readHeader() throws IOException {
+			byte version = m_field.get();
+			m_flags = m_field.get();
+			if ( version != VERSION || (m_flags & ~KNOWN_FLAGS) != 0 ) {
+				throw new IOException("Unsupported transfer version " + version + " with flags " + m_flags + ".");
+			}
+			m_partIndicator = PartIndicator.read(m_field);
+			m_length = m_field.getLong();
+			m_partLength = m_length;
+			m_blockSize = m_field.getInt();
+			if ( m_length < UNKNOWN_LENGTH || m_blockSize <= 0
+					|| ((m_flags & FLAG_BLOCK_CHECKSUMS) != 0 && m_blockSize > BLOCK_SIZE) ) {
+				throw new IOException("Malformed transfer header for " + m_partIndicator + ".");
+			}
+			if ( (m_flags & FLAG_BLOCK_CHECKSUMS) != 0 ) {
+				m_block = ByteBuffer.allocate(m_blockSize);
+			}
+		}
+
+		/**
+		 * Start a block, or finish at the end of the data
+		 * @param length the block's length
+		 * @throws IOException when the length is impossible
+		 */
+		private void readLength(int length) throws IOException {
+			if ( length < 0 || length > m_blockSize
+					|| (m_length != UNKNOWN_LENGTH && m_received + length > m_length) ) {
+				throw new IOException("Malformed block " + m_blocks + " of " + m_partIndicator + ".");
+			}
+			if ( length > 0 ) {
+				m_blockRemaining = length;
+				m_crc.reset();
+				m_state = DATA;
+				return;
+			}
+
+			// The end, there must have been as much data as declared
+			if ( m_length != UNKNOWN_LENGTH && m_received != m_length ) {
+				throw new IOException(m_partIndicator + " ended after " + m_received + " of " + m_length + " bytes.");
+			}
+			m_result = Digest.fromBytes( m_digest.digest() );
+			if ( (m_flags & FLAG_DIGEST) != 0 ) {
+				expect(DIGEST, Digest.SIZE);
+			} else {
+				m_state = DONE;
+			}
+		}
+
+		/**
+		 * Write as much of the block's data as has arrived, or hold it
+		 * until the block's checksum arrives
+		 * @param in bytes received
+		 * @throws IOException when the output fails
+		 */
+		private void readData(ByteBuffer in) throws IOException {
+			int n = Math.min(in.remaining(), m_blockRemaining);
+			ByteBuffer data = in.duplicate();
+			data.limit( data.position() + n );
+			m_crc.update( data.duplicate() );
+			m_digest.update( data.duplicate() );
+			if ( m_block != null ) {
+				m_block.put(data);
+			} else {
+				BufferUtils.writeFully(m_out, data);
+			}
+			in.position( in.position() + n );
+			m_received += n;
+			m_blockRemaining -= n;
+			if ( m_blockRemaining == 0 ) {
+				if ( (m_flags & FLAG_BLOCK_CHECKSUMS) != 0 ) {
+					expect(CHECKSUM, 4);
+				} else {
+					m_blocks++;
+					m_checked = m_received;
+					expect(LENGTH, 4);
+				}
+			}
+		}
+
+		/**
+		 * Move to reading a fixed size field
+		 * @param state what the field is
+		 * @param size size of the field
+		 */
+		private void expect(int state, int size) {
+			m_state = state;
+			m_field.clear().limit(size);
+		}
+
+		/**
+		 * Copy bytes into the field being read
+		 * @param in bytes received
+		 * @return true once the field is complete, flipped ready to read
+		 */
+		private boolean fill(ByteBuffer in) {
+			int n = Math.min(in.remaining(), m_field.remaining());
+			ByteBuffer part = in.duplicate();
+			part.limit( part.position() + n );
+			m_field.put(part);
+			in.position( in.position() + n );
+			if ( m_field.hasRemaining() ) {
+				return false;
+			}
+			m_field.flip();
+			return true;
+		}
+
+		/**
+		 * Set where the part's data is written, before any has arrived
+		 * @param out the channel
+		 */
+		public void setOutput(WritableByteChannel out) {
+			m_out = out;
+		}
+
+		/**
+		 * Has the header been read
+		 * @return true once the header and any range have arrived
+		 */
+		public boolean hasHeader() {
+			return m_state != HEADER && m_state != RANGE;
+		}
+
+		/**
+		 * Does the frame carry a range of the part
+		 * @return true for a range, false for the whole part
+		 */
+		public boolean isRange() {
+			return (m_flags & FLAG_RANGE) != 0;
+		}
+
+		/**
+		 * Has the frame ended
+		 * @return true once the whole part has been received and checked
+		 */
+		public boolean isComplete() {
+			return m_state == DONE;
+		}
+
+		/**
+		 * Obtains the part being received.
+		 * @return the part, null until the header has arrived.
+		 */
+		public PartIndicator getPartIndicator() {
+			return m_partIndicator;
+		}
+
+		/**
+		 * Obtains the declared length of the part.
+		 * @return the length, UNKNOWN_LENGTH if it was not declared or the
+		 * 			header has not arrived.
+		 */
+		public long getLength() {
+			return m_length;
+		}
+
+		/**
+		 * Obtains the offset of the range in the part.
+		 * @return the offset, 0 for a whole part.
+		 */
+		public long getOffset() {
+			return m_offset;
+		}
+
+		/**
+		 * Obtains the declared length of the whole part.
+		 * @return the length, UNKNOWN_LENGTH if it was not declared or the
+		 * 			header has not arrived.
+		 */
+		public long getPartLength() {
+			return m_partLength;
+		}
+
+		/**
+		 * Obtains the number of bytes of data received.
+		 * @return bytes written to the output.
+		 */
+		public long getReceived() {
+			return m_received;
+		}
+
+		/**
+		 * Obtains the number of bytes of data in whole blocks which passed
+		 * their checksums, those a failed transfer can be resumed after.
+		 * @return bytes of checked data.
+		 */
+		public long getChecked() {
+			return m_checked;
+		}
+
+		/**
+		 * Obtains the SHA-1 of the part.
+		 * @return the digest of the data, null until the frame ends.
+		 */
+		public Digest getDigest() {
+			return m_result;
+		}
+
+	}
+
+
+	/**
+	 * Hidden Constructor, all operations are static
+	 */
+	private TransferFrame() {}
+
+
+// Encoding
+
+	/**
+	 * Write the header of a transfer
+	 * @param out has room for HEADER_SIZE bytes
+	 * @param partIndicator the part being sent
+	 * @param length the part's length, UNKNOWN_LENGTH while it is produced
+	 */
+	public static void putHeader(ByteBuffer out, PartIndicator partIndicator, long length) {
+		out.put(VERSION);
+		out.put( (byte) (FLAG_BLOCK_CHECKSUMS | FLAG_DIGEST) );
+		partIndicator.write(out);
+		out.putLong(length);
+		out.putInt(BLOCK_SIZE);
+	}
+
+
+	/**
+	 * Write the header of a transfer of a range of a part
+	 * @param out has room for HEADER_SIZE and RANGE_SIZE bytes
+	 * @param partIndicator the part being sent
+	 * @param offset where the range starts in the part
+	 * @param length the range's length
+	 * @param partLength the whole part's length
+	 */
+	public static void putRangeHeader(ByteBuffer out, PartIndicator partIndicator,
+			long offset, long length, long partLength) {
+		out.put(VERSION);
+		out.put(KNOWN_FLAGS);
+		partIndicator.write(out);
+		out.putLong(length);
+		out.putInt(BLOCK_SIZE);
+		out.putLong(offset);
+		out.putLong(partLength);
+	}
+
+
+	/**
+	 * Write data as one block
+	 * @param out has room for the data and BLOCK_OVERHEAD
+	 * @param data at most BLOCK_SIZE bytes, consumed
+	 * @param crc checksum to compute the block's CRC32C with
+	 */
+	public static void putBlock(ByteBuffer out, ByteBuffer data, CRC32C crc) {
+		crc.reset();
+		crc.update( data.duplicate() );
+		out.putInt( data.remaining() );
+		out.put(data);
+		out.putInt( (int) crc.getValue() );
+	}
+
+
+	/**
+	 * Frame data as however many blocks it needs
+	 * @param data the data, consumed
+	 * @param crc checksum to compute the blocks' CRC32Cs with
+	 * @return the blocks, ready to write
+	 */
+	public static ByteBuffer blocks(ByteBuffer data, CRC32C crc) {
+		int blocks = (data.remaining() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		ByteBuffer out = ByteBuffer.allocate( data.remaining() + blocks * BLOCK_OVERHEAD );
+		while ( data.hasRemaining() ) {
+			ByteBuffer block = data.duplicate();
+			block.limit( block.position() + Math.min(BLOCK_SIZE, data.remaining()) );
+			data.position( block.limit() );
+			putBlock(out, block, crc);
+		}
+		out.flip();
+		return out;
+	}
+
+
+	/**
+	 * Header of a chunk of a frame
+	 * @param transfer the transfer's id on its connection
+	 * @param length bytes of the frame in the chunk, or CANCELLED
+	 * @return the header, ready to write
+	 */
+	public static ByteBuffer chunkHeader(int transfer, int length) {
+		ByteBuffer header = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+		header.putInt(transfer).putInt(length).flip();
+		return header;
+	}
+
+
+	/**
+	 * Write the end of the data
+	 * @param out has room for END_SIZE bytes
+	 * @param digest SHA-1 of the part
+	 */
+	public static void putEnd(ByteBuffer out, Digest digest) {
+		out.putInt(0);
+		digest.write(out);
+	}
+
+}
@@ -1,13 +1,16 @@
 package tests;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 
 import raids.PartIndicator;
+import util.Digest;
 
 import junit.framework.TestCase;
 
@@ -73,14 +76,15 @@ public class TestBufferUtils extends TestCase {
 
         // Setup
     	PartIndicator pi = new PartIndicator(TEXT_SHA, 4);
-        String total = TEXT_SHA + "0004" + TEXT_CONTENTS;
-        byte[] bytes = total.getBytes();
-        bytes[40] = (byte)0x00; // int high byte
-        bytes[41] = (byte)0x00;
-        bytes[42] = (byte)0x00;
-        bytes[43] = (byte)0x04; // int low byte
+        byte[] bytes = new byte[ PartIndicator.SIZE + TEXT_CONTENTS.length() ];
+        System.arraycopy( Digest.fromHex(TEXT_SHA).toBytes(), 0, bytes, 0, Digest.SIZE );
+        bytes[20] = (byte)0x00; // int high byte
+        bytes[21] = (byte)0x00;
+        bytes[22] = (byte)0x00;
+        bytes[23] = (byte)0x04; // int low byte
+        System.arraycopy( TEXT_CONTENTS.getBytes(), 0, bytes, PartIndicator.SIZE, TEXT_CONTENTS.length() );
         ByteBuffer expected = ByteBuffer.wrap( bytes );
-        ByteBuffer actual = BufferUtils.getBufferForFile(TEST_PATH + TEXT_FILENAME, total.length(), pi);
+        ByteBuffer actual = BufferUtils.getBufferForFile(TEST_PATH + TEXT_FILENAME, bytes.length, pi);
         actual.flip(); // Position is set to 0, limit is set to where the position _was_
 
         // Looking at the high level
@@ -111,6 +115,25 @@ public class TestBufferUtils extends TestCase {
     }
 
 
+    /**
+     * Test copying a range of a file through a buffer smaller than the range
+     */
+    public void testCopyRange() throws IOException {
+        FileInputStream in = new FileInputStream(TEST_PATH + TEXT_FILENAME);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long copied = BufferUtils.copy(in.getChannel(), 6, 5, Channels.newChannel(out), ByteBuffer.allocate(2));
+        assertEquals( 5, copied );
+        assertEquals( "world", out.toString() );
+
+        // Asking for more than the file holds stops at its end
+        out.reset();
+        copied = BufferUtils.copy(in.getChannel(), 6, 100, Channels.newChannel(out), ByteBuffer.allocate(4));
+        in.close();
+        assertEquals( TEXT_CONTENTS.length() - 6, copied );
+        assertEquals( "world!", out.toString() );
+    }
+
+
 // Private Helpers
 
     /**
@@ -1,17 +1,32 @@
 package tests;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
+import java.util.Random;
 
 import util.SHA1;
 
 import chunker.ChunkedFileInfo;
+import chunker.ByteXorKernel;
+import chunker.ChunkHeader;
 import chunker.Chunker;
+import chunker.StripeCompressor;
+import chunker.StripeLayout;
+import chunker.XorKernel;
+import chunker.XorKernels;
 import junit.framework.TestCase;
 
 /**
@@ -221,8 +236,435 @@ public class TestChunker extends TestCase {
 	}
 
 
+	/**
+	 * Block striping with a range of stripe units, including ones that do not
+	 * divide the file size and ones larger than the file, losing each chunk in
+	 * turn.
+	 */
+	public void testStripeUnitsWithEachMissingChunk() {
+		int numChunks = 4;
+		int[] stripeUnits = { 1, 7, 1024, 4096, 1024*1024 };
+		String orig = TEST_PATH + IMAGE_FILENAME;
+		String reassembled = TEST_PATH + REASSEMBLED_PREFIX + IMAGE_FILENAME;
+
+		for (int stripeUnit : stripeUnits) {
+			ChunkedFileInfo cfi = Chunker.chunk(TEST_PATH, IMAGE_FILENAME, numChunks, stripeUnit);
+			String[] fileChunks = chunkNames(cfi);
+			assertEquals(numChunks, fileChunks.length);
+
+			// Healthy
+			Chunker.reassemble(TEST_PATH, fileChunks, TEST_PATH, REASSEMBLED_PREFIX + IMAGE_FILENAME);
+			assertTrue( compareFiles(orig, reassembled) );
+
+			// Each chunk missing in turn (renamed away, then restored)
+			for (int missing = 0; missing < numChunks; missing++) {
+				File part = new File(TEST_PATH + fileChunks[missing]);
+				File hidden = new File(TEST_PATH + "hidden-" + fileChunks[missing]);
+				assertTrue( part.renameTo(hidden) );
+				Chunker.reassemble(TEST_PATH, fileChunks, TEST_PATH, REASSEMBLED_PREFIX + IMAGE_FILENAME);
+				assertTrue( hidden.renameTo(part) );
+				assertTrue( "stripe unit " + stripeUnit + " missing " + missing, compareFiles(orig, reassembled) );
+			}
+
+			deleteChunks(fileChunks);
+		}
+	}
+
+
+	/**
+	 * Chunks written by the old byte-at-a-time format (no header) must still
+	 * reassemble.
+	 */
+	public void testLegacyByteStripedChunks() throws IOException {
+		int numChunks = 3;
+		String[] fileChunks = writeLegacyChunks(TEST_PATH, TEXT_FILENAME, numChunks);
+
+		Chunker.reassemble(TEST_PATH, fileChunks, TEST_PATH, REASSEMBLED_PREFIX + TEXT_FILENAME);
+		assertTrue( compareFiles(TEST_PATH + TEXT_FILENAME, TEST_PATH + REASSEMBLED_PREFIX + TEXT_FILENAME) );
+
+		// And with a missing chunk
+		new File(TEST_PATH + fileChunks[0]).delete();
+		Chunker.reassemble(TEST_PATH, fileChunks, TEST_PATH, REASSEMBLED_PREFIX + TEXT_FILENAME);
+		assertTrue( compareFiles(TEST_PATH + TEXT_FILENAME, TEST_PATH + REASSEMBLED_PREFIX + TEXT_FILENAME) );
+
+		deleteChunks(fileChunks);
+	}
+
+
+	/**
+	 * Chunks in different directories, each named by its whole path with no
+	 * input path, reassemble, and one missing from yet another is rebuilt.
+	 */
+	public void testChunksInSeveralDirectories() {
+		int numChunks = 4;
+		ChunkedFileInfo cfi = Chunker.chunk(TEST_PATH, IMAGE_FILENAME, numChunks);
+		String[] fileChunks = chunkNames(cfi);
+		File elsewhere = new File(TEST_PATH + "elsewhere");
+		assertTrue( elsewhere.mkdir() );
+		File moved = new File(elsewhere, fileChunks[1]);
+		assertTrue( new File(TEST_PATH + fileChunks[1]).renameTo(moved) );
+
+		String[] paths = new String[numChunks];
+		for (int i = 0; i < numChunks; i++) {
+			paths[i] = new File(TEST_PATH + fileChunks[i]).getAbsolutePath();
+		}
+		paths[1] = moved.getAbsolutePath();
+		paths[3] = new File(elsewhere, "missing-" + fileChunks[3]).getAbsolutePath();
+
+		Chunker.reassembleMapped("", paths, TEST_PATH, REASSEMBLED_PREFIX + IMAGE_FILENAME, 2);
+		assertTrue( moved.renameTo(new File(TEST_PATH + fileChunks[1])) );
+		assertTrue( elsewhere.delete() );
+		assertTrue( compareFiles(TEST_PATH + IMAGE_FILENAME, TEST_PATH + REASSEMBLED_PREFIX + IMAGE_FILENAME) );
+
+		deleteChunks(fileChunks);
+	}
+
+
+	/**
+	 * Encoding from a channel into channels, as uploads do, produces exactly
+	 * the chunk files, and the largest of them is the advertised size.
+	 */
+	public void testEncodeToChannels() throws IOException {
+		int numChunks = 5;
+		File orig = new File(TEST_PATH + IMAGE_FILENAME);
+		Chunker chunker = new Chunker(numChunks, 1000);
+		ChunkedFileInfo cfi = chunker.encode(TEST_PATH, IMAGE_FILENAME);
+		String[] paths = cfi.getChunkPaths();
+
+		ByteArrayOutputStream[] parts = new ByteArrayOutputStream[numChunks];
+		WritableByteChannel[] out = new WritableByteChannel[numChunks];
+		for (int i = 0; i < numChunks; i++) {
+			parts[i] = new ByteArrayOutputStream();
+			out[i] = Channels.newChannel(parts[i]);
+		}
+		ReadableByteChannel in = new FileInputStream(orig).getChannel();
+		chunker.encode(in, orig.length(), out);
+		in.close();
+
+		long max = 0;
+		for (int i = 0; i < numChunks; i++) {
+			byte[] expected = readFile(paths[i]);
+			assertTrue( "part " + i, Arrays.equals(expected, parts[i].toByteArray()) );
+			max = Math.max(max, expected.length);
+		}
+		assertEquals( max, chunker.getMaxChunkSize(orig.length()) );
+
+		deleteChunks(chunkNames(cfi));
+	}
+
+
+	/**
+	 * Parallel encoding writes exactly the sequential chunks, and parallel
+	 * decoding rebuilds the file with any one chunk missing.
+	 */
+	public void testParallelMatchesSequential() throws IOException {
+		int numChunks = 4;
+		int stripeUnit = 1000;
+		String name = "parallel.bin";
+		String orig = TEST_PATH + name;
+		String reassembled = TEST_PATH + REASSEMBLED_PREFIX + name;
+
+		// Large enough for many row regions, not a multiple of the row size
+		byte[] bytes = new byte[3*1024*1024 + 17];
+		new Random(42).nextBytes(bytes);
+		OutputStream out = new FileOutputStream(orig);
+		out.write(bytes);
+		out.close();
+
+		ChunkedFileInfo sequential = Chunker.chunk(TEST_PATH, name, numChunks, stripeUnit);
+		String[] hashes = new String[numChunks];
+		for (int i = 0; i < numChunks; i++) {
+			hashes[i] = SHA1.getInstance().hash(new File(sequential.getChunkPaths()[i]));
+		}
+
+		ChunkedFileInfo parallel = Chunker.chunk(TEST_PATH, name, numChunks, stripeUnit, 4);
+		String[] fileChunks = chunkNames(parallel);
+		for (int i = 0; i < numChunks; i++) {
+			assertEquals( "part " + i, hashes[i], SHA1.getInstance().hash(new File(parallel.getChunkPaths()[i])) );
+		}
+
+		Chunker.reassemble(TEST_PATH, fileChunks, TEST_PATH, REASSEMBLED_PREFIX + name, 4);
+		assertTrue( compareFilesByHash(orig, reassembled) );
+
+		for (int missing = 0; missing < numChunks; missing++) {
+			String[] degraded = fileChunks.clone();
+			degraded[missing] = "missing-" + fileChunks[missing];
+			Chunker.reassemble(TEST_PATH, degraded, TEST_PATH, REASSEMBLED_PREFIX + name, 4);
+			assertTrue( "missing " + missing, compareFilesByHash(orig, reassembled) );
+		}
+
+		deleteChunks(fileChunks);
+		new File(orig).delete();
+		new File(reassembled).delete();
+	}
+
+
+	/**
+	 * Memory-mapped reassembly, on one thread and several, rebuilds the file
+	 * healthy and with any one chunk missing.
+	 */
+	public void testMemoryMappedReassembly() throws IOException {
+		int numChunks = 5;
+		String name = "mapped.bin";
+		String orig = TEST_PATH + name;
+		String reassembled = TEST_PATH + REASSEMBLED_PREFIX + name;
+
+		byte[] bytes = new byte[2*1024*1024 + 333];
+		new Random(7).nextBytes(bytes);
+		OutputStream out = new FileOutputStream(orig);
+		out.write(bytes);
+		out.close();
+
+		String[] fileChunks = chunkNames(Chunker.chunk(TEST_PATH, name, numChunks, 777));
+		for (int threads = 1; threads <= 3; threads += 2) {
+			Chunker.reassembleMapped(TEST_PATH, fileChunks, TEST_PATH, REASSEMBLED_PREFIX + name, threads);
+			assertTrue( compareFilesByHash(orig, reassembled) );
+
+			for (int missing = 0; missing < numChunks; missing++) {
+				String[] degraded = fileChunks.clone();
+				degraded[missing] = "missing-" + fileChunks[missing];
+				Chunker.reassembleMapped(TEST_PATH, degraded, TEST_PATH, REASSEMBLED_PREFIX + name, threads);
+				assertTrue( threads + " threads, missing " + missing, compareFilesByHash(orig, reassembled) );
+			}
+		}
+
+		deleteChunks(fileChunks);
+		new File(orig).delete();
+		new File(reassembled).delete();
+	}
+
+
+	/**
+	 * A healthy reassembly never reads parity, so scribbling over every
+	 * parity unit must not change the result.
+	 */
+	public void testHealthyReassemblySkipsParity() throws IOException {
+		int numChunks = 4;
+		int stripeUnit = 1000;
+		String orig = TEST_PATH + IMAGE_FILENAME;
+		String reassembled = TEST_PATH + REASSEMBLED_PREFIX + IMAGE_FILENAME;
+
+		ChunkedFileInfo cfi = Chunker.chunk(TEST_PATH, IMAGE_FILENAME, numChunks, stripeUnit);
+		String[] fileChunks = chunkNames(cfi);
+		StripeLayout layout = new StripeLayout(numChunks, stripeUnit, new File(orig).length());
+
+		byte[] garbage = new byte[stripeUnit];
+		Arrays.fill(garbage, (byte) 0x5a);
+		for (int i = 0; i < numChunks; i++) {
+			RandomAccessFile chunk = new RandomAccessFile(cfi.getChunkPaths()[i], "rw");
+			for (long r = 0; r < layout.getRows(); r++) {
+				if (layout.isParity(r, i)) {
+					chunk.seek(ChunkHeader.SIZE + layout.getChunkOffset(r));
+					chunk.write(garbage, 0, layout.getUnitLength(r, i));
+				}
+			}
+			chunk.close();
+		}
+
+		Chunker.reassemble(TEST_PATH, fileChunks, TEST_PATH, REASSEMBLED_PREFIX + IMAGE_FILENAME);
+		assertTrue( compareFiles(orig, reassembled) );
+		Chunker.reassemble(TEST_PATH, fileChunks, TEST_PATH, REASSEMBLED_PREFIX + IMAGE_FILENAME, 2);
+		assertTrue( compareFiles(orig, reassembled) );
+		Chunker.reassembleMapped(TEST_PATH, fileChunks, TEST_PATH, REASSEMBLED_PREFIX + IMAGE_FILENAME, 1);
+		assertTrue( compareFiles(orig, reassembled) );
+
+		deleteChunks(fileChunks);
+	}
+
+
+	/**
+	 * Compressed chunks are smaller for data which compresses, store random
+	 * data as it is, and reassemble on every path with any chunk missing.
+	 */
+	public void testCompressedChunks() throws IOException {
+		int numChunks = 4;
+		String name = "compressed.bin";
+		String orig = TEST_PATH + name;
+		String reassembled = TEST_PATH + REASSEMBLED_PREFIX + name;
+
+		// a group of text, a group of random bytes, then a short group of zeros
+		byte[] bytes = new byte[2*StripeCompressor.GROUP_SIZE + 100000];
+		byte[] text = "Stripe me, compress me, stripe me again. ".getBytes();
+		for (int i = 0; i < StripeCompressor.GROUP_SIZE; i++) {
+			bytes[i] = text[i % text.length];
+		}
+		byte[] random = new byte[StripeCompressor.GROUP_SIZE];
+		new Random(5).nextBytes(random);
+		System.arraycopy(random, 0, bytes, StripeCompressor.GROUP_SIZE, random.length);
+		OutputStream out = new FileOutputStream(orig);
+		out.write(bytes);
+		out.close();
+
+		Chunker chunker = new Chunker(numChunks, 1000);
+		chunker.setCompressed(true);
+		ChunkedFileInfo cfi = chunker.encode(TEST_PATH, name);
+		String[] fileChunks = chunkNames(cfi);
+
+		ChunkHeader header = ChunkHeader.read(new File(cfi.getChunkPaths()[0]));
+		assertTrue( header.isDeflated() );
+		assertTrue( header.getOriginalLength() > random.length );
+		assertTrue( header.getOriginalLength() < random.length + 50000 );
+		long max = 0;
+		for (String path : cfi.getChunkPaths()) {
+			max = Math.max(max, new File(path).length());
+		}
+		assertTrue( max <= chunker.getMaxChunkSize(bytes.length) );
+
+		Chunker.reassemble(TEST_PATH, fileChunks, TEST_PATH, REASSEMBLED_PREFIX + name);
+		assertTrue( compareFilesByHash(orig, reassembled) );
+		for (int missing = 0; missing < numChunks; missing++) {
+			String[] degraded = fileChunks.clone();
+			degraded[missing] = "missing-" + fileChunks[missing];
+			Chunker.reassemble(TEST_PATH, degraded, TEST_PATH, REASSEMBLED_PREFIX + name, 2);
+			assertTrue( "missing " + missing, compareFilesByHash(orig, reassembled) );
+			Chunker.reassembleMapped(TEST_PATH, degraded, TEST_PATH, REASSEMBLED_PREFIX + name, 1);
+			assertTrue( "mapped, missing " + missing, compareFilesByHash(orig, reassembled) );
+		}
+		deleteChunks(fileChunks);
+
+		// random data is not worth deflating, every group is stored as it is
+		out = new FileOutputStream(orig);
+		out.write(random);
+		out.close();
+		cfi = chunker.encode(TEST_PATH, name);
+		header = ChunkHeader.read(new File(cfi.getChunkPaths()[0]));
+		assertEquals( StripeCompressor.getMaxLength(random.length), header.getOriginalLength() );
+		Chunker.reassemble(TEST_PATH, chunkNames(cfi), TEST_PATH, REASSEMBLED_PREFIX + name);
+		assertTrue( compareFilesByHash(orig, reassembled) );
+
+		deleteChunks(chunkNames(cfi));
+		new File(orig).delete();
+		new File(reassembled).delete();
+	}
+
+
+	/**
+	 * The chunk information filled in while encoding matches hashing the
+	 * original and every chunk afterwards, sequentially and in parallel.
+	 */
+	public void testChunkInfoFromOnePass() {
+		String orig = TEST_PATH + IMAGE_FILENAME;
+		for (int threads = 1; threads <= 2; threads++) {
+			ChunkedFileInfo cfi = Chunker.chunk(TEST_PATH, IMAGE_FILENAME, 3, 1000, threads);
+			assertEquals( SHA1.getInstance().hash(new File(orig)), cfi.getOriginalFileHash() );
+
+			long max = 0;
+			for (String path : cfi.getChunkPaths()) {
+				File chunk = new File(path);
+				assertEquals( SHA1.getInstance().hash(chunk), cfi.getHashForChunk(path) );
+				max = Math.max(max, chunk.length());
+			}
+			assertEquals( max, cfi.getMaxChunkSize() );
+
+			deleteChunks(chunkNames(cfi));
+		}
+	}
+
+
+	/**
+	 * Every parity kernel this JVM offers agrees with the byte kernel, at odd
+	 * lengths and positions.
+	 */
+	public void testXorKernelsAgree() {
+		Random random = new Random(11);
+		byte[] a = new byte[4099];
+		byte[] b = new byte[4099];
+		random.nextBytes(a);
+		random.nextBytes(b);
+
+		ByteBuffer expected = ByteBuffer.wrap(a.clone());
+		expected.position(3);
+		ByteBuffer src = ByteBuffer.wrap(b);
+		src.position(5);
+		new ByteXorKernel().xor(expected, src, 4090);
+
+		for (XorKernel kernel : XorKernels.available()) {
+			ByteBuffer dst = ByteBuffer.wrap(a.clone());
+			dst.position(3);
+			kernel.xor(dst, src, 4090);
+			assertEquals( kernel.getName(), 3, dst.position() );
+			assertTrue( kernel.getName(), Arrays.equals(expected.array(), dst.array()) );
+		}
+	}
+
+
 // Private Helpers
 
+	/**
+	 * Chunk file names (relative to TEST_PATH) in part order
+	 * @param cfi the chunk information
+	 * @return names of the chunks
+	 */
+	private String[] chunkNames(ChunkedFileInfo cfi) {
+		String[] paths = cfi.getChunkPaths();
+		String[] names = new String[paths.length];
+		for (int i = 0; i < paths.length; i++) {
+			names[i] = new File(paths[i]).getName();
+		}
+		return names;
+	}
+
+	/**
+	 * Read a whole (small) file
+	 * @param filename the file
+	 * @return its contents
+	 */
+	private byte[] readFile(String filename) throws IOException {
+		File file = new File(filename);
+		byte[] bytes = new byte[(int) file.length()];
+		InputStream in = new FileInputStream(file);
+		int read = 0;
+		while (read < bytes.length) {
+			read += in.read(bytes, read, bytes.length - read);
+		}
+		in.close();
+		return bytes;
+	}
+
+	/**
+	 * Delete chunks (relative to TEST_PATH), ignoring missing ones
+	 * @param fileChunks names of the chunks
+	 */
+	private void deleteChunks(String[] fileChunks) {
+		for (String chunk : fileChunks) {
+			new File(TEST_PATH + chunk).delete();
+		}
+	}
+
+	/**
+	 * Write chunks the way the byte-at-a-time chunker used to: one byte per
+	 * chunk per row, parity rotating starting at chunk 1, no header.
+	 * @param path directory of the file
+	 * @param fName name of the file
+	 * @param m number of chunks
+	 * @return names of the chunks written
+	 */
+	private String[] writeLegacyChunks(String path, String fName, int m) throws IOException {
+		InputStream fi = new FileInputStream(path + fName);
+		OutputStream[] fos = new OutputStream[m];
+		String[] names = new String[m];
+		for (int i = 0; i < m; i++) {
+			names[i] = "legacy" + i + "_" + fName;
+			fos[i] = new FileOutputStream(path + names[i]);
+		}
+		int parity = m;
+		while ( fi.available() > 0 ) {
+			int pData = 0;
+			parity = ++parity % m;
+			for (int i = 0; i < m; i++) {
+				if ( i != parity && fi.available() > 0 ) {
+					int block = fi.read();
+					fos[i].write(block);
+					pData ^= block;
+				}
+			}
+			fos[parity].write(pData);
+		}
+		fi.close();
+		for (OutputStream fo : fos) { fo.close(); }
+		return names;
+	}
+
 	/**
 	 * Debug a file list
 	 * @param list List of Strings to print out
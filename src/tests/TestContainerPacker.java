@@ -0,0 +1,88 @@
+package tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import util.SHA1;
+
+import chunker.ContainerPacker;
+import junit.framework.TestCase;
+
+/**
+ * TestSuite for packing small files into a container.
+ *
+ * @author Alex Maskovyak
+ */
+public class TestContainerPacker extends TestCase {
+
+	/**
+	 * Every file is found again at its offset, with its hash.
+	 */
+	public void testPackAndCutOut() throws IOException {
+		byte[][] files = { randomBytes(2048, 1), new byte[0], randomBytes(100*1024 + 7, 2), "tiny".getBytes() };
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ContainerPacker packer = new ContainerPacker(Channels.newChannel(out));
+		for (int i = 0; i < files.length; i++) {
+			assertEquals( i, packer.add("file" + i, channelOf(files[i]), files[i].length) );
+		}
+
+		byte[] container = out.toByteArray();
+		assertEquals( files.length, packer.getFiles() );
+		assertEquals( container.length, packer.getLength() );
+		long offset = 0;
+		for (int i = 0; i < files.length; i++) {
+			assertEquals( "file" + i, packer.getName(i) );
+			assertEquals( offset, packer.getOffset(i) );
+			assertEquals( files[i].length, packer.getLength(i) );
+			byte[] cut = Arrays.copyOfRange(container, (int) offset, (int) offset + files[i].length);
+			assertTrue( Arrays.equals(files[i], cut) );
+			assertEquals( SHA1.getInstance().hash(files[i]), packer.getHash(i) );
+			offset += files[i].length;
+		}
+	}
+
+
+	/**
+	 * A file shorter than it claims is not packed.
+	 */
+	public void testShortFile() throws IOException {
+		ContainerPacker packer = new ContainerPacker(Channels.newChannel(new ByteArrayOutputStream()));
+		try {
+			packer.add("short", channelOf(new byte[10]), 11);
+			fail("short file packed");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals( 0, packer.getFiles() );
+	}
+
+
+// Private Helpers
+
+	/**
+	 * A channel over bytes
+	 * @param bytes the data
+	 * @return a channel reading the data
+	 */
+	private ReadableByteChannel channelOf(byte[] bytes) {
+		return Channels.newChannel(new ByteArrayInputStream(bytes));
+	}
+
+	/**
+	 * Random bytes
+	 * @param length how many
+	 * @param seed random seed
+	 * @return the bytes
+	 */
+	private byte[] randomBytes(int length, long seed) {
+		byte[] bytes = new byte[length];
+		new Random(seed).nextBytes(bytes);
+		return bytes;
+	}
+
+}
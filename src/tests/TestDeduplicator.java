@@ -0,0 +1,185 @@
+package tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import chunker.BlockIndex;
+import chunker.BlockRecipe;
+import chunker.Deduplicator;
+import chunker.GearChunker;
+import junit.framework.TestCase;
+
+/**
+ * TestSuite for content-defined chunking and block deduplication.
+ *
+ * @author Alex Maskovyak
+ */
+public class TestDeduplicator extends TestCase {
+
+	/** Path to the directory where the test files are stored. */
+	private static final String TEST_PATH = "src/tests/chunker/";
+
+
+	/**
+	 * Blocks respect the size limits, and an insertion near the start only
+	 * changes the blocks around it.
+	 */
+	public void testBoundariesFollowContent() throws IOException {
+		byte[] orig = randomBytes(2*1024*1024, 1);
+		List<Integer> before = blockLengths(orig);
+
+		int total = 0;
+		for (int i = 0; i < before.size(); i++) {
+			int length = before.get(i);
+			assertTrue( length <= GearChunker.MAX_BLOCK );
+			assertTrue( length >= GearChunker.MIN_BLOCK || i == before.size() - 1 );
+			total += length;
+		}
+		assertEquals( orig.length, total );
+		assertTrue( before.size() > 4 );
+
+		byte[] inserted = new byte[orig.length + 100];
+		System.arraycopy(orig, 0, inserted, 0, 1000);
+		System.arraycopy(orig, 1000, inserted, 1100, orig.length - 1000);
+		List<Integer> after = blockLengths(inserted);
+
+		// only the first block grows, every later one is cut where it was
+		assertEquals( before.size(), after.size() );
+		assertEquals( before.get(0) + 100, (int) after.get(0) );
+		assertEquals( before.subList(1, before.size()), after.subList(1, after.size()) );
+	}
+
+
+	/**
+	 * A second version of a file only stores its new blocks, and both
+	 * versions are rebuilt from the packs.
+	 */
+	public void testDeduplicateAndRestore() throws IOException {
+		byte[] first = randomBytes(1500*1024, 2);
+		byte[] second = new byte[first.length + 5000];
+		System.arraycopy(first, 0, second, 0, 700*1024);
+		System.arraycopy(randomBytes(5000, 3), 0, second, 700*1024, 5000);
+		System.arraycopy(first, 700*1024, second, 700*1024 + 5000, first.length - 700*1024);
+
+		BlockIndex index = new BlockIndex();
+		Map<String, FileChannel> packs = new HashMap<String, FileChannel>();
+		List<File> files = new ArrayList<File>();
+
+		Deduplicator dedup = new Deduplicator(index);
+		BlockRecipe firstRecipe = dedup.split(channelOf(first), packTo("first", packs, files));
+		dedup.commit("first");
+		assertEquals( first.length, dedup.getPackLength() );
+		assertEquals( first.length, firstRecipe.getFileLength() );
+
+		dedup = new Deduplicator(index);
+		BlockRecipe secondRecipe = dedup.split(channelOf(second), packTo("second", packs, files));
+		dedup.commit("second");
+		assertTrue( "only " + dedup.getPackLength() + " new bytes",
+				dedup.getPackLength() < first.length / 2 );
+		assertEquals( second.length, dedup.getPackLength() + dedup.getDuplicateBytes() );
+		assertEquals( Arrays.asList("first", "second"), secondRecipe.getPacks() );
+
+		assertTrue( Arrays.equals(first, restore(firstRecipe, packs)) );
+		assertTrue( Arrays.equals(second, restore(secondRecipe, packs)) );
+
+		// a corrupted pack is caught
+		ByteBuffer bad = ByteBuffer.allocate(1);
+		packs.get("first").read(bad, 10);
+		bad.put(0, (byte) (bad.get(0) ^ 1)).position(0);
+		packs.get("first").write(bad, 10);
+		try {
+			restore(firstRecipe, packs);
+			fail("corrupt block restored");
+		} catch (IOException e) {
+			// expected
+		}
+
+		for (FileChannel pack : packs.values()) {
+			pack.close();
+		}
+		for (File file : files) {
+			file.delete();
+		}
+	}
+
+
+// Private Helpers
+
+	/**
+	 * Lengths of the blocks bytes are split into
+	 * @param bytes the data
+	 * @return length of each block in order
+	 */
+	private List<Integer> blockLengths(byte[] bytes) throws IOException {
+		GearChunker chunker = new GearChunker(channelOf(bytes));
+		List<Integer> lengths = new ArrayList<Integer>();
+		for (ByteBuffer block = chunker.next(); block != null; block = chunker.next()) {
+			lengths.add(block.remaining());
+		}
+		return lengths;
+	}
+
+	/**
+	 * Open a pack file
+	 * @param name the pack's name
+	 * @param packs open packs by name
+	 * @param files files to delete at the end
+	 * @return the pack, open for writing and reading
+	 */
+	private FileChannel packTo(String name, Map<String, FileChannel> packs, List<File> files) throws IOException {
+		File file = new File(TEST_PATH + "pack-" + name);
+		new FileOutputStream(file).close();
+		files.add(file);
+		FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+		packs.put(name, channel);
+		return channel;
+	}
+
+	/**
+	 * Rebuild a file in memory
+	 * @param recipe the file's blocks
+	 * @param packs open packs by name
+	 * @return the file's contents
+	 */
+	private byte[] restore(BlockRecipe recipe, Map<String, FileChannel> packs) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		recipe.restore(packs, Channels.newChannel(out));
+		return out.toByteArray();
+	}
+
+	/**
+	 * A channel over bytes
+	 * @param bytes the data
+	 * @return a channel reading the data
+	 */
+	private ReadableByteChannel channelOf(byte[] bytes) {
+		return Channels.newChannel(new ByteArrayInputStream(bytes));
+	}
+
+	/**
+	 * Random bytes
+	 * @param length how many
+	 * @param seed random seed
+	 * @return the bytes
+	 */
+	private byte[] randomBytes(int length, long seed) {
+		byte[] bytes = new byte[length];
+		new Random(seed).nextBytes(bytes);
+		return bytes;
+	}
+
+}
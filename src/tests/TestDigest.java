@@ -0,0 +1,73 @@
+package tests;
+
+import java.nio.ByteBuffer;
+
+import util.Digest;
+import util.SHA1;
+import junit.framework.TestCase;
+
+/**
+ * TestSuite for binary digests.
+ *
+ * @author Alex Maskovyak
+ */
+public class TestDigest extends TestCase {
+
+	/** A digest in hex. */
+	private static final String HEX = "d12fa9ab27473e663908ed6b68038ac1e59a25f1";
+
+
+	/**
+	 * Hex, bytes and buffers all give the same digest.
+	 */
+	public void testConversions() {
+		Digest digest = Digest.fromHex( HEX );
+		assertEquals( HEX, digest.toString() );
+		assertEquals( HEX, SHA1.convertBytesToHexString( digest.toBytes() ) );
+		assertEquals( digest, Digest.fromBytes( digest.toBytes() ) );
+		assertEquals( digest, Digest.fromHex( HEX.toUpperCase() ) );
+
+		ByteBuffer buf = ByteBuffer.allocate( Digest.SIZE + 1 );
+		buf.put( (byte)1 );
+		digest.write( buf );
+		buf.flip();
+		buf.get();
+		assertEquals( digest, Digest.read( buf ) );
+		assertFalse( buf.hasRemaining() );
+	}
+
+
+	/**
+	 * Digests differing in any byte are unequal.
+	 */
+	public void testEquality() {
+		byte[] bytes = Digest.fromHex( HEX ).toBytes();
+		Digest digest = Digest.fromBytes( bytes );
+		for( int i = 0; i < bytes.length; i++ ) {
+			byte[] changed = bytes.clone();
+			changed[ i ] ^= 1;
+			assertFalse( digest.equals( Digest.fromBytes( changed ) ) );
+		}
+		assertEquals( digest.hashCode(), Digest.fromHex( HEX ).hashCode() );
+		assertFalse( digest.equals( HEX ) );
+	}
+
+
+	/**
+	 * Malformed digests are refused.
+	 */
+	public void testMalformed() {
+		String[] bad = { null, "", HEX.substring( 1 ), HEX + "0", "g" + HEX.substring( 1 ) };
+		for( String hex : bad ) {
+			try {
+				Digest.fromHex( hex );
+				fail( "Accepted " + hex );
+			} catch( IllegalArgumentException e ) {}
+		}
+		try {
+			Digest.fromBytes( new byte[ Digest.SIZE - 1 ] );
+			fail( "Accepted 19 bytes" );
+		} catch( IllegalArgumentException e ) {}
+	}
+
+}
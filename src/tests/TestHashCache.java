@@ -0,0 +1,92 @@
+package tests;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import util.HashCache;
+import util.SHA1;
+import junit.framework.TestCase;
+
+/**
+ * TestSuite for the cache of file hashes.
+ *
+ * @author Alex Maskovyak
+ */
+public class TestHashCache extends TestCase {
+
+	/** Path to the directory where the test files are stored. */
+	private static final String TEST_PATH = "src/tests/util/";
+
+
+	/**
+	 * An unchanged file is not read again, a changed one is.
+	 */
+	public void testUnchangedFilesAreNotRehashed() throws IOException {
+		File file = new File(TEST_PATH + "cached.txt");
+		File saved = new File(TEST_PATH + "cached.hashes");
+		long modified = System.currentTimeMillis() / 1000 * 1000 - 60000;
+		writeFile(file, "first", modified);
+
+		HashCache cache = HashCache.load(saved);
+		SHA1.getInstance().setCache(cache);
+		try {
+			String first = SHA1.getInstance().hash(file);
+			assertEquals( SHA1.getInstance().hash("first"), first );
+			assertEquals( 1, cache.size() );
+
+			// same size and time, so the remembered hash is trusted
+			writeFile(file, "fresh", modified);
+			assertEquals( first, SHA1.getInstance().hash(file) );
+
+			// a new time forgets it
+			file.setLastModified(modified + 1000);
+			assertEquals( SHA1.getInstance().hash("fresh"), SHA1.getInstance().hash(file) );
+
+			// and the cache survives a save
+			cache.save();
+			HashCache loaded = HashCache.load(saved);
+			assertEquals( SHA1.getInstance().hash("fresh"), loaded.get(file.toPath(), SHA1.CACHE_KIND) );
+		} finally {
+			SHA1.getInstance().setCache(null);
+			file.delete();
+			saved.delete();
+		}
+	}
+
+
+	/**
+	 * A file changed moments ago is hashed but not remembered.
+	 */
+	public void testRecentlyChangedFilesAreNotRemembered() throws IOException {
+		File file = new File(TEST_PATH + "racy.txt");
+		writeFile(file, "racy", System.currentTimeMillis());
+
+		HashCache cache = new HashCache();
+		SHA1.getInstance().setCache(cache);
+		try {
+			assertEquals( SHA1.getInstance().hash("racy"), SHA1.getInstance().hash(file) );
+			assertEquals( 0, cache.size() );
+		} finally {
+			SHA1.getInstance().setCache(null);
+			file.delete();
+		}
+	}
+
+
+// Private Helpers
+
+	/**
+	 * Write a test file
+	 * @param file the file
+	 * @param contents its contents
+	 * @param modified its modification time
+	 */
+	private void writeFile(File file, String contents, long modified) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(contents.getBytes());
+		out.close();
+		file.setLastModified(modified);
+	}
+
+}
@@ -0,0 +1,201 @@
+package tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import util.SHA1;
+
+import chunker.MerkleTree;
+import junit.framework.TestCase;
+
+/**
+ * TestSuite for hash trees over the blocks of a file.
+ *
+ * @author Alex Maskovyak
+ */
+public class TestMerkleTree extends TestCase {
+
+	/** Path to the directory where the test files are stored. */
+	private static final String TEST_PATH = "src/tests/chunker/";
+
+
+	/**
+	 * The root of three blocks is built the documented way.
+	 */
+	public void testRootOfThreeBlocks() throws IOException {
+		byte[] bytes = randomBytes(2500, 1);
+		File file = writeFile("tree-three.bin", bytes);
+		FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+		MerkleTree tree = MerkleTree.build(channel, 1000, 1);
+		channel.close();
+		file.delete();
+
+		byte[] a = leaf(bytes, 0, 1000);
+		byte[] b = leaf(bytes, 1000, 2000);
+		byte[] c = leaf(bytes, 2000, 2500);
+		MessageDigest digest = SHA1.newDigest();
+		digest.update((byte) 1);
+		digest.update(a);
+		digest.update(b);
+		byte[] ab = digest.digest();
+		digest.update((byte) 1);
+		digest.update(ab);
+		digest.update(c);
+
+		assertEquals( 3, tree.getBlocks() );
+		assertTrue( Arrays.equals(c, tree.getLeaf(2)) );
+		assertTrue( Arrays.equals(digest.digest(), tree.getRoot()) );
+	}
+
+
+	/**
+	 * A tree built from bytes read through a Builder, in reads of any size,
+	 * is the tree of the file.
+	 */
+	public void testBuilder() throws IOException {
+		byte[] bytes = randomBytes(3500, 2);
+		File file = writeFile("tree-builder.bin", bytes);
+		FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+		MerkleTree expected = MerkleTree.build(channel, 1000, 1);
+
+		for (int read : new int[] { 7, 1000, 4096 }) {
+			channel.position(0);
+			MerkleTree.Builder builder = new MerkleTree.Builder(channel, 1000);
+			ByteBuffer buffer = ByteBuffer.allocate(read);
+			while ( builder.read(buffer) != -1 ) {
+				buffer.clear();
+			}
+			MerkleTree tree = builder.build();
+			assertEquals( expected.getLength(), tree.getLength() );
+			assertTrue( Arrays.equals(expected.getRoot(), tree.getRoot()) );
+		}
+		channel.close();
+		file.delete();
+
+		// An empty file has one empty block either way
+		MerkleTree empty = new MerkleTree.Builder(Channels.newChannel(new ByteArrayInputStream(new byte[0])), 1000).build();
+		assertEquals( 1, empty.getBlocks() );
+		assertTrue( Arrays.equals(leaf(new byte[0], 0, 0), empty.getRoot()) );
+	}
+
+
+	/**
+	 * Hashing on several threads gives the same tree, and a changed byte is
+	 * pinned to its block.
+	 */
+	public void testParallelAndDifferingBlocks() throws IOException {
+		byte[] bytes = randomBytes(3*1024*1024 + 5, 2);
+		File file = writeFile("tree-parallel.bin", bytes);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		MerkleTree sequential = MerkleTree.build(raf.getChannel(), 64*1024, 1);
+		MerkleTree parallel = MerkleTree.build(raf.getChannel(), 64*1024, 4);
+		assertEquals( sequential.getRootHex(), parallel.getRootHex() );
+		assertTrue( sequential.getDifferingBlocks(parallel).isEmpty() );
+
+		raf.seek(1000000);
+		raf.write(bytes[1000000] ^ 1);
+		MerkleTree changed = MerkleTree.build(raf.getChannel(), 64*1024, 4);
+		raf.close();
+		file.delete();
+
+		assertFalse( sequential.getRootHex().equals(changed.getRootHex()) );
+		assertEquals( Arrays.asList(1000000L / (64*1024)), sequential.getDifferingBlocks(changed) );
+	}
+
+
+	/**
+	 * An empty file has a single empty block.
+	 */
+	public void testEmptyFile() throws IOException {
+		File file = writeFile("tree-empty.bin", new byte[0]);
+		FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+		MerkleTree tree = MerkleTree.build(channel, 1000, 2);
+		channel.close();
+		file.delete();
+
+		assertEquals( 1, tree.getBlocks() );
+		assertTrue( Arrays.equals(leaf(new byte[0], 0, 0), tree.getRoot()) );
+	}
+
+
+	/**
+	 * Blocks are checked against the leaves as they arrive, a corrupt one
+	 * is pinpointed, and one still arriving is left alone.  A tree written
+	 * to a Builder is the tree of the file.
+	 */
+	public void testVerify() throws IOException {
+		byte[] bytes = randomBytes(4500, 3);
+		File file = writeFile("tree-verify.bin", bytes);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		FileChannel channel = raf.getChannel();
+		MerkleTree.Builder builder = new MerkleTree.Builder(null, 1000);
+		builder.write(ByteBuffer.wrap(bytes, 0, 1234));
+		builder.write(ByteBuffer.wrap(bytes, 1234, bytes.length - 1234));
+		byte[] leaves = builder.build().getLeaves();
+		assertTrue( Arrays.equals(MerkleTree.build(channel, 1000, 1).getLeaves(), leaves) );
+
+		assertEquals( 4500, MerkleTree.verify(channel, 1000, leaves, 4500, 0, 4500) );
+		assertEquals( 2000, MerkleTree.verify(channel, 1000, leaves, 4500, 0, 2999) );
+		assertEquals( 4500, MerkleTree.verify(channel, 1000, leaves, 4500, 2500, 4500) );
+
+		raf.seek(3100);
+		raf.write(bytes[3100] ^ 1);
+		assertEquals( 3000, MerkleTree.verify(channel, 1000, leaves, 4500, 1000, 4500) );
+		assertEquals( 3000, MerkleTree.verify(channel, 1000, leaves, 4500, 0, 3999) );
+		raf.close();
+		file.delete();
+	}
+
+
+// Private Helpers
+
+	/**
+	 * Leaf hash of a block
+	 * @param bytes the file
+	 * @param from start of the block
+	 * @param to end of the block
+	 * @return the block's leaf hash
+	 */
+	private byte[] leaf(byte[] bytes, int from, int to) {
+		MessageDigest digest = SHA1.newDigest();
+		digest.update((byte) 0);
+		digest.update(bytes, from, to - from);
+		return digest.digest();
+	}
+
+	/**
+	 * Write a test file
+	 * @param name name of the file
+	 * @param bytes its contents
+	 * @return the file
+	 */
+	private File writeFile(String name, byte[] bytes) throws IOException {
+		File file = new File(TEST_PATH + name);
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(bytes);
+		out.close();
+		return file;
+	}
+
+	/**
+	 * Random bytes
+	 * @param length how many
+	 * @param seed random seed
+	 * @return the bytes
+	 */
+	private byte[] randomBytes(int length, long seed) {
+		byte[] bytes = new byte[length];
+		new Random(seed).nextBytes(bytes);
+		return bytes;
+	}
+
+}
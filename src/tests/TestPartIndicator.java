@@ -1,6 +1,9 @@
 package tests;
 
+import java.nio.ByteBuffer;
+
 import raids.PartIndicator;
+import util.Digest;
 import junit.framework.TestCase;
 
 /**
@@ -42,11 +45,11 @@ public class TestPartIndicator extends TestCase {
 
     	// Expected
     	byte[] expected = new byte[PartIndicator.SIZE];
-    	System.arraycopy(TEXT_SHA.getBytes(), 0, expected, 0, TEXT_SHA.length());
-    	expected[40] = (byte) 0x00;
-    	expected[41] = (byte) 0x00;
-    	expected[42] = (byte) 0x00;
-    	expected[43] = (byte) PART_NUM;
+    	System.arraycopy(Digest.fromHex(TEXT_SHA).toBytes(), 0, expected, 0, Digest.SIZE);
+    	expected[20] = (byte) 0x00;
+    	expected[21] = (byte) 0x00;
+    	expected[22] = (byte) 0x00;
+    	expected[23] = (byte) PART_NUM;
 
     	// Actual
     	PartIndicator pi = new PartIndicator(TEXT_SHA, PART_NUM);
@@ -68,11 +71,11 @@ public class TestPartIndicator extends TestCase {
 
     	// Desired Byte Representation
     	byte[] expected = new byte[PartIndicator.SIZE];
-    	System.arraycopy(TEXT_SHA.getBytes(), 0, expected, 0, TEXT_SHA.length());
-    	expected[40] = (byte) 0x00;
-    	expected[41] = (byte) 0x00;
-    	expected[42] = (byte) 0x00;
-    	expected[43] = (byte) PART_NUM;
+    	System.arraycopy(Digest.fromHex(TEXT_SHA).toBytes(), 0, expected, 0, Digest.SIZE);
+    	expected[20] = (byte) 0x00;
+    	expected[21] = (byte) 0x00;
+    	expected[22] = (byte) 0x00;
+    	expected[23] = (byte) PART_NUM;
 
     	// Create From Bytes
     	PartIndicator pi = new PartIndicator(expected);
@@ -90,6 +93,24 @@ public class TestPartIndicator extends TestCase {
     }
 
 
+    /**
+     * Test reading from the middle of a buffer, as off the socket
+     */
+    public void testReadFromBuffer() {
+    	PartIndicator pi = new PartIndicator(TEXT_SHA, PART_NUM);
+    	ByteBuffer buf = ByteBuffer.allocate(PartIndicator.SIZE + 3);
+    	buf.put((byte) 7);
+    	pi.write(buf);
+    	buf.put((byte) 9).put((byte) 11);
+    	buf.flip();
+    	buf.get();
+
+    	assertEquals(pi, PartIndicator.read(buf));
+    	assertEquals(1 + PartIndicator.SIZE, buf.position());
+    	assertEquals(9, buf.get());
+    }
+
+
     /**
      * Test Equals
      */
@@ -108,6 +129,11 @@ public class TestPartIndicator extends TestCase {
     	PartIndicator pi4 = new PartIndicator(TEXT_SHA_2, PART_NUM);
     	assertFalse( pi1.equals(pi4) );
 
+    	// Equals regardless of the case of the hex
+    	PartIndicator pi5 = new PartIndicator(TEXT_SHA.toUpperCase(), PART_NUM);
+    	assertEquals( pi1, pi5 );
+    	assertEquals( pi1.hashCode(), pi5.hashCode() );
+
     }
 
 }
@@ -0,0 +1,117 @@
+package tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import raids.PartIndicator;
+import raids.PartialDownload;
+import raids.TransferFrame;
+import junit.framework.TestCase;
+
+/**
+ * Ensure a partial download's progress survives being reloaded, but is
+ * never trusted past the data actually in its file.
+ *
+ * @author Joseph Pecoraro
+ */
+public class TestPartialDownload extends TestCase {
+
+//	Constants
+
+    /** SHA */
+    private static final String TEXT_SHA = "d12fa9ab27473e663908ed6b68038ac1e59a25f1"; // 40 char SHA1
+
+    /** Part Number */
+    private static final int PART_NUM = 2;
+
+
+//	Fields
+
+    /** Where the partial parts are kept */
+    private File m_dir;
+
+
+//	Setup
+
+    protected void setUp() throws IOException {
+    	m_dir = File.createTempFile("RAIDS-testpartialdownload-", "");
+    	m_dir.delete();
+    }
+
+    protected void tearDown() {
+    	File[] files = m_dir.listFiles();
+    	if ( files != null ) {
+    		for (File f : files) { f.delete(); }
+    	}
+    	m_dir.delete();
+    }
+
+
+//	Test Cases
+
+    /**
+     * A new download starts at the beginning, a reloaded one where the
+     * last started left off
+     */
+    public void testResume() throws IOException {
+    	PartIndicator pi = new PartIndicator(TEXT_SHA, PART_NUM);
+    	PartialDownload partial = new PartialDownload(pi, m_dir);
+    	assertEquals(0, partial.request(null));
+    	assertEquals(TransferFrame.UNKNOWN_LENGTH, partial.getPartLength());
+
+    	setLength(partial.getFile(), 5000);
+    	partial.progress(4096, 10000);
+    	assertTrue(partial.advanced());
+
+    	// Going backwards changes nothing
+    	partial.progress(100, 10000);
+    	assertEquals(4096, partial.getReceived());
+
+    	PartialDownload reloaded = new PartialDownload(pi, m_dir);
+    	assertEquals(4096, reloaded.request(null));
+    	assertEquals(10000, reloaded.getPartLength());
+    	assertFalse(reloaded.advanced());
+
+    	// Finished, the file stays and the record goes
+    	reloaded.finish();
+    	assertTrue(reloaded.getFile().exists());
+    	assertEquals(0, new PartialDownload(pi, m_dir).getReceived());
+    }
+
+    /**
+     * A record claiming more than the file holds, or without its file, is
+     * ignored, and a discarded download leaves nothing behind
+     */
+    public void testDistrust() throws IOException {
+    	PartIndicator pi = new PartIndicator(TEXT_SHA, PART_NUM);
+    	PartialDownload partial = new PartialDownload(pi, m_dir);
+    	setLength(partial.getFile(), 5000);
+    	partial.progress(4096, 10000);
+
+    	setLength(partial.getFile(), 1000);
+    	assertEquals(0, new PartialDownload(pi, m_dir).getReceived());
+
+    	partial.getFile().delete();
+    	assertEquals(0, new PartialDownload(pi, m_dir).getReceived());
+
+    	setLength(partial.getFile(), 5000);
+    	partial.discard();
+    	assertEquals(0, m_dir.listFiles().length);
+    }
+
+
+// Private Helpers
+
+    /**
+     * Set the length of a file, creating it
+     * @param file the file
+     * @param length its length
+     */
+    private void setLength(File file, long length) throws IOException {
+    	RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    	raf.setLength(length);
+    	raf.close();
+    }
+
+}
@@ -0,0 +1,127 @@
+package tests;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import chunker.ChunkedFileInfo;
+import chunker.Chunker;
+import chunker.GaloisField;
+import chunker.ReedSolomonCoder;
+import junit.framework.TestCase;
+
+/**
+ * TestSuite for the Reed-Solomon erasure coder and its field arithmetic.
+ *
+ * @author Alex Maskovyak
+ */
+public class TestReedSolomon extends TestCase {
+
+	/** Path to the directory where the test files are stored. */
+	private static final String TEST_PATH = "src/tests/chunker/";
+
+	/** Image File */
+	private static final String IMAGE_FILENAME = "monalisa.jpg";
+
+	/** Reassembled Suffix */
+	private static final String REASSEMBLED_PREFIX = "reassembled-";
+
+
+	/**
+	 * Every non-zero element times its inverse is 1, and inverting a matrix
+	 * twice gives it back.
+	 */
+	public void testGaloisField() {
+		for (int a = 1; a < GaloisField.SIZE; a++) {
+			assertEquals( 1, GaloisField.multiply(a, GaloisField.inverse(a)) );
+			assertEquals( a, GaloisField.divide(GaloisField.multiply(a, 7), 7) );
+		}
+
+		int[][] matrix = { { 1, 2, 3 }, { 4, 5, 6 }, { 7, 8, 10 } };
+		int[][] twice = GaloisField.invert( GaloisField.invert(matrix) );
+		for (int r = 0; r < matrix.length; r++) {
+			for (int c = 0; c < matrix.length; c++) {
+				assertEquals( matrix[r][c], twice[r][c] );
+			}
+		}
+	}
+
+
+	/**
+	 * Losing any m chunks, data or parity, still rebuilds the file, and
+	 * losing m+1 does not.
+	 */
+	public void testAnyParityChunksMayBeLost() {
+		int k = 4;
+		int m = 2;
+		String orig = TEST_PATH + IMAGE_FILENAME;
+		String reassembled = TEST_PATH + REASSEMBLED_PREFIX + IMAGE_FILENAME;
+
+		ReedSolomonCoder coder = new ReedSolomonCoder(k, m, 1000);
+		ChunkedFileInfo cfi = coder.encode(TEST_PATH, IMAGE_FILENAME);
+		String[] paths = cfi.getChunkPaths();
+		String[] names = new String[paths.length];
+		for (int i = 0; i < paths.length; i++) {
+			names[i] = new File(paths[i]).getName();
+		}
+		assertEquals( k+m, names.length );
+
+		// Healthy, through the generic Chunker entry point
+		Chunker.reassemble(TEST_PATH, names, TEST_PATH, REASSEMBLED_PREFIX + IMAGE_FILENAME);
+		assertTrue( compareFiles(orig, reassembled) );
+
+		// Every pair of lost chunks
+		for (int a = 0; a < k+m; a++) {
+			for (int b = a+1; b < k+m; b++) {
+				String[] lost = names.clone();
+				lost[a] = "lost-" + a;
+				lost[b] = "lost-" + b;
+				coder.decode(TEST_PATH, lost, TEST_PATH, REASSEMBLED_PREFIX + IMAGE_FILENAME);
+				assertTrue( "lost " + a + " and " + b, compareFiles(orig, reassembled) );
+			}
+		}
+
+		// Three lost is too many
+		String[] lost = names.clone();
+		lost[0] = lost[1] = lost[2] = "lost";
+		try {
+			coder.decode(TEST_PATH, lost, TEST_PATH, REASSEMBLED_PREFIX + IMAGE_FILENAME);
+			fail( "Should not decode with more than m chunks lost" );
+		} catch (IllegalArgumentException e) {}
+
+		for (String path : paths) {
+			new File(path).delete();
+		}
+		new File(reassembled).delete();
+	}
+
+
+// Private Helpers
+
+	/**
+	 * Quick Comparison of two files
+	 * @param filename1 name of the first file
+	 * @param filename2 name of the second file
+	 * @return true if their stream contents were equal, false otherwise
+	 */
+	private boolean compareFiles(String filename1, String filename2) {
+		try {
+			InputStream in1 = new FileInputStream(filename1);
+			InputStream in2 = new FileInputStream(filename2);
+			while (true) {
+				int read1 = in1.read();
+				int read2 = in2.read();
+				if ( read1 != read2 ) { return false; }
+				if ( read1 == -1 ) { return true; }
+			}
+		} catch (FileNotFoundException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return false;
+	}
+
+}
@@ -1,6 +1,10 @@
 package tests;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Random;
 
 import util.SHA1;
 import junit.framework.TestCase;
@@ -44,4 +48,59 @@ public class TestSHA1 extends TestCase {
 		assertEquals(ourResult, expectedResult);
 	}
 
+	/**
+	 * Streams and channels longer than the read buffer hash the same as
+	 * the bytes, and the binary digest matches the hex one
+	 */
+	public void testStreamsAndChannels() throws IOException {
+		byte[] bytes = new byte[ 1000*1000 + 3 ];
+		new Random( 1 ).nextBytes( bytes );
+		String expectedResult = SHA1.getInstance().hash( bytes );
+
+		assertEquals( expectedResult, SHA1.getInstance().hash( new ByteArrayInputStream( bytes ) ) );
+		assertEquals( expectedResult, SHA1.getInstance().hash(
+				Channels.newChannel( new ByteArrayInputStream( bytes ) ) ) );
+
+		byte[] digest = SHA1.getInstance().digest( bytes );
+		assertEquals( SHA1.DIGEST_SIZE, digest.length );
+		assertEquals( expectedResult, SHA1.convertBytesToHexString( digest ) );
+
+		File f = new File( TEST_PATH + TEXT_FILENAME );
+		assertEquals( SHA1.getInstance().hash( f ), SHA1.getInstance().hash( f.toPath() ) );
+	}
+
+	/**
+	 * Threads sharing the singleton each get their own hash
+	 */
+	public void testConcurrentHashing() throws InterruptedException {
+		final int threads = 4;
+		final byte[][] inputs = new byte[ threads ][];
+		final String[] expected = new String[ threads ];
+		final boolean[] failed = new boolean[ 1 ];
+		for ( int t = 0; t < threads; t++ ) {
+			inputs[ t ] = new byte[ 5000 + t ];
+			new Random( t ).nextBytes( inputs[ t ] );
+			expected[ t ] = SHA1.getInstance().hash( inputs[ t ] );
+		}
+
+		Thread[] workers = new Thread[ threads ];
+		for ( int t = 0; t < threads; t++ ) {
+			final int input = t;
+			workers[ t ] = new Thread() {
+				public void run() {
+					for ( int i = 0; i < 2000; i++ ) {
+						if ( !expected[ input ].equals( SHA1.getInstance().hash( inputs[ input ] ) ) ) {
+							failed[ 0 ] = true;
+						}
+					}
+				}
+			};
+			workers[ t ].start();
+		}
+		for ( Thread worker : workers ) {
+			worker.join();
+		}
+		assertFalse( failed[ 0 ] );
+	}
+
 }
@@ -0,0 +1,276 @@
+package tests;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import raids.ClientTerminal;
+import raids.PersonalFileInfo;
+import raids.RaidsApp;
+import util.HashingReadableChannel;
+import chunker.ChunkPatch;
+import chunker.Chunker;
+import chunker.Encoder;
+import chunker.MerkleTree;
+import chunker.ReedSolomonCoder;
+import chunker.StripeDelta;
+import chunker.StripeLayout;
+import junit.framework.TestCase;
+
+/**
+ * TestSuite for updating stored chunks with only the stripes that changed.
+ *
+ * @author Alex Maskovyak
+ */
+public class TestStripeDelta extends TestCase {
+
+	/** Path to the directory where the test files are stored. */
+	private static final String TEST_PATH = "src/tests/chunker/";
+
+	/** Stripe unit small enough for a file to have many rows. */
+	private static final int STRIPE_UNIT = 1000;
+
+
+	/**
+	 * A change inside one unit dirties one row, and only that unit and the
+	 * row's parity are patched.
+	 */
+	public void testSmallChange() throws IOException {
+		byte[] orig = randomBytes(20000, 1);
+		byte[] changed = orig.clone();
+		changed[7500] ^= 1;
+
+		StripeLayout layout = new StripeLayout(4, STRIPE_UNIT, orig.length);
+		StripeDelta delta = new StripeDelta(layout, hashUnits(orig), layout, hashUnits(changed));
+		assertEquals( 1, delta.getDirtyRows().size() );
+		assertEquals( 7500 / layout.getRowSize(), (long) delta.getDirtyRows().get(0) );
+
+		assertTrue( new StripeDelta(layout, hashUnits(orig), layout, hashUnits(orig)).isEmpty() );
+	}
+
+
+	/**
+	 * Patched chunks are identical to the chunks of the new version, for
+	 * changes, growth and truncation, with rotating and dedicated parity.
+	 */
+	public void testPatchedChunksMatch() throws IOException {
+		byte[] orig = randomBytes(23456, 2);
+
+		byte[] changed = orig.clone();
+		Arrays.fill(changed, 3000, 3100, (byte) 7);
+		changed[20000] ^= 1;
+		byte[] grown = Arrays.copyOf(orig, orig.length + 4321);
+		grown[orig.length + 10] = 9;
+		byte[] shrunk = Arrays.copyOf(orig, 15555);
+
+		for (byte[] version : new byte[][] { changed, grown, shrunk }) {
+			checkPatch(new Chunker(4, STRIPE_UNIT), orig, version);
+			checkPatch(new ReedSolomonCoder(3, 2, STRIPE_UNIT), orig, version);
+		}
+	}
+
+
+	/**
+	 * An updated file gets the hash tree of its new version, which the
+	 * file put back together checks out against, and the blocks of its
+	 * patched parts check out against the new leaves when downloaded.
+	 */
+	public void testUpdatedTreeVerifies() throws IOException {
+		byte[] orig = randomBytes(3*1024*1024 + 123, 3);
+		byte[] changed = orig.clone();
+		changed[2500000] ^= 1;
+
+		File[] stored = encodeTo(new Chunker(3, STRIPE_UNIT), orig, "stored");
+		PersonalFileInfo before = hashVersion(orig);
+		PersonalFileInfo after = hashVersion(changed);
+		File changedFile = new File(TEST_PATH + "delta-changed");
+		writeFile(changedFile, changed);
+		assertFalse( before.getTreeRoot().equals(after.getTreeRoot()) );
+		assertEquals( after.getTreeRoot(), RaidsApp.hashTree(changedFile, after.getTreeBlockSize()) );
+
+		// Patch the stored parts the way an update does
+		StripeDelta delta = new StripeDelta(
+				new StripeLayout(3, 1, STRIPE_UNIT, orig.length), before.getUnitHashes(),
+				new StripeLayout(3, 1, STRIPE_UNIT, changed.length), after.getUnitHashes());
+		ChunkPatch[] patches = delta.createPatches();
+		FileInputStream in = new FileInputStream(changedFile);
+		for (long row : delta.getDirtyRows()) {
+			delta.addRow(in.getChannel(), row, patches);
+		}
+		in.close();
+		changedFile.delete();
+
+		// Every block of the patched parts matches the new tree, the changed unit's and its parity's didn't match the old
+		int stale = 0;
+		for (int i = 0; i < stored.length; i++) {
+			RandomAccessFile raf = new RandomAccessFile(stored[i], "rw");
+			FileChannel channel = raf.getChannel();
+			long length = channel.size();
+			if ( MerkleTree.verify(channel, MerkleTree.DEFAULT_BLOCK_SIZE, before.getPartLeaves()[i], length, 0, length) < length ) {
+				fail( "chunk " + i + " was corrupt before it was patched" );
+			}
+			patches[i].applyTo(channel);
+			assertEquals( length, MerkleTree.verify(channel, MerkleTree.DEFAULT_BLOCK_SIZE,
+					after.getPartLeaves()[i], length, 0, length) );
+			if ( MerkleTree.verify(channel, MerkleTree.DEFAULT_BLOCK_SIZE,
+					before.getPartLeaves()[i], length, 0, length) < length ) {
+				stale++;
+			}
+			raf.close();
+			stored[i].delete();
+		}
+		assertEquals( 2, stale );
+	}
+
+
+// Private Helpers
+
+	/**
+	 * Hash a version of a file the way an update does, split in three parts.
+	 * @param bytes the file's contents
+	 * @return the version's entry for the personal file list
+	 */
+	private PersonalFileInfo hashVersion(byte[] bytes) throws IOException {
+		File file = new File(TEST_PATH + "delta-version");
+		writeFile(file, bytes);
+		FileInputStream in = new FileInputStream(file);
+		PersonalFileInfo version = ClientTerminal.hashVersion("delta", in.getChannel(), new Chunker(3, STRIPE_UNIT), 0);
+		in.close();
+		file.delete();
+		return version;
+	}
+
+	/**
+	 * Store one version, patch it to another, and compare with the other
+	 * version stored from scratch.
+	 * @param encoder the code to store with
+	 * @param orig the stored version
+	 * @param version the new version
+	 */
+	private void checkPatch(Encoder encoder, byte[] orig, byte[] version) throws IOException {
+		int n = encoder.getChunks();
+		int p = encoder.getParityChunks();
+		File[] stored = encodeTo(encoder, orig, "stored");
+		File[] expected = encodeTo(encoder, version, "expected");
+
+		File versionFile = new File(TEST_PATH + "delta-version");
+		writeFile(versionFile, version);
+		StripeDelta delta = new StripeDelta(
+				new StripeLayout(n, p, STRIPE_UNIT, orig.length), hashUnits(orig),
+				new StripeLayout(n, p, STRIPE_UNIT, version.length), hashUnits(version));
+		assertTrue( delta.getDirtyRows().size() < delta.getLayout().getRows() );
+
+		ChunkPatch[] patches = delta.createPatches();
+		FileInputStream in = new FileInputStream(versionFile);
+		for (long row : delta.getDirtyRows()) {
+			delta.addRow(in.getChannel(), row, patches);
+		}
+		in.close();
+
+		for (int i = 0; i < n; i++) {
+			RandomAccessFile raf = new RandomAccessFile(stored[i], "rw");
+			patches[i].applyTo(raf.getChannel());
+			raf.close();
+			assertTrue( "chunk " + i + " of " + encoder.getClass().getSimpleName(),
+					Arrays.equals(readFile(expected[i]), readFile(stored[i])) );
+			stored[i].delete();
+			expected[i].delete();
+		}
+		versionFile.delete();
+	}
+
+	/**
+	 * Encode bytes into chunk files.
+	 * @param encoder the code to use
+	 * @param bytes the file's contents
+	 * @param name prefix of the chunk files
+	 * @return the chunk files
+	 */
+	private File[] encodeTo(Encoder encoder, byte[] bytes, String name) throws IOException {
+		File source = new File(TEST_PATH + "delta-" + name);
+		writeFile(source, bytes);
+		File[] chunks = new File[encoder.getChunks()];
+		WritableByteChannel[] out = new WritableByteChannel[chunks.length];
+		FileOutputStream[] streams = new FileOutputStream[chunks.length];
+		for (int i = 0; i < chunks.length; i++) {
+			chunks[i] = new File(TEST_PATH + i + "_delta-" + name);
+			streams[i] = new FileOutputStream(chunks[i]);
+			out[i] = streams[i].getChannel();
+		}
+		FileInputStream in = new FileInputStream(source);
+		encoder.encode(in.getChannel(), bytes.length, out);
+		in.close();
+		for (FileOutputStream stream : streams) {
+			stream.close();
+		}
+		source.delete();
+		return chunks;
+	}
+
+	/**
+	 * Hash each stripe unit of some bytes the way an upload does.
+	 * @param bytes the file's contents
+	 * @return the SHA-1 of each unit end to end
+	 */
+	private byte[] hashUnits(byte[] bytes) throws IOException {
+		File file = new File(TEST_PATH + "delta-hashed");
+		writeFile(file, bytes);
+		FileInputStream in = new FileInputStream(file);
+		FileChannel channel = in.getChannel();
+		HashingReadableChannel hashing = new HashingReadableChannel(channel, STRIPE_UNIT);
+		ByteBuffer buf = ByteBuffer.allocate(777);
+		while (hashing.read(buf) >= 0) {
+			buf.clear();
+		}
+		in.close();
+		file.delete();
+		return hashing.getBlockHashes();
+	}
+
+	/**
+	 * Random bytes
+	 * @param length how many
+	 * @param seed random seed
+	 * @return the bytes
+	 */
+	private byte[] randomBytes(int length, long seed) {
+		byte[] bytes = new byte[length];
+		new Random(seed).nextBytes(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Write a whole (small) file
+	 * @param file the file
+	 * @param bytes its contents
+	 */
+	private void writeFile(File file, byte[] bytes) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(bytes);
+		out.close();
+	}
+
+	/**
+	 * Read a whole (small) file
+	 * @param file the file
+	 * @return its contents
+	 */
+	private byte[] readFile(File file) throws IOException {
+		byte[] bytes = new byte[(int) file.length()];
+		FileInputStream in = new FileInputStream(file);
+		int read = 0;
+		while (read < bytes.length) {
+			read += in.read(bytes, read, bytes.length - read);
+		}
+		in.close();
+		return bytes;
+	}
+
+}
@@ -0,0 +1,125 @@
+package tests;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import chunker.ChunkedFileInfo;
+import chunker.Chunker;
+import chunker.StripeLayout;
+import chunker.StripedFileReader;
+import junit.framework.TestCase;
+
+/**
+ * TestSuite for range reads straight from striped chunks.
+ *
+ * @author Alex Maskovyak
+ */
+public class TestStripedFileReader extends TestCase {
+
+	/** Path to the directory where the test files are stored. */
+	private static final String TEST_PATH = "src/tests/chunker/";
+
+	/** Image File */
+	private static final String IMAGE_FILENAME = "monalisa.jpg";
+
+
+	/**
+	 * A range inside one stripe unit maps to a single chunk, and a range
+	 * spanning units maps to consecutive extents in file order.
+	 */
+	public void testLocate() {
+		StripeLayout layout = new StripeLayout(4, 100, 1000);
+
+		List<StripedFileReader.Extent> one = StripedFileReader.locate(layout, 310, 50);
+		assertEquals( 1, one.size() );
+		boolean[] needed = StripedFileReader.getChunksFor(layout, 310, 50);
+		int count = 0;
+		for (boolean b : needed) { if (b) count++; }
+		assertEquals( 1, count );
+
+		List<StripedFileReader.Extent> many = StripedFileReader.locate(layout, 250, 400);
+		long expected = 250;
+		int total = 0;
+		for (StripedFileReader.Extent e : many) {
+			assertEquals( expected, e.getFileOffset() );
+			assertFalse( layout.isParity(e.getRow(), e.getChunk()) );
+			expected += e.getLength();
+			total += e.getLength();
+		}
+		assertEquals( 400, total );
+
+		// Clipped to the end of the file
+		assertTrue( StripedFileReader.locate(layout, 990, 100).get(0).getLength() == 10 );
+		assertTrue( StripedFileReader.locate(layout, 1000, 100).isEmpty() );
+	}
+
+
+	/**
+	 * Random ranges read back the original bytes, healthy and with each chunk
+	 * missing in turn.
+	 */
+	public void testRandomRanges() throws IOException {
+		int numChunks = 4;
+		byte[] orig = readFile(TEST_PATH + IMAGE_FILENAME);
+		ChunkedFileInfo cfi = Chunker.chunk(TEST_PATH, IMAGE_FILENAME, numChunks, 1000);
+		String[] names = new String[numChunks];
+		for (int i = 0; i < numChunks; i++) {
+			names[i] = new File(cfi.getChunkPaths()[i]).getName();
+		}
+
+		Random random = new Random(3);
+		for (int missing = -1; missing < numChunks; missing++) {
+			String[] chunks = names.clone();
+			if (missing >= 0) {
+				chunks[missing] = "missing-" + names[missing];
+			}
+			StripedFileReader reader = StripedFileReader.open(TEST_PATH, chunks);
+			assertEquals( orig.length, reader.getLength() );
+
+			for (int i = 0; i < 50; i++) {
+				int offset = random.nextInt(orig.length);
+				int length = random.nextInt(5000);
+				ByteBuffer buf = ByteBuffer.allocate(length);
+				int read = reader.read(offset, buf);
+				int expected = Math.min(length, orig.length - offset);
+				assertEquals( expected, read );
+				assertTrue( "missing " + missing + " at " + offset,
+						Arrays.equals(Arrays.copyOfRange(orig, offset, offset + expected),
+								Arrays.copyOf(buf.array(), expected)) );
+			}
+			assertEquals( -1, reader.read(orig.length, ByteBuffer.allocate(10)) );
+			reader.close();
+		}
+
+		for (String path : cfi.getChunkPaths()) {
+			new File(path).delete();
+		}
+	}
+
+
+// Private Helpers
+
+	/**
+	 * Read a whole (small) file
+	 * @param filename the file
+	 * @return its contents
+	 */
+	private byte[] readFile(String filename) throws IOException {
+		File file = new File(filename);
+		byte[] bytes = new byte[(int) file.length()];
+		InputStream in = new FileInputStream(file);
+		int read = 0;
+		while (read < bytes.length) {
+			read += in.read(bytes, read, bytes.length - read);
+		}
+		in.close();
+		return bytes;
+	}
+
+}
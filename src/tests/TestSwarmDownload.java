@@ -0,0 +1,254 @@
+package tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import raids.FilePartSource;
+import raids.PartIndicator;
+import raids.PartSource;
+import raids.SwarmDownload;
+import raids.TransferFrame;
+import rice.p2p.commonapi.NodeHandle;
+import rice.pastry.transport.BogusNodeHandle;
+import junit.framework.TestCase;
+
+/**
+ * Ensure a part downloaded from several peers is asked for range by range,
+ * that slow or failing peers can't stop it finishing, and that it fails once
+ * no peer is left.
+ *
+ * @author Joseph Pecoraro
+ */
+public class TestSwarmDownload extends TestCase {
+
+//	Constants
+
+    /** SHA */
+    private static final String TEXT_SHA = "d12fa9ab27473e663908ed6b68038ac1e59a25f1"; // 40 char SHA1
+
+    /** Length of the part, 2 whole ranges and a short one */
+    private static final long PART_LENGTH = 2L * SwarmDownload.RANGE_SIZE + 1000;
+
+
+//	Inner Classes
+
+    /**
+     * A peer, only ever compared.  A BogusNodeHandle can't be hashed.
+     */
+    private static class Peer extends BogusNodeHandle {
+        private static final long serialVersionUID = 1L;
+        public Peer(int port) { super(new InetSocketAddress(InetAddress.getLoopbackAddress(), port)); }
+        public boolean equals(Object o) { return o == this; }
+        public int hashCode() { return System.identityHashCode(this); }
+    }
+
+
+//	Fields
+
+    /** Requests made, peer then offset */
+    private LinkedList<Object[]> m_requests;
+
+    /** The part every peer holds */
+    private File m_part;
+
+
+//	Setup
+
+    protected void setUp() throws IOException {
+    	m_part = File.createTempFile("RAIDS-testswarmdownload-", ".tmp");
+    	RandomAccessFile raf = new RandomAccessFile(m_part, "rw");
+    	raf.setLength(PART_LENGTH);
+    	raf.close();
+    }
+
+    protected void tearDown() {
+    	m_part.delete();
+    }
+
+
+//	Test Cases
+
+    /**
+     * Every range is asked for and the part completes
+     */
+    public void testComplete() throws IOException {
+    	NodeHandle a = new Peer(1);
+    	NodeHandle b = new Peer(2);
+    	SwarmDownload swarm = swarm(a, b);
+    	try {
+    		assertFalse(swarm.start());
+    		assertEquals(4, m_requests.size());
+
+    		// Answer everything in order
+    		Set<Long> answered = new HashSet<Long>();
+    		boolean finished = false;
+    		while ( !finished && !m_requests.isEmpty() ) {
+    			long offset = (Long) m_requests.removeFirst()[1];
+    			answered.add(offset);
+    			finished = answer(swarm, offset);
+    		}
+    		assertTrue(finished);
+    		assertTrue(swarm.isComplete());
+    		assertTrue(answered.contains(0L));
+    		assertTrue(answered.contains((long) SwarmDownload.RANGE_SIZE));
+    		assertTrue(answered.contains(2L * SwarmDownload.RANGE_SIZE));
+    		assertEquals(PART_LENGTH, swarm.getFile().length());
+    	} finally {
+    		swarm.getFile().delete();
+    	}
+    }
+
+    /**
+     * Ranges asked for before the length is known, past the end of the part,
+     * come back empty and don't keep their peers from being asked for more
+     */
+    public void testPastEnd() throws IOException {
+    	NodeHandle a = new Peer(1);
+    	NodeHandle b = new Peer(2);
+    	SwarmDownload swarm = swarm(a, b);
+    	try {
+    		swarm.start();
+    		Object[] last = m_requests.removeLast();
+    		assertSame(b, last[0]);
+    		assertEquals(3L * SwarmDownload.RANGE_SIZE, last[1]);
+
+    		// The empty answer frees b, which joins a on its ranges
+    		assertFalse(answer(swarm, (Long) last[1]));
+    		assertSame(b, m_requests.getLast()[0]);
+    		assertEquals(4, m_requests.size());
+
+    		boolean finished = false;
+    		while ( !finished && !m_requests.isEmpty() ) {
+    			finished = answer(swarm, (Long) m_requests.removeFirst()[1]);
+    		}
+    		assertTrue(finished);
+    		assertTrue(swarm.isComplete());
+    	} finally {
+    		swarm.getFile().delete();
+    	}
+    }
+
+    /**
+     * A peer answering past the end from where its part ends, rather than
+     * where it was asked, still frees the peers asked past the end
+     */
+    public void testClampedAnswer() throws IOException {
+    	NodeHandle a = new Peer(1);
+    	NodeHandle b = new Peer(2);
+    	SwarmDownload swarm = swarm(a, b);
+    	try {
+    		swarm.start();
+    		m_requests.clear();
+    		assertFalse(swarm.rangeReceived(PART_LENGTH, 0, PART_LENGTH));
+    		assertEquals(1, m_requests.size());
+    		assertSame(b, m_requests.getFirst()[0]);
+    	} finally {
+    		swarm.getFile().delete();
+    	}
+    }
+
+    /**
+     * A peer which never answers doesn't hold up the part, its ranges are
+     * asked of the others as well
+     */
+    public void testSlowPeer() throws IOException {
+    	NodeHandle fast = new Peer(1);
+    	NodeHandle slow = new Peer(2);
+    	SwarmDownload swarm = swarm(fast, slow);
+    	try {
+    		swarm.start();
+    		boolean finished = false;
+    		int askedOfSlow = 0;
+    		while ( !finished && !m_requests.isEmpty() ) {
+    			Object[] request = m_requests.removeFirst();
+    			if ( request[0] == slow ) {
+    				askedOfSlow++;
+    				continue;
+    			}
+    			long offset = (Long) request[1];
+    			finished = answer(swarm, offset);
+    		}
+    		assertTrue(finished);
+    		assertTrue(swarm.isComplete());
+    		assertEquals(2, askedOfSlow);
+    	} finally {
+    		swarm.getFile().delete();
+    	}
+    }
+
+    /**
+     * The ranges of a failed peer go to the others, and with no peer left
+     * the part fails
+     */
+    public void testFailures() throws IOException {
+    	NodeHandle a = new Peer(1);
+    	NodeHandle b = new Peer(2);
+    	SwarmDownload swarm = swarm(a, b);
+    	try {
+    		swarm.start();
+    		m_requests.clear();
+
+    		// A range asked of b alone fails, b is dropped and a is asked instead
+    		assertFalse(swarm.rangeFailed(2L * SwarmDownload.RANGE_SIZE));
+    		assertFalse(swarm.peerFailed(b));
+    		for (Object[] request : m_requests) {
+    			assertSame(a, request[0]);
+    		}
+
+    		// Without a, no-one is left
+    		assertTrue(swarm.peerFailed(a));
+    		assertFalse(swarm.isComplete());
+    	} finally {
+    		swarm.getFile().delete();
+    	}
+    }
+
+
+// Private Helpers
+
+    /**
+     * Build a download recording its requests
+     * @param peers the peers
+     * @return the download
+     */
+    private SwarmDownload swarm(NodeHandle... peers) throws IOException {
+    	m_requests = new LinkedList<Object[]>();
+    	List<NodeHandle> list = new ArrayList<NodeHandle>();
+    	for (NodeHandle peer : peers) {
+    		list.add(peer);
+    	}
+    	return new SwarmDownload(new PartIndicator(TEXT_SHA, 0), list, new SwarmDownload.Requester() {
+    		public void request(NodeHandle peer, long offset, long length) {
+    			m_requests.add(new Object[] { peer, offset });
+    		}
+    	});
+    }
+
+    /**
+     * Answer a request with the range a peer holding the part sends,
+     * read from the header of the frame it builds
+     * @param swarm the download
+     * @param offset where the range was asked from
+     * @return true once the part is complete, or no peer is left
+     */
+    private boolean answer(SwarmDownload swarm, long offset) throws IOException {
+    	PartSource source = new FilePartSource(new PartIndicator(TEXT_SHA, 0), m_part, offset, SwarmDownload.RANGE_SIZE);
+    	TransferFrame.Decoder decoder = new TransferFrame.Decoder(null);
+    	try {
+    		assertTrue(decoder.consumeHeader(source.next(null)));
+    	} finally {
+    		source.abort();
+    	}
+    	assertEquals(offset, decoder.getOffset());
+    	return swarm.rangeReceived(decoder.getOffset(), decoder.getLength(), decoder.getPartLength());
+    }
+
+}
@@ -0,0 +1,236 @@
+package tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32C;
+
+import raids.FilePartSource;
+import raids.PartIndicator;
+import raids.PartSource;
+import raids.TransferFrame;
+import util.Digest;
+import util.SHA1;
+import junit.framework.TestCase;
+
+/**
+ * Ensure parts survive being framed and unframed, and that damaged or
+ * incomplete transfers are noticed.
+ *
+ * @author Joseph Pecoraro
+ */
+public class TestTransferFrame extends TestCase {
+
+//	Constants
+
+    /** SHA */
+    private static final String TEXT_SHA = "d12fa9ab27473e663908ed6b68038ac1e59a25f1"; // 40 char SHA1
+
+    /** Part Number */
+    private static final int PART_NUM = 3;
+
+
+//	Test Cases
+
+    /**
+     * A part split into several blocks arrives whole however it is read
+     */
+    public void testRoundTrip() throws IOException {
+    	byte[] data = randomBytes(2 * TransferFrame.BLOCK_SIZE + 123);
+    	byte[] frame = frame(data, data.length);
+
+    	for (int piece : new int[] { 1, 7, 4096, frame.length }) {
+    		ByteArrayOutputStream out = new ByteArrayOutputStream();
+    		TransferFrame.Decoder decoder = new TransferFrame.Decoder(Channels.newChannel(out));
+    		boolean complete = false;
+    		for (int i = 0; i < frame.length; i += piece) {
+    			assertFalse(complete);
+    			complete = decoder.consume(ByteBuffer.wrap(frame, i, Math.min(piece, frame.length - i)));
+    		}
+    		assertTrue(complete);
+    		assertEquals(new PartIndicator(TEXT_SHA, PART_NUM), decoder.getPartIndicator());
+    		assertEquals(data.length, decoder.getLength());
+    		assertEquals(data.length, decoder.getReceived());
+    		assertTrue(Arrays.equals(data, out.toByteArray()));
+    		assertEquals(SHA1.getInstance().hash(data), decoder.getDigest().toString());
+    	}
+    }
+
+
+    /**
+     * An empty part and a part of undeclared length are both fine
+     */
+    public void testEmptyAndUnknownLength() throws IOException {
+    	assertTrue(decode(frame(new byte[0], 0), new ByteArrayOutputStream()));
+
+    	byte[] data = randomBytes(5000);
+    	ByteArrayOutputStream out = new ByteArrayOutputStream();
+    	assertTrue(decode(frame(data, TransferFrame.UNKNOWN_LENGTH), out));
+    	assertTrue(Arrays.equals(data, out.toByteArray()));
+    }
+
+
+    /**
+     * A transfer cut off part way is never complete
+     */
+    public void testTruncated() throws IOException {
+    	byte[] frame = frame(randomBytes(1000), 1000);
+    	byte[] cut = Arrays.copyOf(frame, frame.length - 1);
+    	assertFalse(decode(cut, new ByteArrayOutputStream()));
+
+    	// Only whole blocks which checked out count towards resuming, or are written
+    	byte[] data = randomBytes(TransferFrame.BLOCK_SIZE + 1000);
+    	frame = frame(data, data.length);
+    	ByteArrayOutputStream out = new ByteArrayOutputStream();
+    	TransferFrame.Decoder decoder = new TransferFrame.Decoder(Channels.newChannel(out));
+    	decoder.consume(ByteBuffer.wrap(frame, 0, frame.length - TransferFrame.END_SIZE - 10));
+    	assertEquals(TransferFrame.BLOCK_SIZE, decoder.getChecked());
+    	assertTrue(decoder.getReceived() > decoder.getChecked());
+    	assertEquals(decoder.getChecked(), out.size());
+    }
+
+
+    /**
+     * Damage to a block, the whole part or the declared length is caught
+     */
+    public void testCorruption() {
+    	byte[] data = randomBytes(1000);
+
+    	// A flipped data bit fails its block checksum
+    	byte[] frame = frame(data, data.length);
+    	frame[TransferFrame.HEADER_SIZE + 4 + 10] ^= 1;
+    	assertRejected(frame);
+
+    	// A part which doesn't match the SHA1 it was sent with
+    	frame = frame(data, data.length);
+    	frame[frame.length - 1] ^= 1;
+    	assertRejected(frame);
+
+    	// A shorter part than declared
+    	assertRejected(frame(data, data.length + 1));
+
+    	// A version from the future
+    	frame = frame(data, data.length);
+    	frame[0] = TransferFrame.VERSION + 1;
+    	assertRejected(frame);
+    }
+
+    /**
+     * A stored part is sent in chunks which decode to the file
+     */
+    public void testFilePartSource() throws IOException {
+    	byte[] data = randomBytes(5 * TransferFrame.BLOCK_SIZE + 17);
+    	File file = File.createTempFile("RAIDS-testtransferframe-", ".tmp");
+    	try {
+    		FileOutputStream fos = new FileOutputStream(file);
+    		fos.write(data);
+    		fos.close();
+
+    		PartSource source = new FilePartSource(new PartIndicator(TEXT_SHA, PART_NUM), file);
+    		ByteArrayOutputStream out = new ByteArrayOutputStream();
+    		TransferFrame.Decoder decoder = new TransferFrame.Decoder(Channels.newChannel(out));
+    		boolean complete = false;
+    		ByteBuffer chunk;
+    		while ( (chunk = source.next(null)).hasRemaining() ) {
+    			assertFalse(complete);
+    			assertTrue(chunk.remaining() <= TransferFrame.CHUNK_SIZE);
+    			complete = decoder.consume(chunk);
+    		}
+    		assertTrue(complete);
+    		assertTrue(Arrays.equals(data, out.toByteArray()));
+    		assertEquals(SHA1.getInstance().hash(data), decoder.getDigest().toString());
+    	} finally {
+    		file.delete();
+    	}
+    }
+
+    /**
+     * A range of a stored part decodes to those bytes, and says where they go
+     */
+    public void testRange() throws IOException {
+    	byte[] data = randomBytes(3 * TransferFrame.BLOCK_SIZE);
+    	File file = File.createTempFile("RAIDS-testtransferframe-", ".tmp");
+    	try {
+    		FileOutputStream fos = new FileOutputStream(file);
+    		fos.write(data);
+    		fos.close();
+
+    		// The range runs past the end of the part and is cut short
+    		int offset = 2 * TransferFrame.BLOCK_SIZE + 5;
+    		PartSource source = new FilePartSource(new PartIndicator(TEXT_SHA, PART_NUM), file, offset, data.length);
+    		ByteArrayOutputStream out = new ByteArrayOutputStream();
+    		TransferFrame.Decoder decoder = new TransferFrame.Decoder(null);
+    		ByteBuffer chunk;
+    		while ( (chunk = source.next(null)).hasRemaining() ) {
+    			if ( !decoder.hasHeader() && decoder.consumeHeader(chunk) ) {
+    				decoder.setOutput(Channels.newChannel(out));
+    			}
+    			decoder.consume(chunk);
+    		}
+    		assertTrue(decoder.isComplete());
+    		assertTrue(decoder.isRange());
+    		assertEquals(offset, decoder.getOffset());
+    		assertEquals(data.length - offset, decoder.getLength());
+    		assertEquals(data.length, decoder.getPartLength());
+    		assertTrue(Arrays.equals(Arrays.copyOfRange(data, offset, data.length), out.toByteArray()));
+    	} finally {
+    		file.delete();
+    	}
+    }
+
+
+// Private Helpers
+
+    /**
+     * Frame a part
+     * @param data the part
+     * @param length the length to declare
+     * @return the frame
+     */
+    private byte[] frame(byte[] data, long length) {
+    	ByteBuffer blocks = TransferFrame.blocks(ByteBuffer.wrap(data), new CRC32C());
+    	ByteBuffer buf = ByteBuffer.allocate(TransferFrame.HEADER_SIZE + blocks.remaining() + TransferFrame.END_SIZE);
+    	TransferFrame.putHeader(buf, new PartIndicator(TEXT_SHA, PART_NUM), length);
+    	buf.put(blocks);
+    	TransferFrame.putEnd(buf, Digest.fromBytes( SHA1.getInstance().digest(data) ));
+    	return Arrays.copyOf(buf.array(), buf.position());
+    }
+
+    /**
+     * Decode a whole frame
+     * @param frame the frame
+     * @param out receives the part
+     * @return true if the frame ended
+     */
+    private boolean decode(byte[] frame, ByteArrayOutputStream out) throws IOException {
+    	return new TransferFrame.Decoder(Channels.newChannel(out)).consume(ByteBuffer.wrap(frame));
+    }
+
+    /**
+     * Check a frame is refused
+     * @param frame the frame
+     */
+    private void assertRejected(byte[] frame) {
+    	try {
+    		decode(frame, new ByteArrayOutputStream());
+    		fail("Accepted a damaged frame");
+    	} catch (IOException e) {}
+    }
+
+    /**
+     * Random bytes
+     * @param length how many
+     * @return the bytes
+     */
+    private byte[] randomBytes(int length) {
+    	byte[] bytes = new byte[length];
+    	new Random(length).nextBytes(bytes);
+    	return bytes;
+    }
+
+}
@@ -6,6 +6,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 import raids.PartIndicator;
 
@@ -30,6 +32,8 @@ public class BufferUtils {
 
 	/**
 	 * Build a ByteBuffer for a file with a prefixed PartIndicator object
+	 * The whole file is held in memory, so this is only meant for small
+	 * files, parts are sent a buffer at a time with {@link #copy}
 	 * Reference: Source: http://nadeausoftware.com/articles/2008/02/java_tip_how_read_files_quickly
 	 * @param filename the path to the file
 	 * @param maxSize the maximum size the buffer could be
@@ -96,4 +100,105 @@ public class BufferUtils {
 		}
 	}
 
+
+	/**
+	 * Read from a channel until the buffer is full or the channel is exhausted
+	 * @param channel the channel to read from
+	 * @param buf the buffer to fill, from its position up to its limit
+	 * @return the number of bytes read, -1 if the channel was already exhausted
+	 * @throws IOException when the channel cannot be read
+	 */
+	public static int readFully(ReadableByteChannel channel, ByteBuffer buf) throws IOException {
+		int total = 0;
+		while ( buf.hasRemaining() ) {
+			int nRead = channel.read(buf);
+			if ( nRead == -1 ) {
+				return ( total == 0 ) ? -1 : total;
+			}
+			total += nRead;
+		}
+		return total;
+	}
+
+
+	/**
+	 * Write the entire remaining contents of a buffer to a channel
+	 * @param channel the channel to write to
+	 * @param buf the buffer, from its position up to its limit
+	 * @throws IOException when the channel cannot be written
+	 */
+	public static void writeFully(WritableByteChannel channel, ByteBuffer buf) throws IOException {
+		while ( buf.hasRemaining() ) {
+			channel.write(buf);
+		}
+	}
+
+
+	/**
+	 * Fill the remaining space of a buffer from a position in a file, without
+	 * moving the channel's own position, so threads may share the channel
+	 * @param channel the file to read from
+	 * @param buf the buffer, filled from its position up to its limit
+	 * @param position the file position to start reading at
+	 * @return the number of bytes read, -1 if the file ends before any were read
+	 * @throws IOException when the channel cannot be read
+	 */
+	public static int readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		int total = 0;
+		while ( buf.hasRemaining() ) {
+			int nRead = channel.read(buf, position + total);
+			if ( nRead == -1 ) {
+				return ( total == 0 ) ? -1 : total;
+			}
+			total += nRead;
+		}
+		return total;
+	}
+
+
+	/**
+	 * Copy a range of a file to a channel through a single buffer, so files
+	 * of any size are copied in the memory of that buffer
+	 * @param channel the file to read from
+	 * @param position the file position to start copying at
+	 * @param length the number of bytes to copy
+	 * @param out the channel to write to
+	 * @param buf the buffer to copy through, its contents are overwritten
+	 * @return the number of bytes copied, less than length if the file ends first
+	 * @throws IOException when either channel fails
+	 */
+	public static long copy(FileChannel channel, long position, long length, WritableByteChannel out,
+			ByteBuffer buf) throws IOException {
+		long copied = 0;
+		while ( copied < length ) {
+			buf.clear();
+			if ( length - copied < buf.capacity() ) {
+				buf.limit( (int) (length - copied) );
+			}
+			int nRead = readFully(channel, buf, position + copied);
+			if ( nRead <= 0 ) {
+				break;
+			}
+			buf.flip();
+			writeFully(out, buf);
+			copied += nRead;
+		}
+		return copied;
+	}
+
+
+	/**
+	 * Write the entire remaining contents of a buffer at a position in a
+	 * file, without moving the channel's own position
+	 * @param channel the file to write to
+	 * @param buf the buffer, from its position up to its limit
+	 * @param position the file position to start writing at
+	 * @throws IOException when the channel cannot be written
+	 */
+	public static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		while ( buf.hasRemaining() ) {
+			position += channel.write(buf, position);
+		}
+	}
+
 }
@@ -0,0 +1,174 @@
+package util;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * An immutable 20 byte SHA-1 digest, held as two longs and an int rather
+ * than as 40 characters of hex.  Digests are compared and hashed as
+ * numbers, and read straight out of a ByteBuffer without a byte array in
+ * between, so they make cheap map keys and cheap wire fields.
+ *
+ * @author Alex Maskovyak
+ */
+public final class Digest implements Serializable {
+
+	///
+	///
+	/// Constants.
+	///
+	///
+
+	/** Generated serial version */
+	private static final long serialVersionUID = 3187260478530920614L;
+
+	/** Size of a digest in bytes. */
+	public static final int SIZE = SHA1.DIGEST_SIZE;
+
+	///
+	///
+	/// Hidden variables.
+	///
+	///
+
+	/** Bytes 0 to 7. */
+	private final long m_high;
+
+	/** Bytes 8 to 15. */
+	private final long m_middle;
+
+	/** Bytes 16 to 19. */
+	private final int m_low;
+
+	/** Hash code, the bits of a digest are already well mixed. */
+	private final int m_hash;
+
+	///
+	///
+	/// Constructors.
+	///
+	///
+
+	/**
+	 * Constructor from the parts of a digest.
+	 * @param high bytes 0 to 7.
+	 * @param middle bytes 8 to 15.
+	 * @param low bytes 16 to 19.
+	 */
+	private Digest( long high, long middle, int low ) {
+		m_high = high;
+		m_middle = middle;
+		m_low = low;
+		m_hash = (int)( high ^ ( high >>> 32 ) ) ^ low;
+	}
+
+	/**
+	 * Digest from bytes.
+	 * @param bytes the 20 byte digest.
+	 * @return the digest.
+	 * @throws IllegalArgumentException when there are not 20 bytes.
+	 */
+	public static Digest fromBytes( byte[] bytes ) throws IllegalArgumentException {
+		if( bytes == null || bytes.length != SIZE ) {
+			throw new IllegalArgumentException( "A digest is " + SIZE + " bytes." );
+		}
+		return read( ByteBuffer.wrap( bytes ) );
+	}
+
+	/**
+	 * Read a digest from the buffer's position, advancing it.
+	 * @param buf holds at least 20 bytes.
+	 * @return the digest.
+	 * @throws java.nio.BufferUnderflowException when fewer than 20 bytes remain.
+	 */
+	public static Digest read( ByteBuffer buf ) {
+		long high = buf.getLong();
+		long middle = buf.getLong();
+		return new Digest( high, middle, buf.getInt() );
+	}
+
+	/**
+	 * Parse a digest from hex, in either case.
+	 * @param hex 40 hex digits.
+	 * @return the digest.
+	 * @throws IllegalArgumentException when the String is not 40 hex digits.
+	 */
+	public static Digest fromHex( String hex ) throws IllegalArgumentException {
+		if( hex == null || hex.length() != 2 * SIZE ) {
+			throw new IllegalArgumentException( "A digest is " + 2 * SIZE + " hex digits: " + hex );
+		}
+		return new Digest( parseHex( hex, 0, 16 ), parseHex( hex, 16, 16 ), (int)parseHex( hex, 32, 8 ) );
+	}
+
+	/**
+	 * Parse part of a hex String.
+	 * @param hex the String.
+	 * @param start index of the first digit.
+	 * @param digits number of digits, at most 16.
+	 * @return the value of the digits.
+	 * @throws IllegalArgumentException when a character is not a hex digit.
+	 */
+	private static long parseHex( String hex, int start, int digits ) throws IllegalArgumentException {
+		long value = 0;
+		for( int i = start; i < start + digits; i++ ) {
+			int digit = Character.digit( hex.charAt( i ), 16 );
+			if( digit < 0 ) {
+				throw new IllegalArgumentException( "Not a hex digit: " + hex.charAt( i ) );
+			}
+			value = ( value << 4 ) | digit;
+		}
+		return value;
+	}
+
+	///
+	///
+	/// Operations.
+	///
+	///
+
+	/**
+	 * Write the digest at the buffer's position, advancing it.
+	 * @param buf has room for 20 bytes.
+	 */
+	public void write( ByteBuffer buf ) {
+		buf.putLong( m_high ).putLong( m_middle ).putInt( m_low );
+	}
+
+	/**
+	 * Convert the digest to bytes.
+	 * @return the 20 byte digest.
+	 */
+	public byte[] toBytes() {
+		ByteBuffer buf = ByteBuffer.allocate( SIZE );
+		write( buf );
+		return buf.array();
+	}
+
+	/**
+	 * Equality of every byte.
+	 * @return true if the other is the same digest.
+	 */
+	public boolean equals( Object other ) {
+		if( !( other instanceof Digest ) ) {
+			return false;
+		}
+		Digest d = (Digest)other;
+		return m_high == d.m_high && m_middle == d.m_middle && m_low == d.m_low;
+	}
+
+	/**
+	 * Hash code, computed once.
+	 * @return a hash code consistent with equals.
+	 */
+	public int hashCode() {
+		return m_hash;
+	}
+
+	/**
+	 * The digest in lower case hex, as {@link SHA1} writes them.
+	 * @return 40 hex digits.
+	 */
+	public String toString() {
+		return SHA1.convertBytesToHexString( toBytes() );
+	}
+}
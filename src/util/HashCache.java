@@ -0,0 +1,283 @@
+package util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Digests of local files remembered between runs, so unchanged files are
+ * not hashed again.  A file is known by its path together with its size,
+ * modification time and file key (the inode where there is one), and any
+ * change to those forgets every digest of it.
+ *
+ * A file modified within {@link #RACY_MILLIS} of being hashed could change
+ * again without its modification time moving, so its digests are not
+ * remembered.
+ *
+ * @author Alex Maskovyak
+ */
+public class HashCache implements Serializable {
+
+	///
+	///
+	/// Constants.
+	///
+	///
+
+	/** Generated serial version */
+	private static final long serialVersionUID = -7310246406735163921L;
+
+	/** How recently a file may have changed and still have its digests remembered. */
+	public static final long RACY_MILLIS = 2000;
+
+	///
+	///
+	/// Inner classes.
+	///
+	///
+
+	/**
+	 * What a file looked like when it was hashed.
+	 */
+	public static class Identity implements Serializable {
+
+		/** Generated serial version */
+		private static final long serialVersionUID = 4926718352216930447L;
+
+		/** Size of the file. */
+		private long m_size;
+
+		/** Modification time of the file, in milliseconds. */
+		private long m_modified;
+
+		/** The file system's key for the file, null if it has none. */
+		private String m_fileKey;
+
+		/**
+		 * Constructor.
+		 * @param size size of the file.
+		 * @param modified modification time in milliseconds.
+		 * @param fileKey the file system's key for the file, may be null.
+		 */
+		public Identity( long size, long modified, String fileKey ) {
+			m_size = size;
+			m_modified = modified;
+			m_fileKey = fileKey;
+		}
+
+		/**
+		 * Obtain the modification time.
+		 * @return modification time in milliseconds.
+		 */
+		public long getModified() {
+			return m_modified;
+		}
+
+		/**
+		 * Equality of every attribute.
+		 * @return true if the other is the same file, unchanged.
+		 */
+		public boolean equals( Object other ) {
+			if( !( other instanceof Identity ) ) {
+				return false;
+			}
+			Identity id = (Identity)other;
+			return m_size == id.m_size && m_modified == id.m_modified
+				&& ( m_fileKey == null ? id.m_fileKey == null : m_fileKey.equals( id.m_fileKey ) );
+		}
+
+		/**
+		 * Hash of the attributes.
+		 * @return a hash code consistent with equals.
+		 */
+		public int hashCode() {
+			return (int)( m_size ^ m_modified );
+		}
+	}
+
+	/**
+	 * The digests of one file.
+	 */
+	private static class Entry implements Serializable {
+
+		/** Generated serial version */
+		private static final long serialVersionUID = -1904467531826405826L;
+
+		/** The file when it was hashed. */
+		private Identity m_identity;
+
+		/** Digests by kind. */
+		private Map<String, String> m_digests;
+
+		/**
+		 * Constructor.
+		 * @param identity the file when it was hashed.
+		 */
+		Entry( Identity identity ) {
+			m_identity = identity;
+			m_digests = new HashMap<String, String>();
+		}
+	}
+
+	///
+	///
+	/// Hidden variables.
+	///
+	///
+
+	/** Digests by absolute path. */
+	private Map<String, Entry> m_entries;
+
+	/** Where the cache is saved, null if it is not. */
+	private transient File m_file;
+
+	/** Whether the cache changed since it was loaded or saved. */
+	private transient boolean m_dirty;
+
+	///
+	///
+	/// Constructors.
+	///
+	///
+
+	/**
+	 * Default constructor, for an empty cache which is never saved.
+	 */
+	public HashCache() {
+		m_entries = new HashMap<String, Entry>();
+		m_file = null;
+		m_dirty = false;
+	}
+
+	/**
+	 * Read a cache saved to a file.
+	 * @param file where the cache is saved.
+	 * @return the saved cache, or an empty one if the file does not exist or
+	 * 			cannot be read, saved to the file from then on.
+	 */
+	public static HashCache load( File file ) {
+		HashCache cache = null;
+		if( file.exists() ) {
+			ObjectInputStream in = null;
+			try {
+				in = new ObjectInputStream( new FileInputStream( file ) );
+				cache = (HashCache)in.readObject();
+			} catch( Exception e ) {
+				e.printStackTrace();
+			} finally {
+				try {
+					if( in != null ) {
+						in.close();
+					}
+				} catch( IOException e ) {}
+			}
+		}
+		if( cache == null ) {
+			cache = new HashCache();
+		}
+		cache.m_file = file;
+		return cache;
+	}
+
+	///
+	///
+	/// Operations.
+	///
+	///
+
+	/**
+	 * Save the cache to the file it was loaded from, if it changed.
+	 * @throws IOException when the file cannot be written.
+	 */
+	public synchronized void save() throws IOException {
+		if( m_file == null || !m_dirty ) {
+			return;
+		}
+		ObjectOutputStream out = new ObjectOutputStream( new FileOutputStream( m_file ) );
+		try {
+			out.writeObject( this );
+		} finally {
+			out.close();
+		}
+		m_dirty = false;
+	}
+
+	/**
+	 * Find what a file looks like now.
+	 * @param path the file.
+	 * @return the file's identity.
+	 * @throws IOException when the file's attributes cannot be read.
+	 */
+	public static Identity identify( Path path ) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes( path, BasicFileAttributes.class );
+		Object fileKey = attributes.fileKey();
+		return new Identity( attributes.size(), attributes.lastModifiedTime().toMillis(),
+				( fileKey == null ) ? null : fileKey.toString() );
+	}
+
+	/**
+	 * Look up a digest of a file, as long as the file has not changed.
+	 * @param path the file.
+	 * @param kind what sort of digest.
+	 * @return the digest, null if it is not known for the file as it is now.
+	 */
+	public synchronized String get( Path path, String kind ) {
+		String key = path.toAbsolutePath().toString();
+		Entry entry = m_entries.get( key );
+		if( entry == null ) {
+			return null;
+		}
+		try {
+			if( entry.m_identity.equals( identify( path ) ) ) {
+				return entry.m_digests.get( kind );
+			}
+		} catch( IOException e ) {}
+		m_entries.remove( key );
+		m_dirty = true;
+		return null;
+	}
+
+	/**
+	 * Remember a digest of a file.  Nothing is remembered if the file changed
+	 * since it was identified, or changed too recently to be trusted.
+	 * @param path the file.
+	 * @param identity the file before it was read to compute the digest.
+	 * @param kind what sort of digest.
+	 * @param digest the digest.
+	 */
+	public synchronized void put( Path path, Identity identity, String kind, String digest ) {
+		try {
+			if( !identity.equals( identify( path ) )
+					|| System.currentTimeMillis() - identity.getModified() < RACY_MILLIS ) {
+				return;
+			}
+		} catch( IOException e ) {
+			return;
+		}
+		String key = path.toAbsolutePath().toString();
+		Entry entry = m_entries.get( key );
+		if( entry == null || !entry.m_identity.equals( identity ) ) {
+			entry = new Entry( identity );
+			m_entries.put( key, entry );
+		}
+		entry.m_digests.put( kind, digest );
+		m_dirty = true;
+	}
+
+	/**
+	 * Obtain the number of files with digests remembered.
+	 * @return number of files.
+	 */
+	public synchronized int size() {
+		return m_entries.size();
+	}
+}
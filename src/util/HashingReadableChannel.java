@@ -0,0 +1,179 @@
+package util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Passes reads through to another channel, updating a SHA-1 digest with
+ * every byte read, so data can be hashed in the same pass that consumes it.
+ * Optionally each fixed size block read is hashed on its own as well, which
+ * lets two versions of a file be compared block by block later.
+ *
+ * @author Alex Maskovyak
+ */
+public class HashingReadableChannel implements ReadableByteChannel {
+
+	///
+	///
+	/// Constants.
+	///
+	///
+
+	/** Size of a SHA-1 digest. */
+	private static final int HASH_SIZE = 20;
+
+	///
+	///
+	/// Hidden variables.
+	///
+	///
+
+	/** The channel being read. */
+	private ReadableByteChannel m_channel;
+
+	/** Digest of everything read so far. */
+	private MessageDigest m_digest;
+
+	/** Number of bytes read so far. */
+	private long m_count;
+
+	/** Size of the blocks hashed on their own, 0 for none. */
+	private int m_blockSize;
+
+	/** Digest of the block being read. */
+	private MessageDigest m_blockDigest;
+
+	/** Digests of the blocks read so far, end to end. */
+	private ByteArrayOutputStream m_blockHashes;
+
+	///
+	///
+	/// Constructors.
+	///
+	///
+
+	/**
+	 * Default constructor.
+	 * @param channel the channel to read from.
+	 */
+	public HashingReadableChannel( ReadableByteChannel channel ) {
+		this( channel, 0 );
+	}
+
+	/**
+	 * Constructor hashing each block on its own as well.
+	 * @param channel the channel to read from.
+	 * @param blockSize size of the blocks to hash, 0 for none.
+	 * @throws IllegalArgumentException when the block size is negative.
+	 */
+	public HashingReadableChannel( ReadableByteChannel channel, int blockSize )
+			throws IllegalArgumentException {
+		if( blockSize < 0 ) {
+			throw new IllegalArgumentException( "Block size must not be negative." );
+		}
+		m_channel = channel;
+		m_count = 0;
+		m_blockSize = blockSize;
+		m_blockHashes = new ByteArrayOutputStream();
+		m_digest = SHA1.newDigest();
+		m_blockDigest = SHA1.newDigest();
+	}
+
+	///
+	///
+	/// Operations.
+	///
+	///
+
+	/**
+	 * Read from the underlying channel, hashing what was read.
+	 * @param dst buffer to read into.
+	 * @return number of bytes read, -1 at the end of the channel.
+	 * @throws IOException when the underlying channel fails.
+	 */
+	public int read( ByteBuffer dst ) throws IOException {
+		int start = dst.position();
+		int read = m_channel.read( dst );
+		if( read > 0 ) {
+			ByteBuffer view = dst.duplicate();
+			view.limit( start + read ).position( start );
+			m_digest.update( view );
+			if( m_blockSize > 0 ) {
+				updateBlocks( view.position( start ), m_count );
+			}
+			m_count += read;
+		}
+		return read;
+	}
+
+	/**
+	 * Update the block digests, finishing a block at each boundary crossed.
+	 * @param view the bytes just read.
+	 * @param offset position of those bytes within everything read.
+	 */
+	private void updateBlocks( ByteBuffer view, long offset ) {
+		while( view.hasRemaining() ) {
+			int inBlock = (int)( offset % m_blockSize );
+			int run = Math.min( view.remaining(), m_blockSize - inBlock );
+			ByteBuffer piece = view.duplicate();
+			piece.limit( piece.position() + run );
+			m_blockDigest.update( piece );
+			view.position( view.position() + run );
+			offset += run;
+			if( offset % m_blockSize == 0 ) {
+				m_blockHashes.write( m_blockDigest.digest(), 0, HASH_SIZE );
+			}
+		}
+	}
+
+	/**
+	 * Check whether the underlying channel is open.
+	 * @return true if open.
+	 */
+	public boolean isOpen() {
+		return m_channel.isOpen();
+	}
+
+	/**
+	 * Close the underlying channel.
+	 * @throws IOException when the underlying channel fails to close.
+	 */
+	public void close() throws IOException {
+		m_channel.close();
+	}
+
+	/**
+	 * Finish the digest, which starts over afterwards.
+	 * @return the SHA-1 of everything read as a hex String.
+	 */
+	public String getHash() {
+		return SHA1.convertBytesToHexString( m_digest.digest() );
+	}
+
+	/**
+	 * Obtain the digest of each block read, a short last block included.
+	 * Call once the reading is done.
+	 * @return the SHA-1 of each block end to end, empty when blocks are not
+	 * 			hashed.
+	 */
+	public byte[] getBlockHashes() {
+		byte[] hashes = m_blockHashes.toByteArray();
+		if( m_blockSize > 0 && m_count % m_blockSize != 0 ) {
+			hashes = Arrays.copyOf( hashes, hashes.length + HASH_SIZE );
+			System.arraycopy( m_blockDigest.digest(), 0, hashes, hashes.length - HASH_SIZE, HASH_SIZE );
+		}
+		return hashes;
+	}
+
+	/**
+	 * Obtain the number of bytes read.
+	 * @return bytes read so far.
+	 */
+	public long getCount() {
+		return m_count;
+	}
+}
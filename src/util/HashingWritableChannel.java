@@ -0,0 +1,111 @@
+package util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+
+/**
+ * Passes writes through to another channel, updating a SHA-1 digest with
+ * every byte written, so data can be hashed in the same pass that produces it.
+ * Without another channel the bytes are only hashed.
+ *
+ * @author Alex Maskovyak
+ */
+public class HashingWritableChannel implements WritableByteChannel {
+
+	///
+	///
+	/// Hidden variables.
+	///
+	///
+
+	/** The channel being written. */
+	private WritableByteChannel m_channel;
+
+	/** Digest of everything written so far. */
+	private MessageDigest m_digest;
+
+	/** Number of bytes written so far. */
+	private long m_count;
+
+	///
+	///
+	/// Constructors.
+	///
+	///
+
+	/**
+	 * Default constructor.
+	 * @param channel the channel to write to, null to only hash.
+	 */
+	public HashingWritableChannel( WritableByteChannel channel ) {
+		m_channel = channel;
+		m_count = 0;
+		m_digest = SHA1.newDigest();
+	}
+
+	///
+	///
+	/// Operations.
+	///
+	///
+
+	/**
+	 * Write to the underlying channel, hashing what was written.
+	 * @param src buffer to write from.
+	 * @return number of bytes written.
+	 * @throws IOException when the underlying channel fails.
+	 */
+	public int write( ByteBuffer src ) throws IOException {
+		int start = src.position();
+		int written;
+		if( m_channel != null ) {
+			written = m_channel.write( src );
+		} else {
+			written = src.remaining();
+			src.position( src.limit() );
+		}
+		if( written > 0 ) {
+			ByteBuffer view = src.duplicate();
+			view.limit( start + written ).position( start );
+			m_digest.update( view );
+			m_count += written;
+		}
+		return written;
+	}
+
+	/**
+	 * Check whether the underlying channel is open.
+	 * @return true if open.
+	 */
+	public boolean isOpen() {
+		return m_channel == null || m_channel.isOpen();
+	}
+
+	/**
+	 * Close the underlying channel.
+	 * @throws IOException when the underlying channel fails to close.
+	 */
+	public void close() throws IOException {
+		if( m_channel != null ) {
+			m_channel.close();
+		}
+	}
+
+	/**
+	 * Finish the digest, which starts over afterwards.
+	 * @return the SHA-1 of everything written as a hex String.
+	 */
+	public String getHash() {
+		return SHA1.convertBytesToHexString( m_digest.digest() );
+	}
+
+	/**
+	 * Obtain the number of bytes written.
+	 * @return bytes written so far.
+	 */
+	public long getCount() {
+		return m_count;
+	}
+}
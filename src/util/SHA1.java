@@ -1,8 +1,13 @@
 package util;
 
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -10,12 +15,35 @@ import java.security.NoSuchAlgorithmException;
 /**
  * Wrapper around Java's SHA1 Functionality implemented as a singleton.
  *
+ * Every thread hashes with its own MessageDigest and buffer, so the
+ * singleton may be shared by upload, recovery and reassembly threads at
+ * once.  Files, streams and channels are read through the buffer rather
+ * than all at once, so files of any size are hashed in constant memory.
+ *
  * @author Kevin Cheek
  * @author Alex Maskovyak
  * @author Joseph Pecoraro
  */
 public class SHA1 {
 
+	///
+	///
+	/// Constants.
+	///
+	///
+
+	/** Size, in bytes, of a SHA-1 digest. */
+	public static final int DIGEST_SIZE = 20;
+
+	/** Size of the buffer files and streams are read through. */
+	private static final int BUFFER_SIZE = 128*1024; /* 128 kilobytes */
+
+	/** Kind of digest this remembers in a {@link HashCache}. */
+	public static final String CACHE_KIND = "sha1";
+
+	/** Hex digits, by value. */
+	private static final char[] HEX = {'0','1','2','3','4','5','6','7','8','9','a','b','c','d','e','f'};
+
 	///
 	///
 	/// Hidden variables.
@@ -26,10 +54,16 @@ public class SHA1 {
 	private static final String SHA1_TYPE = "SHA-1";
 
 	/** Singleton instance. */
-	private static SHA1 m_instance;
+	private static final SHA1 m_instance = new SHA1();
+
+	/** Each thread's MessageDigest, responsible for hashing. */
+	private final ThreadLocal<MessageDigest> m_digests;
+
+	/** Each thread's read buffer. */
+	private final ThreadLocal<ByteBuffer> m_buffers;
 
-	/** MessageDigest is responsible for hashing. */
-	private static MessageDigest m_MessageDigest;
+	/** Digests of unchanged files, null to always hash. */
+	private volatile HashCache m_cache;
 
 	///
 	///
@@ -41,14 +75,16 @@ public class SHA1 {
 	 * Hidden constructor.  Non-accessible for this singleton.
 	 */
 	private SHA1() {
-		try {
-			m_MessageDigest = MessageDigest.getInstance( SHA1_TYPE );
-		} catch (NoSuchAlgorithmException e) {
-			/* this should never occur since we know java implements this hash
-			 * here we're wrapping the error so that we never ever see it
-			 * again. */
-			m_MessageDigest = null;
-		}
+		m_digests = new ThreadLocal<MessageDigest>() {
+			protected MessageDigest initialValue() {
+				return newDigest();
+			}
+		};
+		m_buffers = new ThreadLocal<ByteBuffer>() {
+			protected ByteBuffer initialValue() {
+				return ByteBuffer.allocate( BUFFER_SIZE );
+			}
+		};
 	}
 
 	/**
@@ -56,13 +92,23 @@ public class SHA1 {
 	 * @return SHA1 instance.
 	 */
 	public static SHA1 getInstance() {
-		if( m_instance == null ) {
-			m_instance = new SHA1();
-		}
-
 		return m_instance;
 	}
 
+	/**
+	 * Create a MessageDigest of its own for a caller hashing incrementally.
+	 * @return a new SHA-1 MessageDigest.
+	 */
+	public static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance( SHA1_TYPE );
+		} catch (NoSuchAlgorithmException e) {
+			/* this should never occur since every Java platform must
+			 * implement SHA-1 */
+			throw new IllegalStateException( "SHA-1 is not available." );
+		}
+	}
+
 	///
 	///
 	/// Operations.
@@ -75,48 +121,75 @@ public class SHA1 {
 	 * @return the SHA1 hash of the byte array as a hex String
 	 */
 	public String hash( byte[] bytes ) {
-		m_MessageDigest.reset();
-		m_MessageDigest.update( bytes );
-		return convertBytesToHexString( m_MessageDigest.digest() );
+		return convertBytesToHexString( digest( bytes ) );
 	}
 
 
 	/**
 	 * Quick hash of a file.
 	 * @param p_File file whose contents are to be hashed.
-	 * @return the SHA1 hash of the file contents as a hex String.
+	 * @return the SHA1 hash of the file contents as a hex String, null if
+	 * 			the file cannot be read.
 	 */
 	public String hash( File p_File ) {
-		String hashValue = null;
+		return hash( p_File.toPath() );
+	}
 
+	/**
+	 * Hash of a file, read a buffer at a time.  With a cache set, a file
+	 * unchanged since it was last hashed is not read at all.
+	 * @param p_path file whose contents are to be hashed.
+	 * @return the SHA1 hash of the file contents as a hex String, null if
+	 * 			the file cannot be read.
+	 */
+	public String hash( Path p_path ) {
 		try {
-			hashValue = hash( new FileInputStream( p_File ) );
-		} catch ( Exception e ) {
+			HashCache cache = m_cache;
+			if ( cache == null ) {
+				return convertBytesToHexString( digest( p_path ) );
+			}
+			String hash = cache.get( p_path, CACHE_KIND );
+			if ( hash == null ) {
+				HashCache.Identity identity = HashCache.identify( p_path );
+				hash = convertBytesToHexString( digest( p_path ) );
+				cache.put( p_path, identity, CACHE_KIND, hash );
+			}
+			return hash;
+		} catch ( IOException e ) {
 			e.printStackTrace();
-		} finally {
+			return null;
 		}
-
-		return hashValue;
 	}
 
 	/**
-	 * Quick hash of an input stream.
+	 * Quick hash of an input stream, read to its end a buffer at a time.
 	 * @param p_inStream inputstream whose contents are to be hashed.
-	 * @return the SHA1 hash of the inputstream contents as a hex String.
+	 * @return the SHA1 hash of the inputstream contents as a hex String,
+	 * 			null if the stream cannot be read.
 	 */
 	public String hash( InputStream p_inStream ) {
-	    String hashValue = null;
-
-	    try {
-			int dataSize = p_inStream.available();
-		    byte[] bytes = new byte[ dataSize ];
-		    p_inStream.read( bytes );
-		    hashValue = hash( bytes );
-	    } catch ( Exception e ) {
-	    } finally {
-	    }
-
-	    return hashValue;
+		MessageDigest digest = m_digests.get();
+		byte[] buffer = m_buffers.get().array();
+		digest.reset();
+		try {
+			int nRead;
+			while ( ( nRead = p_inStream.read( buffer ) ) != -1 ) {
+				digest.update( buffer, 0, nRead );
+			}
+		} catch ( IOException e ) {
+			return null;
+		}
+		return convertBytesToHexString( digest.digest() );
+	}
+
+	/**
+	 * Hash of a channel, read to its end a buffer at a time.
+	 * @param p_channel channel whose contents are to be hashed.
+	 * @return the SHA1 hash of the channel contents as a hex String.
+	 * @throws IOException when the channel cannot be read.
+	 */
+	public String hash( ReadableByteChannel p_channel ) throws IOException {
+		return convertBytesToHexString( digest( p_channel ) );
 	}
 
 	/**
@@ -128,22 +201,81 @@ public class SHA1 {
 		return hash( input.getBytes() );
 	}
 
+	/**
+	 * Binary hash of a byte array.
+	 * @param bytes the byte array
+	 * @return the 20 byte SHA1 digest of the byte array
+	 */
+	public byte[] digest( byte[] bytes ) {
+		MessageDigest digest = m_digests.get();
+		digest.reset();
+		return digest.digest( bytes );
+	}
+
+	/**
+	 * Binary hash of a file, read a buffer at a time.
+	 * @param p_path file whose contents are to be hashed.
+	 * @return the 20 byte SHA1 digest of the file contents.
+	 * @throws IOException when the file cannot be read.
+	 */
+	public byte[] digest( Path p_path ) throws IOException {
+		FileChannel channel = FileChannel.open( p_path, StandardOpenOption.READ );
+		try {
+			return digest( channel );
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Binary hash of a channel, read to its end a buffer at a time.
+	 * @param p_channel channel whose contents are to be hashed.
+	 * @return the 20 byte SHA1 digest of the channel contents.
+	 * @throws IOException when the channel cannot be read.
+	 */
+	public byte[] digest( ReadableByteChannel p_channel ) throws IOException {
+		MessageDigest digest = m_digests.get();
+		ByteBuffer buffer = m_buffers.get();
+		digest.reset();
+		buffer.clear();
+		while ( p_channel.read( buffer ) != -1 ) {
+			digest.update( buffer.array(), 0, buffer.position() );
+			buffer.clear();
+		}
+		return digest.digest();
+	}
+
+
+	/**
+	 * Remember the hashes of files between calls, and runs if the cache is
+	 * saved.
+	 * @param cache digests of unchanged files, null to always hash.
+	 */
+	public void setCache( HashCache cache ) {
+		m_cache = cache;
+	}
+
+	/**
+	 * Get the cache of file hashes.
+	 * @return the cache, null if files are always hashed.
+	 */
+	public HashCache getCache() {
+		return m_cache;
+	}
+
 
 	/**
 	 * Converts a byte array into its more readable hex String representation.
 	 * @param bytes the byte array
 	 * @return a String of characters 0-9,a-z of the hex representation of the bytes.
 	 */
-	private static String convertBytesToHexString( byte[] bytes ) {
-		char[] table = {'0','1','2','3','4','5','6','7','8','9','a','b','c','d','e','f'};
-		StringBuffer buf = new StringBuffer();
+	public static String convertBytesToHexString( byte[] bytes ) {
+		char[] chars = new char[ bytes.length * 2 ];
 		for (int i=0; i<bytes.length; i++) {
-			int low  = (bytes[i]) & 0x0F;
-			int high = (bytes[i] >>> 4) & 0x0F;
-			buf.append( table[high] );
-	    	buf.append( table[low] );
+			chars[ 2*i ]   = HEX[ (bytes[i] >>> 4) & 0x0F ];
+			chars[ 2*i+1 ] = HEX[ bytes[i] & 0x0F ];
 		}
-		return buf.toString();
+		return new String( chars );
 	}
 
 }